@@ -39,7 +39,12 @@ abstract class AbstractDatabase implements Database {
 
     /**
      * Called by Checkpointer task.
+     *
+     * @param dirtyThreshold ratio of dirty nodes to the cache size which triggers a
+     * checkpoint; 1.0 or more to disable
+     * @return estimated maximum delay before calling again, in nanoseconds
      */
-    abstract void checkpoint(boolean force, long sizeThreshold, long delayThresholdNanos)
+    abstract long checkpoint(boolean force, long sizeThreshold, long delayThresholdNanos,
+                             double dirtyThreshold)
         throws IOException;
 }
@@ -0,0 +1,440 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+
+/**
+ * Simple and fast LZ77 block compression, using the LZ4 block format. Streams are encoded as
+ * a series of blocks, each prefixed by a length. A positive length is followed by the
+ * uncompressed length and the compressed data. A negative length indicates that the block
+ * couldn't be compressed, and the raw data follows. A length of zero indicates the end of the
+ * stream, which is how the unwritten portion of a preallocated file is read.
+ *
+ * <p>A crash can leave a block whose length was written but whose contents are still zeros or
+ * stale data. When reading the last redo log file, such a block is reported as the end of the
+ * stream, with an EOFException, and so a log with a torn last block can still be replayed.
+ * Anywhere else, a malformed block is reported as corruption.
+ *
+ * @author Brian S O'Neill
+ */
+final class BlockCodec {
+    private static final int HASH_BITS = 12;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+
+    // Last match must start at least 12 bytes before the end, and the last 5 bytes are
+    // always literals.
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+
+    // Large writes are split into blocks which are no larger than this, and so a torn length
+    // is detected before a huge buffer is allocated for it.
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private BlockCodec() {
+    }
+
+    /**
+     * @return maximum size of a compressed block
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @param dst must have at least maxCompressedLength bytes available
+     * @param table hash table with 4096 entries, which is cleared by this method
+     * @return compressed length
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+        final int srcEnd = srcOff + srcLen;
+        int dp = dstOff;
+        int anchor = srcOff;
+
+        if (srcLen >= MF_LIMIT + 1) {
+            Arrays.fill(table, 0);
+            final int matchLimit = srcEnd - LAST_LITERALS;
+            final int searchLimit = srcEnd - MF_LIMIT;
+            int sp = srcOff;
+
+            while (sp <= searchLimit) {
+                int seq = Utils.decodeIntLE(src, sp);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                // Table stores the position plus one, such that zero is empty.
+                int ref = table[h] - 1;
+                table[h] = sp + 1;
+
+                if (ref < srcOff || sp - ref > MAX_OFFSET || Utils.decodeIntLE(src, ref) != seq) {
+                    sp++;
+                    continue;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (sp + matchLen < matchLimit && src[ref + matchLen] == src[sp + matchLen]) {
+                    matchLen++;
+                }
+
+                dp = writeSequence(src, anchor, sp - anchor, dst, dp, sp - ref, matchLen);
+
+                sp += matchLen;
+                anchor = sp;
+            }
+        }
+
+        // Last literals.
+        int litLen = srcEnd - anchor;
+        int tokenPos = dp++;
+        if (litLen >= 15) {
+            dst[tokenPos] = (byte) 0xf0;
+            dp = writeLength(dst, dp, litLen - 15);
+        } else {
+            dst[tokenPos] = (byte) (litLen << 4);
+        }
+        System.arraycopy(src, anchor, dst, dp, litLen);
+        return dp + litLen - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int litOff, int litLen,
+                                     byte[] dst, int dp, int offset, int matchLen)
+    {
+        int tokenPos = dp++;
+        int token;
+
+        if (litLen >= 15) {
+            token = 0xf0;
+            dp = writeLength(dst, dp, litLen - 15);
+        } else {
+            token = litLen << 4;
+        }
+
+        System.arraycopy(src, litOff, dst, dp, litLen);
+        dp += litLen;
+
+        dst[dp++] = (byte) offset;
+        dst[dp++] = (byte) (offset >>> 8);
+
+        matchLen -= MIN_MATCH;
+        if (matchLen >= 15) {
+            token |= 0x0f;
+            dp = writeLength(dst, dp, matchLen - 15);
+        } else {
+            token |= matchLen;
+        }
+
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int len) {
+        while (len >= 255) {
+            dst[dp++] = (byte) 255;
+            len -= 255;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+
+    /**
+     * @param dstLen expected uncompressed length
+     * @throws CorruptDatabaseException if the block is malformed
+     */
+    static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+        throws CorruptDatabaseException
+    {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int sp = srcOff;
+        int dp = dstOff;
+
+        try {
+            while (true) {
+                int token = src[sp++] & 0xff;
+
+                int litLen = token >>> 4;
+                if (litLen == 15) {
+                    int b;
+                    do {
+                        litLen += (b = src[sp++] & 0xff);
+                    } while (b == 255);
+                }
+
+                if (litLen > dstEnd - dp || litLen > srcEnd - sp) {
+                    throw new IndexOutOfBoundsException();
+                }
+                System.arraycopy(src, sp, dst, dp, litLen);
+                sp += litLen;
+                dp += litLen;
+
+                if (sp >= srcEnd) {
+                    break;
+                }
+
+                int offset = (src[sp++] & 0xff) | ((src[sp++] & 0xff) << 8);
+
+                int matchLen = token & 0x0f;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        matchLen += (b = src[sp++] & 0xff);
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                int ref = dp - offset;
+                if (offset == 0 || ref < dstOff || matchLen > dstEnd - dp) {
+                    throw new IndexOutOfBoundsException();
+                }
+
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, dp, matchLen);
+                    dp += matchLen;
+                } else {
+                    // Overlapping copy repeats the preceding bytes.
+                    for (int end = dp + matchLen; dp < end; ) {
+                        dst[dp++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptDatabaseException("Malformed compressed block");
+        }
+
+        if (dp != dstEnd) {
+            throw new CorruptDatabaseException("Malformed compressed block");
+        }
+    }
+
+    /**
+     * Compresses each write as a separate block, splitting large writes into several.
+     */
+    static final class Output extends OutputStream {
+        private final OutputStream mOut;
+        private final int[] mTable;
+        private byte[] mBlock;
+
+        Output(OutputStream out) {
+            mOut = out;
+            mTable = new int[1 << HASH_BITS];
+            mBlock = new byte[8 + maxCompressedLength(8192)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int amt = Math.min(len, MAX_BLOCK_SIZE);
+                writeBlock(b, off, amt);
+                off += amt;
+                len -= amt;
+            }
+        }
+
+        private void writeBlock(byte[] b, int off, int len) throws IOException {
+            byte[] block = mBlock;
+            int maxLen = 8 + maxCompressedLength(len);
+            if (block.length < maxLen) {
+                mBlock = block = new byte[maxLen];
+            }
+
+            int clen = compress(b, off, len, block, 8, mTable);
+
+            if (clen < len) {
+                Utils.encodeIntLE(block, 0, clen);
+                Utils.encodeIntLE(block, 4, len);
+                mOut.write(block, 0, 8 + clen);
+            } else {
+                // Store the raw bytes, preceded by a negative length.
+                Utils.encodeIntLE(block, 4, -len);
+                System.arraycopy(b, off, block, 8, len);
+                mOut.write(block, 4, 4 + len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Decompresses blocks written by Output. A block which is cut off by the end of the
+     * stream causes an EOFException to be thrown.
+     */
+    static final class Input extends InputStream {
+        private final InputStream mIn;
+        private final byte[] mHeader;
+        private final boolean mTornTail;
+        private byte[] mBlock;
+        private byte[] mBuffer;
+        private int mPos;
+        private int mEnd;
+        private boolean mFinished;
+
+        Input(InputStream in) {
+            this(in, false);
+        }
+
+        /**
+         * @param tornTail when true, a malformed block is assumed to have been torn by a
+         * crash, and it causes an EOFException to be thrown instead of a
+         * CorruptDatabaseException
+         */
+        Input(InputStream in, boolean tornTail) {
+            mIn = in;
+            mTornTail = tornTail;
+            mHeader = new byte[8];
+            mBlock = new byte[8192];
+            mBuffer = new byte[8192];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPos >= mEnd && !nextBlock()) {
+                return -1;
+            }
+            return mBuffer[mPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mPos >= mEnd && !nextBlock()) {
+                return -1;
+            }
+            int amt = Math.min(len, mEnd - mPos);
+            System.arraycopy(mBuffer, mPos, b, off, amt);
+            mPos += amt;
+            return amt;
+        }
+
+        @Override
+        public int available() {
+            return mEnd - mPos;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (mFinished) {
+                return false;
+            }
+
+            byte[] header = mHeader;
+            int amt = readFully(header, 0, 4, true);
+            if (amt <= 0) {
+                mFinished = true;
+                return false;
+            }
+
+            int length = Utils.decodeIntLE(header, 0);
+
+            if (length == 0) {
+                // Reached the unwritten portion of a preallocated file.
+                mFinished = true;
+                return false;
+            }
+
+            if (length < 0) {
+                length = -length;
+                if (length <= 0 || length > MAX_BLOCK_SIZE) {
+                    throw malformed();
+                }
+                byte[] buffer = ensureCapacity(mBuffer, length);
+                mBuffer = buffer;
+                readFully(buffer, 0, length, false);
+                mPos = 0;
+                mEnd = length;
+                return true;
+            }
+
+            readFully(header, 4, 4, false);
+            int rawLength = Utils.decodeIntLE(header, 4);
+            if (rawLength <= 0 || rawLength > MAX_BLOCK_SIZE
+                || length > maxCompressedLength(rawLength))
+            {
+                throw malformed();
+            }
+
+            byte[] block = ensureCapacity(mBlock, length);
+            mBlock = block;
+            readFully(block, 0, length, false);
+
+            byte[] buffer = ensureCapacity(mBuffer, rawLength);
+            mBuffer = buffer;
+            try {
+                decompress(block, 0, length, buffer, 0, rawLength);
+            } catch (CorruptDatabaseException e) {
+                throw malformed();
+            }
+            mPos = 0;
+            mEnd = rawLength;
+            return true;
+        }
+
+        /**
+         * @param eofAllowed when true, return 0 if the stream ends before anything is read
+         */
+        private int readFully(byte[] b, int off, int len, boolean eofAllowed) throws IOException {
+            int total = 0;
+            while (total < len) {
+                int amt = mIn.read(b, off + total, len - total);
+                if (amt <= 0) {
+                    if (total == 0 && eofAllowed) {
+                        return 0;
+                    }
+                    throw new EOFException("Compressed block is incomplete");
+                }
+                total += amt;
+            }
+            return total;
+        }
+
+        /**
+         * Called when the block is torn, or when the stream is corrupt. Nothing more is read.
+         */
+        private IOException malformed() {
+            mFinished = true;
+            String message = "Malformed compressed block";
+            return mTornTail ? new EOFException(message) : new CorruptDatabaseException(message);
+        }
+
+        private static byte[] ensureCapacity(byte[] b, int length) {
+            return b.length >= length ? b : new byte[length];
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -33,12 +33,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 final class Checkpointer implements Runnable {
     private static final int STATE_INIT = 0, STATE_RUNNING = 1, STATE_CLOSED = 2;
 
+    // Minimum delay when checking early, in anticipation of reaching the dirty threshold.
+    private static final long MIN_DELAY_NANOS = 10_000_000L;
+
     private final AtomicInteger mSuspendCount;
     private final ReferenceQueue<AbstractDatabase> mRefQueue;
     private final WeakReference<AbstractDatabase> mDatabaseRef;
     private final long mRateNanos;
     private final long mSizeThreshold;
     private final long mDelayThresholdNanos;
+    private final double mDirtyThreshold;
     private volatile Thread mThread;
     private volatile int mState;
     private Thread mShutdownHook;
@@ -50,6 +54,7 @@ final class Checkpointer implements Runnable {
         mRateNanos = config.mCheckpointRateNanos;
         mSizeThreshold = config.mCheckpointSizeThreshold;
         mDelayThresholdNanos = config.mCheckpointDelayThresholdNanos;
+        mDirtyThreshold = config.mCheckpointDirtyThreshold;
 
         if (mRateNanos < 0) {
             mRefQueue = new ReferenceQueue<>();
@@ -98,9 +103,15 @@ final class Checkpointer implements Runnable {
             }
 
             long lastDurationNanos = 0;
+            long nextDelayNanos = Long.MAX_VALUE;
 
             while (true) {
-                long delayMillis = (mRateNanos - lastDurationNanos) / 1000000L;
+                long delayNanos = mRateNanos - lastDurationNanos;
+                if (nextDelayNanos < delayNanos) {
+                    // Check sooner, because the dirty threshold might be reached.
+                    delayNanos = Math.max(nextDelayNanos, MIN_DELAY_NANOS);
+                }
+                long delayMillis = delayNanos / 1000000L;
                 if (delayMillis > 0) {
                     Thread.sleep(delayMillis); 
                 }
@@ -114,9 +125,11 @@ final class Checkpointer implements Runnable {
                 if (mSuspendCount.get() != 0) {
                     // Don't actually suspend the thread, allowing for weak reference checks.
                     lastDurationNanos = 0;
+                    nextDelayNanos = Long.MAX_VALUE;
                 } else try {
                     long startNanos = System.nanoTime();
-                    db.checkpoint(false, mSizeThreshold, mDelayThresholdNanos);
+                    nextDelayNanos = db.checkpoint
+                        (false, mSizeThreshold, mDelayThresholdNanos, mDirtyThreshold);
                     long endNanos = System.nanoTime();
 
                     lastDurationNanos = endNanos - startNanos;
@@ -129,6 +142,7 @@ final class Checkpointer implements Runnable {
                         throw e;
                     }
                     lastDurationNanos = 0;
+                    nextDelayNanos = Long.MAX_VALUE;
                 }
             }
         } catch (Throwable e) {
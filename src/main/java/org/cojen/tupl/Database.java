@@ -17,6 +17,8 @@
 
 package org.cojen.tupl;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.Flushable;
 import java.io.InputStream;
 import java.io.IOException;
@@ -300,6 +302,22 @@ public interface Database extends CauseCloseable, Flushable {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Resize the cache while the database is open, overriding the {@link
+     * DatabaseConfig#minCacheSize minimum} and {@link DatabaseConfig#maxCacheSize maximum}
+     * sizes which were configured. Growing the cache only raises the limit, and new memory is
+     * allocated as needed. Shrinking the cache evicts the least recently used nodes, writing
+     * them if dirty, and frees their memory. Nodes which are in use cannot be evicted, and so
+     * the cache might not shrink by the full amount requested. Non-durable databases only
+     * shrink by evicting clean nodes.
+     *
+     * @param bytes new maximum cache size, in bytes
+     * @return actual cache size after resizing, in bytes
+     */
+    public default long cacheSize(long bytes) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
     /**
      * Support for capturing a snapshot (hot backup) of the database, while
      * still allowing concurrent modifications. The snapshot contains all data
@@ -323,25 +341,128 @@ public interface Database extends CauseCloseable, Flushable {
      */
     public abstract Snapshot beginSnapshot() throws IOException;
 
+    /**
+     * Support for capturing an incremental snapshot, which only contains the pages written
+     * since the previous snapshot began. Restore by passing a full snapshot and the chain of
+     * increments which followed it to {@link #restoreFromSnapshot(DatabaseConfig, InputStream,
+     * InputStream...) restoreFromSnapshot}. Every snapshot in the chain must have been
+     * written, because each increment is relative to the one before it.
+     *
+     * <p>Changed pages are only tracked in memory, and so a full snapshot must be captured
+     * after the database is opened before an incremental snapshot can be captured.
+     *
+     * @return a snapshot control object, which must be closed when no longer needed
+     * @throws IllegalStateException if no snapshot has been captured since the database was
+     * opened
+     * @throws UnsupportedOperationException if database is fully mapped
+     */
+    public abstract Snapshot beginIncrementalSnapshot() throws IOException;
+
+    /**
+     * Opens a read-only view of this database, as of the last {@link #checkpoint
+     * checkpoint}. Call the checkpoint method immediately before to open an up-to-date
+     * view. The view only contains the changes of transactions which committed before the
+     * checkpoint, and it's unaffected by later modifications. Reads against the view don't
+     * acquire locks in this database, and so long scans don't contend with writers. Any
+     * attempt to modify the view throws an {@link UnmodifiableDatabaseException}.
+     *
+     * <p>Note that the view is consistent as of the checkpoint, and not as of the time that
+     * this method is called. Transactions which committed after the checkpoint aren't
+     * visible. This isn't snapshot isolation for the transactions of this database, and
+     * there's no {@link LockMode} which reads a version as of when a transaction began.
+     *
+     * <p>The view has its own cache, which is filled from clean pages cached by this database
+     * when possible. Pages which are overwritten after the view is opened are copied into
+     * temporary files first, in the same way as for a {@link #beginSnapshot snapshot}. The
+     * temporary files keep growing while the view is open, and {@link #compactFile
+     * compaction} cannot shrink the data files, and so the view should be closed promptly.
+     * Transactions which were in progress at the checkpoint are rolled back within the view,
+     * by applying their checkpointed undo logs, and the rolled back pages are also stored in
+     * the temporary files.
+     *
+     * @return a read-only database, which must be closed when no longer needed
+     */
+    public abstract Database openReadOnlyView() throws IOException;
+
     /**
      * Restore from a {@link #beginSnapshot snapshot}, into the data files defined by the given
      * configuration. All existing data and redo log files at the snapshot destination are
      * deleted before the restore begins.
      *
+     * <p>If the configuration specifies a redo log {@link DatabaseConfig#archiveRedoLogs
+     * archive} directory, then existing redo log files are moved into it instead of being
+     * deleted, and the archived files which follow the snapshot are replayed after the
+     * snapshot is restored. Replay can be stopped at a {@link DatabaseConfig#restoreToTime
+     * time} or a {@link DatabaseConfig#restoreToPosition position}. Archived files which
+     * follow the restore point describe an abandoned history, and so a new archive directory
+     * should be used after such a restore.
+     *
      * @param in snapshot source; does not require extra buffering; auto-closed
      */
     public static Database restoreFromSnapshot(DatabaseConfig config, InputStream in)
         throws IOException
     {
-        Method m = config.directRestoreMethod();
-        if (m != null) {
-            try {
-                return (Database) m.invoke(null, config, in);
-            } catch (Exception e) {
-                config.handleDirectException(e);
-            }
+        return restoreFromSnapshot(config, in, new InputStream[0]);
+    }
+
+    /**
+     * Restore from a {@link #beginSnapshot snapshot} followed by a chain of {@link
+     * #beginIncrementalSnapshot incremental} snapshots, into the data files defined by the
+     * given configuration. Each increment must directly follow the one before it.
+     *
+     * @param in full snapshot source; does not require extra buffering; auto-closed
+     * @param increments incremental snapshots to apply in order; each is auto-closed
+     * @see #restoreFromSnapshot(DatabaseConfig, InputStream)
+     */
+    public static Database restoreFromSnapshot(DatabaseConfig config,
+                                               InputStream in, InputStream... increments)
+        throws IOException
+    {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        return LocalDatabase.restore(config, in, null, increments);
+    }
+
+    /**
+     * Restore from a {@link Snapshot#writeTo(OutputStream[], boolean) snapshot which was
+     * written in parts}, optionally followed by a chain of {@link #beginIncrementalSnapshot
+     * incremental} snapshots. The parts are restored concurrently by separate threads, and
+     * they can be given in any order.
+     *
+     * @param parts all of the snapshot parts; do not require extra buffering; each is
+     * auto-closed
+     * @param increments incremental snapshots to apply in order; each is auto-closed
+     * @see #restoreFromSnapshot(DatabaseConfig, InputStream)
+     */
+    public static Database restoreFromSnapshot(DatabaseConfig config,
+                                               InputStream[] parts, InputStream... increments)
+        throws IOException
+    {
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("No parts");
         }
-        return LocalDatabase.restoreFromSnapshot(config, in);
+        return LocalDatabase.restore(config, null, parts, increments);
+    }
+
+    /**
+     * Opens a file written by a full {@link #beginSnapshot snapshot} as a read-only
+     * database, without restoring it first. Pages are read from the snapshot file as they're
+     * needed, through the regular cache. Any attempt to modify the database throws an {@link
+     * UnmodifiableDatabaseException}.
+     *
+     * <p>The configuration supplies the cache size and encryption settings, and the file and
+     * redo log settings are ignored. No recovery is performed, and so changes made by
+     * transactions which were in progress when the snapshot was captured can be visible. The
+     * snapshot file must not be modified while the database is open.
+     *
+     * @param snapshot file which contains a complete snapshot, as written by {@link
+     * Snapshot#writeTo(OutputStream) writeTo}
+     */
+    public static Database openSnapshot(DatabaseConfig config, File snapshot)
+        throws IOException
+    {
+        return open(config.snapshotConfig(snapshot));
     }
 
     /**
@@ -532,6 +653,34 @@ public interface Database extends CauseCloseable, Flushable {
      */
     public abstract void sync() throws IOException;
 
+    /**
+     * Waits for the next automatic {@link DatabaseConfig#syncRate sync} to complete, which
+     * persists all transactions committed before this method was called. Concurrent callers
+     * share the same sync. If automatic syncs aren't enabled, a sync is performed immediately,
+     * as if by calling the {@link #sync sync} method.
+     */
+    public abstract void awaitSync() throws IOException;
+
+    /**
+     * Subscribe to the stream of changes written to the redo log. Committed changes are passed
+     * to the listener in commit order, starting with the first commit which follows the given
+     * position. The listener is called by a dedicated thread, which reads the redo log files
+     * as they're written. Files which haven't been completely read by a subscriber are
+     * retained, and so a slow listener never blocks the database writers. Changes which aren't
+     * flushed to the redo log aren't observed until they are.
+     *
+     * <p>Subscriptions aren't supported for non-durable or replicated databases, or when the
+     * redo log is striped, preallocated, or written using direct I/O.
+     *
+     * @param position position returned by {@link RedoListener#commit RedoListener.commit},
+     * or a negative value to only observe changes which commit after this method is called
+     * @return closeable object which ends the subscription
+     * @throws DatabaseException if the position refers to a redo log file which has been
+     * deleted
+     * @throws UnsupportedOperationException if not supported
+     */
+    public abstract Closeable subscribe(RedoListener listener, long position) throws IOException;
+
     /**
      * Durably sync and checkpoint all changes to the database. In addition to ensuring that
      * all committed transactions are durable, checkpointing ensures that non-transactional
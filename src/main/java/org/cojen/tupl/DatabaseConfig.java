@@ -28,9 +28,12 @@ import java.io.Serializable;
 
 import java.lang.reflect.Method;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import java.util.concurrent.TimeUnit;
@@ -57,6 +60,7 @@ public class DatabaseConfig implements Cloneable, Serializable {
     private static volatile Method cDirectRestore;
 
     File mBaseFile;
+    File[] mRedoLogDirectories;
     boolean mMkdirs;
     File[] mDataFiles;
     boolean mMapDataFiles;
@@ -65,12 +69,24 @@ public class DatabaseConfig implements Cloneable, Serializable {
     long mMinCachedBytes;
     long mMaxCachedBytes;
     long mSecondaryCacheSize;
+    int mCacheCleanerThreads;
+    double mCacheDirtyRatio;
     DurabilityMode mDurabilityMode;
     LockUpgradeRule mLockUpgradeRule;
     long mLockTimeoutNanos;
+    int mLockEscalationThreshold;
+    long mDeadlockDetectionRateNanos;
     long mCheckpointRateNanos;
+    long mSyncRateNanos;
     long mCheckpointSizeThreshold;
+    long mRedoPreallocateSize;
+    boolean mCompressRedo;
+    boolean mDirectRedo;
+    File mRedoArchiveDirectory;
+    long mRestoreTime;
+    long mRestorePosition;
     long mCheckpointDelayThresholdNanos;
+    double mCheckpointDirtyThreshold;
     transient EventListener mEventListener;
     boolean mFileSync;
     boolean mReadOnly;
@@ -79,10 +95,18 @@ public class DatabaseConfig implements Cloneable, Serializable {
     boolean mCachePriming;
     transient ReplicationManager mReplManager;
     int mMaxReplicaThreads;
+    int mMaxRecoveryThreads;
     transient Crypto mCrypto;
     transient TransactionHandler mTxnHandler;
     Map<String, ? extends Object> mDebugOpen;
 
+    // Is set when opening a Database which was just restored from a snapshot.
+    transient boolean mRestoring;
+
+    // Is set when opening a read-only view, which has no redo log. Transactions which were in
+    // progress at the checkpoint are rolled back, using the checkpointed undo logs.
+    transient boolean mRollbackUndo;
+
     // Fields are set as a side-effect of constructing a replicated Database.
     transient long mReplRecoveryStartNanos;
     transient long mReplInitialTxnId;
@@ -94,6 +118,13 @@ public class DatabaseConfig implements Cloneable, Serializable {
         checkpointRate(1, TimeUnit.SECONDS);
         checkpointSizeThreshold(1024 * 1024);
         checkpointDelayThreshold(1, TimeUnit.MINUTES);
+        checkpointDirtyThreshold(1.0);
+        syncRate(-1, null);
+        deadlockDetectionRate(-1, null);
+        cacheDirtyRatio(1.0);
+        maxRecoveryThreads(1);
+        restoreToTime(Long.MAX_VALUE);
+        restoreToPosition(Long.MAX_VALUE);
     }
 
     /**
@@ -154,6 +185,27 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the directories for the redo log files, which by default reside in the same
+     * directory as the base file. When more than one directory is provided, the redo log is
+     * striped across all of them, and the directories are expected to be on separate devices.
+     * Concurrent transactions write to different stripes, and recovery applies the changes of
+     * all the stripes in the same order that they were written. The directories must not be
+     * changed unless the database was cleanly {@link Database#shutdown shut down}.
+     */
+    public DatabaseConfig redoLogDirectories(File... dirs) {
+        if (dirs == null || dirs.length == 0) {
+            mRedoLogDirectories = null;
+        } else {
+            File[] redoDirs = new File[dirs.length];
+            for (int i=0; i<dirs.length; i++) {
+                redoDirs[i] = abs(dirs[i]);
+            }
+            mRedoLogDirectories = redoDirs;
+        }
+        return this;
+    }
+
     /**
      * Enable memory mapping of the data files. Not recommended for 32-bit platforms or for
      * databases which don't fit entirely in main memory.
@@ -209,6 +261,38 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the number of background threads which write out dirty nodes before they're
+     * evicted from the cache, keeping a reserve of least recently used nodes clean. Threads
+     * which then need to allocate a node can recycle one without having to write it first.
+     * Default is zero, which disables the cleaner threads. If a negative number is provided,
+     * the actual number applied is {@code (-num * availableProcessors)}. Option has no effect
+     * if database is non-durable.
+     */
+    public DatabaseConfig cacheCleanerThreads(int num) {
+        mCacheCleanerThreads = num;
+        return this;
+    }
+
+    /**
+     * Set the target maximum ratio of dirty nodes to the maximum cache size. When exceeded,
+     * the cache cleaner threads continuously write out the oldest dirty nodes, instead of
+     * leaving them all for the next checkpoint to write. This spreads out the writes and
+     * shortens checkpoints, but nodes which are modified again must be written again. Default
+     * is 1.0, which disables continuous writing. If no cache cleaner threads are configured,
+     * one is started when a ratio less than 1.0 is provided. Option has no effect if database
+     * is non-durable.
+     *
+     * @throws IllegalArgumentException if ratio is negative or not a number
+     */
+    public DatabaseConfig cacheDirtyRatio(double ratio) {
+        if (!(ratio >= 0)) {
+            throw new IllegalArgumentException("Illegal dirty ratio: " + ratio);
+        }
+        mCacheDirtyRatio = ratio;
+        return this;
+    }
+
     /**
      * Set the size of the secondary off-heap cache, which is empty by default. A secondary
      * cache is slower than a primary cache, but a very large primary cache can cause high
@@ -262,6 +346,36 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Enable lock escalation, which is disabled by default. When a transaction requests more
+     * than the given number of exclusive locks within one index, it attempts to acquire an
+     * exclusive lock for the entire index. If no other transaction holds any locks within the
+     * index, the escalation succeeds and no more row locks are created for it, except when
+     * deleting entries. Other transactions must wait for the transaction to finish before
+     * they can lock anything within the index, or read anything which is uncommitted.
+     *
+     * @param threshold number of exclusive lock requests within one index; zero or negative
+     * to disable
+     */
+    public DatabaseConfig lockEscalationThreshold(int threshold) {
+        mLockEscalationThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Set the rate at which a background thread scans all the locks for deadlocks. When a
+     * deadlock is found, one of the waiting lockers fails right away with a {@link
+     * DeadlockException}, instead of after its lock timeout has expired. Deadlocks are still
+     * detected when a lock request times out, and so this option is only useful when lock
+     * timeouts are long. Default rate is infinite, which disables background detection.
+     *
+     * @param unit required unit if rate is more than zero
+     */
+    public DatabaseConfig deadlockDetectionRate(long rate, TimeUnit unit) {
+        mDeadlockDetectionRateNanos = toNanos(rate, unit);
+        return this;
+    }
+
     /**
      * Set the rate at which {@link Database#checkpoint checkpoints} are
      * automatically performed. Default rate is 1 second. Pass a negative value
@@ -274,6 +388,22 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the rate at which the redo log is automatically {@link Database#sync synced} by a
+     * background thread. Transactions committed with a {@link DurabilityMode#NO_SYNC no-sync}
+     * or {@link DurabilityMode#NO_FLUSH no-flush} durability mode become durable no later than
+     * the given rate, bounding the amount of recently committed transactions which can be lost
+     * by a power failure or operating system crash. Callers which need a commit to be durable
+     * can {@link Database#awaitSync wait} for the next sync. Default rate is infinite, which
+     * disables automatic syncs. Option has no effect if database is non-durable.
+     *
+     * @param unit required unit if rate is more than zero
+     */
+    public DatabaseConfig syncRate(long rate, TimeUnit unit) {
+        mSyncRateNanos = toNanos(rate, unit);
+        return this;
+    }
+
     /**
      * Set the minimum redo log size required for an automatic {@link Database#checkpoint
      * checkpoint} to actually be performed. Default is 1 MiB. If database is used primarily
@@ -284,6 +414,89 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the size to preallocate for each redo log file, which is typically the same as the
+     * {@link #checkpointSizeThreshold checkpoint size threshold}. When enabled, an old redo
+     * log file is recycled after a checkpoint instead of being deleted, and so writing to the
+     * redo log doesn't need to grow the file. Default is zero, which disables preallocation.
+     * Option has no effect if database is non-durable or if {@link #encrypt encryption} is
+     * enabled.
+     */
+    public DatabaseConfig preallocateRedoLogs(long bytes) {
+        mRedoPreallocateSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set true to compress the redo log, which reduces the amount of redo I/O when values are
+     * repetitive. Because the {@link #checkpointSizeThreshold checkpoint size threshold} is
+     * compared against the compressed size, checkpoints are also performed less frequently.
+     * Default is false. The option can be changed when the database is re-opened, because
+     * recovery determines compression from each redo log file. Option has no effect if
+     * database is non-durable or {@link #replicate replicated}.
+     */
+    public DatabaseConfig compressRedoLog(boolean compress) {
+        mCompressRedo = compress;
+        return this;
+    }
+
+    /**
+     * Set true to write the redo log using direct I/O, which bypasses the file system cache
+     * and writes aligned blocks from a native buffer. Every redo log write is durable when it
+     * completes, which lowers the latency of {@link DurabilityMode#SYNC SYNC} commits, but
+     * {@link DurabilityMode#NO_SYNC NO_SYNC} commits become as durable and as slow as {@code
+     * SYNC} commits. If the file system doesn't support direct I/O, then synchronous writes
+     * through the file system cache are performed instead. Default is false. Option has no
+     * effect if database is non-durable or {@link #replicate replicated}.
+     */
+    public DatabaseConfig directRedoLog(boolean direct) {
+        mDirectRedo = direct;
+        return this;
+    }
+
+    /**
+     * Set a directory to move redo log files into when they're no longer needed for recovery,
+     * instead of deleting them. Together with a {@link Database#beginSnapshot snapshot}, the
+     * archived files support restoring the database to a point in time. While archiving, the
+     * current time is also logged at the {@link #checkpointRate checkpoint rate}, whenever
+     * anything else has been logged. The directory must not be shared with other databases.
+     * Default is null, which disables archiving. Archiving
+     * isn't supported when the redo log is striped, and the option has no effect if database
+     * is non-durable or {@link #replicate replicated}.
+     *
+     * @see Database#restoreFromSnapshot restoreFromSnapshot
+     */
+    public DatabaseConfig archiveRedoLogs(File dir) {
+        mRedoArchiveDirectory = dir == null ? null : abs(dir);
+        return this;
+    }
+
+    /**
+     * When {@link Database#restoreFromSnapshot restoring} with an {@link #archiveRedoLogs
+     * archive} directory, stop applying archived changes at the first logged time which is
+     * after the given time. Because the time is logged periodically, changes made shortly
+     * after the given time might be restored too. Default is {@code Long.MAX_VALUE}, which
+     * applies all archived changes.
+     *
+     * @param timestampMillis milliseconds since the epoch
+     */
+    public DatabaseConfig restoreToTime(long timestampMillis) {
+        mRestoreTime = timestampMillis;
+        return this;
+    }
+
+    /**
+     * When {@link Database#restoreFromSnapshot restoring} with an {@link #archiveRedoLogs
+     * archive} directory, only apply the archived changes which were logged at or before the
+     * given redo log position, as reported by {@link RedoListener#commit
+     * RedoListener.commit}. Default is {@code Long.MAX_VALUE}, which applies all archived
+     * changes.
+     */
+    public DatabaseConfig restoreToPosition(long position) {
+        mRestorePosition = position;
+        return this;
+    }
+
     /**
      * Set the maximum delay before an automatic {@link Database#checkpoint checkpoint} is
      * performed, regardless of the redo log size threshold. Default is 1 minute, and a
@@ -297,6 +510,25 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Set the ratio of dirty nodes to the maximum cache size which causes an automatic {@link
+     * Database#checkpoint checkpoint} to be performed, regardless of the redo log size
+     * threshold. The amount of dirty nodes is projected ahead by the expected duration of the
+     * checkpoint, which is estimated from the write throughput of recent checkpoints and the
+     * rate at which nodes are being dirtied. When the threshold is projected to be reached
+     * sooner than the checkpoint rate, the checks are performed more frequently. Default is
+     * 1.0, which disables the threshold.
+     *
+     * @throws IllegalArgumentException if ratio is negative or not a number
+     */
+    public DatabaseConfig checkpointDirtyThreshold(double ratio) {
+        if (!(ratio >= 0)) {
+            throw new IllegalArgumentException("Illegal dirty threshold: " + ratio);
+        }
+        mCheckpointDirtyThreshold = ratio;
+        return this;
+    }
+
     /**
      * Set a listener which receives notifications of actions being performed
      * by the database.
@@ -379,6 +611,23 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return this;
     }
 
+    /**
+     * Specify the maximum number of threads which apply changes from the redo log when
+     * recovering a database which wasn't cleanly shut down. Changes made by each transaction
+     * are applied by a single thread, and changes made by different transactions are applied
+     * concurrently. When more than one thread is allowed, transactions which were never
+     * committed are rolled back by background threads after the database is opened. The rows
+     * they modified remain locked until rolled back. Default is one, which applies all
+     * changes and rollbacks with the thread that's opening the database. If zero is provided,
+     * the number of available processors is used. If a negative number is provided, the
+     * actual number applied is {@code (-num * availableProcessors)}. Option has no effect if
+     * replication is enabled.
+     */
+    public DatabaseConfig maxRecoveryThreads(int num) {
+        mMaxRecoveryThreads = num;
+        return this;
+    }
+
     /**
      * Enable full encryption of the data files, transaction logs, snapshots, and cache priming
      * sets. Option has no effect if database is non-durable. If replication is enabled,
@@ -442,6 +691,36 @@ public class DatabaseConfig implements Cloneable, Serializable {
         Database.open(config).close();
     }
 
+    /**
+     * Returns a copy of this config for opening a snapshot file as a read-only database.
+     */
+    DatabaseConfig snapshotConfig(File snapshot) throws IOException {
+        if (mReplManager != null) {
+            throw new IllegalArgumentException("Cannot open a snapshot as a replica");
+        }
+
+        DatabaseConfig config = clone();
+
+        // Without a base file, no redo logs are read or written.
+        config.mBaseFile = null;
+        config.mDataFiles = null;
+        config.mRedoLogDirectories = null;
+        config.mRedoArchiveDirectory = null;
+        config.mReadOnly = true;
+
+        int pageSize = mPageSize;
+        if (pageSize <= 0) {
+            pageSize = 4096;
+        }
+
+        config.mDataPageArray = null;
+        config.mPageSize = 0;
+        config.dataPageArray
+            (DurablePageDb.openSnapshotPageArray(pageSize, abs(snapshot), mCrypto));
+
+        return config;
+    }
+
     @Override
     public DatabaseConfig clone() {
         try {
@@ -492,6 +771,10 @@ public class DatabaseConfig implements Cloneable, Serializable {
                 throw new IllegalArgumentException
                     ("Cannot specify data files when no base file is provided");
             }
+            if (mRedoLogDirectories != null) {
+                throw new IllegalArgumentException
+                    ("Cannot specify redo log directories when no base file is provided");
+            }
             return null;
         }
 
@@ -499,6 +782,30 @@ public class DatabaseConfig implements Cloneable, Serializable {
             throw new IllegalArgumentException("Base file is a directory: " + mBaseFile);
         }
 
+        File[] redoDirs = mRedoLogDirectories;
+        if (redoDirs != null) {
+            Set<File> distinct = new HashSet<>();
+            for (File dir : redoDirs) {
+                if (dir.exists() && !dir.isDirectory()) {
+                    throw new IllegalArgumentException
+                        ("Redo log directory is a file: " + dir);
+                }
+                if (!distinct.add(dir)) {
+                    throw new IllegalArgumentException("Duplicate redo log directory: " + dir);
+                }
+            }
+            if (redoDirs.length > 1 && mRedoArchiveDirectory != null) {
+                throw new IllegalArgumentException("Cannot archive a striped redo log");
+            }
+        }
+
+        if (mRedoArchiveDirectory != null && mRedoArchiveDirectory.exists()
+            && !mRedoArchiveDirectory.isDirectory())
+        {
+            throw new IllegalArgumentException
+                ("Redo log archive directory is a file: " + mRedoArchiveDirectory);
+        }
+
         if (mDataPageArray != null) {
             // Return after the base file checks have been performed.
             return null;
@@ -517,6 +824,25 @@ public class DatabaseConfig implements Cloneable, Serializable {
         return dataFiles;
     }
 
+    /**
+     * Returns the base file for each redo log stripe, or just the database base file if the
+     * redo log directories weren't specified. Returns null if non-durable.
+     */
+    File[] redoBaseFiles() {
+        if (mBaseFile == null) {
+            return null;
+        }
+        File[] dirs = mRedoLogDirectories;
+        if (dirs == null) {
+            return new File[] {mBaseFile};
+        }
+        File[] files = new File[dirs.length];
+        for (int i=0; i<dirs.length; i++) {
+            files[i] = new File(dirs[i], mBaseFile.getName());
+        }
+        return files;
+    }
+
     EnumSet<OpenOption> createOpenOptions() {
         EnumSet<OpenOption> options = EnumSet.noneOf(OpenOption.class);
         options.add(OpenOption.RANDOM_ACCESS);
@@ -554,6 +880,9 @@ public class DatabaseConfig implements Cloneable, Serializable {
         }
 
         set(props, "baseFile", mBaseFile);
+        if (mRedoLogDirectories != null) {
+            set(props, "redoLogDirectories", Arrays.toString(mRedoLogDirectories));
+        }
         set(props, "createFilePath", mMkdirs);
         set(props, "mapDataFiles", mMapDataFiles);
 
@@ -577,15 +906,26 @@ public class DatabaseConfig implements Cloneable, Serializable {
         set(props, "minCacheSize", mMinCachedBytes);
         set(props, "maxCacheSize", mMaxCachedBytes);
         set(props, "secondaryCacheSize", mSecondaryCacheSize);
+        set(props, "cacheCleanerThreads", mCacheCleanerThreads);
+        set(props, "cacheDirtyRatio", mCacheDirtyRatio);
         set(props, "durabilityMode", mDurabilityMode);
         set(props, "lockTimeoutNanos", mLockTimeoutNanos);
+        set(props, "lockEscalationThreshold", mLockEscalationThreshold);
+        set(props, "deadlockDetectionRateNanos", mDeadlockDetectionRateNanos);
         set(props, "checkpointRateNanos", mCheckpointRateNanos);
+        set(props, "syncRateNanos", mSyncRateNanos);
         set(props, "checkpointSizeThreshold", mCheckpointSizeThreshold);
+        set(props, "redoPreallocateSize", mRedoPreallocateSize);
+        set(props, "compressRedo", mCompressRedo);
+        set(props, "directRedo", mDirectRedo);
+        set(props, "redoArchiveDirectory", mRedoArchiveDirectory);
         set(props, "checkpointDelayThresholdNanos", mCheckpointDelayThresholdNanos);
+        set(props, "checkpointDirtyThreshold", mCheckpointDirtyThreshold);
         set(props, "syncWrites", mFileSync);
         set(props, "pageSize", mPageSize);
         set(props, "directPageAccess", mDirectPageAccess);
         set(props, "cachePriming", mCachePriming);
+        set(props, "maxRecoveryThreads", mMaxRecoveryThreads);
 
         w.write('#');
         w.write(Database.class.getName());
@@ -654,7 +994,8 @@ public class DatabaseConfig implements Cloneable, Serializable {
         Method m = cDirectRestore;
         if (m == null) {
             cDirectRestore = m = findMethod
-                ("restoreFromSnapshot", DatabaseConfig.class, InputStream.class);
+                ("restoreFromSnapshot", DatabaseConfig.class,
+                 InputStream.class, InputStream[].class, InputStream[].class);
         }
         return m;
     }
@@ -92,6 +92,18 @@ final class DeadlockDetector {
         return scan(mOrigin);
     }
 
+    /**
+     * @return true if any of the given lockers were encountered by the scan
+     */
+    boolean involvesAny(Set<LockOwner> lockers) {
+        for (LockOwner locker : mLockers) {
+            if (lockers.contains(locker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return true if deadlock was found
      */
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread which periodically scans the lock manager for deadlocks, breaking each
+ * one right away instead of letting the lockers wait for their timeouts to expire.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#deadlockDetectionRate
+ */
+/*P*/
+final class DeadlockMonitor implements Runnable {
+    private final WeakReference<LockManager> mManagerRef;
+    private final long mRateNanos;
+    private volatile boolean mClosed;
+
+    DeadlockMonitor(LockManager manager, long rateNanos) {
+        mManagerRef = new WeakReference<>(manager);
+        mRateNanos = rateNanos;
+    }
+
+    void start() {
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.setName("DeadlockMonitor-" + Long.toUnsignedString(t.getId()));
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    long end = System.nanoTime() + mRateNanos;
+                    long remaining = mRateNanos;
+                    while (!mClosed && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        remaining = end - System.nanoTime();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                }
+
+                LockManager manager = mManagerRef.get();
+                if (manager == null) {
+                    return;
+                }
+
+                manager.detectDeadlocks();
+            }
+        } catch (InterruptedException e) {
+            // Exit.
+        } finally {
+            close();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -129,6 +129,7 @@ final class DirectPageOps {
         private final long mEndPtr; // exclusive
 
         private long mNextPtr;
+        private long mReleasedCount;
 
         Arena(int pageSize, long pageCount) throws IOException {
             mPageArray = MappedPageArray.open(pageSize, pageCount, null, null);
@@ -150,13 +151,28 @@ final class DirectPageOps {
                 throw new IllegalArgumentException();
             }
             long ptr = mNextPtr;
-            if (ptr >= mEndPtr) {
+            if (ptr >= mEndPtr || mReleasedCount != 0) {
+                // Depleted, or pages have been released. Released pages cannot be
+                // individually recycled, and so allocation from the arena is disabled.
                 return p_null();
             }
             mNextPtr = ptr + pageSize;
             return ptr;
         }
 
+        /**
+         * @return true if all allocated pages have been released
+         */
+        synchronized boolean release(long page) {
+            if (Long.compareUnsigned(page, mStartPtr) < 0
+                || Long.compareUnsigned(page, mNextPtr) >= 0)
+            {
+                return false;
+            }
+            long allocated = (mNextPtr - mStartPtr) / mPageArray.pageSize();
+            return ++mReleasedCount == allocated;
+        }
+
         synchronized void close() throws IOException {
             mNextPtr = mEndPtr;
             mPageArray.close();
@@ -256,6 +272,26 @@ final class DirectPageOps {
         }
     }
 
+    /**
+     * Releases a page which was allocated from the given arena. Once all pages have been
+     * released, the arena is deleted. Pages not allocated by the arena are ignored, and so
+     * they must be deleted separately.
+     *
+     * @return true if the arena was deleted
+     * @throws IllegalArgumentException if unknown arena
+     */
+    static boolean p_arenaRelease(Object arena, long page) throws IOException {
+        if (arena instanceof Arena) {
+            if (((Arena) arena).release(page)) {
+                p_arenaDelete(arena);
+                return true;
+            }
+        } else if (arena != null) {
+            throw new IllegalArgumentException();
+        }
+        return false;
+    }
+
     static long p_calloc(Object arena, int size) {
         if (arena instanceof Arena) {
             final long page = ((Arena) arena).p_calloc(size);
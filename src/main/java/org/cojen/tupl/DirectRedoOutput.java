@@ -0,0 +1,160 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.EnumSet;
+
+import org.cojen.tupl.io.DirectAccess;
+import org.cojen.tupl.io.FileIO;
+import org.cojen.tupl.io.OpenOption;
+
+/**
+ * Redo log file output which writes aligned blocks from a native buffer, bypassing the file
+ * system cache when possible. All writes are synchronous, and so the file never needs to be
+ * forced. The last block is padded with zeros when written, and the next write rewrites it
+ * with more data appended.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#directRedoLog
+ */
+final class DirectRedoOutput extends OutputStream {
+    static final int BLOCK_SIZE = 4096;
+
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+    private final FileIO mFile;
+    private final ByteBuffer mBuffer;
+
+    // File position of the start of the buffer, which is always block aligned.
+    private long mBufferPos;
+    // Amount of data in the buffer.
+    private int mLength;
+    // Amount of data in the buffer which has been written.
+    private int mWritten;
+
+    private volatile long mPosition;
+
+    /**
+     * @param truncate pass false if file is preallocated or recycled
+     * @param bufferSize minimum buffer size; is rounded up to a multiple of the block size
+     */
+    DirectRedoOutput(File file, boolean truncate, int bufferSize) throws IOException {
+        FileIO fio;
+        try {
+            fio = FileIO.open(file, EnumSet.of(OpenOption.CREATE, OpenOption.SYNC_IO,
+                                               OpenOption.DIRECT_IO));
+        } catch (IOException e) {
+            // File system doesn't support direct I/O, so fall back to synchronous I/O.
+            fio = FileIO.open(file, EnumSet.of(OpenOption.CREATE, OpenOption.SYNC_IO));
+        }
+
+        try {
+            if (truncate) {
+                fio.setLength(0);
+            }
+        } catch (IOException e) {
+            Utils.closeQuietly(null, fio);
+            throw e;
+        }
+
+        mFile = fio;
+
+        int capacity = Math.max(BLOCK_SIZE, (bufferSize + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1));
+        ByteBuffer bb = ByteBuffer.allocateDirect(capacity + BLOCK_SIZE);
+
+        if (DirectAccess.isSupported()) {
+            // Align the start of the buffer to the block size.
+            int offset = (int) (DirectAccess.getAddress(bb) & (BLOCK_SIZE - 1));
+            if (offset != 0) {
+                bb.position(BLOCK_SIZE - offset);
+            }
+        }
+
+        bb.limit(bb.position() + capacity);
+        mBuffer = bb.slice();
+    }
+
+    /**
+     * Returns the amount of data written to the file.
+     */
+    long position() {
+        return mPosition;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final ByteBuffer buffer = mBuffer;
+        final int capacity = buffer.capacity();
+
+        while (len > 0) {
+            int amt = Math.min(len, capacity - mLength);
+            buffer.clear().position(mLength);
+            buffer.put(b, off, amt);
+            mLength += amt;
+            off += amt;
+            len -= amt;
+
+            if (mLength >= capacity) {
+                writeBlocks(capacity);
+                mBufferPos += capacity;
+                mLength = 0;
+                mWritten = 0;
+            }
+        }
+
+        if (mLength > mWritten) {
+            // Pad the tail block with zeros, replacing any stale data from a prior use of
+            // the buffer. The block is rewritten when more data is appended.
+            int end = (mLength + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1);
+            buffer.clear().position(mLength);
+            buffer.put(ZEROS, 0, end - mLength);
+            writeBlocks(end);
+            mWritten = mLength;
+        }
+
+        mPosition = mBufferPos + mLength;
+    }
+
+    /**
+     * Writes all the blocks which haven't been completely written yet.
+     *
+     * @param end block aligned end of the buffer range to write
+     */
+    private void writeBlocks(int end) throws IOException {
+        int start = mWritten & ~(BLOCK_SIZE - 1);
+        ByteBuffer bb = mBuffer.duplicate();
+        bb.limit(end).position(start);
+        mFile.write(mBufferPos + start, bb);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -44,7 +44,8 @@ public enum DurabilityMode {
      * Durability mode which permits the operating system to lazily persist modifications to
      * non-volatile storage. This mode is vulnerable to power failures, operating system
      * crashes, and replication failures. Any of these events can cause recently committed
-     * transactions to get lost.
+     * transactions to get lost. The amount of time that transactions remain vulnerable can be
+     * bounded by configuring an automatic {@link DatabaseConfig#syncRate sync rate}.
      */
     NO_SYNC,
 
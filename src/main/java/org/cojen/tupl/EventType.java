@@ -34,6 +34,9 @@ public enum EventType {
     /** Signals the end of cache initialization, reporting the duration. */
     CACHE_INIT_COMPLETE(Category.CACHE_INIT, Level.INFO),
 
+    /** Signals that a background cache cleaner failed to write a dirty node. */
+    CACHE_CLEAN_FAILED(Category.CACHE_CLEAN, Level.WARNING),
+
     /** Signals the beginning of database recovery. */
     RECOVERY_BEGIN(Category.RECOVERY, Level.INFO),
     /** Signals that automatic cache priming is being performed. */
@@ -99,6 +102,9 @@ public enum EventType {
         /** Cache initialization allocates memory according to the minimum cache size. */
         CACHE_INIT,
 
+        /** Cache cleaners write dirty nodes in the background, before they're evicted. */
+        CACHE_CLEAN,
+
         /** Recovery processes transactions which did not get included in the last checkpoint. */
         RECOVERY,
 
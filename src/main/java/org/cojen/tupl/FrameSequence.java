@@ -0,0 +1,138 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+/**
+ * Assigns the sequence numbers of the frames which are written to the stripes of a {@link
+ * StripedRedoLog}, and tracks the frames which are still being written. Recovery stops at the
+ * first missing frame, and so forcing the stripes only makes a frame durable once every frame
+ * before it has been written.
+ *
+ * @author Brian S O'Neill
+ */
+final class FrameSequence {
+    // Tickets are assigned in the same order as sequence numbers, but they aren't reset.
+    private long mNextTicket;
+    private long mTicketBase;
+
+    // Tickets of frames which are being written, or zero for unused slots. At most one frame
+    // per stripe is written at a time.
+    private long[] mWriting;
+
+    private int mWaiters;
+    private Throwable mFailure;
+
+    FrameSequence(int stripes) {
+        mNextTicket = 1;
+        mWriting = new long[stripes];
+    }
+
+    /**
+     * Assigns the sequence number of a frame which is about to be written, and encodes it
+     * into the frame header. Caller must call the written method when done, even if writing
+     * failed.
+     *
+     * @return ticket to pass to the written method
+     */
+    synchronized long begin(byte[] header, int offset) {
+        long ticket = mNextTicket++;
+        Utils.encodeLongLE(header, offset, ticket - mTicketBase);
+
+        long[] writing = mWriting;
+        for (int i=0; i<writing.length; i++) {
+            if (writing[i] == 0) {
+                writing[i] = ticket;
+                return ticket;
+            }
+        }
+        int i = writing.length;
+        mWriting = writing = Arrays.copyOf(writing, i << 1);
+        writing[i] = ticket;
+        return ticket;
+    }
+
+    /**
+     * @param ticket ticket returned by the begin method
+     * @param failure non-null if the frame wasn't fully written
+     */
+    synchronized void written(long ticket, Throwable failure) {
+        long[] writing = mWriting;
+        for (int i=0; i<writing.length; i++) {
+            if (writing[i] == ticket) {
+                writing[i] = 0;
+                break;
+            }
+        }
+        if (failure != null && mFailure == null) {
+            mFailure = failure;
+        }
+        if (mWaiters > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until all of the frames which have been assigned a sequence number so far have
+     * been written. Frames which are assigned a sequence number later aren't waited for.
+     *
+     * @throws WriteFailureException if any frame couldn't be written
+     */
+    synchronized void awaitWritten() throws IOException {
+        final long last = mNextTicket - 1;
+        while (true) {
+            if (mFailure != null) {
+                throw new WriteFailureException(mFailure);
+            }
+            if (!isWriting(last)) {
+                return;
+            }
+            mWaiters++;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                mWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Starts the sequence over at one, for a new set of log files.
+     */
+    synchronized void reset() {
+        mTicketBase = mNextTicket - 1;
+    }
+
+    /**
+     * Returns true if any frame with the given ticket or lower is being written.
+     */
+    private boolean isWriting(long last) {
+        for (long ticket : mWriting) {
+            if (ticket != 0 && ticket <= last) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -20,6 +20,7 @@ package org.cojen.tupl;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -35,12 +36,15 @@ import java.io.OutputStreamWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 
+import java.lang.reflect.Method;
+
 import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -130,6 +134,7 @@ final class LocalDatabase extends AbstractDatabase {
     final TransactionHandler mCustomTxnHandler;
 
     private final File mBaseFile;
+    private final File[] mRedoBaseFiles;
     private final boolean mReadOnly;
     private final LockedFile mLockFile;
 
@@ -142,8 +147,9 @@ final class LocalDatabase extends AbstractDatabase {
 
     private final PagePool mSparePagePool;
 
-    private final Object mArena;
-    private final NodeContext[] mNodeContexts;
+    // Is null if not supported, or if all arena pages have been released by a cache resize.
+    private volatile Object mArena;
+    final NodeContext[] mNodeContexts;
 
     private final CommitLock mCommitLock;
 
@@ -165,6 +171,13 @@ final class LocalDatabase extends AbstractDatabase {
     /*P*/ // ]
     private UndoLog mCommitMasterUndoLog;
 
+    // Recovered transactions to roll back in the background, after the database is opened.
+    private LHashTable.Obj<LocalTransaction> mRecoveredTxns;
+
+    // Amount of nodes needed by the last master undo log, used for reserving nodes in
+    // advance. Guarded by the checkpoint lock.
+    private int mMasterUndoLogNodes;
+
     // Typically opposite of mCommitState, or negative if checkpoint is not in
     // progress. Indicates which nodes are being flushed by the checkpoint.
     private volatile int mCheckpointFlushState = CHECKPOINT_NOT_FLUSHING;
@@ -213,8 +226,21 @@ final class LocalDatabase extends AbstractDatabase {
 
     private long mLastCheckpointNanos;
 
+    // Checkpoint statistics for projecting the amount of dirty nodes. Guarded by the
+    // checkpoint lock.
+    private long mCheckpointFlushCount;
+    private double mCheckpointNanosPerNode;
+    private long mLastDirtyCount;
+    private long mLastDirtyCheckNanos;
+
     private volatile Checkpointer mCheckpointer;
 
+    private volatile RedoSyncer mRedoSyncer;
+
+    private volatile DeadlockMonitor mDeadlockMonitor;
+
+    private volatile NodeCleaner[] mNodeCleaners;
+
     final TempFileManager mTempFileManager;
 
     /*P*/ // [|
@@ -287,6 +313,7 @@ final class LocalDatabase extends AbstractDatabase {
         mCustomTxnHandler = config.mTxnHandler;
 
         mBaseFile = config.mBaseFile;
+        mRedoBaseFiles = config.redoBaseFiles();
         mReadOnly = config.mReadOnly;
         final File[] dataFiles = config.dataFiles();
 
@@ -338,7 +365,8 @@ final class LocalDatabase extends AbstractDatabase {
 
         mDurabilityMode = config.mDurabilityMode;
         mDefaultLockTimeoutNanos = config.mLockTimeoutNanos;
-        mLockManager = new LockManager(this, config.mLockUpgradeRule, mDefaultLockTimeoutNanos);
+        mLockManager = new LockManager(this, config.mLockUpgradeRule, mDefaultLockTimeoutNanos,
+                                       config.mLockEscalationThreshold);
 
         // Initialize NodeMap, the primary cache of Nodes.
         final int procCount = Runtime.getRuntime().availableProcessors();
@@ -388,6 +416,34 @@ final class LocalDatabase extends AbstractDatabase {
                     }
                 }
             }
+
+            for (File f : mRedoBaseFiles) {
+                final boolean redoDirectoriesCreated;
+                File redoDir = f.getParentFile();
+                if (factory == null) {
+                    redoDirectoriesCreated = redoDir.mkdirs();
+                } else {
+                    redoDirectoriesCreated = factory.createDirectories(redoDir);
+                }
+
+                if (!redoDirectoriesCreated && !redoDir.exists()) {
+                    throw new FileNotFoundException("Could not create directory: " + redoDir);
+                }
+            }
+
+            File archiveDir = config.mRedoArchiveDirectory;
+            if (archiveDir != null && config.mReplManager == null) {
+                final boolean archiveDirectoriesCreated;
+                if (factory == null) {
+                    archiveDirectoriesCreated = archiveDir.mkdirs();
+                } else {
+                    archiveDirectoriesCreated = factory.createDirectories(archiveDir);
+                }
+
+                if (!archiveDirectoriesCreated && !archiveDir.exists()) {
+                    throw new FileNotFoundException("Could not create directory: " + archiveDir);
+                }
+            }
         }
 
         try {
@@ -685,6 +741,22 @@ final class LocalDatabase extends AbstractDatabase {
             long recoveryStart = 0;
             if (mBaseFile == null || openMode == OPEN_TEMP) {
                 mRedoWriter = null;
+
+                long masterNodeId;
+                if (config.mRollbackUndo
+                    && (masterNodeId = decodeLongLE(header, I_MASTER_UNDO_LOG_PAGE_ID)) != 0)
+                {
+                    // Without a redo log, none of the transactions which were in progress at
+                    // the checkpoint can commit, and so roll them all back.
+                    LHashTable.Obj<LocalTransaction> txns = new LHashTable.Obj<>(16);
+                    UndoLog master = UndoLog.recoverMasterUndoLog(this, masterNodeId);
+                    master.recoverTransactions
+                        (debugListener, false, txns, LockMode.UPGRADABLE_READ, 0);
+                    txns.traverse((entry) -> {
+                        entry.value.recoveryCleanup(true);
+                        return false;
+                    });
+                }
             } else {
                 // Perform recovery by examining redo and undo logs.
 
@@ -759,26 +831,66 @@ final class LocalDatabase extends AbstractDatabase {
                             RedoEventPrinter printer = new RedoEventPrinter
                                 (debugListener, EventType.DEBUG);
 
-                            RedoLog replayLog = new RedoLog(config, logId, redoPos);
-
-                            replayLog.replay
-                                (printer, debugListener, EventType.RECOVERY_APPLY_REDO_LOG,
-                                 "Applying redo log: %1$d");
+                            if (mRedoBaseFiles.length > 1) {
+                                new StripedRedoLog(config, mRedoBaseFiles, logId, redoPos).replay
+                                    (printer, debugListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                                     "Applying redo log: %1$d");
+                            } else {
+                                new RedoLog(config, logId, redoPos).replay
+                                    (printer, debugListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                                     "Applying redo log: %1$d");
+                            }
                         }
                     } else {
+                        // Old redo logs are archived instead of deleted, if requested.
+                        // Striping isn't supported when archiving.
+                        File archiveDir = config.mRedoArchiveDirectory;
+
                         // Make sure old redo logs are deleted. Process might have exited
                         // before last checkpoint could delete them.
-                        for (int i=1; i<=2; i++) {
-                            RedoLog.deleteOldFile(config.mBaseFile, logId - i);
+                        for (File redoBase : mRedoBaseFiles) {
+                            for (int i=1; i<=2; i++) {
+                                RedoLog.discardOldFile
+                                    (RedoLog.fileFor(redoBase, logId - i), archiveDir);
+                            }
+                        }
+
+                        int recoveryThreads = maxThreads(config.mMaxRecoveryThreads);
+
+                        RedoLogApplier applier = new RedoLogApplier(recoveryThreads, this, txns);
+
+                        if (config.mRestoring) {
+                            applier.mStopTimestamp = config.mRestoreTime;
                         }
 
-                        RedoLogApplier applier = new RedoLogApplier(this, txns);
-                        RedoLog replayLog = new RedoLog(config, logId, redoPos);
+                        RedoLog replayLog = null;
+                        StripedRedoLog stripedReplayLog = null;
 
                         // As a side-effect, log id is set one higher than last file scanned.
-                        Set<File> redoFiles = replayLog.replay
-                            (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
-                             "Applying redo log: %1$d");
+                        Set<File> redoFiles;
+                        try {
+                            if (mRedoBaseFiles.length > 1) {
+                                stripedReplayLog = new StripedRedoLog
+                                    (config, mRedoBaseFiles, logId, redoPos);
+                                redoFiles = stripedReplayLog.replay
+                                    (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                                     "Applying redo log: %1$d");
+                            } else {
+                                replayLog = new RedoLog(config, logId, redoPos);
+                                redoFiles = replayLog.replay
+                                    (applier, mEventListener, EventType.RECOVERY_APPLY_REDO_LOG,
+                                     "Applying redo log: %1$d");
+                            }
+                        } catch (Throwable e) {
+                            try {
+                                applier.finish();
+                            } catch (Throwable e2) {
+                                Utils.suppress(e, e2);
+                            }
+                            throw e;
+                        }
+
+                        applier.finish();
 
                         boolean doCheckpoint = !redoFiles.isEmpty();
 
@@ -801,16 +913,31 @@ final class LocalDatabase extends AbstractDatabase {
                                      "Processing remaining transactions");
                             }
 
-                            txns.traverse((entry) -> {
-                                entry.value.recoveryCleanup(true);
-                                return false;
-                            });
+                            if (recoveryThreads <= 1) {
+                                txns.traverse((entry) -> {
+                                    entry.value.recoveryCleanup(true);
+                                    return false;
+                                });
+                            } else {
+                                // Only cleanup the committed transactions now. The rest are
+                                // rolled back in the background, and they hold their locks
+                                // until finished. The checkpoint captures their undo logs.
+                                txns.traverse((entry) -> entry.value.recoveryCleanup(false));
+                                if (txns.size() > 0) {
+                                    mRecoveredTxns = txns;
+                                }
+                            }
 
                             doCheckpoint = true;
                         }
 
                         // New redo logs begin with identifiers one higher than last scanned.
-                        mRedoWriter = new RedoLog(config, replayLog, mTxnContexts[0]);
+                        if (stripedReplayLog != null) {
+                            mRedoWriter = new StripedRedoLog
+                                (config, stripedReplayLog, mTxnContexts[0]);
+                        } else {
+                            mRedoWriter = new RedoLog(config, replayLog, mTxnContexts[0]);
+                        }
 
                         // TODO: If any exception is thrown before checkpoint is complete,
                         // delete the newly created redo log file.
@@ -824,7 +951,7 @@ final class LocalDatabase extends AbstractDatabase {
 
                             // Only cleanup after successful checkpoint.
                             for (File file : redoFiles) {
-                                file.delete();
+                                RedoLog.discardOldFile(file, archiveDir);
                             }
                         }
 
@@ -857,6 +984,13 @@ final class LocalDatabase extends AbstractDatabase {
      * Post construction, allow additional threads access to the database.
      */
     private void finishInit(DatabaseConfig config) throws IOException {
+        if (config.mDeadlockDetectionRateNanos > 0) {
+            DeadlockMonitor monitor = new DeadlockMonitor
+                (mLockManager, config.mDeadlockDetectionRateNanos);
+            mDeadlockMonitor = monitor;
+            monitor.start();
+        }
+
         if (mRedoWriter == null && mTempFileManager == null) {
             // Nothing is durable and nothing to ever clean up.
             return;
@@ -879,6 +1013,12 @@ final class LocalDatabase extends AbstractDatabase {
             c.register(new ShutdownPrimer(this));
         }
 
+        if (mPageDb.isDurable() && !mReadOnly) {
+            mNodeCleaners = NodeCleaner.start(this, mNodeContexts,
+                                              config.mCacheCleanerThreads,
+                                              config.mCacheDirtyRatio);
+        }
+
         // Must tag the trashed trees before starting replication and recovery. Otherwise,
         // trees recently deleted might get double deleted.
         Tree trashed = openNextTrashedTree(null);
@@ -890,6 +1030,13 @@ final class LocalDatabase extends AbstractDatabase {
             deletion.start();
         }
 
+        LHashTable.Obj<LocalTransaction> recovered = mRecoveredTxns;
+        if (recovered != null) {
+            mRecoveredTxns = null;
+            RecoveryRollback.start(this, mEventListener, recovered,
+                                   maxThreads(config.mMaxRecoveryThreads));
+        }
+
         boolean initialCheckpoint = false;
 
         if (mRedoWriter instanceof ReplRedoController) {
@@ -907,6 +1054,12 @@ final class LocalDatabase extends AbstractDatabase {
         }
 
         c.start(initialCheckpoint);
+
+        if (config.mSyncRateNanos >= 0 && mRedoWriter != null && !mReadOnly) {
+            RedoSyncer syncer = new RedoSyncer(this, config.mSyncRateNanos);
+            mRedoSyncer = syncer;
+            syncer.start();
+        }
     }
 
     private void applyCachePrimer(DatabaseConfig config) {
@@ -981,7 +1134,9 @@ final class LocalDatabase extends AbstractDatabase {
 
     private void deleteRedoLogFiles() throws IOException {
         if (mBaseFile != null && !mReadOnly) {
-            deleteNumberedFiles(mBaseFile, REDO_FILE_SUFFIX);
+            for (File redoBase : mRedoBaseFiles) {
+                deleteNumberedFiles(redoBase, REDO_FILE_SUFFIX);
+            }
         }
     }
 
@@ -1582,7 +1737,7 @@ final class LocalDatabase extends AbstractDatabase {
     /**
      * Returns a RedoWriter suitable for transactions to write into.
      */
-    private RedoWriter txnRedoWriter() {
+    RedoWriter txnRedoWriter() {
         RedoWriter redo = mRedoWriter;
         if (redo != null) {
             redo = redo.txnRedoWriter();
@@ -1663,14 +1818,113 @@ final class LocalDatabase extends AbstractDatabase {
         mPageDb.pageLimitOverride(bytes < 0 ? -1 : (bytes / mPageSize));
     }
 
+    @Override
+    public long cacheSize(long bytes) throws IOException {
+        NodeContext[] contexts = mNodeContexts;
+
+        int maxCache = nodeCountFromBytes(bytes, mPageSize);
+        maxCache = Math.max(Math.max(MIN_CACHED_NODES, contexts.length), maxCache);
+
+        int stripeSize = maxCache / contexts.length;
+        int rem = maxCache % contexts.length;
+
+        int mode = mPageDb.allocMode();
+        long total = 0;
+
+        // Serialize resize requests, ensuring that the contexts agree on the final size.
+        synchronized (contexts) {
+            checkClosed();
+            for (NodeContext context : contexts) {
+                int size = stripeSize;
+                if (rem > 0) {
+                    size++;
+                    rem--;
+                }
+                total += context.resize(size, mode);
+            }
+        }
+
+        return total * (mPageSize + NODE_OVERHEAD);
+    }
+
+    /**
+     * Called by NodeContext after deleting a node which was removed from the cache by a
+     * resize. Page must not be referenced anymore.
+     */
+    void releaseArenaPage(/*P*/ byte[] page) throws IOException {
+        Object arena = mArena;
+        if (arena != null && p_arenaRelease(arena, page)) {
+            mArena = null;
+        }
+    }
+
     @Override
     public Snapshot beginSnapshot() throws IOException {
+        return beginSnapshot(false);
+    }
+
+    @Override
+    public Snapshot beginIncrementalSnapshot() throws IOException {
+        /*P*/ // [|
+        /*P*/ // if (mFullyMapped) {
+        /*P*/ //     throw new UnsupportedOperationException
+        /*P*/ //         ("Incremental snapshot not supported for fully mapped databases");
+        /*P*/ // }
+        /*P*/ // ]
+        return beginSnapshot(true);
+    }
+
+    private Snapshot beginSnapshot(boolean incremental) throws IOException {
         if (!(mPageDb.isDurable())) {
             throw new UnsupportedOperationException("Snapshot only allowed for durable databases");
         }
         checkClosed();
         DurablePageDb pageDb = (DurablePageDb) mPageDb;
-        return pageDb.beginSnapshot(this);
+        return pageDb.beginSnapshot(this, incremental);
+    }
+
+    @Override
+    public Database openReadOnlyView() throws IOException {
+        if (!(mPageDb.isDurable())) {
+            throw new UnsupportedOperationException("View only allowed for durable databases");
+        }
+        checkClosed();
+        DurablePageDb pageDb = (DurablePageDb) mPageDb;
+
+        SnapshotPageArray.SnapshotImpl.View view = pageDb.beginView(this);
+        try {
+            DatabaseConfig config = new DatabaseConfig()
+                .encrypt(pageDb.crypto())
+                .dataPageArray(view);
+            config.mReadOnly = true;
+            config.mRollbackUndo = true;
+            LocalDatabase db = LocalDatabase.open(config);
+            view.readOnly();
+            return db;
+        } catch (Throwable e) {
+            closeQuietly(null, view, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Restore from a snapshot, using direct page access when possible.
+     *
+     * @see #restoreFromSnapshot
+     */
+    static Database restore(DatabaseConfig config, InputStream in,
+                            InputStream[] parts, InputStream[] increments)
+        throws IOException
+    {
+        Method m = config.directRestoreMethod();
+        if (m != null) {
+            try {
+                return (Database) m.invoke(null, config, in, parts, increments);
+            } catch (Exception e) {
+                config.handleDirectException(e);
+            }
+        }
+        return restoreFromSnapshot(config, in, parts, increments);
     }
 
     /**
@@ -1678,9 +1932,17 @@ final class LocalDatabase extends AbstractDatabase {
      * configuration. All existing data and redo log files at the snapshot destination are
      * deleted before the restore begins.
      *
-     * @param in snapshot source; does not require extra buffering; auto-closed
+     * @param in snapshot source; does not require extra buffering; auto-closed; pass null
+     * if restoring from parts
+     * @param parts snapshot parts, when not restoring from a single source; each is
+     * auto-closed
+     * @param increments {@link #beginIncrementalSnapshot incremental} snapshots to apply in
+     * order; each is auto-closed
      */
-    static Database restoreFromSnapshot(DatabaseConfig config, InputStream in) throws IOException {
+    static Database restoreFromSnapshot(DatabaseConfig config, InputStream in,
+                                        InputStream[] parts, InputStream[] increments)
+        throws IOException
+    {
         if (config.mReadOnly) {
             throw new IllegalArgumentException("Cannot restore into a read-only database");
         }
@@ -1700,10 +1962,13 @@ final class LocalDatabase extends AbstractDatabase {
             dataPageArray = dataPageArray.open();
             dataPageArray.setPageCount(0);
 
-            // Delete old redo log files.
-            deleteNumberedFiles(config.mBaseFile, REDO_FILE_SUFFIX);
+            // Delete or archive old redo log files.
+            for (File redoBase : config.redoBaseFiles()) {
+                RedoLog.discardAllFiles(redoBase, config.mRedoArchiveDirectory);
+            }
 
-            restored = DurablePageDb.restoreFromSnapshot(dataPageArray, null, config.mCrypto, in);
+            restored = DurablePageDb.restoreFromSnapshot
+                (dataPageArray, null, config.mCrypto, in, parts, increments);
         } else {
             for (File f : dataFiles) {
                 // Delete old data file.
@@ -1716,8 +1981,10 @@ final class LocalDatabase extends AbstractDatabase {
             FileFactory factory = config.mFileFactory;
             EnumSet<OpenOption> options = config.createOpenOptions();
 
-            // Delete old redo log files.
-            deleteNumberedFiles(config.mBaseFile, REDO_FILE_SUFFIX);
+            // Delete or archive old redo log files.
+            for (File redoBase : config.redoBaseFiles()) {
+                RedoLog.discardAllFiles(redoBase, config.mRedoArchiveDirectory);
+            }
 
             int pageSize = config.mPageSize;
             if (pageSize <= 0) {
@@ -1725,10 +1992,20 @@ final class LocalDatabase extends AbstractDatabase {
             }
 
             restored = DurablePageDb.restoreFromSnapshot
-                (pageSize, dataFiles, factory, options, null, config.mCrypto, in);
+                (pageSize, dataFiles, factory, options, null, config.mCrypto,
+                 in, parts, increments);
         }
 
         try {
+            File archiveDir = config.mRedoArchiveDirectory;
+            if (archiveDir != null && config.mReplManager == null) {
+                // Copy the archived files which follow the snapshot, for replay.
+                byte[] header = new byte[HEADER_SIZE];
+                restored.readExtraCommitData(header);
+                long logId = decodeLongLE(header, I_CHECKPOINT_NUMBER);
+                RedoLog.copyArchivedFiles(config.redoBaseFiles()[0], archiveDir, logId);
+                config.mRestoring = true;
+            }
             restored.close();
         } finally {
             restored.delete();
@@ -1929,6 +2206,37 @@ final class LocalDatabase extends AbstractDatabase {
         flush(1); // flush and sync
     }
 
+    @Override
+    public void awaitSync() throws IOException {
+        RedoSyncer syncer = mRedoSyncer;
+        if (syncer == null || !syncer.await()) {
+            sync();
+        }
+    }
+
+    @Override
+    public Closeable subscribe(RedoListener listener, long position) throws IOException {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (!(mRedoWriter instanceof RedoLog)) {
+            throw new UnsupportedOperationException
+                ("Redo log subscription requires a durable non-replicated database");
+        }
+        return ((RedoLog) mRedoWriter).subscribe(listener, position);
+    }
+
+    /**
+     * Logs the current time if redo log files are being archived, allowing them to be
+     * replayed up to a point in time.
+     */
+    private void archiveTimestamp() throws IOException {
+        RedoWriter redo = mRedoWriter;
+        if (redo instanceof RedoLog) {
+            ((RedoLog) redo).archiveTimestamp(anyTransactionContext());
+        }
+    }
+
     /**
      * @param level 0: flush only, 1: flush and sync, 2: flush and sync metadata
      */
@@ -2188,6 +2496,18 @@ final class LocalDatabase extends AbstractDatabase {
             }
         }
 
+        RedoSyncer syncer = mRedoSyncer;
+        if (syncer != null) {
+            mRedoSyncer = null;
+            syncer.close();
+        }
+
+        DeadlockMonitor monitor = mDeadlockMonitor;
+        if (monitor != null) {
+            mDeadlockMonitor = null;
+            monitor.close();
+        }
+
         Thread ct = null;
         boolean lockedCheckpointer = false;
 
@@ -2241,6 +2561,10 @@ final class LocalDatabase extends AbstractDatabase {
         try {
             mCheckpointer = null;
 
+            // Stop the cleaners before deleting the nodes they might be writing.
+            NodeCleaner.stop(mNodeCleaners);
+            mNodeCleaners = null;
+
             CommitLock lock = mCommitLock;
 
             if (mOpenTrees != null) {
@@ -2366,6 +2690,13 @@ final class LocalDatabase extends AbstractDatabase {
         return mClosed != 0;
     }
 
+    /**
+     * Returns true if database was opened in read-only mode.
+     */
+    boolean isReadOnly() {
+        return mReadOnly;
+    }
+
     void checkClosed() throws DatabaseException {
         if (isClosed()) {
             String message = "Closed";
@@ -3496,6 +3827,15 @@ final class LocalDatabase extends AbstractDatabase {
         return node;
     }
 
+    /**
+     * Returns true if dirty nodes can be written early and be marked clean. This isn't
+     * allowed until after the first checkpoint, because nodes which are read before then
+     * must be dirty.
+     */
+    boolean canCleanEarly() {
+        return mInitialReadState == CACHED_CLEAN;
+    }
+
     /**
      * Caller must hold commit lock and any latch on node.
      */
@@ -4476,7 +4816,7 @@ final class LocalDatabase extends AbstractDatabase {
      */
     private void emptyAllFragmentedTrash(boolean checkpoint) throws IOException {
         FragmentedTrash trash = mFragmentedTrash;
-        if (trash != null && trash.emptyAllTrash(mEventListener) && checkpoint) {
+        if (trash != null && trash.emptyAllTrash(mEventListener, mRecoveredTxns) && checkpoint) {
             checkpoint(false, 0, 0);
         }
     }
@@ -4553,15 +4893,24 @@ final class LocalDatabase extends AbstractDatabase {
         return redo == null ? 0 : redo.writeFence();
     }
 
-    @Override
     void checkpoint(boolean force, long sizeThreshold, long delayThresholdNanos)
         throws IOException
     {
+        checkpoint(force, sizeThreshold, delayThresholdNanos, 1.0);
+    }
+
+    @Override
+    long checkpoint(boolean force, long sizeThreshold, long delayThresholdNanos,
+                    double dirtyThreshold)
+        throws IOException
+    {
+        long nextDelayNanos = Long.MAX_VALUE;
+
         // Checkpoint lock ensures consistent state between page store and logs.
         mCheckpointLock.lock();
         try {
             if (isClosed()) {
-                return;
+                return nextDelayNanos;
             }
 
             // Now's a good time to clean things up.
@@ -4583,6 +4932,12 @@ final class LocalDatabase extends AbstractDatabase {
                         break thresholdCheck;
                     }
 
+                    if (dirtyThreshold < 1.0 &&
+                        (nextDelayNanos = dirtyThresholdCheck(dirtyThreshold, nowNanos)) <= 0)
+                    {
+                        break thresholdCheck;
+                    }
+
                     if (mRedoWriter == null || mRedoWriter.shouldCheckpoint(sizeThreshold)) {
                         break thresholdCheck;
                     }
@@ -4590,12 +4945,13 @@ final class LocalDatabase extends AbstractDatabase {
                     // Thresholds not met for a full checkpoint, but fully sync the redo log
                     // for durability.
                     try {
+                        archiveTimestamp();
                         flush(2); // flush and sync metadata
                     } catch (UnmodifiableReplicaException e) {
                         // Ignore.
                     }
 
-                    return;
+                    return nextDelayNanos;
                 }
 
                 // Thresholds for a full checkpoint are met.
@@ -4613,16 +4969,19 @@ final class LocalDatabase extends AbstractDatabase {
                     // Root is clean, so no need for full checkpoint, but fully sync the redo
                     // log for durability.
                     try {
+                        archiveTimestamp();
                         flush(2); // flush and sync metadata
                     } catch (UnmodifiableReplicaException e) {
                         // Ignore.
                     }
 
-                    return;
+                    return nextDelayNanos;
                 }
             }
 
             mLastCheckpointNanos = nowNanos;
+            nextDelayNanos = Long.MAX_VALUE;
+            mCheckpointFlushCount = 0;
 
             if (mEventListener != null) {
                 // Note: Events should not be delivered when exclusive commit lock is held.
@@ -4655,17 +5014,55 @@ final class LocalDatabase extends AbstractDatabase {
                     redo.checkpointPrepare();
                 }
 
+                if (!resume && mMasterUndoLogNodes > 0 && hasUndoLogs()) {
+                    // Assume that about as many nodes are needed as the last time.
+                    masterUndoLog = reserveMasterUndoLog(masterUndoLog, mMasterUndoLogNodes);
+                }
+
+                long txnId = 0;
+                List<byte[]> masterEntries = null;
+
                 while (true) {
                     mCommitLock.acquireExclusive();
 
                     // Registry root is infrequently modified, and so shared latch
                     // is usually available. If not, cause might be a deadlock. To
                     // be safe, always release commit lock and start over.
-                    if (root.tryAcquireShared()) {
+                    if (!root.tryAcquireShared()) {
+                        mCommitLock.releaseExclusive();
+                        continue;
+                    }
+
+                    if (resume) {
+                        break;
+                    }
+
+                    // Only capture the state of the undo logs while the exclusive commit lock
+                    // is held. The master undo log is written after the lock is released, but
+                    // its nodes must be dirtied before the commit state switches. Allocating
+                    // nodes can require evicting other nodes, and so they're all allocated
+                    // without the exclusive commit lock held. If not enough are reserved,
+                    // release the lock and start over.
+                    txnId = 0;
+                    masterEntries = new ArrayList<>();
+                    long masterSize = 0;
+                    for (TransactionContext txnContext : mTxnContexts) {
+                        txnId = txnContext.higherTransactionId(txnId);
+                        synchronized (txnContext) {
+                            masterSize += txnContext.captureForMaster(masterEntries);
+                        }
+                    }
+
+                    int required = UndoLog.masterNodesRequired(masterSize, pageSize());
+                    mMasterUndoLogNodes = required;
+                    if (required <= (masterUndoLog == null ? 0 : masterUndoLog.reservedNodes())) {
                         break;
                     }
 
+                    root.releaseShared();
                     mCommitLock.releaseExclusive();
+
+                    masterUndoLog = reserveMasterUndoLog(masterUndoLog, required);
                 }
 
                 mCheckpointFlushState = CHECKPOINT_FLUSH_PREPARE;
@@ -4692,51 +5089,18 @@ final class LocalDatabase extends AbstractDatabase {
                 p_longPutLE(header, hoff + I_REDO_POSITION, redoPos);
                 p_longPutLE(header, hoff + I_REPL_ENCODING, redo == null ? 0 : redo.encoding());
 
-                // TODO: I don't like all this activity with exclusive commit
-                // lock held. UndoLog can be refactored to store into a special
-                // Tree, but this requires more features to be added to Tree
-                // first. Specifically, large values and appending to them.
-
-                long txnId = 0;
-                final long masterUndoLogId;
+                p_longPutLE(header, hoff + I_TRANSACTION_ID, txnId);
 
                 if (resume) {
-                    masterUndoLogId = masterUndoLog == null ? 0 : masterUndoLog.topNodeId();
-                } else {
-                    byte[] workspace = null;
-
-                    for (TransactionContext txnContext : mTxnContexts) {
-                        txnId = txnContext.higherTransactionId(txnId);
-
-                        synchronized (txnContext) {
-                            if (txnContext.hasUndoLogs()) {
-                                if (masterUndoLog == null) {
-                                    masterUndoLog = new UndoLog(this, 0);
-                                }
-                                workspace = txnContext.writeToMaster(masterUndoLog, workspace);
-                            }
-                        }
-                    }
-
-                    if (masterUndoLog == null) {
-                        masterUndoLogId = 0;
-                    } else {
-                        masterUndoLogId = masterUndoLog.persistReady();
-                        if (masterUndoLogId == 0) {
-                            // Nothing was actually written to the log.
-                            masterUndoLog = null;
-                        }
-                    }
-
-                    // Stash it to resume after an aborted checkpoint.
-                    mCommitMasterUndoLog = masterUndoLog;
+                    long masterUndoLogId = masterUndoLog == null ? 0 : masterUndoLog.topNodeId();
+                    p_longPutLE(header, hoff + I_MASTER_UNDO_LOG_PAGE_ID, masterUndoLogId);
                 }
 
-                p_longPutLE(header, hoff + I_TRANSACTION_ID, txnId);
-                p_longPutLE(header, hoff + I_MASTER_UNDO_LOG_PAGE_ID, masterUndoLogId);
+                final UndoLog fMasterUndoLog = masterUndoLog;
+                final List<byte[]> fMasterEntries = masterEntries;
 
                 mPageDb.commit(resume, header, (boolean resume_, /*P*/ byte[] header_) -> {
-                    flush(resume_, header_);
+                    flush(resume_, header_, fMasterUndoLog, fMasterEntries);
                 });
             } catch (Throwable e) {
                 if (mCommitHeader != header) {
@@ -4753,6 +5117,18 @@ final class LocalDatabase extends AbstractDatabase {
                     }
                 }
 
+                if (masterUndoLog != null && masterUndoLog != mCommitMasterUndoLog) {
+                    // Free up the reserved nodes.
+                    CommitLock.Shared shared = mCommitLock.acquireShared();
+                    try {
+                        masterUndoLog.deleteReserve();
+                    } catch (Throwable e2) {
+                        Utils.suppress(e, e2);
+                    } finally {
+                        shared.release();
+                    }
+                }
+
                 throw e;
             }
 
@@ -4761,11 +5137,12 @@ final class LocalDatabase extends AbstractDatabase {
             mCommitMasterUndoLog = null;
 
             if (masterUndoLog != null) {
-                // Delete the master undo log, which won't take effect until
-                // the next checkpoint.
+                // Delete the master undo log and any unused reserved nodes, which won't take
+                // effect until the next checkpoint.
                 CommitLock.Shared shared = mCommitLock.acquireShared();
                 try {
                     if (!isClosed()) {
+                        masterUndoLog.deleteReserve();
                         shared = masterUndoLog.doTruncate(mCommitLock, shared, false);
                     }
                 } finally {
@@ -4780,8 +5157,18 @@ final class LocalDatabase extends AbstractDatabase {
                 mRedoWriter.checkpointFinished();
             }
 
+            long durationNanos = System.nanoTime() - mLastCheckpointNanos;
+
+            long flushCount = mCheckpointFlushCount;
+            if (flushCount > 0) {
+                // Track the recent write throughput, which includes the time to sync.
+                double nanosPerNode = durationNanos / (double) flushCount;
+                double last = mCheckpointNanosPerNode;
+                mCheckpointNanosPerNode = last == 0 ? nanosPerNode : ((last + nanosPerNode) / 2);
+            }
+
             if (mEventListener != null) {
-                double duration = (System.nanoTime() - mLastCheckpointNanos) / 1_000_000_000.0;
+                double duration = durationNanos / 1_000_000_000.0;
                 mEventListener.notify(EventType.CHECKPOINT_COMPLETE,
                                       "Checkpoint completed in %1$1.3f seconds",
                                       duration, TimeUnit.SECONDS);
@@ -4789,13 +5176,93 @@ final class LocalDatabase extends AbstractDatabase {
         } finally {
             mCheckpointLock.unlock();
         }
+
+        return nextDelayNanos;
+    }
+
+    /**
+     * Projects the amount of dirty nodes at the time that a checkpoint would finish, based on
+     * the rate at which nodes are being dirtied and the write throughput of recent
+     * checkpoints. Caller must hold the checkpoint lock.
+     *
+     * @param dirtyThreshold ratio of dirty nodes to the cache size which triggers a checkpoint
+     * @return zero if the threshold is reached, or else the estimated time until it's
+     * reached, in nanoseconds
+     */
+    private long dirtyThresholdCheck(double dirtyThreshold, long nowNanos) {
+        long dirty = 0, max = 0;
+        for (NodeContext context : mNodeContexts) {
+            dirty += context.dirtyCount();
+            max += context.maxSize();
+        }
+
+        // Rate at which nodes are being dirtied, per nanosecond.
+        double growthRate = 0;
+        long elapsedNanos = nowNanos - mLastDirtyCheckNanos;
+        if (elapsedNanos > 0 && dirty > mLastDirtyCount) {
+            growthRate = (dirty - mLastDirtyCount) / (double) elapsedNanos;
+        }
+
+        mLastDirtyCount = dirty;
+        mLastDirtyCheckNanos = nowNanos;
+
+        // Nodes are still being dirtied while the checkpoint writes out the current ones.
+        double factor = 1 + growthRate * mCheckpointNanosPerNode;
+        double threshold = max * dirtyThreshold;
+
+        if (dirty * factor >= threshold) {
+            return 0;
+        }
+
+        if (growthRate <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        double delayNanos = (threshold / factor - dirty) / growthRate;
+        return delayNanos >= Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, (long) delayNanos);
+    }
+
+    private boolean hasUndoLogs() {
+        for (TransactionContext txnContext : mTxnContexts) {
+            synchronized (txnContext) {
+                if (txnContext.hasUndoLogs()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserve nodes for the master undo log, without the exclusive commit lock held.
+     *
+     * @param masterUndoLog can be null
+     * @return non-null master undo log
+     */
+    private UndoLog reserveMasterUndoLog(UndoLog masterUndoLog, int count) throws IOException {
+        if (masterUndoLog == null) {
+            masterUndoLog = new UndoLog(this, 0);
+        }
+        CommitLock.Shared shared = mCommitLock.acquireShared();
+        try {
+            masterUndoLog.reserveNodes(count);
+        } finally {
+            shared.release();
+        }
+        return masterUndoLog;
     }
 
     /**
      * Method is invoked with exclusive commit lock and shared root node latch
      * held. Both are released by this method.
+     *
+     * @param masterUndoLog non-null if any nodes were reserved for it
+     * @param masterEntries captured by the captureForMaster method; ignored when resuming
      */
-    private void flush(final boolean resume, final /*P*/ byte[] header) throws IOException {
+    private void flush(final boolean resume, final /*P*/ byte[] header,
+                       final UndoLog masterUndoLog, final List<byte[]> masterEntries)
+        throws IOException
+    {
         Object custom = mCustomTxnHandler;
         if (custom != null) {
             custom = mCustomTxnHandler.checkpointStart(this);
@@ -4822,6 +5289,10 @@ final class LocalDatabase extends AbstractDatabase {
         mRegistry.mRoot.releaseShared();
         mCommitLock.releaseExclusive();
 
+        if (!resume) {
+            writeMasterUndoLog(header, masterUndoLog, masterEntries);
+        }
+
         if (mRedoWriter != null) {
             mRedoWriter.checkpointStarted();
         }
@@ -4831,9 +5302,11 @@ final class LocalDatabase extends AbstractDatabase {
         }
 
         try {
+            long flushCount = 0;
             for (NodeContext context : mNodeContexts) {
-                context.flushDirty(stateToFlush);
+                flushCount += context.flushDirty(stateToFlush);
             }
+            mCheckpointFlushCount = flushCount;
 
             if (mRedoWriter != null) {
                 mRedoWriter.checkpointFlushed();
@@ -4851,6 +5324,38 @@ final class LocalDatabase extends AbstractDatabase {
         }
     }
 
+    /**
+     * Writes the master undo log from the entries which were captured while the exclusive
+     * commit lock was held, and then stores its id in the commit header. Must be called
+     * after the commit state has switched, but before any dirty nodes are flushed.
+     */
+    private void writeMasterUndoLog(/*P*/ byte[] header,
+                                    UndoLog masterUndoLog, List<byte[]> masterEntries)
+        throws IOException
+    {
+        long masterUndoLogId = 0;
+
+        if (!masterEntries.isEmpty()) {
+            CommitLock.Shared shared = mCommitLock.acquireShared();
+            try {
+                masterUndoLogId = masterUndoLog.writeMaster(masterEntries);
+            } catch (Throwable e) {
+                // The undo logs cannot be captured again, and so the checkpoint cannot be
+                // resumed without losing them.
+                closeQuietly(null, this, e);
+                throw e;
+            } finally {
+                shared.release();
+            }
+        }
+
+        // Stash it to resume after an aborted checkpoint.
+        mCommitMasterUndoLog = masterUndoLogId == 0 ? null : masterUndoLog;
+
+        p_longPutLE(header, mPageDb.extraCommitDataOffset() + I_MASTER_UNDO_LOG_PAGE_ID,
+                    masterUndoLogId);
+    }
+
     // Called by DurablePageDb with header latch held.
     static long readRedoPosition(/*P*/ byte[] header, int offset) {
         return p_longGetLE(header, offset + I_REDO_POSITION);
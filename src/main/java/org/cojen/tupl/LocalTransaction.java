@@ -19,6 +19,8 @@ package org.cojen.tupl;
 
 import java.io.IOException;
 
+import java.util.Arrays;
+
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -53,6 +55,12 @@ final class LocalTransaction extends Locker implements Transaction {
     // Is an exception if transaction is borked, BOGUS if bogus.
     private Object mBorked;
 
+    // Entries read in OPTIMISTIC_READ mode, which are validated when committing.
+    private ReadSet mReadSet;
+
+    // Linked list of held range locks, which are retained until the transaction finishes.
+    private RangeLock mRangeLocks;
+
     LocalTransaction(LocalDatabase db, RedoWriter redo, DurabilityMode durabilityMode,
                      LockMode lockMode, long timeoutNanos)
     {
@@ -193,9 +201,20 @@ final class LocalTransaction extends Locker implements Transaction {
             check(borked);
         }
 
+        ReadSet reads = mReadSet;
+        if (reads != null && mParentScope == null) {
+            if (!reads.validate(this)) {
+                reset();
+                throw new OptimisticConflictException();
+            }
+            mReadSet = null;
+        }
+
         try {
             ParentScope parentScope = mParentScope;
             if (parentScope == null) {
+                mEscalationCount = 0;
+
                 UndoLog undo = mUndoLog;
                 if (undo == null) {
                     int hasState = mHasState;
@@ -212,6 +231,7 @@ final class LocalTransaction extends Locker implements Transaction {
                         }
                     }
                     super.scopeUnlockAll();
+                    releaseRangeLocks();
                 } else {
                     // Holding the shared commit lock ensures that the redo log
                     // doesn't disappear before the undo log. Lingering undo
@@ -246,6 +266,7 @@ final class LocalTransaction extends Locker implements Transaction {
 
                     // Calling this deletes any ghosts too.
                     super.scopeUnlockAll();
+                    releaseRangeLocks();
 
                     // Truncate obsolete log entries after releasing locks.
                     // Recovery might need to re-delete ghosts, which is only
@@ -286,7 +307,39 @@ final class LocalTransaction extends Locker implements Transaction {
         }
     }
 
+    /**
+     * Records an entry which was read in OPTIMISTIC_READ mode. Must be called before the
+     * entry value is read, or while the node latch which contains the key is held.
+     */
+    final void optimisticRead(long indexId, byte[] key, int hash) {
+        ReadSet reads = mReadSet;
+        if (reads == null) {
+            mReadSet = reads = new ReadSet();
+        }
+        reads.add(indexId, key, hash, mManager.stamp(hash));
+    }
+
+    /**
+     * Acquires a range lock for SERIALIZABLE mode, which is held until the transaction
+     * finishes. Bounds are inclusive, and a null bound is unbounded.
+     */
+    final RangeLock lockRange(long indexId, byte[] low, byte[] high) {
+        RangeLock range = mManager.lockRange(this, indexId, low, high);
+        range.mOwnerNext = mRangeLocks;
+        mRangeLocks = range;
+        return range;
+    }
+
+    private void releaseRangeLocks() {
+        RangeLock range = mRangeLocks;
+        if (range != null) {
+            mRangeLocks = null;
+            mManager.releaseRangeLocks(range);
+        }
+    }
+
     private void commitPending(long commitPos, UndoLog undo) throws IOException {
+        releaseRangeLocks();
         PendingTxn pending = transferExclusive();
         pending.mContext = mContext;
         pending.mTxnId = mTxnId;
@@ -384,6 +437,7 @@ final class LocalTransaction extends Locker implements Transaction {
                         }
                     }
                     super.scopeUnlockAll();
+                    releaseRangeLocks();
                 } else {
                     try {
                         undo.pushCommit();
@@ -401,6 +455,7 @@ final class LocalTransaction extends Locker implements Transaction {
                     }
 
                     super.scopeUnlockAll();
+                    releaseRangeLocks();
 
                     undo.truncate(true);
 
@@ -522,7 +577,10 @@ final class LocalTransaction extends Locker implements Transaction {
 
                 // Exit and release all locks obtained in this scope.
                 super.scopeExit();
+                releaseRangeLocks();
 
+                mReadSet = null;
+                mEscalationCount = 0;
                 mSavepoint = 0;
                 if (undo != null) {
                     mContext.unregister(undo);
@@ -570,6 +628,7 @@ final class LocalTransaction extends Locker implements Transaction {
             }
         } else {
             super.scopeExitAll();
+            releaseRangeLocks();
         }
     }
 
@@ -610,7 +669,10 @@ final class LocalTransaction extends Locker implements Transaction {
 
         // Exit and release all locks.
         super.scopeExitAll();
+        releaseRangeLocks();
 
+        mReadSet = null;
+        mEscalationCount = 0;
         mSavepoint = 0;
         if (undo != null) {
             mContext.unregister(undo);
@@ -759,6 +821,26 @@ final class LocalTransaction extends Locker implements Transaction {
         }
     }
 
+    /**
+     * Rolls back a transaction which was recovered from the undo log, after the database has
+     * been opened. The rollback is written to the redo log, because the master undo log of
+     * the recovery checkpoint still refers to the transaction. Without the redo record, a
+     * subsequent recovery would roll back the transaction again, over changes which were
+     * made after this rollback released the locks.
+     *
+     * @param redo can be null if the database has no redo log
+     */
+    final void recoveryRollback(RedoWriter redo) throws IOException {
+        if (redo != null && mTxnId > 0) {
+            try {
+                mContext.redoRollbackFinal(redo, mTxnId);
+            } catch (UnmodifiableReplicaException e) {
+                // Suppress and let undo proceed.
+            }
+        }
+        reset();
+    }
+
     /**
      * @param resetAlways when false, only resets committed transactions and transactions with
      * negative identifiers
@@ -1016,4 +1098,50 @@ final class LocalTransaction extends Locker implements Transaction {
             Utils.rethrow(borked);
         }
     }
+
+    /**
+     * Growable list of entries read in OPTIMISTIC_READ mode.
+     */
+    static final class ReadSet {
+        private long[] mIndexIds = new long[8];
+        private byte[][] mKeys = new byte[8][];
+        private int[] mHashes = new int[8];
+        private long[] mStamps = new long[8];
+        private int mSize;
+
+        void add(long indexId, byte[] key, int hash, long stamp) {
+            int size = mSize;
+            if (size >= mIndexIds.length) {
+                int newLength = size << 1;
+                mIndexIds = Arrays.copyOf(mIndexIds, newLength);
+                mKeys = Arrays.copyOf(mKeys, newLength);
+                mHashes = Arrays.copyOf(mHashes, newLength);
+                mStamps = Arrays.copyOf(mStamps, newLength);
+            }
+            mIndexIds[size] = indexId;
+            mKeys[size] = key;
+            mHashes[size] = hash;
+            mStamps[size] = stamp;
+            mSize = size + 1;
+        }
+
+        /**
+         * Acquires shared locks on all the entries, which are held until the transaction
+         * finishes, and checks that none were modified since being read.
+         *
+         * @return false if any entry was modified
+         */
+        boolean validate(LocalTransaction txn) throws LockFailureException {
+            LockManager manager = txn.mManager;
+            long nanosTimeout = txn.mLockTimeoutNanos;
+            for (int i=0; i<mSize; i++) {
+                int hash = mHashes[i];
+                txn.lock(LockManager.TYPE_SHARED, mIndexIds[i], mKeys[i], hash, nanosTimeout);
+                if (manager.stamp(hash) != mStamps[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
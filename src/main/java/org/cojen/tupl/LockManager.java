@@ -20,6 +20,15 @@ package org.cojen.tupl;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import org.cojen.tupl.io.UnsafeAccess;
 
 import org.cojen.tupl.util.Latch;
@@ -42,21 +51,45 @@ final class LockManager {
 
     final LockUpgradeRule mDefaultLockUpgradeRule;
     final long mDefaultTimeoutNanos;
+    final int mEscalationThreshold;
 
     private final LockHT[] mHashTables;
     private final int mHashTableShift;
 
     private final ThreadLocal<SoftReference<Locker>> mLocalLockerRef;
 
+    // Striped modification stamps, used by optimistic transactions. Created on demand.
+    private volatile AtomicLongArray mStamps;
+
+    // Last slot is bumped when an escalated lock is released.
+    private static final int STAMPS_SIZE = 1 << 16, ESCALATION_STAMP = STAMPS_SIZE;
+
+    // Count of escalated locks which are held, or which are being acquired.
+    private final AtomicInteger mEscalations;
+
+    // Range locks, striped by index id.
+    private final RangeHT[] mRangeTables;
+
     /**
      * @param db optional; used by DeadlockDetector to resolve index names
      */
     LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos) {
-        this(db, lockUpgradeRule, timeoutNanos, Runtime.getRuntime().availableProcessors() * 16);
+        this(db, lockUpgradeRule, timeoutNanos, 0);
+    }
+
+    /**
+     * @param db optional; used by DeadlockDetector to resolve index names
+     * @param escalationThreshold zero or negative to disable lock escalation
+     */
+    LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos,
+                int escalationThreshold)
+    {
+        this(db, lockUpgradeRule, timeoutNanos, escalationThreshold,
+             Runtime.getRuntime().availableProcessors() * 16);
     }
 
     private LockManager(LocalDatabase db, LockUpgradeRule lockUpgradeRule, long timeoutNanos,
-                        int numHashTables)
+                        int escalationThreshold, int numHashTables)
     {
         mDatabaseRef = db == null ? null : new WeakReference<>(db);
 
@@ -65,11 +98,15 @@ final class LockManager {
         }
         mDefaultLockUpgradeRule = lockUpgradeRule;
         mDefaultTimeoutNanos = timeoutNanos;
+        mEscalationThreshold = escalationThreshold;
+        mEscalations = escalationThreshold > 0 ? new AtomicInteger() : null;
 
         numHashTables = Utils.roundUpPower2(Math.max(2, numHashTables));
         mHashTables = new LockHT[numHashTables];
+        mRangeTables = new RangeHT[numHashTables];
         for (int i=0; i<numHashTables; i++) {
             mHashTables[i] = new LockHT();
+            mRangeTables[i] = new RangeHT();
         }
         mHashTableShift = Integer.numberOfLeadingZeros(numHashTables - 1);
 
@@ -112,24 +149,170 @@ final class LockManager {
         // immediately observe the activity of other threads acting upon the same lock. If
         // another thread has just acquired an exclusive lock, it must still acquire the node
         // latch before any changes can be made.
-        return getLockHT(hash).isAvailable(locker, indexId, key, hash);
+        return getLockHT(hash).isAvailable(locker, indexId, key, hash)
+            && (!isEscalating() || !isEscalatedByOther(locker, indexId));
     }
 
     final LockResult check(LockOwner locker, long indexId, byte[] key, int hash) {
         LockHT ht = getLockHT(hash);
+        Lock lock;
         ht.acquireShared();
         try {
-            Lock lock = ht.lockFor(indexId, key, hash);
-            return lock == null ? LockResult.UNOWNED : lock.check(locker);
+            lock = ht.lockFor(indexId, key, hash);
+            if (lock != null) {
+                return lock.check(locker);
+            }
         } finally {
             ht.releaseShared();
         }
+        return isEscalated(locker, indexId) ? LockResult.OWNED_EXCLUSIVE : LockResult.UNOWNED;
+    }
+
+    /**
+     * Acquires a lock, or returns OWNED_EXCLUSIVE if the index lock is escalated.
+     *
+     * @param lockType TYPE_SHARED, TYPE_UPGRADABLE, or TYPE_EXCLUSIVE
+     */
+    final LockResult tryLock(int lockType,
+                             Locker locker, long indexId, byte[] key, int hash,
+                             long nanosTimeout)
+    {
+        if (mEscalations == null) {
+            return getLockHT(hash).tryLock(lockType, locker, indexId, key, hash, nanosTimeout);
+        }
+
+        if (isEscalated(locker, indexId)) {
+            return OWNED_EXCLUSIVE;
+        }
+
+        if (lockType == TYPE_EXCLUSIVE && locker instanceof LocalTransaction) {
+            if (locker.mEscalationIndexId != indexId) {
+                locker.mEscalationIndexId = indexId;
+                locker.mEscalationCount = 1;
+            } else if (++locker.mEscalationCount >= mEscalationThreshold) {
+                // If escalation fails, try again after another threshold of requests.
+                locker.mEscalationCount = 0;
+                if (escalate(locker, indexId)) {
+                    return OWNED_EXCLUSIVE;
+                }
+            }
+        }
+
+        while (true) {
+            LockResult result = getLockHT(hash)
+                .tryLock(lockType, locker, indexId, key, hash, nanosTimeout);
+
+            // Check for escalation after acquiring the lock, in case the scan performed by
+            // the escalate method didn't observe it.
+            if (result != ACQUIRED || !isEscalating()
+                || !isEscalatedByOther(locker, indexId))
+            {
+                return result;
+            }
+
+            locker.unlock();
+
+            // Wait for the escalated lock to be released, and then try again.
+            int escHash = escalationHash(indexId);
+            result = getLockHT(escHash)
+                .tryLock(TYPE_SHARED, locker, indexId, null, escHash, nanosTimeout);
+            if (result != ACQUIRED) {
+                return result;
+            }
+            locker.unlock();
+        }
+    }
+
+    private boolean isEscalating() {
+        AtomicInteger escalations = mEscalations;
+        return escalations != null && escalations.get() != 0;
+    }
+
+    /**
+     * Returns true if the given locker holds the escalated lock for the given index.
+     */
+    private static boolean isEscalated(LockOwner locker, long indexId) {
+        if (locker instanceof Locker) {
+            Lock lock = ((Locker) locker).mEscalation;
+            return lock != null && lock.mKey == null && lock.mIndexId == indexId
+                && lock.mLockCount == ~0 && lock.mOwner == locker;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if another locker holds the escalated lock for the given index.
+     */
+    private boolean isEscalatedByOther(LockOwner locker, long indexId) {
+        int escHash = escalationHash(indexId);
+        LockHT ht = getLockHT(escHash);
+        ht.acquireShared();
+        try {
+            Lock lock = ht.lockFor(indexId, null, escHash);
+            return lock != null && lock.mLockCount == ~0 && lock.mOwner != locker;
+        } finally {
+            ht.releaseShared();
+        }
+    }
+
+    /**
+     * Attempts to acquire an exclusive lock for the entire index, which succeeds only if no
+     * other lockers hold any locks within it.
+     *
+     * @return true if escalated
+     */
+    private boolean escalate(Locker locker, long indexId) {
+        // Check first without the index lock. An attempt which is bound to fail shouldn't be
+        // counted, since any count forces all other lockers to check for escalation.
+        if (isLockedByOther(locker, indexId)) {
+            return false;
+        }
+
+        int escHash = escalationHash(indexId);
+        LockHT escHT = getLockHT(escHash);
+        if (escHT.tryLock(TYPE_EXCLUSIVE, locker, indexId, null, escHash, 0) != ACQUIRED) {
+            return false;
+        }
+
+        // Must be incremented before scanning again. Is decremented when the lock is released.
+        mEscalations.incrementAndGet();
+
+        if (isLockedByOther(locker, indexId)) {
+            locker.unlock();
+            return false;
+        }
+
+        escHT.acquireShared();
+        locker.mEscalation = escHT.lockFor(indexId, null, escHash);
+        escHT.releaseShared();
+
+        return true;
+    }
+
+    /**
+     * Returns true if any other locker holds a row lock within the given index.
+     */
+    private boolean isLockedByOther(Locker locker, long indexId) {
+        for (LockHT ht : mHashTables) {
+            if (ht.isLockedByOther(locker, indexId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Escalated locks have a null key, which cannot match any row lock.
+     */
+    private static int escalationHash(long indexId) {
+        return hash(indexId, Utils.EMPTY_BYTES);
     }
 
     final void unlock(LockOwner locker, Lock lock) {
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
+            exclusiveReleasing(lock);
             lock.unlock(locker, ht);
         } catch (Throwable e) {
             ht.releaseExclusive();
@@ -141,6 +324,7 @@ final class LockManager {
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
+            exclusiveReleasing(lock);
             lock.unlockToShared(locker, ht);
         } catch (Throwable e) {
             ht.releaseExclusive();
@@ -152,6 +336,7 @@ final class LockManager {
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
         try {
+            exclusiveReleasing(lock);
             lock.unlockToUpgradable(locker, ht);
         } catch (Throwable e) {
             ht.releaseExclusive();
@@ -159,6 +344,47 @@ final class LockManager {
         }
     }
 
+    /**
+     * Returns the modification stamp for the given key hash, which changes whenever an
+     * exclusive lock with the same stamp slot is released.
+     */
+    final long stamp(int hash) {
+        AtomicLongArray stamps = mStamps;
+        if (stamps == null) {
+            stamps = initStamps();
+        }
+        return stamps.get(hash & (STAMPS_SIZE - 1)) + stamps.get(ESCALATION_STAMP);
+    }
+
+    private synchronized AtomicLongArray initStamps() {
+        AtomicLongArray stamps = mStamps;
+        if (stamps == null) {
+            mStamps = stamps = new AtomicLongArray(STAMPS_SIZE + 1);
+        }
+        return stamps;
+    }
+
+    /**
+     * Caller must hold the LockHT latch exclusively, and the lock must not be released yet.
+     */
+    private void exclusiveReleasing(Lock lock) {
+        if (lock.mLockCount == ~0) {
+            AtomicLongArray stamps = mStamps;
+            if (lock.mKey == null) {
+                // Rows modified while escalated have no stamps of their own.
+                if (stamps != null) {
+                    stamps.incrementAndGet(ESCALATION_STAMP);
+                }
+                AtomicInteger escalations = mEscalations;
+                if (escalations != null) {
+                    escalations.decrementAndGet();
+                }
+            } else if (stamps != null) {
+                stamps.incrementAndGet(lock.mHashCode & (STAMPS_SIZE - 1));
+            }
+        }
+    }
+
     final PendingTxn transferExclusive(LockOwner locker, Lock lock, PendingTxn pending) {
         LockHT ht = getLockHT(lock.mHashCode);
         ht.acquireExclusive();
@@ -176,11 +402,216 @@ final class LockManager {
      *
      * @param frame must be bound to the ghost position
      */
-    final void ghosted(long indexId, byte[] key, int hash, CursorFrame.Ghost frame) {
+    final void ghosted(Locker locker, long indexId, byte[] key, int hash,
+                       CursorFrame.Ghost frame)
+    {
         LockHT ht = getLockHT(hash);
+        Lock lock;
         ht.acquireExclusive();
         try {
-            ht.lockFor(indexId, key, hash).setGhostFrame(frame);
+            lock = ht.lockFor(indexId, key, hash);
+            if (lock != null) {
+                lock.setGhostFrame(frame);
+                return;
+            }
+            // Lock is escalated, but a row lock is still required for deleting the ghost.
+            lock = ht.lockAccess(indexId, key, hash);
+            lock.mLockCount = ~0;
+            lock.mOwner = locker;
+            lock.setGhostFrame(frame);
+        } finally {
+            ht.releaseExclusive();
+        }
+        locker.push(lock);
+    }
+
+    /**
+     * Acquires a range lock, which only conflicts with inserts made by other owners. The lock
+     * is held until released by releaseRangeLocks.
+     *
+     * @param low inclusive low bound; null if unbounded
+     * @param high inclusive high bound; null if unbounded
+     */
+    final RangeLock lockRange(LockOwner owner, long indexId, byte[] low, byte[] high) {
+        RangeLock range = new RangeLock(owner, indexId, low, high);
+        RangeHT rt = getRangeHT(indexId);
+        synchronized (rt) {
+            LHashTable.ObjEntry<RangeLock> e = rt.insert(indexId);
+            e.value = range.insertInto(e.value);
+            rt.mCount++;
+        }
+        return range;
+    }
+
+    /**
+     * Changes the bounds of a range lock, which must be called by the owner. Bounds must be
+     * widened before the entries within are read, and they can be narrowed afterwards.
+     *
+     * @param low inclusive low bound; null if unbounded
+     * @param high inclusive high bound; null if unbounded
+     */
+    final void rangeBounds(RangeLock range, byte[] low, byte[] high) {
+        long indexId = range.mIndexId;
+        RangeHT rt = getRangeHT(indexId);
+        synchronized (rt) {
+            LHashTable.ObjEntry<RangeLock> e = rt.get(indexId);
+            e.value = range.bounds(e.value, low, high);
+            if (rt.mWaiters != 0) {
+                rt.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Releases a chain of range locks, linked by the mOwnerNext field.
+     */
+    final void releaseRangeLocks(RangeLock range) {
+        do {
+            long indexId = range.mIndexId;
+            RangeHT rt = getRangeHT(indexId);
+            synchronized (rt) {
+                // Release all the consecutive range locks which belong to the same stripe.
+                do {
+                    indexId = range.mIndexId;
+                    LHashTable.ObjEntry<RangeLock> e = rt.get(indexId);
+                    RangeLock root = range.removeFrom(e.value);
+                    if (root == null) {
+                        rt.remove(indexId);
+                    } else {
+                        e.value = root;
+                    }
+                    range.mReleased = true;
+                    rt.mCount--;
+                } while ((range = range.mOwnerNext) != null
+                         && getRangeHT(range.mIndexId) == rt);
+
+                if (rt.mWaiters != 0) {
+                    rt.notifyAll();
+                }
+            }
+        } while (range != null);
+    }
+
+    /**
+     * Returns true if the given key is within a range locked by another owner. To guard
+     * against races, caller must hold the exclusive latch of the node which the key is to be
+     * inserted into.
+     *
+     * @param locker optional locker
+     */
+    final boolean isRangeLocked(LockOwner locker, long indexId, byte[] key) {
+        RangeHT rt = getRangeHT(indexId);
+        if (rt.mCount == 0) {
+            return false;
+        }
+        synchronized (rt) {
+            return RangeLock.find(rt.root(indexId), locker, key) != null;
+        }
+    }
+
+    /**
+     * Waits until the given key isn't within a range locked by another owner. Caller must
+     * not hold any latches.
+     *
+     * @param locker optional locker
+     * @param nanosTimeout pass negative for infinite
+     */
+    final void waitForRange(LockOwner locker, long indexId, byte[] key, long nanosTimeout)
+        throws LockFailureException
+    {
+        RangeHT rt = getRangeHT(indexId);
+        synchronized (rt) {
+            if (RangeLock.find(rt.root(indexId), locker, key) == null) {
+                return;
+            }
+
+            long end = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
+
+            rt.mWaiters++;
+            try {
+                do {
+                    if (rt.mClosed) {
+                        throw new LockInterruptedException();
+                    }
+                    if (nanosTimeout < 0) {
+                        rt.wait();
+                    } else {
+                        long remaining = end - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new LockTimeoutException(nanosTimeout);
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(rt, remaining);
+                    }
+                } while (RangeLock.find(rt.root(indexId), locker, key) != null);
+            } catch (InterruptedException e) {
+                throw new LockInterruptedException();
+            } finally {
+                rt.mWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Scans all the locks for deadlocks, and cancels the wait of one locker in each deadlock
+     * which is found. The canceled locker fails with a DeadlockException, just as if its
+     * wait had timed out.
+     *
+     * @return amount of deadlocks which were broken
+     */
+    final int detectDeadlocks() {
+        // Every locker in a deadlock owns a lock which another locker is waiting for.
+        Set<LockOwner> candidates = new LinkedHashSet<>();
+        for (LockHT ht : mHashTables) {
+            ht.addWaitedOwners(candidates);
+        }
+
+        Set<LockOwner> victims = null;
+
+        for (LockOwner owner : candidates) {
+            Lock lock = owner.mWaitingFor;
+            if (lock == null || !(owner instanceof Locker)) {
+                continue;
+            }
+
+            DeadlockDetector detector = new DeadlockDetector((Locker) owner);
+
+            // Only select a victim which is within the deadlock cycle. A locker which is
+            // waiting on the cycle from the outside isn't guilty.
+            if (!detector.scan() || !detector.mGuilty
+                || (victims != null && detector.involvesAny(victims)))
+            {
+                continue;
+            }
+
+            if (cancelWait((Locker) owner, lock)) {
+                if (victims == null) {
+                    victims = new HashSet<>();
+                }
+                victims.add(owner);
+            }
+        }
+
+        return victims == null ? 0 : victims.size();
+    }
+
+    /**
+     * Cancels the wait of a deadlock victim, but only if it's still waiting for the same lock
+     * and is still guilty. The scan which selected the victim examines the locks without
+     * latching them, and so the deadlock might have been resolved in the meantime.
+     *
+     * @param lock lock which the victim was waiting for when the deadlock was found
+     */
+    private boolean cancelWait(Locker locker, Lock lock) {
+        LockHT ht = getLockHT(lock.mHashCode);
+        ht.acquireExclusive();
+        try {
+            if (locker.mWaitingFor != lock) {
+                return false;
+            }
+            // With the latch held, the victim cannot stop waiting and the lock cannot change
+            // hands. Scan again, to confirm that the cycle through this lock still exists.
+            DeadlockDetector detector = new DeadlockDetector(locker);
+            return detector.scan() && detector.mGuilty && lock.cancelWait(locker);
         } finally {
             ht.releaseExclusive();
         }
@@ -188,8 +619,8 @@ final class LockManager {
 
     final Locker lockSharedLocal(long indexId, byte[] key, int hash) throws LockFailureException {
         Locker locker = localLocker();
-        LockResult result = getLockHT(hash)
-            .tryLock(TYPE_SHARED, locker, indexId, key, hash, mDefaultTimeoutNanos);
+        LockResult result = tryLock
+            (TYPE_SHARED, locker, indexId, key, hash, mDefaultTimeoutNanos);
         if (result.isHeld()) {
             return locker;
         }
@@ -200,8 +631,8 @@ final class LockManager {
         throws LockFailureException
     {
         Locker locker = localLocker();
-        LockResult result = getLockHT(hash)
-            .tryLock(TYPE_EXCLUSIVE, locker, indexId, key, hash, mDefaultTimeoutNanos);
+        LockResult result = tryLock
+            (TYPE_EXCLUSIVE, locker, indexId, key, hash, mDefaultTimeoutNanos);
         if (result.isHeld()) {
             return locker;
         }
@@ -226,6 +657,13 @@ final class LockManager {
         for (LockHT ht : mHashTables) {
             ht.close(locker);
         }
+
+        for (RangeHT rt : mRangeTables) {
+            synchronized (rt) {
+                rt.mClosed = true;
+                rt.notifyAll();
+            }
+        }
     }
 
     final static int hash(long indexId, byte[] key) {
@@ -236,6 +674,10 @@ final class LockManager {
         return mHashTables[hash >>> mHashTableShift];
     }
 
+    private RangeHT getRangeHT(long indexId) {
+        return mRangeTables[Utils.hash64to32(indexId) >>> mHashTableShift];
+    }
+
     /**
      * Simple hashtable of Locks.
      */
@@ -504,6 +946,45 @@ final class LockManager {
             mSize--;
         }
 
+        /**
+         * Returns true if any lock within the given index is held by another locker.
+         */
+        boolean isLockedByOther(LockOwner locker, long indexId) {
+            acquireShared();
+            try {
+                Lock[] entries = mEntries;
+                for (int i=entries.length; --i>=0 ;) {
+                    for (Lock e = entries[i]; e != null; e = e.mLockManagerNext) {
+                        if (e.mIndexId == indexId && e.mKey != null && e.isHeldByOther(locker)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                releaseShared();
+            }
+        }
+
+        /**
+         * Adds the owners of all locks which have waiters to the given set.
+         */
+        void addWaitedOwners(Set<LockOwner> owners) {
+            acquireShared();
+            try {
+                Lock[] entries = mEntries;
+                for (int i=entries.length; --i>=0 ;) {
+                    for (Lock e = entries[i]; e != null; e = e.mLockManagerNext) {
+                        if (e.hasWaiters()) {
+                            e.addOwners(owners);
+                        }
+                    }
+                }
+            } finally {
+                releaseShared();
+            }
+        }
+
         void close(LockOwner locker) {
             acquireExclusive();
             try {
@@ -585,4 +1066,29 @@ final class LockManager {
             return entries;
         }
     }
+
+    /**
+     * Simple hashtable of range locks, keyed by index id. Each entry is the root of a
+     * treap. All access must be synchronized on the table.
+     */
+    static final class RangeHT extends LHashTable<LHashTable.ObjEntry<RangeLock>> {
+        // Amount of range locks in the table.
+        volatile int mCount;
+
+        int mWaiters;
+        boolean mClosed;
+
+        RangeHT() {
+            super(4);
+        }
+
+        RangeLock root(long indexId) {
+            LHashTable.ObjEntry<RangeLock> e = get(indexId);
+            return e == null ? null : e.value;
+        }
+
+        protected LHashTable.ObjEntry<RangeLock> newEntry() {
+            return new LHashTable.ObjEntry<>();
+        }
+    }
 }
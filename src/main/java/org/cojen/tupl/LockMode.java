@@ -29,8 +29,10 @@ package org.cojen.tupl;
  *
  * <p>Modes ordered from strongest to weakest:
  * <ul>
+ * <li>{@link #SERIALIZABLE}
  * <li>{@link #UPGRADABLE_READ} (default)
  * <li>{@link #REPEATABLE_READ}
+ * <li>{@link #OPTIMISTIC_READ}
  * <li>{@link #READ_COMMITTED}
  * <li>{@link #READ_UNCOMMITTED}
  * <li>{@link #UNSAFE}
@@ -40,6 +42,20 @@ package org.cojen.tupl;
  * @see Transaction#lockMode
  */
 public enum LockMode {
+    /**
+     * Lock mode which acquires upgradable locks when reading entries, just like {@link
+     * #UPGRADABLE_READ}, and also locks the key ranges which are scanned by cursors. An
+     * attempt by another transaction to insert an entry into a locked range waits until the
+     * range lock is released, and so a repeated scan observes no new entries. Range locks
+     * are retained until the transaction finishes, even when acquired within a nested scope.
+     *
+     * <p>Ranges are locked by cursor movement operations such as {@code first}, {@code
+     * next} and {@code findGe}, spanning from the starting position to the key moved to. The
+     * {@code random} operation doesn't lock ranges. Waiting for a range lock is subject to
+     * the lock timeout, but it isn't considered by deadlock detection.
+     */
+    SERIALIZABLE(LockManager.TYPE_UPGRADABLE, false),
+
     /**
      * Lock mode which acquires upgradable locks when reading entries and
      * retains them to the end of the transaction or scope. If an entry guarded
@@ -58,6 +74,21 @@ public enum LockMode {
      */
     REPEATABLE_READ(LockManager.TYPE_SHARED, false),
 
+    /**
+     * Lock mode which never acquires locks when reading entries, but instead records the
+     * entries which were read. When the transaction is committed, the recorded entries are
+     * briefly locked and validated. If any were modified by another transaction in the
+     * meantime, the transaction is rolled back and an {@link OptimisticConflictException} is
+     * thrown. Modifications made by concurrent transactions can be visible for reading, but
+     * they cause the commit to fail if they were rolled back or committed after being read.
+     *
+     * <p>Only the entries which were actually read are validated, and so an entry inserted
+     * into a range which was scanned doesn't cause a conflict. Validation can also fail
+     * spuriously, when an unrelated entry is modified. Modifications made in {@link #UNSAFE}
+     * mode aren't detected.
+     */
+    OPTIMISTIC_READ(0, true),
+
     /**
      * Lock mode which acquires shared locks when reading entries and releases
      * them as soon as possible.
@@ -91,7 +122,8 @@ public enum LockMode {
 
     /**
      * Returns true if acquired locks are retained for the duration of the
-     * transaction. Applicable to {@link #UPGRADABLE_READ} and {@link #REPEATABLE_READ}.
+     * transaction. Applicable to {@link #SERIALIZABLE}, {@link #UPGRADABLE_READ} and {@link
+     * #REPEATABLE_READ}.
      */
     public boolean isRepeatable() {
         return repeatable != 0;
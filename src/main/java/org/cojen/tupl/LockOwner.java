@@ -31,6 +31,10 @@ abstract class LockOwner implements DatabaseAccess { // weak access to database
     // LockOwner is currently waiting to acquire this lock. Used for deadlock detection.
     Lock mWaitingFor;
 
+    // Thread which most recently waited on behalf of this LockOwner. Used by background
+    // deadlock detection, for canceling the wait.
+    Thread mWaitingThread;
+
     LockOwner() {
         mHash = ThreadLocalRandom.current().nextInt();
     }
@@ -39,6 +39,13 @@ class Locker extends LockOwner {
     // Is null if empty; Lock instance if one; Block if more.
     Object mTailBlock;
 
+    // Index-level lock acquired by escalation, which might have been released since.
+    Lock mEscalation;
+
+    // Counts exclusive lock requests within one index, for deciding when to escalate.
+    long mEscalationIndexId;
+    int mEscalationCount;
+
     /**
      * @param manager null for Transaction.BOGUS or when closing down LockManager
      */
@@ -103,7 +110,7 @@ class Locker extends LockOwner {
     final LockResult tryLock(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws DeadlockException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
 
         if (result == LockResult.TIMED_OUT_LOCK) {
@@ -129,7 +136,7 @@ class Locker extends LockOwner {
     final LockResult lock(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws LockFailureException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
         if (result.isHeld()) {
             return result;
@@ -150,7 +157,7 @@ class Locker extends LockOwner {
     final LockResult lockNT(int lockType, long indexId, byte[] key, int hash, long nanosTimeout)
         throws LockFailureException
     {
-        LockResult result = manager().getLockHT(hash)
+        LockResult result = manager()
             .tryLock(lockType, this, indexId, key, hash, nanosTimeout);
         if (!result.isHeld()) {
             switch (result) {
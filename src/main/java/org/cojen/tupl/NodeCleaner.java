@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background thread which writes out dirty nodes before they're selected for eviction. The
+ * least recently used nodes of each NodeContext are kept clean, and so threads which need to
+ * allocate a node can recycle one without having to write it first. Optionally, the oldest
+ * dirty nodes are also written between checkpoints, limiting the amount of dirty nodes which
+ * the next checkpoint must write.
+ *
+ * @author Brian S O'Neill
+ */
+/*P*/
+final class NodeCleaner extends Thread {
+    // Keep 1/16 of each context clean.
+    private static final int RESERVE_SHIFT = 4;
+
+    // Maximum amount of nodes to write per context before moving on to the next context.
+    private static final int BATCH_SIZE = 64;
+
+    // Maximum time to wait before checking the contexts again, if not woken up.
+    private static final long DELAY_NANOS = 100_000_000L;
+
+    private final WeakReference<LocalDatabase> mDatabaseRef;
+    private final int mStart;
+    private final int mStride;
+    private final double mDirtyRatio;
+
+    private volatile boolean mClosed;
+
+    /**
+     * @param start index of first context to clean
+     * @param stride amount to advance when selecting the next context to clean
+     * @param dirtyRatio target maximum ratio of dirty nodes; 1.0 or more to disable
+     */
+    private NodeCleaner(LocalDatabase db, int start, int stride, double dirtyRatio) {
+        // Only a weak reference is held, allowing an unreferenced database to be closed by
+        // the Checkpointer.
+        mDatabaseRef = new WeakReference<>(db);
+        mStart = start;
+        mStride = stride;
+        mDirtyRatio = dirtyRatio;
+        setName("NodeCleaner-" + getId());
+        setDaemon(true);
+    }
+
+    /**
+     * Start cleaner threads for all the given contexts.
+     *
+     * @param numThreads if zero, no threads are started; if negative, the actual number
+     * started is {@code (-numThreads * availableProcessors)}
+     * @param dirtyRatio target maximum ratio of dirty nodes; 1.0 or more to disable
+     * @return null if no threads were started
+     */
+    static NodeCleaner[] start(LocalDatabase db, NodeContext[] contexts,
+                               int numThreads, double dirtyRatio)
+    {
+        if (numThreads == 0 && dirtyRatio < 1.0) {
+            // Need a thread to maintain the dirty ratio.
+            numThreads = 1;
+        } else if (numThreads < 0) {
+            int procCount = Runtime.getRuntime().availableProcessors();
+            numThreads = -numThreads * procCount;
+            if (numThreads <= 0) {
+                // Overflowed.
+                numThreads = Integer.MAX_VALUE;
+            }
+        }
+
+        numThreads = Math.min(numThreads, contexts.length);
+
+        if (numThreads <= 0) {
+            return null;
+        }
+
+        NodeCleaner[] cleaners = new NodeCleaner[numThreads];
+
+        for (int i=0; i<numThreads; i++) {
+            NodeCleaner cleaner = new NodeCleaner(db, i, numThreads, dirtyRatio);
+            cleaners[i] = cleaner;
+            for (int j=i; j<contexts.length; j+=numThreads) {
+                contexts[j].cleaner(cleaner);
+            }
+        }
+
+        for (NodeCleaner cleaner : cleaners) {
+            cleaner.start();
+        }
+
+        return cleaners;
+    }
+
+    /**
+     * Stop all the given cleaner threads and wait for them to exit.
+     *
+     * @param cleaners can be null
+     */
+    static void stop(NodeCleaner[] cleaners) {
+        if (cleaners == null) {
+            return;
+        }
+
+        for (NodeCleaner cleaner : cleaners) {
+            cleaner.mClosed = true;
+            cleaner.wake();
+        }
+
+        Thread current = Thread.currentThread();
+
+        for (NodeCleaner cleaner : cleaners) {
+            if (cleaner != current) {
+                try {
+                    cleaner.join();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake up the cleaner, if it's idle.
+     */
+    void wake() {
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        Node[] batch = new Node[BATCH_SIZE];
+
+        while (!mClosed) {
+            int written = clean(batch);
+            if (written < 0) {
+                return;
+            }
+            if (written == 0) {
+                LockSupport.parkNanos(this, DELAY_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return amount of nodes written, or -1 if database is closed
+     */
+    private int clean(Node[] batch) {
+        LocalDatabase db = mDatabaseRef.get();
+        if (db == null || db.isClosed()) {
+            return -1;
+        }
+
+        if (!db.canCleanEarly()) {
+            return 0;
+        }
+
+        NodeContext[] contexts = db.mNodeContexts;
+        int written = 0;
+
+        try {
+            for (int i=mStart; i<contexts.length; i+=mStride) {
+                if (mClosed) {
+                    return -1;
+                }
+                NodeContext context = contexts[i];
+                written += context.cleanLeastUsed(RESERVE_SHIFT, batch);
+                if (mDirtyRatio < 1.0) {
+                    written += context.cleanDirty(mDirtyRatio, batch);
+                }
+            }
+        } catch (Throwable e) {
+            if (mClosed || db.isClosed()) {
+                return -1;
+            }
+            // Eviction will encounter the same failure and report it, so just log it and
+            // try again later.
+            EventListener listener = db.eventListener();
+            if (listener != null) {
+                listener.notify(EventType.CACHE_CLEAN_FAILED,
+                                "Cache cleaning failed: %1$s", e);
+            }
+            return 0;
+        }
+
+        return written;
+    }
+}
@@ -64,6 +64,9 @@ final class NodeContext extends Clutch.Pack {
     // Iterator over dirty nodes.
     private Node mFlushNext;
 
+    // Optional background thread which keeps least recently used nodes clean.
+    private volatile NodeCleaner mCleaner;
+
     /**
      * @param usedRate must be power of 2 minus 1, and it determines the likelihood that
      * calling the used method actually moves the node in the usage list. The higher the used
@@ -112,6 +115,98 @@ final class NodeContext extends Clutch.Pack {
         return size;
     }
 
+    int maxSize() {
+        acquireShared();
+        int maxSize = mMaxSize;
+        releaseShared();
+        return maxSize;
+    }
+
+    /**
+     * Change the maximum amount of nodes which can be allocated by this context. When
+     * shrinking, least recently used nodes are evicted and deleted. Nodes which cannot be
+     * evicted at the moment, because they're in use, are skipped.
+     *
+     * @param maxSize new maximum size, which must be more than zero
+     * @param mode MODE_NO_EVICT to only delete clean nodes
+     * @return actual node count after resizing
+     */
+    int resize(int maxSize, int mode) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        acquireExclusive();
+
+        if (mMaxSize == 0) {
+            // Closed.
+            releaseExclusive();
+            return 0;
+        }
+
+        mMaxSize = maxSize;
+
+        int limit = mSize;
+        while (mSize > mMaxSize && --limit >= 0) {
+            Node node = mLeastRecentlyUsed;
+            Node moreUsed;
+            if (node == null || (moreUsed = node.mMoreUsed) == null) {
+                // Keep at least one evictable node, for the usage list to function correctly.
+                break;
+            }
+
+            // Move node to the most recently used position, to prevent examining it again if
+            // it cannot be evicted.
+            moreUsed.mLessUsed = null;
+            mLeastRecentlyUsed = moreUsed;
+            node.mMoreUsed = null;
+            (node.mLessUsed = mMostRecentlyUsed).mMoreUsed = node;
+            mMostRecentlyUsed = node;
+
+            if (!node.tryAcquireExclusive()) {
+                continue;
+            }
+
+            if ((mode & MODE_NO_EVICT) != 0 && node.mCachedState != CACHED_CLEAN) {
+                node.releaseExclusive();
+                continue;
+            }
+
+            // Release the latch while evicting, to prevent blocking other allocations.
+            releaseExclusive();
+
+            if (!node.evict(mDatabase)) {
+                acquireExclusive();
+                continue;
+            }
+
+            // Acquire the latch before releasing the node latch, preventing the node from
+            // being concurrently selected for allocation.
+            acquireExclusive();
+
+            doMakeUnevictable(node);
+            mSize--;
+
+            /*P*/ byte[] page = node.mPage;
+
+            removeDirty(node);
+            // Free memory and make node appear to be evicted.
+            node.doDelete(mDatabase);
+            node.releaseExclusive();
+
+            try {
+                mDatabase.releaseArenaPage(page);
+            } catch (Throwable e) {
+                releaseExclusive();
+                throw e;
+            }
+        }
+
+        int size = mSize;
+        releaseExclusive();
+        return size;
+    }
+
     /**
      * Returns a new or recycled Node instance, latched exclusively, with an undefined id and a
      * clean state.
@@ -157,6 +252,12 @@ final class NodeContext extends Clutch.Pack {
                         node.releaseExclusive();
                         break;
                     }
+                    // Evicting a dirty node writes it out, which is what the cleaner is
+                    // supposed to do ahead of time. It's falling behind, so wake it up.
+                    NodeCleaner cleaner = mCleaner;
+                    if (cleaner != null) {
+                        cleaner.wake();
+                    }
                 }
 
                 // For first attempt, release the latch early to prevent blocking other
@@ -504,9 +605,11 @@ final class NodeContext extends Clutch.Pack {
      * Flush all nodes matching the given state. Only one flush at a time is allowed.
      *
      * @param dirtyState the old dirty state to match on; CACHED_DIRTY_0 or CACHED_DIRTY_1
+     * @return amount of nodes written
      */
-    void flushDirty(final int dirtyState) throws IOException {
+    long flushDirty(final int dirtyState) throws IOException {
         final PageDb pageDb = mDatabase.mPageDb;
+        long written = 0;
 
         synchronized (this) {
             mFlushNext = mFirstDirty;
@@ -519,7 +622,7 @@ final class NodeContext extends Clutch.Pack {
             synchronized (this) {
                 node = mFlushNext;
                 if (node == null) {
-                    return;
+                    return written;
                 }
 
                 state = node.mCachedState;
@@ -527,7 +630,7 @@ final class NodeContext extends Clutch.Pack {
                 if (state == (dirtyState ^ 1)) {
                     // Now seeing nodes with new dirty state, so all done flushing.
                     mFlushNext = null;
-                    return;
+                    return written;
                 }
 
                 mFlushNext = node.mNextDirty;
@@ -579,12 +682,189 @@ final class NodeContext extends Clutch.Pack {
                 // contended mode, and it cannot flip back until after the downgraded latch has
                 // been fully released.
                 node.mCachedState = Node.CACHED_CLEAN;
+                written++;
             } finally {
                 node.releaseShared();
             }
         }
     }
 
+    void cleaner(NodeCleaner cleaner) {
+        mCleaner = cleaner;
+    }
+
+    /**
+     * Write dirty nodes which are close to the least recently used end of the usage list,
+     * allowing them to be recycled later without having to write them first. Nodes which are
+     * latched by other threads are skipped. Only one thread at a time should clean a context.
+     *
+     * @param reserveShift determines the amount of least recently used nodes to keep clean,
+     * as a fraction of the maximum size: {@code maxSize >> reserveShift}
+     * @param batch workspace for collecting dirty nodes; determines the maximum amount of
+     * nodes written by a single call
+     * @return amount of nodes written
+     */
+    int cleanLeastUsed(int reserveShift, Node[] batch) throws IOException {
+        int count = 0;
+
+        acquireShared();
+        try {
+            int reserve = mMaxSize >> reserveShift;
+            Node node = mLeastRecentlyUsed;
+            // Stop at the most recently used node, which cannot be recycled.
+            for (; node != null && node.mMoreUsed != null && --reserve >= 0; ) {
+                // Racy checks, but they're double checked after latching.
+                if (node.mCachedState != CACHED_CLEAN && node.mLastCursorFrame == null) {
+                    batch[count++] = node;
+                    if (count >= batch.length) {
+                        break;
+                    }
+                }
+                node = node.mMoreUsed;
+            }
+        } finally {
+            releaseShared();
+        }
+
+        return writeBatch(batch, count);
+    }
+
+    /**
+     * Write the oldest dirty nodes, but only if the amount of dirty nodes exceeds a target
+     * ratio of the maximum size. Nodes which are written early are marked clean, and so they
+     * only need to be written again if they're marked dirty again. Nodes which are latched
+     * by other threads are skipped. Only one thread at a time should clean a context.
+     *
+     * @param dirtyRatio target maximum ratio of dirty nodes to the maximum size
+     * @param batch workspace for collecting dirty nodes; determines the maximum amount of
+     * nodes written by a single call
+     * @return amount of nodes written
+     */
+    int cleanDirty(double dirtyRatio, Node[] batch) throws IOException {
+        int count = 0;
+
+        // Hold the latch to safely examine the usage list links.
+        acquireShared();
+        try {
+            long target = (long) (mMaxSize * dirtyRatio);
+            synchronized (this) {
+                long excess = mDirtyCount - target;
+                // Limit the scan, in case many of the oldest dirty nodes cannot be written.
+                int limit = batch.length << 2;
+                for (Node node = mFirstDirty; node != null && excess > 0 && --limit >= 0;
+                     node = node.mNextDirty)
+                {
+                    // Like eviction, only consider nodes which are in the usage list. Tree
+                    // root nodes are unevictable, and the registry root node must stay dirty
+                    // until the next checkpoint. If it was clean, the checkpoint would assume
+                    // that nothing has changed. Racy checks, but they're double checked
+                    // after latching.
+                    if (node.mCachedState != CACHED_CLEAN && node.mLastCursorFrame == null
+                        && node.mMoreUsed != null)
+                    {
+                        batch[count++] = node;
+                        if (count >= batch.length) {
+                            break;
+                        }
+                        excess--;
+                    }
+                }
+            }
+        } finally {
+            releaseShared();
+        }
+
+        return writeBatch(batch, count);
+    }
+
+    /**
+     * Writes and cleans the given nodes, unless they cannot be written at the moment.
+     *
+     * @param count amount of nodes in the batch to write; all are cleared from the batch
+     * @return amount of nodes written
+     */
+    private int writeBatch(Node[] batch, int count) throws IOException {
+        final PageDb pageDb = mDatabase.mPageDb;
+        int written = 0;
+
+        for (int i=0; i<count; i++) {
+            Node node = batch[i];
+            batch[i] = null;
+
+            if (!node.tryAcquireExclusive()) {
+                // In use, and so it won't be recycled or written by a checkpoint soon anyhow.
+                continue;
+            }
+
+            if (node.mCachedState == CACHED_CLEAN || node.mId <= 1
+                || node.mLastCursorFrame != null)
+            {
+                // Cannot write a node which was evicted or deleted, or a stub. Like with
+                // eviction, a node which is bound to a cursor must be skipped. A cursor bound
+                // node which was marked dirty must stay dirty until the next checkpoint,
+                // because it might be modified again without being marked dirty. Also, a node
+                // cannot be in a split state without a cursor bound to it.
+                node.releaseExclusive();
+                continue;
+            }
+
+            node.downgrade();
+            try {
+                node.write(pageDb);
+                // Same rules as flushDirty apply when setting the clean state with a shared
+                // latch. Remove from the dirty list while still latched, before the node
+                // can be marked dirty again.
+                node.mCachedState = CACHED_CLEAN;
+                removeDirty(node);
+                written++;
+            } catch (Throwable e) {
+                // Clear out the remaining references.
+                while (++i < count) {
+                    batch[i] = null;
+                }
+                throw e;
+            } finally {
+                node.releaseShared();
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Remove a node from the dirty list, if it's in the list. The cached state of the node is
+     * not altered.
+     */
+    synchronized void removeDirty(Node node) {
+        Node next = node.mNextDirty;
+        Node prev = node.mPrevDirty;
+
+        if (next == null && prev == null && mFirstDirty != node) {
+            // Not in the list.
+            return;
+        }
+
+        if (next != null) {
+            next.mPrevDirty = prev;
+            node.mNextDirty = null;
+        } else if (mLastDirty == node) {
+            mLastDirty = prev;
+        }
+
+        if (prev != null) {
+            prev.mNextDirty = next;
+            node.mPrevDirty = null;
+        } else if (mFirstDirty == node) {
+            mFirstDirty = next;
+        }
+
+        if (mFlushNext == node) {
+            mFlushNext = next;
+        }
+
+        mDirtyCount--;
+    }
+
     synchronized long dirtyCount() {
         return mDirtyCount;
     }
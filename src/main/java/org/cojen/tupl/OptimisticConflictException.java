@@ -0,0 +1,33 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+/**
+ * Thrown when committing a transaction which read entries in {@link
+ * LockMode#OPTIMISTIC_READ optimistic} mode, and another transaction modified one of them
+ * before the commit. The transaction has been rolled back, and it can be tried again.
+ *
+ * @author Brian S O'Neill
+ */
+public class OptimisticConflictException extends LockFailureException {
+    private static final long serialVersionUID = 1L;
+
+    public OptimisticConflictException() {
+        super("Entry was modified after it was read");
+    }
+}
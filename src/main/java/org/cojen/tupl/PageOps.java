@@ -137,6 +137,21 @@ final class PageOps {
         }
     }
 
+    /**
+     * Releases a page which was allocated from the given arena. Once all pages have been
+     * released, the arena is deleted. Pages not allocated by the arena are ignored, and so
+     * they must be deleted separately.
+     *
+     * @return true if the arena was deleted
+     * @throws IllegalArgumentException if unknown arena
+     */
+    static boolean p_arenaRelease(Object arena, /*P*/ byte[] page) throws IOException {
+        if (arena != null) {
+            throw new IllegalArgumentException();
+        }
+        return false;
+    }
+
     /**
      * Allocate a zero-filled page from an arena. If arena is null or depleted, then a regular
      * page is allocated.
@@ -0,0 +1,67 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Redo log file output for a recycled file, which still contains the stale data of an old
+ * log. Each write is followed by a few zeros, which replay reads as the end of the log. The
+ * next write overwrites them, and so the file is never cleared in full. If a torn write
+ * exposes the stale data anyway, its terminators don't verify, because the terminators of
+ * each file are salted.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#preallocateRedoLogs
+ */
+final class RecycledRedoOutput extends OutputStream {
+    // Enough zeros to cover an operation code, a compressed block header, or a frame header.
+    private static final byte[] ZEROS = new byte[16];
+
+    private final FileChannel mChannel;
+
+    RecycledRedoOutput(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        FileChannel channel = mChannel;
+        long end = channel.position() + len;
+        ByteBuffer[] srcs = {ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(ZEROS)};
+        do {
+            channel.write(srcs);
+        } while (srcs[1].hasRemaining());
+        channel.position(end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
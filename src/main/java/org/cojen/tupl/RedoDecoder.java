@@ -101,6 +101,9 @@ abstract class RedoDecoder {
                 // fallthrough to next case...
 
             default:
+                if (mLenient && isTornTail(op, in.mPos - 1)) {
+                    return false;
+                }
                 throw new DatabaseException
                     ("Unknown redo log operation: " + op + " at " + (in.mPos - 1));
 
@@ -517,4 +520,13 @@ abstract class RedoDecoder {
      * Implementation can return true if no redo terminators were written.
      */
     abstract boolean verifyTerminator(DataIn in) throws IOException;
+
+    /**
+     * Called when an unknown operation is read in lenient mode. Return true if the operation
+     * is at the tail of the log, where a torn write can leave stale data behind, and the rest
+     * of the redo data is ignored. Otherwise, the operation is reported as an exception.
+     */
+    boolean isTornTail(int op, long pos) throws IOException {
+        return false;
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+
+/**
+ * Receives committed changes from a {@link Database#subscribe redo log subscription}. All
+ * methods are called by a single thread dedicated to the subscription, and the subscription
+ * doesn't advance until the listener returns. A slow listener therefore applies back-pressure
+ * to the subscription only, and it never blocks the database writers.
+ *
+ * @author Brian S O'Neill
+ */
+public interface RedoListener {
+    /**
+     * Called for each committed store or delete. The changes made by a transaction are passed
+     * in the order in which they were made, and are followed by a call to {@link #commit
+     * commit}. Changes made by different transactions are never interleaved.
+     *
+     * @param indexId identifier of the index which was changed
+     * @param key non-null key
+     * @param value value which was stored; null if deleted
+     */
+    public void store(long indexId, byte[] key, byte[] value) throws IOException;
+
+    /**
+     * Called after all of the changes of a transaction or a non-transactional operation have
+     * been passed to the store method.
+     *
+     * @param position redo log position immediately following the commit, which can be passed
+     * to {@link Database#subscribe subscribe} to resume after it
+     */
+    public void commit(long position) throws IOException;
+
+    /**
+     * Called when the subscription has ended, and no more methods will be called.
+     *
+     * @param cause null if closed normally; otherwise the exception which ended the
+     * subscription, possibly thrown by this listener
+     */
+    public default void closed(Throwable cause) {
+    }
+}
@@ -44,7 +44,8 @@ final class RedoLogDecoder extends RedoDecoder {
         try {
             int term = in.readIntLE();
             if (term == mLog.nextTermRnd() || term == Utils.nzHash(mTxnId)) {
-                return true;
+                // When restoring to a position, stop as if the log was truncated.
+                return in.mPos <= mLog.replayStopPosition();
             }
             if (mListener != null) {
                 mListener.notify(EventType.RECOVERY_REDO_LOG_CORRUPTION,
@@ -59,4 +60,18 @@ final class RedoLogDecoder extends RedoDecoder {
             return false;
         }
     }
+
+    @Override
+    boolean isTornTail(int op, long pos) throws IOException {
+        // Stale data can only be reached by a write which was torn by a crash, and so any
+        // log file which was followed by another one must be intact.
+        if (!mLog.isLastReplayFile()) {
+            return false;
+        }
+        if (mListener != null) {
+            mListener.notify(EventType.RECOVERY_REDO_LOG_CORRUPTION,
+                             "Unknown redo log operation: %1$d at %2$d", op, pos);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes the redo log files as they're being written, passing committed operations to a
+ * {@link RedoListener}. The files are read by a dedicated thread, and so the writers are never
+ * blocked by a subscriber. Transactional operations are buffered until they commit, and they
+ * are discarded if rolled back.
+ *
+ * @author Brian S O'Neill
+ * @see Database#subscribe
+ */
+/*P*/
+final class RedoSubscriber implements RedoVisitor, Runnable, Closeable {
+    private static final long MIN_WAIT_NANOS = 1_000_000L;
+    private static final long MAX_WAIT_NANOS = 10_000_000L;
+
+    private final RedoLog mRedo;
+    private final RedoListener mListener;
+    private final long mStartPosition;
+    private final LHashTable.Obj<Txn> mTransactions;
+    private final Thread mThread;
+
+    // Id of the file being read, which prevents it from being deleted.
+    private volatile long mLogId;
+
+    private volatile boolean mClosed;
+
+    // Stream of the file being read, used for obtaining the position of each commit.
+    private DataIn mIn;
+
+    /**
+     * @param logId first log file to read
+     * @param position only pass along operations which commit after this position
+     */
+    RedoSubscriber(RedoLog redo, RedoListener listener,
+                   long logId, long position)
+    {
+        mRedo = redo;
+        mListener = listener;
+        mStartPosition = position;
+        mTransactions = new LHashTable.Obj<>(16);
+        mLogId = logId;
+
+        Thread t = new Thread(this, "RedoSubscriber-" + Long.toUnsignedString(hashCode(), 16));
+        t.setDaemon(true);
+        mThread = t;
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Returns the id of the file being read.
+     */
+    long logId() {
+        return mLogId;
+    }
+
+    @Override
+    public void run() {
+        Throwable cause = null;
+        try {
+            while (!mClosed) {
+                long logId = mLogId;
+                RedoLog log = mRedo.openSubscriberLog(logId);
+                if (log == null) {
+                    // Next file hasn't been started yet.
+                    if (mRedo.currentLogId() < logId) {
+                        LockSupport.parkNanos(this, MIN_WAIT_NANOS);
+                        continue;
+                    }
+                    throw new DatabaseException("Redo log file is missing: " + logId);
+                }
+
+                InputStream in = new Tail(log.replayFile(), logId);
+                try {
+                    InputStream body = log.replayHeader(log.decrypt(in));
+                    if (body != null) {
+                        // Unlike recovery, positions don't account for the header, matching
+                        // the positions reported by the writer.
+                        mIn = new DataIn.Stream(log.replayPosition(), body);
+                        log.replayBody(mIn, this, null);
+                    }
+                } finally {
+                    Utils.closeQuietly(null, in);
+                }
+
+                if (!mClosed) {
+                    // Move to the next file, allowing the current one to be deleted.
+                    mLogId = logId + 1;
+                }
+            }
+        } catch (Throwable e) {
+            if (!mClosed) {
+                cause = e;
+            }
+        } finally {
+            mClosed = true;
+            mRedo.unsubscribe(this);
+        }
+
+        mListener.closed(cause);
+    }
+
+    /**
+     * Closes the subscription and waits for the listener to be notified.
+     */
+    @Override
+    public void close() {
+        closeAsync();
+        if (Thread.currentThread() != mThread) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                // Give up waiting.
+            }
+        }
+    }
+
+    void closeAsync() {
+        mClosed = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public boolean reset() {
+        return true;
+    }
+
+    @Override
+    public boolean timestamp(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean shutdown(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean close(long timestamp) {
+        return true;
+    }
+
+    @Override
+    public boolean endFile(long timestamp) {
+        // Stop reading the file, and move on to the next one.
+        return false;
+    }
+
+    @Override
+    public boolean fence() {
+        return true;
+    }
+
+    @Override
+    public boolean store(long indexId, byte[] key, byte[] value) throws IOException {
+        if (isNewCommit()) {
+            mListener.store(indexId, key, value);
+            mListener.commit(mIn.mPos);
+        }
+        return !mClosed;
+    }
+
+    @Override
+    public boolean storeNoLock(long indexId, byte[] key, byte[] value) throws IOException {
+        return store(indexId, key, value);
+    }
+
+    @Override
+    public boolean renameIndex(long txnId, long indexId, byte[] newName) {
+        return true;
+    }
+
+    @Override
+    public boolean deleteIndex(long txnId, long indexId) {
+        return true;
+    }
+
+    @Override
+    public boolean txnEnter(long txnId) {
+        Txn txn = mTransactions.getValue(txnId);
+        if (txn == null) {
+            mTransactions.insert(txnId).value = new Txn();
+        } else {
+            txn.enter();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnRollback(long txnId) {
+        Txn txn = mTransactions.getValue(txnId);
+        if (txn != null) {
+            txn.rollback();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean txnRollbackFinal(long txnId) {
+        mTransactions.removeValue(txnId);
+        return true;
+    }
+
+    @Override
+    public boolean txnCommit(long txnId) throws IOException {
+        Txn txn = mTransactions.getValue(txnId);
+        if (txn != null && txn.commit()) {
+            emit(txn);
+        }
+        return !mClosed;
+    }
+
+    @Override
+    public boolean txnCommitFinal(long txnId) throws IOException {
+        Txn txn = mTransactions.removeValue(txnId);
+        if (txn != null) {
+            emit(txn);
+        }
+        return !mClosed;
+    }
+
+    @Override
+    public boolean txnEnterStore(long txnId, long indexId, byte[] key, byte[] value) {
+        txnEnter(txnId);
+        return txnStore(txnId, indexId, key, value);
+    }
+
+    @Override
+    public boolean txnStore(long txnId, long indexId, byte[] key, byte[] value) {
+        txn(txnId).add(indexId, key, value);
+        return true;
+    }
+
+    @Override
+    public boolean txnStoreCommit(long txnId, long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
+        txnStore(txnId, indexId, key, value);
+        return txnCommit(txnId);
+    }
+
+    @Override
+    public boolean txnStoreCommitFinal(long txnId, long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
+        txnStore(txnId, indexId, key, value);
+        return txnCommitFinal(txnId);
+    }
+
+    @Override
+    public boolean txnLockShared(long txnId, long indexId, byte[] key) {
+        return true;
+    }
+
+    @Override
+    public boolean txnLockUpgradable(long txnId, long indexId, byte[] key) {
+        return true;
+    }
+
+    @Override
+    public boolean txnLockExclusive(long txnId, long indexId, byte[] key) {
+        return true;
+    }
+
+    @Override
+    public boolean txnCustom(long txnId, byte[] message) {
+        return true;
+    }
+
+    @Override
+    public boolean txnCustomLock(long txnId, byte[] message, long indexId, byte[] key) {
+        return true;
+    }
+
+    private Txn txn(long txnId) {
+        Txn txn = mTransactions.getValue(txnId);
+        if (txn == null) {
+            // Transaction began in a file which wasn't read.
+            txn = new Txn();
+            mTransactions.insert(txnId).value = txn;
+        }
+        return txn;
+    }
+
+    private boolean isNewCommit() {
+        return mIn.mPos > mStartPosition;
+    }
+
+    private void emit(Txn txn) throws IOException {
+        if (isNewCommit() && !txn.mOps.isEmpty()) {
+            for (Op op : txn.mOps) {
+                mListener.store(op.mIndexId, op.mKey, op.mValue);
+            }
+            mListener.commit(mIn.mPos);
+        }
+        txn.mOps.clear();
+    }
+
+    static final class Op {
+        final long mIndexId;
+        final byte[] mKey, mValue;
+
+        Op(long indexId, byte[] key, byte[] value) {
+            mIndexId = indexId;
+            mKey = key;
+            mValue = value;
+        }
+    }
+
+    /**
+     * Buffers the operations of a transaction, tracking the start of each nested scope.
+     */
+    static final class Txn {
+        final ArrayList<Op> mOps = new ArrayList<>();
+        private int[] mScopes = new int[4];
+        private int mDepth;
+
+        void add(long indexId, byte[] key, byte[] value) {
+            mOps.add(new Op(indexId, key, value));
+        }
+
+        void enter() {
+            if (mDepth >= mScopes.length) {
+                mScopes = Arrays.copyOf(mScopes, mDepth << 1);
+            }
+            mScopes[mDepth++] = mOps.size();
+        }
+
+        void rollback() {
+            int start = mDepth > 0 ? mScopes[--mDepth] : 0;
+            mOps.subList(start, mOps.size()).clear();
+        }
+
+        /**
+         * @return true if the top scope committed
+         */
+        boolean commit() {
+            if (mDepth > 0) {
+                // Changes become part of the parent scope.
+                mDepth--;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads a log file which might still be written to. When the end is reached, waits for
+     * more data to arrive, unless the writer has moved on to another file.
+     */
+    private final class Tail extends InputStream {
+        private final FileInputStream mIn;
+        private final long mTailLogId;
+
+        Tail(File file, long logId) throws IOException {
+            mIn = new FileInputStream(file);
+            mTailLogId = logId;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            long waitNanos = MIN_WAIT_NANOS;
+
+            while (true) {
+                int amt = mIn.read(b, off, len);
+                if (amt > 0) {
+                    return amt;
+                }
+
+                if (mClosed) {
+                    return -1;
+                }
+
+                if (mRedo.currentLogId() > mTailLogId) {
+                    // Writer has moved on, but the file might have been extended just before.
+                    amt = mIn.read(b, off, len);
+                    return amt > 0 ? amt : -1;
+                }
+
+                LockSupport.parkNanos(this, waitNanos);
+                waitNanos = Math.min(waitNanos << 1, MAX_WAIT_NANOS);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.lang.ref.WeakReference;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread which periodically syncs the redo log, bounding the amount of committed
+ * transactions which can be lost when using a weaker durability mode.
+ *
+ * @author Brian S O'Neill
+ * @see DatabaseConfig#syncRate
+ */
+final class RedoSyncer implements Runnable {
+    private final WeakReference<AbstractDatabase> mDatabaseRef;
+    private final long mRateNanos;
+    private volatile boolean mClosed;
+
+    // Guarded by this. Count of syncs started, and count of syncs finished.
+    private long mStarted;
+    private long mFinished;
+
+    // Guarded by this. Most recent sync failure, and the sync which failed.
+    private IOException mFailure;
+    private long mFailed;
+
+    RedoSyncer(AbstractDatabase db, long rateNanos) {
+        mDatabaseRef = new WeakReference<>(db);
+        mRateNanos = rateNanos;
+    }
+
+    void start() {
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.setName("RedoSyncer-" + Long.toUnsignedString(t.getId()));
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                long id;
+                synchronized (this) {
+                    // Closing doesn't interrupt the thread, because an interrupted sync
+                    // closes the redo log file channel.
+                    long end = System.nanoTime() + mRateNanos;
+                    long remaining = mRateNanos;
+                    while (!mClosed && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        remaining = end - System.nanoTime();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    id = ++mStarted;
+                }
+
+                AbstractDatabase db = mDatabaseRef.get();
+                if (db == null) {
+                    return;
+                }
+
+                IOException failure = null;
+                try {
+                    db.sync();
+                } catch (IOException e) {
+                    failure = e;
+                }
+
+                db = null;
+
+                synchronized (this) {
+                    mFinished = id;
+                    if (failure != null) {
+                        mFailure = failure;
+                        mFailed = id;
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (Throwable e) {
+            if (!mClosed) {
+                AbstractDatabase db = mDatabaseRef.get();
+                if (db != null) {
+                    Utils.closeQuietly(null, db, e);
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Waits for a sync which starts after this method is called.
+     *
+     * @return false if closed
+     */
+    boolean await() throws IOException {
+        try {
+            synchronized (this) {
+                long id = mStarted + 1;
+                while (mFinished < id) {
+                    if (mClosed) {
+                        return false;
+                    }
+                    wait();
+                }
+                if (mFailed >= id) {
+                    throw mFailure;
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
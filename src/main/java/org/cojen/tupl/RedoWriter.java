@@ -39,7 +39,7 @@ abstract class RedoWriter extends Latch implements Closeable {
     RedoWriter() {
     }
 
-    final void closeCause(Throwable cause) {
+    void closeCause(Throwable cause) {
         if (cause != null) {
             acquireExclusive();
             if (mCloseCause == null) {
@@ -71,6 +71,14 @@ abstract class RedoWriter extends Latch implements Closeable {
      */
     abstract RedoWriter txnRedoWriter();
 
+    /**
+     * Returns the RedoWriter which the given context writes into, which is this one by
+     * default. A striped writer returns one of its stripes.
+     */
+    RedoWriter stripeFor(TransactionContext context) {
+        return this;
+    }
+
     /**
      * Writes a fence operation into this RedoWriter.
      *
@@ -18,9 +18,12 @@
 package org.cojen.tupl;
 
 import java.io.Closeable;
+import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.nio.channels.WritableByteChannel;
+
 import org.cojen.tupl.ext.ReplicationManager;
 
 /**
@@ -32,7 +35,7 @@ import org.cojen.tupl.ext.ReplicationManager;
 public interface Snapshot extends Closeable {
     /**
      * Returns total amount of bytes expected to be written to the snapshot
-     * stream.
+     * stream. The length doesn't apply when the snapshot is written in parts.
      */
     public long length();
 
@@ -50,6 +53,32 @@ public interface Snapshot extends Closeable {
      */
     public void writeTo(OutputStream out) throws IOException;
 
+    /**
+     * Writes out snapshot data, and then closes this object. The output is identical to
+     * that of {@link #writeTo(OutputStream)}, but pages which haven't been modified since the
+     * snapshot began are transferred directly from the data files, without being copied
+     * through Java buffers. This is most effective when the channel is a file or a socket.
+     *
+     * @param out snapshot destination; not auto-closed
+     */
+    public void writeTo(WritableByteChannel out) throws IOException;
+
+    /**
+     * Writes out snapshot data in parts, and then closes this object. Each part contains a
+     * contiguous range of pages, and the parts are written concurrently by separate threads.
+     * All of the parts are required to {@link Database#restoreFromSnapshot(DatabaseConfig,
+     * InputStream[], InputStream...) restore} the snapshot, which restores the parts
+     * concurrently too. Snapshot aborts if any OutputStream throws an exception or if another
+     * thread closes this Snapshot instance.
+     *
+     * @param parts snapshot destinations, which should be independent of each other; do not
+     * require extra buffering; not auto-closed
+     * @param compress pass true to compress each part
+     * @throws UnsupportedOperationException if this is an {@link
+     * Database#beginIncrementalSnapshot incremental} snapshot
+     */
+    public void writeTo(OutputStream[] parts, boolean compress) throws IOException;
+
     /**
      * Can be called by another thread to abort the snapshot, causing any
      * thread in the writeTo method to throw an exception.
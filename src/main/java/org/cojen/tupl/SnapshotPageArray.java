@@ -21,8 +21,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import java.util.Arrays;
+
 import java.util.concurrent.ThreadLocalRandom;
 
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import static java.lang.System.arraycopy;
@@ -41,12 +49,29 @@ import static org.cojen.tupl.Utils.*;
  * @author Brian S O'Neill
  */
 final class SnapshotPageArray extends PageArray {
+    // Identifies a snapshot which only contains the pages changed since a prior snapshot.
+    static final long INCREMENT_MAGIC = 0x2b36a1d7e0c4f915L;
+    static final int INCREMENT_HEADER_SIZE = 36;
+
+    // Identifies one part of a snapshot which was written in parts.
+    static final long PART_MAGIC = 0x5c1e83f40d27b96aL;
+    static final int PART_HEADER_SIZE = 40;
+
+    // Maximum amount of bytes to transfer directly to a channel at once.
+    private static final int MAX_TRANSFER_SIZE = 1 << 20;
+
     private final PageArray mSource;
     private final PageArray mRawSource;
     private final PageCache mCache;
 
     private volatile Object mSnapshots;
 
+    // Tracks the pages written since the most recent snapshot began, which is null until the
+    // first snapshot begins. Guarded by this object when being replaced.
+    private volatile PageSet mChanges;
+    // Redo position of the most recent snapshot.
+    private long mChangesPosition;
+
     /**
      * @param cache optional
      */
@@ -109,28 +134,38 @@ final class SnapshotPageArray extends PageArray {
     public void writePage(long index, byte[] src, int offset) throws IOException {
         preWritePage(index);
         cachePage(index, src, offset);
+        PageSet changes = markChanged(index);
         mSource.writePage(index, src, offset);
+        postWritePage(index, changes);
     }
 
     @Override
     public void writePage(long index, long srcPtr, int offset) throws IOException {
         preWritePage(index);
         cachePage(index, srcPtr, offset);
+        PageSet changes = markChanged(index);
         mSource.writePage(index, srcPtr, offset);
+        postWritePage(index, changes);
     }
 
     @Override
     public byte[] evictPage(long index, byte[] buf) throws IOException {
         preWritePage(index);
         cachePage(index, buf, 0);
-        return mSource.evictPage(index, buf);
+        PageSet changes = markChanged(index);
+        buf = mSource.evictPage(index, buf);
+        postWritePage(index, changes);
+        return buf;
     }
 
     @Override
     public long evictPage(long index, long bufPtr) throws IOException {
         preWritePage(index);
         cachePage(index, bufPtr, 0);
-        return mSource.evictPage(index, bufPtr);
+        PageSet changes = markChanged(index);
+        bufPtr = mSource.evictPage(index, bufPtr);
+        postWritePage(index, changes);
+        return bufPtr;
     }
 
     private void preWritePage(long index) throws IOException {
@@ -182,19 +217,62 @@ final class SnapshotPageArray extends PageArray {
 
     public long dirtyPage(long index) throws IOException {
         preCopyPage(index);
+        // Page is modified after this method returns, and so incremental snapshots aren't
+        // supported when pages are dirtied directly.
+        markChanged(index);
         return mSource.dirtyPage(index);
     }
 
     @Override
     public long copyPage(long srcIndex, long dstIndex) throws IOException {
         preCopyPage(dstIndex);
-        return mSource.copyPage(srcIndex, dstIndex);
+        PageSet changes = markChanged(dstIndex);
+        long ptr = mSource.copyPage(srcIndex, dstIndex);
+        postWritePage(dstIndex, changes);
+        return ptr;
     }
 
     @Override
     public long copyPageFromPointer(long srcPointer, long dstIndex) throws IOException {
         preCopyPage(dstIndex);
-        return mSource.copyPageFromPointer(srcPointer, dstIndex);
+        PageSet changes = markChanged(dstIndex);
+        long ptr = mSource.copyPageFromPointer(srcPointer, dstIndex);
+        postWritePage(dstIndex, changes);
+        return ptr;
+    }
+
+    /**
+     * Records that a page is about to be written, for incremental snapshots.
+     *
+     * @return the page set which was marked; null if none
+     */
+    private PageSet markChanged(long index) {
+        PageSet changes = mChanges;
+        if (changes != null) {
+            changes.add(index);
+        }
+        return changes;
+    }
+
+    /**
+     * Must be called after the page has been written. If a snapshot began in the meantime, it
+     * might have read the page before it was written, and so the page must also be recorded
+     * as changed since that snapshot.
+     *
+     * @param changes the page set returned by markChanged
+     */
+    private void postWritePage(long index, PageSet changes) {
+        PageSet current = mChanges;
+        if (current != changes) {
+            PageSet set = changes == null ? current : changes.mNext;
+            while (true) {
+                set.add(index);
+                if (set == current) {
+                    break;
+                }
+                set = set.mNext;
+            }
+        }
     }
 
     private void preCopyPage(long dstIndex) throws IOException {
@@ -236,8 +314,17 @@ final class SnapshotPageArray extends PageArray {
      *
      * @param pageCount total number of pages to include in snapshot
      * @param redoPos redo log position for the snapshot
+     * @param incremental true to only include the pages written since the previous snapshot
+     * began
+     * @throws IllegalStateException if incremental and no snapshot has begun yet
      */
-    Snapshot beginSnapshot(LocalDatabase db, long pageCount, long redoPos) throws IOException {
+    Snapshot beginSnapshot(LocalDatabase db, long pageCount, long redoPos, boolean incremental)
+        throws IOException
+    {
+        if (incremental && mChanges == null) {
+            throw new IllegalStateException("No prior snapshot");
+        }
+
         pageCount = Math.min(pageCount, getPageCount());
 
         LocalDatabase nodeCache = db;
@@ -254,23 +341,73 @@ final class SnapshotPageArray extends PageArray {
         SnapshotImpl snapshot = new SnapshotImpl(tfm, pageCount, redoPos, nodeCache, rawSource);
 
         synchronized (this) {
-            Object obj = mSnapshots;
-            if (obj == null) {
-                mSnapshots = snapshot;
-            } else if (obj instanceof SnapshotImpl[]) {
-                SnapshotImpl[] snapshots = (SnapshotImpl[]) obj;
-                SnapshotImpl[] newSnapshots = new SnapshotImpl[snapshots.length + 1];
-                arraycopy(snapshots, 0, newSnapshots, 0, snapshots.length);
-                newSnapshots[newSnapshots.length - 1] = snapshot;
-                mSnapshots = newSnapshots;
-            } else {
-                mSnapshots = new SnapshotImpl[] {(SnapshotImpl) obj, snapshot};
+            // Start tracking the pages which are changed after this snapshot begins.
+            PageSet prev = mChanges;
+            PageSet next = new PageSet();
+            if (prev != null) {
+                prev.mNext = next;
             }
+            mChanges = next;
+
+            if (incremental) {
+                snapshot.mIncluded = prev;
+                snapshot.mBasePosition = mChangesPosition;
+            }
+
+            mChangesPosition = redoPos;
+
+            register(snapshot);
         }
 
         return snapshot;
     }
 
+    /**
+     * Begins a snapshot which is never written, and returns a page array over it. Pages
+     * which are overwritten after the view begins are captured, and the view reads the
+     * captured copies instead. Closing the view closes the snapshot. Unlike beginSnapshot,
+     * incremental snapshot tracking isn't affected.
+     *
+     * @param pageCount total number of pages to include in the view
+     */
+    SnapshotImpl.View beginView(LocalDatabase db, long pageCount) throws IOException {
+        pageCount = Math.min(pageCount, getPageCount());
+
+        LocalDatabase nodeCache = db;
+
+        // View does not decrypt pages.
+        PageArray rawSource = mRawSource;
+        if (rawSource != mSource) {
+            // Cache contents are not encrypted, and so it cannot be used.
+            nodeCache = null;
+        }
+
+        SnapshotImpl snapshot = new SnapshotImpl
+            (db.mTempFileManager, pageCount, 0, nodeCache, rawSource);
+
+        // Progress never advances, and so all overwritten pages are captured.
+        snapshot.start(null);
+
+        register(snapshot);
+
+        return snapshot.new View();
+    }
+
+    private synchronized void register(SnapshotImpl snapshot) {
+        Object obj = mSnapshots;
+        if (obj == null) {
+            mSnapshots = snapshot;
+        } else if (obj instanceof SnapshotImpl[]) {
+            SnapshotImpl[] snapshots = (SnapshotImpl[]) obj;
+            SnapshotImpl[] newSnapshots = new SnapshotImpl[snapshots.length + 1];
+            arraycopy(snapshots, 0, newSnapshots, 0, snapshots.length);
+            newSnapshots[newSnapshots.length - 1] = snapshot;
+            mSnapshots = newSnapshots;
+        } else {
+            mSnapshots = new SnapshotImpl[] {(SnapshotImpl) obj, snapshot};
+        }
+    }
+
     synchronized void unregister(SnapshotImpl snapshot) {
         Object obj = mSnapshots;
         if (obj == snapshot) {
@@ -324,6 +461,11 @@ final class SnapshotPageArray extends PageArray {
         private final Tree mPageCopyIndex;
         private final File mTempFile;
 
+        // Pages to include when incremental; null if all are included.
+        PageSet mIncluded;
+        // Redo position of the prior snapshot, when incremental.
+        long mBasePosition;
+
         private final Latch mSnapshotLatch;
 
         private final Latch[] mCaptureLatches;
@@ -333,6 +475,10 @@ final class SnapshotPageArray extends PageArray {
         // The highest page written by the writeTo method.
         volatile long mProgress;
 
+        // When written in parts, the highest page written for each part.
+        private volatile AtomicLongArray mPartProgress;
+        private long mPartSize;
+
         private volatile Throwable mAbortCause;
 
         /**
@@ -380,7 +526,18 @@ final class SnapshotPageArray extends PageArray {
 
         @Override
         public long length() {
-            return mSnapshotPageCount * pageSize();
+            PageSet included = mIncluded;
+            if (included == null) {
+                return mSnapshotPageCount * pageSize();
+            }
+            long count = included.count(mSnapshotPageCount);
+            return INCREMENT_HEADER_SIZE + count * (8L + pageSize()) + 8;
+        }
+
+        private boolean isIncluded(long index) {
+            PageSet included = mIncluded;
+            // Always include the header pages.
+            return included == null || index <= 1 || included.contains(index);
         }
 
         @Override
@@ -390,6 +547,118 @@ final class SnapshotPageArray extends PageArray {
 
         @Override
         public void writeTo(OutputStream out) throws IOException {
+            start(null);
+
+            final long count = mSnapshotPageCount;
+            final boolean incremental = mIncluded != null;
+
+            try {
+                if (incremental) {
+                    byte[] header = new byte[INCREMENT_HEADER_SIZE];
+                    encodeLongLE(header, 0, INCREMENT_MAGIC);
+                    encodeIntLE(header, 8, pageSize());
+                    encodeLongLE(header, 12, mBasePosition);
+                    encodeLongLE(header, 20, mSnapshotRedoPosition);
+                    encodeLongLE(header, 28, count);
+                    out.write(header);
+                }
+
+                writePages(out, -1, 0, count, incremental);
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel out) throws IOException {
+            if (mIncluded != null) {
+                // Each page is preceded by its index, and so runs of pages cannot be
+                // transferred directly.
+                writeTo(Channels.newOutputStream(out));
+                return;
+            }
+
+            start(null);
+
+            try {
+                transferPages(out);
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream[] parts, boolean compress) throws IOException {
+            if (mIncluded != null) {
+                throw new UnsupportedOperationException
+                    ("Incremental snapshot cannot be written in parts");
+            }
+
+            final int partCount = parts.length;
+            if (partCount == 0) {
+                throw new IllegalArgumentException("No parts");
+            }
+
+            final long count = mSnapshotPageCount;
+            final long partSize = Math.max(1, (count + partCount - 1) / partCount);
+
+            start(partSize);
+
+            try {
+                Thread[] threads = new Thread[partCount - 1];
+                Throwable[] failure = new Throwable[1];
+
+                for (int i=0; i<threads.length; i++) {
+                    final int part = i + 1;
+                    Thread t = new Thread(() -> {
+                        try {
+                            writePart(parts[part], part, partCount, partSize, compress);
+                        } catch (Throwable e) {
+                            synchronized (failure) {
+                                if (failure[0] == null) {
+                                    failure[0] = e;
+                                }
+                            }
+                            // Abort the other parts.
+                            abort(e);
+                        }
+                    });
+                    t.start();
+                    threads[i] = t;
+                }
+
+                try {
+                    writePart(parts[0], 0, partCount, partSize, compress);
+                } catch (Throwable e) {
+                    abort(e);
+                    throw e;
+                } finally {
+                    for (Thread t : threads) {
+                        while (true) {
+                            try {
+                                t.join();
+                                break;
+                            } catch (InterruptedException e) {
+                                // Keep waiting, because the thread uses this snapshot.
+                            }
+                        }
+                    }
+                }
+
+                synchronized (failure) {
+                    if (failure[0] != null) {
+                        throw rethrow(failure[0]);
+                    }
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @param partSize amount of pages in each part; null if not written in parts
+         */
+        private void start(Long partSize) throws IOException {
             mSnapshotLatch.acquireExclusive();
             try {
                 long progress = mProgress;
@@ -399,17 +668,62 @@ final class SnapshotPageArray extends PageArray {
                 if (progress > -2) {
                     throw new IllegalStateException("Snapshot already started");
                 }
+                if (partSize != null) {
+                    int partCount = (int) ((mSnapshotPageCount + partSize - 1) / partSize);
+                    AtomicLongArray partProgress = new AtomicLongArray(partCount);
+                    for (int i=0; i<partCount; i++) {
+                        partProgress.set(i, i * partSize - 1);
+                    }
+                    mPartSize = partSize;
+                    mPartProgress = partProgress;
+                }
                 mProgress = -1;
             } finally {
                 mSnapshotLatch.releaseExclusive();
             }
+        }
 
+        private void writePart(OutputStream out, int part, int partCount, long partSize,
+                               boolean compress)
+            throws IOException
+        {
+            final long count = mSnapshotPageCount;
+
+            byte[] header = new byte[PART_HEADER_SIZE];
+            encodeLongLE(header, 0, PART_MAGIC);
+            encodeIntLE(header, 8, pageSize());
+            encodeIntLE(header, 12, compress ? 1 : 0);
+            encodeIntLE(header, 16, part);
+            encodeIntLE(header, 20, partCount);
+            encodeLongLE(header, 24, mSnapshotRedoPosition);
+            encodeLongLE(header, 32, count);
+            out.write(header);
+
+            if (compress) {
+                out = new BlockCodec.Output(out);
+            }
+
+            long start = Math.min(count, part * partSize);
+            long end = Math.min(count, start + partSize);
+            writePages(out, part, start, end, true);
+
+            out.flush();
+        }
+
+        /**
+         * @param part part number which is being written; -1 if not written in parts
+         * @param records when true, each page is preceded by its index, and a terminator
+         * follows the last page
+         */
+        private void writePages(OutputStream out, int part, long start, long end,
+                                boolean records)
+            throws IOException
+        {
             final byte[] pageBufferArray = new byte[pageSize()];
             // Allocates if page is not an array. The copy is not actually required.
             final /*P*/ byte[] pageBuffer = p_transfer(pageBufferArray);
 
             final LocalDatabase cache = mNodeCache;
-            final long count = mSnapshotPageCount;
 
             Transaction txn = mPageCopyIndex.mDatabase.newTransaction();
             try {
@@ -418,7 +732,12 @@ final class SnapshotPageArray extends PageArray {
 
                 Cursor c = mPageCopyIndex.newCursor(txn);
                 try {
-                    for (long index = 0; index < count; index++) {
+                    for (long index = start; index < end; index++) {
+                        if (!isIncluded(index)) {
+                            advanceProgress(part, index);
+                            continue;
+                        }
+
                         byte[] key = new byte[8];
                         encodeLongBE(key, 0, index);
                         txn.lockExclusive(mPageCopyIndex.getId(), key);
@@ -428,7 +747,7 @@ final class SnapshotPageArray extends PageArray {
 
                         if (value != null) {
                             // Advance progress before releasing the lock.
-                            advanceProgress(index);
+                            advanceProgress(part, index);
                             c.commit(null);
                         } else {
                             read: {
@@ -451,13 +770,28 @@ final class SnapshotPageArray extends PageArray {
 
                             // Advance progress after copying the captured value and before
                             // releasing the lock.
-                            advanceProgress(index);
+                            advanceProgress(part, index);
                             txn.commit();
 
                             value = p_copyIfNotArray(pageBuffer, pageBufferArray);
                         }
 
-                        out.write(value);
+                        if (records) {
+                            // Write the index and page together, as one compressed block.
+                            byte[] record = new byte[8 + value.length];
+                            arraycopy(key, 0, record, 0, 8);
+                            arraycopy(value, 0, record, 8, value.length);
+                            out.write(record);
+                        } else {
+                            out.write(value);
+                        }
+                    }
+
+                    if (records) {
+                        // Terminator.
+                        byte[] terminator = new byte[8];
+                        encodeLongBE(terminator, 0, -1);
+                        out.write(terminator);
                     }
                 } catch (Throwable e) {
                     if (mProgress == Long.MAX_VALUE) {
@@ -467,22 +801,140 @@ final class SnapshotPageArray extends PageArray {
                 } finally {
                     c.reset();
                     p_delete(pageBuffer);
-                    close();
                 }
             } finally {
                 txn.reset();
             }
         }
 
-        private void advanceProgress(long index) {
-            if (!mProgressUpdater.compareAndSet(this, index - 1, index)) {
+        /**
+         * Writes all the pages to the channel, transferring runs of uncaptured pages directly
+         * from the raw page array.
+         */
+        private void transferPages(WritableByteChannel out) throws IOException {
+            final long count = mSnapshotPageCount;
+            final int maxRun = Math.max(1, MAX_TRANSFER_SIZE / pageSize());
+
+            Transaction txn = mPageCopyIndex.mDatabase.newTransaction();
+            try {
+                // Disable writes to the undo log and fragmented value trash.
+                txn.lockMode(LockMode.UNSAFE);
+
+                Cursor c = mPageCopyIndex.newCursor(txn);
+                try {
+                    long runStart = 0;
+                    int runLength = 0;
+
+                    for (long index = 0; index < count; index++) {
+                        byte[] key = new byte[8];
+                        encodeLongBE(key, 0, index);
+                        txn.lockExclusive(mPageCopyIndex.getId(), key);
+
+                        c.findNearby(key);
+                        byte[] value = c.value();
+
+                        if (value == null) {
+                            // Page stays locked until it's transferred, which prevents it
+                            // from being modified in the meantime.
+                            if (runLength == 0) {
+                                runStart = index;
+                            }
+                            if (++runLength >= maxRun) {
+                                transferRun(out, txn, runStart, runLength);
+                                runLength = 0;
+                            }
+                            continue;
+                        }
+
+                        if (runLength > 0) {
+                            transferRun(out, txn, runStart, runLength);
+                            runLength = 0;
+                        }
+
+                        // Advance progress before releasing the lock.
+                        advanceProgress(-1, index);
+                        c.commit(null);
+
+                        writeFully(out, ByteBuffer.wrap(value));
+                    }
+
+                    if (runLength > 0) {
+                        transferRun(out, txn, runStart, runLength);
+                    }
+                } catch (Throwable e) {
+                    if (mProgress == Long.MAX_VALUE) {
+                        throw aborted(mAbortCause);
+                    }
+                    throw e;
+                } finally {
+                    c.reset();
+                }
+            } finally {
+                txn.reset();
+            }
+        }
+
+        /**
+         * Transfers a run of locked pages, and then releases the locks.
+         */
+        private void transferRun(WritableByteChannel out, Transaction txn,
+                                 long start, int length)
+            throws IOException
+        {
+            if (!mRawPageArray.transferPages(start, length, out)) {
+                // Not supported, so copy the pages instead.
+                byte[] buffer = new byte[pageSize()];
+                for (int i=0; i<length; i++) {
+                    mRawPageArray.readPage(start + i, buffer);
+                    writeFully(out, ByteBuffer.wrap(buffer));
+                }
+            }
+
+            // Advance progress after transferring and before releasing the locks.
+            for (int i=0; i<length; i++) {
+                advanceProgress(-1, start + i);
+            }
+
+            txn.commit();
+        }
+
+        private void writeFully(WritableByteChannel out, ByteBuffer bb) throws IOException {
+            while (bb.hasRemaining()) {
+                out.write(bb);
+            }
+        }
+
+        /**
+         * @param part part number which is being written; -1 if not written in parts
+         */
+        private void advanceProgress(int part, long index) {
+            boolean advanced;
+            if (part < 0) {
+                advanced = mProgressUpdater.compareAndSet(this, index - 1, index);
+            } else {
+                advanced = mProgress != Long.MAX_VALUE
+                    && mPartProgress.compareAndSet(part, index - 1, index);
+            }
+            if (!advanced) {
                 // If closed, the caller's exception handler must detect this.
                 throw new IllegalStateException();
             }
         }
 
+        /**
+         * Returns true if the given page has already been written by the writeTo method.
+         */
+        private boolean isWritten(long index) {
+            AtomicLongArray partProgress = mPartProgress;
+            if (partProgress == null) {
+                return index <= mProgress;
+            }
+            return mProgress == Long.MAX_VALUE
+                || index <= partProgress.get((int) (index / mPartSize));
+        }
+
         void capture(final long index) {
-            if (index >= mSnapshotPageCount || index <= mProgress) {
+            if (index >= mSnapshotPageCount || isWritten(index) || !isIncluded(index)) {
                 return;
             }
 
@@ -502,10 +954,13 @@ final class SnapshotPageArray extends PageArray {
 
                 Transaction txn = mPageCopyIndex.mDatabase.newTransaction();
                 try {
+                    // Page might be locked while being transferred to a slow channel, and
+                    // timing out would abort the snapshot.
+                    txn.lockTimeout(-1, null);
                     c.link(txn);
                     c.load();
 
-                    if (c.value() != null || index <= mProgress) {
+                    if (c.value() != null || isWritten(index)) {
                         // Already captured or writer has advanced ahead.
                         txn.reset();
                         return;
@@ -575,6 +1030,170 @@ final class SnapshotPageArray extends PageArray {
             mTempFileManager.deleteTempFile(mTempFile);
         }
 
+        /**
+         * Reads a page as it was when the snapshot began.
+         */
+        private byte[] readPage(long index) throws IOException {
+            final int pageSize = pageSize();
+            final byte[] page = new byte[pageSize];
+
+            if (index >= mSnapshotPageCount) {
+                // Page didn't exist when the snapshot began.
+                return page;
+            }
+
+            Transaction txn = mPageCopyIndex.mDatabase.newTransaction();
+            try {
+                // Disable writes to the undo log and fragmented value trash.
+                txn.lockMode(LockMode.UNSAFE);
+
+                byte[] key = new byte[8];
+                encodeLongBE(key, 0, index);
+                txn.lockExclusive(mPageCopyIndex.getId(), key);
+
+                if (mProgress == Long.MAX_VALUE) {
+                    throw aborted(mAbortCause);
+                }
+
+                byte[] value = mPageCopyIndex.load(txn, key);
+                if (value != null) {
+                    return value;
+                }
+
+                // Page cannot be captured and overwritten while the lock is held, and so
+                // the current contents are the same as when the snapshot began.
+
+                LocalDatabase cache = mNodeCache;
+                Node node;
+                if (cache != null && (node = cache.nodeMapGet(index)) != null) {
+                    if (node.tryAcquireShared()) try {
+                        if (node.mId == index && node.mCachedState == Node.CACHED_CLEAN) {
+                            p_copyToArray(node.mPage, 0, page, 0, pageSize);
+                            return page;
+                        }
+                    } finally {
+                        node.releaseShared();
+                    }
+                }
+
+                mRawPageArray.readPage(index, page, 0, pageSize);
+                return page;
+            } finally {
+                txn.reset();
+            }
+        }
+
+        /**
+         * Page array over the snapshot, which is never written. Pages written to the view
+         * are only stored in a temporary overlay, which is discarded when the view is closed.
+         */
+        final class View extends PageArray {
+            private volatile boolean mReadOnly;
+            private volatile Tree mOverlay;
+
+            View() {
+                super(SnapshotPageArray.this.pageSize());
+            }
+
+            /**
+             * Prevent new pages from being allocated, after the database which uses the view
+             * has finished opening. Dirty nodes can still be written to the overlay.
+             */
+            void readOnly() {
+                mReadOnly = true;
+            }
+
+            @Override
+            public boolean isReadOnly() {
+                return mReadOnly;
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return mSnapshotPageCount == 0;
+            }
+
+            @Override
+            public long getPageCount() {
+                return mSnapshotPageCount;
+            }
+
+            @Override
+            public void setPageCount(long count) throws IOException {
+                throw new UnmodifiableDatabaseException();
+            }
+
+            @Override
+            public void readPage(long index, byte[] dst, int offset, int length)
+                throws IOException
+            {
+                arraycopy(read(index), 0, dst, offset, length);
+            }
+
+            @Override
+            public void readPage(long index, long dstPtr, int offset, int length)
+                throws IOException
+            {
+                DirectPageOps.p_copyFromArray(read(index), 0, dstPtr, offset, length);
+            }
+
+            @Override
+            public void writePage(long index, byte[] src, int offset) throws IOException {
+                byte[] page = new byte[pageSize()];
+                arraycopy(src, offset, page, 0, page.length);
+                write(index, page);
+            }
+
+            @Override
+            public void writePage(long index, long srcPtr, int offset) throws IOException {
+                byte[] page = new byte[pageSize()];
+                DirectPageOps.p_copyToArray(srcPtr, offset, page, 0, page.length);
+                write(index, page);
+            }
+
+            @Override
+            public void sync(boolean metadata) {
+            }
+
+            @Override
+            public void close(Throwable cause) throws IOException {
+                SnapshotImpl.this.close(cause);
+            }
+
+            private byte[] read(long index) throws IOException {
+                Tree overlay = mOverlay;
+                if (overlay != null) {
+                    byte[] key = new byte[8];
+                    encodeLongBE(key, 0, index);
+                    byte[] page = overlay.load(Transaction.BOGUS, key);
+                    if (page != null) {
+                        return page;
+                    }
+                }
+                return SnapshotImpl.this.readPage(index);
+            }
+
+            private void write(long index, byte[] page) throws IOException {
+                if (mProgress == Long.MAX_VALUE) {
+                    throw aborted(mAbortCause);
+                }
+
+                Tree overlay = mOverlay;
+                if (overlay == null) {
+                    synchronized (this) {
+                        overlay = mOverlay;
+                        if (overlay == null) {
+                            mOverlay = overlay = mPageCopyIndex.mDatabase.newTemporaryIndex();
+                        }
+                    }
+                }
+
+                byte[] key = new byte[8];
+                encodeLongBE(key, 0, index);
+                overlay.store(Transaction.BOGUS, key, page);
+            }
+        }
+
         private void abort(Throwable e) {
             try {
                 close(e);
@@ -587,4 +1206,79 @@ final class SnapshotPageArray extends PageArray {
             return new IOException("Snapshot closed", cause);
         }
     }
+
+    /**
+     * Concurrent set of page indexes, allocated in chunks as needed.
+     */
+    static final class PageSet {
+        private static final int CHUNK_SHIFT = 16;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+        private volatile AtomicLongArray[] mChunks = new AtomicLongArray[0];
+
+        // Set which tracks the changes after the next snapshot began.
+        volatile PageSet mNext;
+
+        void add(long index) {
+            AtomicLongArray chunk = chunk(index >>> CHUNK_SHIFT);
+            int i = ((int) index) & (CHUNK_SIZE - 1);
+            long mask = 1L << i;
+            int word = i >> 6;
+            long bits;
+            while (((bits = chunk.get(word)) & mask) == 0) {
+                if (chunk.compareAndSet(word, bits, bits | mask)) {
+                    break;
+                }
+            }
+        }
+
+        boolean contains(long index) {
+            AtomicLongArray[] chunks = mChunks;
+            long chunkIndex = index >>> CHUNK_SHIFT;
+            if (chunkIndex >= chunks.length) {
+                return false;
+            }
+            AtomicLongArray chunk = chunks[(int) chunkIndex];
+            if (chunk == null) {
+                return false;
+            }
+            int i = ((int) index) & (CHUNK_SIZE - 1);
+            return (chunk.get(i >> 6) & (1L << i)) != 0;
+        }
+
+        /**
+         * Returns the number of pages in the set which are lower than the given count, always
+         * counting the two header pages.
+         */
+        long count(long pageCount) {
+            long count = Math.min(2, pageCount);
+            for (long index = 2; index < pageCount; index++) {
+                if (contains(index)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private AtomicLongArray chunk(long chunkIndex) {
+            AtomicLongArray[] chunks = mChunks;
+            AtomicLongArray chunk;
+            if (chunkIndex < chunks.length && (chunk = chunks[(int) chunkIndex]) != null) {
+                return chunk;
+            }
+
+            synchronized (this) {
+                chunks = mChunks;
+                if (chunkIndex < chunks.length && (chunk = chunks[(int) chunkIndex]) != null) {
+                    return chunk;
+                }
+                // Copy on write, to safely publish the new chunk.
+                chunks = Arrays.copyOf(chunks, Math.max(chunks.length, (int) chunkIndex + 1));
+                chunk = new AtomicLongArray(CHUNK_SIZE >> 6);
+                chunks[(int) chunkIndex] = chunk;
+                mChunks = chunks;
+                return chunk;
+            }
+        }
+    }
 }
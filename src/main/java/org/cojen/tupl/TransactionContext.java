@@ -20,6 +20,8 @@ package org.cojen.tupl;
 import java.io.Flushable;
 import java.io.IOException;
 
+import java.util.List;
+
 import java.util.concurrent.ThreadLocalRandom;
 
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
@@ -61,6 +63,8 @@ final class TransactionContext extends Latch implements Flushable {
     private long mRedoFirstTxnId;
     private long mRedoLastTxnId;
     private RedoWriter mRedoWriter;
+    // Writer passed in by callers, which differs from mRedoWriter when striped.
+    private RedoWriter mRedoSource;
     private boolean mRedoWriterLatched;
     private long mRedoWriterPos;
 
@@ -156,10 +160,10 @@ final class TransactionContext extends Latch implements Flushable {
     void fullAcquireRedoLatch(RedoWriter redo) throws IOException {
         acquireExclusive();
         try {
-            if (redo != mRedoWriter) {
+            if (redo != mRedoSource) {
                 switchRedo(redo);
             }
-            redo.acquireExclusive();
+            mRedoWriter.acquireExclusive();
         } catch (Throwable e) {
             releaseRedoLatch();
             throw e;
@@ -502,7 +506,21 @@ final class TransactionContext extends Latch implements Flushable {
         redoWriteOp(redo, OP_RESET);
         redoNonTxnTerminateCommit(redo, DurabilityMode.NO_FLUSH);
         assert mRedoWriterLatched;
-        redo.mLastTxnId = 0;
+        mRedoWriter.mLastTxnId = 0;
+    }
+
+    /**
+     * Sets the transaction id which the following operations are encoded against. Until a
+     * transaction is written, it also determines the terminator of every operation.
+     */
+    // Caller must hold redo latch.
+    void doRedoTxnIdReset(RedoWriter redo, long txnId) throws IOException {
+        redo.opWriteCheck(null);
+        redoWriteOp(redo, OP_TXN_ID_RESET, txnId);
+        assert mRedoWriterLatched;
+        // Must be set before the terminator is encoded, matching the decoder.
+        mRedoWriter.mLastTxnId = txnId;
+        redoNonTxnTerminateCommit(redo, DurabilityMode.NO_FLUSH);
     }
 
     /**
@@ -709,7 +727,7 @@ final class TransactionContext extends Latch implements Flushable {
 
     // Caller must hold redo latch.
     private int doRedoWriteOp(RedoWriter redo, byte op, int len) throws IOException {
-        if (redo != mRedoWriter) {
+        if (redo != mRedoSource) {
             switchRedo(redo);
         }
 
@@ -727,7 +745,7 @@ final class TransactionContext extends Latch implements Flushable {
 
     // Caller must hold redo latch.
     private void redoWriteTxnOp(RedoWriter redo, byte op, long txnId) throws IOException {
-        if (redo != mRedoWriter) {
+        if (redo != mRedoSource) {
             switchRedo(redo);
         }
 
@@ -783,7 +801,8 @@ final class TransactionContext extends Latch implements Flushable {
             }
         }
 
-        mRedoWriter = redo;
+        mRedoSource = redo;
+        mRedoWriter = redo.stripeFor(this);
     }
 
     /**
@@ -973,17 +992,22 @@ final class TransactionContext extends Latch implements Flushable {
     }
 
     /**
-     * Write any undo log references to the master undo log. Caller must hold db commit lock
-     * and synchronize on this context object.
+     * Captures the undo log references which the master undo log must record. Caller must
+     * hold exclusive db commit lock and synchronize on this context object.
      *
-     * @param workspace temporary buffer, allocated on demand
-     * @return new or original workspace instance
+     * @param entries entries are added to this list
+     * @return the amount of bytes which the added entries occupy in the master undo log
      */
-    byte[] writeToMaster(UndoLog master, byte[] workspace) throws IOException {
+    long captureForMaster(List<byte[]> entries) {
+        long size = 0;
         for (UndoLog log = mTopUndoLog; log != null; log = log.mPrev) {
-            workspace = log.writeToMaster(master, workspace);
+            byte[] entry = log.captureForMaster();
+            if (entry != null) {
+                entries.add(entry);
+                size += UndoLog.masterEntrySize(entry);
+            }
         }
-        return workspace;
+        return size;
     }
 
     /**
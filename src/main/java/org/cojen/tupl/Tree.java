@@ -157,10 +157,13 @@ class Tree implements View, Index {
 
         // If lock must be acquired and retained, acquire now and skip the quick check later.
         if (local != null) {
-            int lockType = local.lockMode().repeatable;
+            LockMode mode = local.lockMode();
+            int lockType = mode.repeatable;
             if (lockType != 0) {
                 int hash = LockManager.hash(mId, key);
                 local.lock(lockType, mId, key, hash, local.mLockTimeoutNanos);
+            } else if (mode == LockMode.OPTIMISTIC_READ) {
+                local.optimisticRead(mId, key, LockManager.hash(mId, key));
             }
         }
 
@@ -365,10 +368,13 @@ class Tree implements View, Index {
 
         // If lock must be acquired and retained, acquire now and skip the quick check later.
         if (local != null) {
-            int lockType = local.lockMode().repeatable;
+            LockMode mode = local.lockMode();
+            int lockType = mode.repeatable;
             if (lockType != 0) {
                 int hash = LockManager.hash(mId, key);
                 local.lock(lockType, mId, key, hash, local.mLockTimeoutNanos);
+            } else if (mode == LockMode.OPTIMISTIC_READ) {
+                local.optimisticRead(mId, key, LockManager.hash(mId, key));
             }
         }
 
@@ -1112,7 +1118,8 @@ class Tree implements View, Index {
 
     final boolean allowStoredCounts() {
         // TODO: make configurable
-        return true;
+        // Counts are stored by dirtying the parent node, which a read-only database forbids.
+        return !mDatabase.isReadOnly();
     }
 
     /**
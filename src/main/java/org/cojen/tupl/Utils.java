@@ -41,6 +41,23 @@ class Utils extends org.cojen.tupl.io.Utils {
             (timeout == 0 ? 0 : (((timeout = unit.toNanos(timeout)) < 0) ? 0 : timeout));
     }
 
+    /**
+     * Returns the number of threads to use for a maximum thread count option. If zero, the
+     * number of available processors is used. If negative, the count is {@code (-num *
+     * availableProcessors)}.
+     */
+    static int maxThreads(int num) {
+        if (num <= 0) {
+            int procCount = Runtime.getRuntime().availableProcessors();
+            num = num == 0 ? procCount : (-num * procCount);
+            if (num <= 0) {
+                // Overflowed.
+                num = Integer.MAX_VALUE;
+            }
+        }
+        return num;
+    }
+
     static int roundUpPower2(int i) {
         // Hacker's Delight figure 3-3.
         i--;
@@ -874,6 +891,35 @@ class Utils extends org.cojen.tupl.io.Utils {
         }
     }
 
+    /**
+     * Returns the sorted numbers of all files in the base file's directory which are named
+     * like "base<pattern><number>".
+     */
+    static long[] numberedFiles(File baseFile, String pattern) throws IOException {
+        String prefix = baseFile.getName() + pattern;
+        File[] files = baseFile.getParentFile().listFiles();
+        if (files == null) {
+            return new long[0];
+        }
+        long[] nums = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix)) {
+                String suffix = name.substring(prefix.length());
+                try {
+                    nums[count] = Long.parseLong(suffix);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                count++;
+            }
+        }
+        nums = Arrays.copyOf(nums, count);
+        Arrays.sort(nums);
+        return nums;
+    }
+
     static void initCause(Throwable e, Throwable cause) {
         if (e != null && cause != null && !cycleCheck(e, cause) && !cycleCheck(cause, e)) {
             try {
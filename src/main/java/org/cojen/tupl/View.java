@@ -416,7 +416,7 @@ public interface View {
                     txn.unlock();
                 }
             } else if (!mode.noReadLock) {
-                if (mode == LockMode.UPGRADABLE_READ) {
+                if (mode.repeatable == LockManager.TYPE_UPGRADABLE) {
                     return lockUpgradable(txn, key);
                 } else {
                     return lockShared(txn, key);
@@ -19,6 +19,7 @@ package org.cojen.tupl;
 
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -170,6 +171,36 @@ final class _DurablePageDb extends _PageDb {
         return new StripedPageArray(arrays);
     }
 
+    /**
+     * Opens a file written by a full snapshot as a read-only page array. A snapshot has the
+     * same layout as a data file, and so it doesn't need to be restored first.
+     *
+     * @param pageSize page size to use if encrypted, since the header cannot be examined
+     * @param crypto optional
+     */
+    static PageArray openSnapshotPageArray(int pageSize, File file, Crypto crypto)
+        throws IOException
+    {
+        if (crypto == null) {
+            byte[] header = new byte[MINIMUM_PAGE_SIZE];
+            try (InputStream in = new FileInputStream(file)) {
+                readFully(in, header, 0, header.length);
+            } catch (EOFException e) {
+                throw new CorruptDatabaseException("Snapshot is incomplete: " + file);
+            }
+
+            long magic = decodeLongLE(header, I_MAGIC_NUMBER);
+            if (magic != MAGIC_NUMBER) {
+                throw new CorruptDatabaseException("Not a full snapshot: " + file);
+            }
+
+            pageSize = decodeIntLE(header, I_PAGE_SIZE);
+        }
+
+        return openPageArray(pageSize, new File[] {file}, null,
+                             EnumSet.of(OpenOption.READ_ONLY, OpenOption.RANDOM_ACCESS));
+    }
+
     private static void checkPageSize(int pageSize) {
         if (pageSize < MINIMUM_PAGE_SIZE) {
             throw new IllegalArgumentException
@@ -391,6 +422,12 @@ final class _DurablePageDb extends _PageDb {
 
     @Override
     public long allocPage() throws IOException {
+        if (mPageArray.isReadOnly()) {
+            // All modifications require pages to be allocated, and so checking here prevents
+            // any changes from being made.
+            throw new UnmodifiableDatabaseException();
+        }
+
         CommitLock.Shared shared = mCommitLock.acquireShared();
         try {
             return mPageManager.allocPage();
@@ -674,7 +711,7 @@ final class _DurablePageDb extends _PageDb {
     /**
      * @see _SnapshotPageArray#beginSnapshot
      */
-    Snapshot beginSnapshot(_LocalDatabase db) throws IOException {
+    Snapshot beginSnapshot(_LocalDatabase db, boolean incremental) throws IOException {
         mHeaderLatch.acquireShared();
         try {
             long pageCount, redoPos;
@@ -686,21 +723,54 @@ final class _DurablePageDb extends _PageDb {
             } finally {
                 p_delete(header);
             }
-            return mPageArray.beginSnapshot(db, pageCount, redoPos);
+            return mPageArray.beginSnapshot(db, pageCount, redoPos, incremental);
         } finally {
             mHeaderLatch.releaseShared();
         }
     }
 
+    /**
+     * @see _SnapshotPageArray#beginView
+     */
+    _SnapshotPageArray.SnapshotImpl.View beginView(_LocalDatabase db) throws IOException {
+        mHeaderLatch.acquireShared();
+        try {
+            long pageCount;
+            long header = p_alloc(MINIMUM_PAGE_SIZE);
+            try {
+                mPageArray.readPage(mCommitNumber & 1, header, 0, MINIMUM_PAGE_SIZE);
+                pageCount = _PageManager.readTotalPageCount(header, I_MANAGER_HEADER);
+            } finally {
+                p_delete(header);
+            }
+            return mPageArray.beginView(db, pageCount);
+        } finally {
+            mHeaderLatch.releaseShared();
+        }
+    }
+
+    /**
+     * Returns the crypto used by this page db; null if none.
+     */
+    Crypto crypto() {
+        return mCrypto;
+    }
+
     /**
      * @param factory optional
      * @param cache optional
      * @param crypto optional
-     * @param in snapshot source; does not require extra buffering; auto-closed
+     * @param in snapshot source; does not require extra buffering; auto-closed; pass null
+     * if restoring from parts
+     * @param parts snapshot parts, when not restoring from a single source; each is
+     * auto-closed
+     * @param increments incremental snapshots to apply in order; each is auto-closed
      */
     static _PageDb restoreFromSnapshot(int pageSize, File[] files, FileFactory factory,
                                       EnumSet<OpenOption> options,
-                                      PageCache cache, Crypto crypto, InputStream in)
+                                      PageCache cache, Crypto crypto,
+                                      InputStream in, InputStream[] parts,
+                                      InputStream[] increments)
         throws IOException
     {
         if (options.contains(OpenOption.READ_ONLY)) {
@@ -712,7 +782,21 @@ final class _DurablePageDb extends _PageDb {
         PageArray pa;
         long index = 0;
 
-        if (crypto != null) {
+        if (in == null) {
+            parts = parts.clone();
+            try {
+                pageSize = readPartHeaders(parts);
+            } catch (Throwable e) {
+                closeAll(parts, increments);
+                throw e;
+            }
+            buffer = new byte[pageSize];
+            bufferPage = p_transfer(buffer);
+            pa = openPageArray(pageSize, files, factory, options);
+            if (!pa.isEmpty()) {
+                throw new DatabaseException("Cannot restore into a non-empty file");
+            }
+        } else if (crypto != null) {
             buffer = new byte[pageSize];
             bufferPage = p_transfer(buffer);
             pa = openPageArray(pageSize, files, factory, options);
@@ -754,34 +838,62 @@ final class _DurablePageDb extends _PageDb {
             }
         }
 
-        return restoreFromSnapshot(cache, crypto, in, buffer, bufferPage, pa, index);
+        return restoreFromSnapshot(cache, crypto, in, parts, increments,
+                                   buffer, bufferPage, pa, index);
     }
 
     /**
      * @param cache optional
      * @param crypto optional
-     * @param in snapshot source; does not require extra buffering; auto-closed
+     * @param in snapshot source; does not require extra buffering; auto-closed; pass null
+     * if restoring from parts
+     * @param parts snapshot parts, when not restoring from a single source; each is
+     * auto-closed
+     * @param increments incremental snapshots to apply in order; each is auto-closed
      */
-    static _PageDb restoreFromSnapshot(PageArray pa, PageCache cache, Crypto crypto, InputStream in)
+    static _PageDb restoreFromSnapshot(PageArray pa, PageCache cache, Crypto crypto,
+                                      InputStream in, InputStream[] parts,
+                                      InputStream[] increments)
         throws IOException
     {
         if (!pa.isEmpty()) {
             throw new DatabaseException("Cannot restore into a non-empty file");
         }
 
+        if (in == null) {
+            parts = parts.clone();
+            int pageSize;
+            try {
+                pageSize = readPartHeaders(parts);
+            } catch (Throwable e) {
+                closeAll(parts, increments);
+                throw e;
+            }
+            if (pageSize != pa.pageSize()) {
+                closeAll(parts, increments);
+                throw new DatabaseException
+                    ("Snapshot page size doesn't match: " + pageSize + " != " + pa.pageSize());
+            }
+        }
+
         byte[] buffer = new byte[pa.pageSize()];
         long bufferPage = p_transfer(buffer);
 
-        return restoreFromSnapshot(cache, crypto, in, buffer, bufferPage, pa, 0);
+        return restoreFromSnapshot(cache, crypto, in, parts, increments,
+                                   buffer, bufferPage, pa, 0);
     }
 
-    private static _PageDb restoreFromSnapshot(PageCache cache, Crypto crypto, InputStream in,
+    private static _PageDb restoreFromSnapshot(PageCache cache, Crypto crypto,
+                                              InputStream in, InputStream[] parts,
+                                              InputStream[] increments,
                                               byte[] buffer, long bufferPage,
                                               PageArray pa, long index)
         throws IOException
     {
         try {
-            while (true) {
+            if (in == null) {
+                restoreParts(parts, pa);
+            } else while (true) {
                 try {
                     readFully(in, buffer, 0, buffer.length);
                 } catch (EOFException e) {
@@ -791,12 +903,22 @@ final class _DurablePageDb extends _PageDb {
                 index++;
             }
 
+            long position = -1;
+            for (InputStream inc : increments) {
+                try {
+                    position = applyIncrement(inc, position, buffer, bufferPage, pa);
+                } finally {
+                    closeQuietly(null, inc);
+                }
+            }
+
             // Ensure newly restored snapshot is durable and also ensure that PageArray (if a
             // MappedPageArray) no longer considers itself to be empty.
             pa.sync(true);
         } finally {
             p_delete(bufferPage);
             closeQuietly(null, in);
+            closeAll(parts, increments);
         }
 
         try {
@@ -806,6 +928,193 @@ final class _DurablePageDb extends _PageDb {
         }
     }
 
+    /**
+     * Reads and verifies the header of each snapshot part, replacing each stream with one
+     * which reads the page records.
+     *
+     * @return page size
+     */
+    private static int readPartHeaders(InputStream[] parts) throws IOException {
+        int pageSize = 0;
+        long position = 0, pageCount = 0;
+        boolean[] found = new boolean[parts.length];
+
+        byte[] header = new byte[_SnapshotPageArray.PART_HEADER_SIZE];
+
+        for (int i=0; i<parts.length; i++) {
+            InputStream in = parts[i];
+            readFully(in, header, 0, header.length);
+
+            long magic = decodeLongLE(header, 0);
+            if (magic != _SnapshotPageArray.PART_MAGIC) {
+                throw new CorruptDatabaseException("Not a snapshot part: " + magic);
+            }
+
+            int partPageSize = decodeIntLE(header, 8);
+            int flags = decodeIntLE(header, 12);
+            int part = decodeIntLE(header, 16);
+            int partCount = decodeIntLE(header, 20);
+            long partPosition = decodeLongLE(header, 24);
+            long partPageCount = decodeLongLE(header, 32);
+
+            if (partCount != parts.length) {
+                throw new DatabaseException
+                    ("Snapshot has " + partCount + " parts, but " + parts.length + " were given");
+            }
+
+            if (i == 0) {
+                pageSize = partPageSize;
+                position = partPosition;
+                pageCount = partPageCount;
+            } else if (partPageSize != pageSize || partPosition != position
+                       || partPageCount != pageCount)
+            {
+                throw new DatabaseException("Snapshot parts don't belong to the same snapshot");
+            }
+
+            if (part < 0 || part >= partCount || found[part]) {
+                throw new DatabaseException("Duplicate or illegal snapshot part: " + part);
+            }
+
+            found[part] = true;
+
+            if ((flags & 1) != 0) {
+                parts[i] = new BlockCodec.Input(in);
+            }
+        }
+
+        return pageSize;
+    }
+
+    /**
+     * Writes the pages of all the snapshot parts, using a separate thread for each part.
+     */
+    private static void restoreParts(InputStream[] parts, PageArray pa) throws IOException {
+        Thread[] threads = new Thread[parts.length - 1];
+        Throwable[] failure = new Throwable[1];
+
+        for (int i=0; i<threads.length; i++) {
+            InputStream in = parts[i + 1];
+            Thread t = new Thread(() -> {
+                try {
+                    restorePart(in, pa);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            t.start();
+            threads[i] = t;
+        }
+
+        try {
+            restorePart(parts[0], pa);
+        } finally {
+            for (Thread t : threads) {
+                while (true) {
+                    try {
+                        t.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        // Keep waiting, because the thread writes to the page array.
+                    }
+                }
+            }
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw rethrow(failure[0]);
+            }
+        }
+    }
+
+    private static void restorePart(InputStream in, PageArray pa) throws IOException {
+        byte[] buffer = new byte[pa.pageSize()];
+        long bufferPage = p_transfer(buffer);
+        try {
+            readPages(in, buffer, bufferPage, pa);
+        } finally {
+            p_delete(bufferPage);
+        }
+    }
+
+    /**
+     * Reads page records, each preceded by its index, until the terminator is reached.
+     */
+    private static void readPages(InputStream in, byte[] buffer, long bufferPage,
+                                  PageArray pa)
+        throws IOException
+    {
+        byte[] key = new byte[8];
+        while (true) {
+            readFully(in, key, 0, 8);
+            long index = decodeLongBE(key, 0);
+            if (index < 0) {
+                break;
+            }
+            readFully(in, buffer, 0, buffer.length);
+            pa.writePage(index, p_transferTo(buffer, bufferPage));
+        }
+    }
+
+    private static void closeAll(InputStream[] parts, InputStream[] increments) {
+        if (parts != null) {
+            for (InputStream in : parts) {
+                closeQuietly(null, in);
+            }
+        }
+        for (InputStream in : increments) {
+            closeQuietly(null, in);
+        }
+    }
+
+    /**
+     * Writes the pages of an incremental snapshot over the restored pages.
+     *
+     * @param position redo position of the prior increment; -1 if none
+     * @return redo position of the applied increment
+     */
+    private static long applyIncrement(InputStream in, long position,
+                                       byte[] buffer, long bufferPage, PageArray pa)
+        throws IOException
+    {
+        byte[] header = new byte[_SnapshotPageArray.INCREMENT_HEADER_SIZE];
+        readFully(in, header, 0, header.length);
+
+        long magic = decodeLongLE(header, 0);
+        if (magic != _SnapshotPageArray.INCREMENT_MAGIC) {
+            throw new CorruptDatabaseException("Not an incremental snapshot: " + magic);
+        }
+
+        int pageSize = decodeIntLE(header, 8);
+        if (pageSize != buffer.length) {
+            throw new DatabaseException
+                ("Incremental snapshot page size doesn't match: " + pageSize
+                 + " != " + buffer.length);
+        }
+
+        long basePosition = decodeLongLE(header, 12);
+        if (position >= 0 && basePosition != position) {
+            throw new DatabaseException
+                ("Incremental snapshot doesn't follow the prior one: "
+                 + basePosition + " != " + position);
+        }
+
+        position = decodeLongLE(header, 20);
+        long pageCount = decodeLongLE(header, 28);
+
+        readPages(in, buffer, bufferPage, pa);
+
+        // Page count might have shrunk due to compaction.
+        pa.setPageCount(pageCount);
+
+        return position;
+    }
+
     private IOException closeOnFailure(Throwable e) throws IOException {
         throw Utils.closeOnFailure(this, e);
     }
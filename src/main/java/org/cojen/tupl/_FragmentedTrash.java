@@ -235,9 +235,11 @@ final class _FragmentedTrash {
      * Non-transactionally deletes all fragmented values. Expected to be called only during
      * recovery, and never when other calls into the trash are being made concurrently.
      *
+     * @param skipTxns optional set of transactions whose trash must be kept, because they
+     * still need to be rolled back
      * @return true if any trash was found
      */
-    boolean emptyAllTrash(EventListener listener) throws IOException {
+    boolean emptyAllTrash(EventListener listener, LHashTable<?> skipTxns) throws IOException {
         boolean found = false;
 
         _LocalDatabase db = mTrash.mDatabase;
@@ -255,11 +257,13 @@ final class _FragmentedTrash {
                 }
 
                 do {
-                    CommitLock.Shared shared = commitLock.acquireShared();
-                    try {
-                        found |= deleteFragmented(db, cursor);
-                    } finally {
-                        shared.release();
+                    if (skipTxns == null || skipTxns.get(decodeLongBE(cursor.key(), 0)) == null) {
+                        CommitLock.Shared shared = commitLock.acquireShared();
+                        try {
+                            found |= deleteFragmented(db, cursor);
+                        } finally {
+                            shared.release();
+                        }
                     }
 
                     cursor.next();
@@ -18,6 +18,7 @@
 package org.cojen.tupl;
 
 import java.util.Arrays;
+import java.util.Set;
 
 import org.cojen.tupl.util.Latch;
 import org.cojen.tupl.util.LatchCondition;
@@ -117,6 +118,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mWaitingThread = Thread.currentThread();
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -214,6 +216,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mWaitingThread = Thread.currentThread();
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -322,6 +325,7 @@ final class _Lock {
         }
 
         locker.mWaitingFor = this;
+        locker.mWaitingThread = Thread.currentThread();
         long nanosEnd = nanosTimeout < 0 ? 0 : (System.nanoTime() + nanosTimeout);
 
         while (true) {
@@ -782,6 +786,27 @@ final class _Lock {
         return pending;
     }
 
+    /**
+     * Returns true if any locker other than the given one holds this lock. Caller must hold
+     * latch.
+     */
+    boolean isHeldByOther(_LockOwner locker) {
+        int count = mLockCount;
+        if (count == 0) {
+            return false;
+        }
+        if (count < 0 && mOwner != locker) {
+            // Exclusive or upgradable lock is held by another.
+            return true;
+        }
+        count &= 0x7fffffff;
+        if (count == 0x7fffffff) {
+            // Exclusive lock is held by the given locker.
+            return false;
+        }
+        return count > 1 || (count == 1 && mSharedLockOwnersObj != locker);
+    }
+
     boolean matches(long indexId, byte[] key, int hash) {
         return mHashCode == hash && mIndexId == indexId && Arrays.equals(mKey, key);
     }
@@ -804,6 +829,55 @@ final class _Lock {
         return mSharedLockOwnersObj;
     }
 
+    /**
+     * Returns true if any lockers are waiting for this lock. Caller must hold any latch.
+     */
+    boolean hasWaiters() {
+        LatchCondition queue;
+        return ((queue = mQueueU) != null && !queue.isEmpty())
+            || ((queue = mQueueSX) != null && !queue.isEmpty());
+    }
+
+    /**
+     * Adds all of the owners of this lock to the given set. Caller must hold any latch.
+     */
+    void addOwners(Set<_LockOwner> owners) {
+        _LockOwner owner = mOwner;
+        if (owner != null) {
+            owners.add(owner);
+        }
+        if (mLockCount == ~0) {
+            // Field might refer to a ghost.
+            return;
+        }
+        Object shared = mSharedLockOwnersObj;
+        if (shared instanceof _LockOwner) {
+            owners.add((_LockOwner) shared);
+        } else if (shared instanceof LockOwnerHTEntry[]) {
+            for (LockOwnerHTEntry e : (LockOwnerHTEntry[]) shared) {
+                for (; e != null; e = e.mNext) {
+                    owners.add(e.mOwner);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the wait of the given locker, which then fails as if it timed out. Caller must
+     * hold exclusive latch.
+     *
+     * @return false if locker isn't waiting for this lock
+     */
+    boolean cancelWait(_LockOwner locker) {
+        Thread waiter;
+        if (locker.mWaitingFor != this || (waiter = locker.mWaitingThread) == null) {
+            return false;
+        }
+        LatchCondition queue;
+        return ((queue = mQueueU) != null && queue.cancel(waiter))
+            || ((queue = mQueueSX) != null && queue.cancel(waiter));
+    }
+
     /**
      * @param lockType TYPE_SHARED, TYPE_UPGRADABLE, or TYPE_EXCLUSIVE
      */
@@ -31,6 +31,10 @@ abstract class _LockOwner implements _DatabaseAccess { // weak access to databas
     // _LockOwner is currently waiting to acquire this lock. Used for deadlock detection.
     _Lock mWaitingFor;
 
+    // Thread which most recently waited on behalf of this _LockOwner. Used by background
+    // deadlock detection, for canceling the wait.
+    Thread mWaitingThread;
+
     _LockOwner() {
         mHash = ThreadLocalRandom.current().nextInt();
     }
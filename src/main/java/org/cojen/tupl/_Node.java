@@ -1969,7 +1969,7 @@ final class _Node extends Clutch implements _DatabaseAccess {
         frame.bind(this, pos);
 
         // Ghost will be deleted later when locks are released.
-        tree.mLockManager.ghosted(tree.mId, key, keyHash, frame);
+        tree.mLockManager.ghosted(txn, tree.mId, key, keyHash, frame);
 
         // Replace value with ghost.
         p_bytePut(page, valueHeaderLoc, -1);
@@ -0,0 +1,278 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+/**
+ * _Lock which covers a range of keys within an index, preventing other lockers from inserting
+ * new entries into the range. Bounds are inclusive, and a null bound is unbounded. Bounds
+ * are modified only by the owner, while holding the _LockManager range lock stripe monitor.
+ *
+ * <p>All the range locks of an index form a treap, ordered by the low bound. Each node
+ * tracks the highest bound within its subtree, and so finding a range which contains a key
+ * doesn't examine every range.
+ *
+ * @author Generated by PageAccessTransformer from RangeLock.java
+ * @see LockMode#SERIALIZABLE
+ */
+/*P*/
+final class _RangeLock {
+    final _LockOwner mOwner;
+    final long mIndexId;
+
+    byte[] mLow;
+    byte[] mHigh;
+
+    // Treap of range locks for the same index.
+    _RangeLock mParent, mLeft, mRight;
+    int mPriority;
+    // Highest bound within the subtree; null if unbounded.
+    byte[] mMaxHigh;
+
+    // Singly linked list of range locks held by the same owner.
+    _RangeLock mOwnerNext;
+
+    boolean mReleased;
+
+    _RangeLock(_LockOwner owner, long indexId, byte[] low, byte[] high) {
+        mOwner = owner;
+        mIndexId = indexId;
+        mLow = low;
+        mHigh = high;
+    }
+
+    /**
+     * @return true if the given key is within the range
+     */
+    boolean contains(byte[] key) {
+        byte[] low = mLow;
+        if (low != null && Utils.compareUnsigned(key, low) < 0) {
+            return false;
+        }
+        byte[] high = mHigh;
+        return high == null || Utils.compareUnsigned(key, high) <= 0;
+    }
+
+    /**
+     * Inserts this range lock into a treap.
+     *
+     * @param root root of the treap; can be null
+     * @return new root
+     */
+    _RangeLock insertInto(_RangeLock root) {
+        mParent = null;
+        mLeft = null;
+        mRight = null;
+        mPriority = Utils.randomSeed();
+        mMaxHigh = mHigh;
+
+        if (root == null) {
+            return this;
+        }
+
+        byte[] low = mLow;
+        _RangeLock parent = root;
+        while (true) {
+            if (low != null && (parent.mLow == null
+                                || Utils.compareUnsigned(low, parent.mLow) >= 0))
+            {
+                if (parent.mRight == null) {
+                    parent.mRight = this;
+                    break;
+                }
+                parent = parent.mRight;
+            } else {
+                if (parent.mLeft == null) {
+                    parent.mLeft = this;
+                    break;
+                }
+                parent = parent.mLeft;
+            }
+        }
+
+        mParent = parent;
+        parent.updateMaxHighs();
+
+        while ((parent = mParent) != null && mPriority > parent.mPriority) {
+            rotateUp();
+        }
+
+        return mParent == null ? this : root;
+    }
+
+    /**
+     * Removes this range lock from the treap which it belongs to.
+     *
+     * @param root root of the treap
+     * @return new root; null if empty
+     */
+    _RangeLock removeFrom(_RangeLock root) {
+        _RangeLock left, right;
+        while ((left = mLeft) != null && (right = mRight) != null) {
+            _RangeLock child = left.mPriority > right.mPriority ? left : right;
+            child.rotateUp();
+            if (child.mParent == null) {
+                root = child;
+            }
+        }
+
+        _RangeLock child = mLeft != null ? mLeft : mRight;
+        _RangeLock parent = mParent;
+
+        if (child != null) {
+            child.mParent = parent;
+        }
+
+        if (parent == null) {
+            root = child;
+        } else {
+            if (parent.mLeft == this) {
+                parent.mLeft = child;
+            } else {
+                parent.mRight = child;
+            }
+            parent.updateMaxHighs();
+        }
+
+        mParent = null;
+        mLeft = null;
+        mRight = null;
+
+        return root;
+    }
+
+    /**
+     * Changes the bounds of this range lock, which belongs to a treap.
+     *
+     * @param root root of the treap
+     * @return new root
+     */
+    _RangeLock bounds(_RangeLock root, byte[] low, byte[] high) {
+        if (low != mLow) {
+            root = removeFrom(root);
+            mLow = low;
+            mHigh = high;
+            return insertInto(root);
+        }
+        if (high != mHigh) {
+            mHigh = high;
+            updateMaxHighs();
+        }
+        return root;
+    }
+
+    /**
+     * Finds a range lock which contains the given key and isn't owned by the given locker.
+     *
+     * @param node root of a treap; can be null
+     * @param locker optional locker
+     */
+    static _RangeLock find(_RangeLock node, _LockOwner locker, byte[] key) {
+        while (node != null) {
+            byte[] max = node.mMaxHigh;
+            if (max != null && Utils.compareUnsigned(key, max) > 0) {
+                return null;
+            }
+            _RangeLock found = find(node.mLeft, locker, key);
+            if (found != null) {
+                return found;
+            }
+            byte[] low = node.mLow;
+            if (low != null && Utils.compareUnsigned(key, low) < 0) {
+                // All the ranges in the right subtree start after the key.
+                return null;
+            }
+            if (node.mOwner != locker) {
+                byte[] high = node.mHigh;
+                if (high == null || Utils.compareUnsigned(key, high) <= 0) {
+                    return node;
+                }
+            }
+            node = node.mRight;
+        }
+        return null;
+    }
+
+    /**
+     * Rotates this node above its parent.
+     */
+    private void rotateUp() {
+        _RangeLock parent = mParent;
+        _RangeLock grandparent = parent.mParent;
+
+        if (parent.mLeft == this) {
+            _RangeLock child = mRight;
+            parent.mLeft = child;
+            if (child != null) {
+                child.mParent = parent;
+            }
+            mRight = parent;
+        } else {
+            _RangeLock child = mLeft;
+            parent.mRight = child;
+            if (child != null) {
+                child.mParent = parent;
+            }
+            mLeft = parent;
+        }
+
+        parent.mParent = this;
+        mParent = grandparent;
+
+        if (grandparent != null) {
+            if (grandparent.mLeft == parent) {
+                grandparent.mLeft = this;
+            } else {
+                grandparent.mRight = this;
+            }
+        }
+
+        parent.updateMaxHigh();
+        updateMaxHigh();
+    }
+
+    /**
+     * Updates the highest bound of this node and of all its ancestors.
+     */
+    private void updateMaxHighs() {
+        _RangeLock node = this;
+        do {
+            node.updateMaxHigh();
+        } while ((node = node.mParent) != null);
+    }
+
+    private void updateMaxHigh() {
+        byte[] max = mHigh;
+        if (max != null) {
+            max = maxHigh(max, mLeft);
+            if (max != null) {
+                max = maxHigh(max, mRight);
+            }
+        }
+        mMaxHigh = max;
+    }
+
+    private static byte[] maxHigh(byte[] max, _RangeLock child) {
+        if (child != null) {
+            byte[] high = child.mMaxHigh;
+            if (high == null || Utils.compareUnsigned(high, max) > 0) {
+                return high;
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cojen.tupl.Utils.*;
+
+/**
+ * Rolls back transactions which were recovered from the undo log, using background threads
+ * while the database is open. Until each rollback finishes, the locks recovered for the
+ * transaction remain held, and so only the affected rows are unavailable. Each rollback is
+ * written to the redo log, and so a subsequent recovery doesn't roll it back again.
+ *
+ * @author Generated by PageAccessTransformer from RecoveryRollback.java
+ */
+/*P*/
+final class _RecoveryRollback implements Runnable {
+    private final _LocalDatabase mDatabase;
+    private final EventListener mListener;
+    private final _LocalTransaction[] mTxns;
+    private final AtomicInteger mNextTxn;
+    private final AtomicInteger mActiveThreads;
+    private final long mStartNanos;
+
+    /**
+     * @param txns recovered transactions which must all be rolled back
+     * @param maxThreads maximum number of threads to use
+     */
+    static void start(_LocalDatabase db, EventListener listener,
+                      LHashTable.Obj<_LocalTransaction> txns, int maxThreads)
+    {
+        _LocalTransaction[] array = new _LocalTransaction[txns.size()];
+        int[] pos = new int[1];
+        txns.traverse(entry -> {
+            array[pos[0]++] = entry.value;
+            return true;
+        });
+
+        int threadCount = Math.min(maxThreads, array.length);
+
+        if (listener != null) {
+            listener.notify(EventType.RECOVERY_PROCESS_REMAINING,
+                            "Rolling back %1$d transactions in the background",
+                            array.length);
+        }
+
+        _RecoveryRollback rollback = new _RecoveryRollback(db, listener, array, threadCount);
+
+        for (int i=0; i<threadCount; i++) {
+            Thread t = new Thread(rollback);
+            t.setDaemon(true);
+            t.setName("RecoveryRollback-" + Long.toUnsignedString(t.getId()));
+            t.start();
+        }
+    }
+
+    private _RecoveryRollback(_LocalDatabase db, EventListener listener,
+                             _LocalTransaction[] txns, int threadCount)
+    {
+        mDatabase = db;
+        mListener = listener;
+        mTxns = txns;
+        mNextTxn = new AtomicInteger();
+        mActiveThreads = new AtomicInteger(threadCount);
+        mStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        final _LocalTransaction[] txns = mTxns;
+        final _RedoWriter redo = mDatabase.txnRedoWriter();
+
+        int i;
+        while ((i = mNextTxn.getAndIncrement()) < txns.length) {
+            _LocalTransaction txn = txns[i];
+            txns[i] = null;
+
+            if (mDatabase.isClosed()) {
+                // Transaction is recovered again when the database is re-opened.
+                return;
+            }
+
+            try {
+                txn.recoveryRollback(redo);
+            } catch (Throwable e) {
+                if (!mDatabase.isClosed()) {
+                    closeQuietly(null, mDatabase, e);
+                }
+                return;
+            }
+        }
+
+        if (mActiveThreads.decrementAndGet() == 0 && mListener != null) {
+            double duration = (System.nanoTime() - mStartNanos) / 1_000_000_000.0;
+            mListener.notify(EventType.RECOVERY_PROCESS_REMAINING,
+                             "Background rollback completed in %1$1.3f seconds",
+                             duration, TimeUnit.SECONDS);
+        }
+    }
+}
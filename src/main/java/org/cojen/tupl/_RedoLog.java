@@ -26,16 +26,33 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+import java.util.concurrent.ThreadLocalRandom;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
 import java.security.GeneralSecurityException;
 
 import org.cojen.tupl.io.FileFactory;
 import org.cojen.tupl.io.FileIO;
+import org.cojen.tupl.io.LengthOption;
+import org.cojen.tupl.io.OpenOption;
 
 /**
  * 
@@ -46,10 +63,22 @@ import org.cojen.tupl.io.FileIO;
 final class _RedoLog extends _RedoWriter {
     private static final long MAGIC_NUMBER = 431399725605778814L;
     private static final int ENCODING_VERSION = 20130106;
+    private static final int STRIPED_ENCODING_VERSION = 20171103;
+    private static final int COMPRESSED_ENCODING_VERSION = 20171104;
+    private static final int STRIPED_COMPRESSED_ENCODING_VERSION = 20171105;
+
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 4;
+
+    // Striped log files frame each write with a sequence number and length.
+    static final int FRAME_HEADER_SIZE = 8 + 4;
 
     private final Crypto mCrypto;
     private final File mBaseFile;
     private final FileFactory mFileFactory;
+    private final long mPreallocateSize;
+    private final FrameSequence mSequence;
+    private final boolean mCompress;
+    private final boolean mDirectIO;
 
     private final boolean mReplayMode;
 
@@ -62,6 +91,9 @@ final class _RedoLog extends _RedoWriter {
     private long mPosition;
     private OutputStream mOut;
     private volatile FileChannel mChannel;
+    // Used instead of the channel when using direct I/O. Writes are synchronous, and so
+    // nothing needs to be forced.
+    private volatile DirectRedoOutput mDirectOut;
 
     private int mTermRndSeed;
 
@@ -69,6 +101,7 @@ final class _RedoLog extends _RedoWriter {
     private long mNextPosition;
     private OutputStream mNextOut;
     private FileChannel mNextChannel;
+    private DirectRedoOutput mNextDirectOut;
     private int mNextTermRndSeed;
 
     private volatile OutputStream mOldOut;
@@ -76,13 +109,30 @@ final class _RedoLog extends _RedoWriter {
 
     private long mDeleteLogId;
 
+    // When not null, old files are moved into this directory instead of being deleted.
+    private File mArchiveDir;
+    // Position of the redo log when the last archive timestamp was written.
+    private long mTimestampPosition;
+
+    // Replay stops when an operation ends after this position.
+    private long mReplayStopPosition = Long.MAX_VALUE;
+
+    // Maps the id of each log file which hasn't been deleted to its starting position. Also
+    // guards the subscribers, which prevent log files from being deleted.
+    private final TreeMap<Long, Long> mFileStarts;
+    private final List<_RedoSubscriber> mSubscribers;
+
     /**
      * Open for replay.
      *
      * @param logId first log id to open
      */
     _RedoLog(DatabaseConfig config, long logId, long redoPos) throws IOException {
-        this(config.mCrypto, config.mBaseFile, config.mFileFactory, logId, redoPos, null);
+        this(config.mCrypto, config.redoBaseFiles()[0], config.mFileFactory, 0, null, false,
+             false, logId, redoPos, null);
+        if (config.mRestoring) {
+            mReplayStopPosition = config.mRestorePosition;
+        }
     }
 
     /**
@@ -94,27 +144,42 @@ final class _RedoLog extends _RedoWriter {
     _RedoLog(DatabaseConfig config, _RedoLog replayed, _TransactionContext context)
         throws IOException
     {
-        this(config.mCrypto, config.mBaseFile, config.mFileFactory,
+        this(config.mCrypto, replayed.mBaseFile, config.mFileFactory, config.mRedoPreallocateSize,
+             replayed.mSequence, config.mCompressRedo, config.mDirectRedo,
              replayed.mLogId, replayed.mPosition, context);
+        mArchiveDir = config.mRedoArchiveDirectory;
     }
 
     /**
      * @param crypto optional
      * @param factory optional
+     * @param preallocateSize size to preallocate for each log file; zero to disable
+     * @param sequence shared by all stripes of a striped log; pass null if not striped
+     * @param compress true to compress new log files; replay detects compression itself
+     * @param directIO true to write new log files using direct I/O
      * @param logId first log id to open
      * @param context used for creating next log file; pass null for replay mode
      */
-    _RedoLog(Crypto crypto, File baseFile, FileFactory factory,
+    _RedoLog(Crypto crypto, File baseFile, FileFactory factory, long preallocateSize,
+            FrameSequence sequence, boolean compress, boolean directIO,
             long logId, long redoPos, _TransactionContext context)
         throws IOException
     {
         mCrypto = crypto;
         mBaseFile = baseFile;
         mFileFactory = factory;
+        // Encrypted zeros aren't zeros, and so recycled files cannot be cleared.
+        mPreallocateSize = crypto == null ? Math.max(0, preallocateSize) : 0;
+        mSequence = sequence;
+        mCompress = compress;
+        mDirectIO = directIO;
         mReplayMode = context == null;
 
         mBuffer = new byte[8192];
 
+        mFileStarts = new TreeMap<>();
+        mSubscribers = new ArrayList<>(2);
+
         acquireExclusive();
         mLogId = logId;
         mPosition = redoPos;
@@ -143,45 +208,27 @@ final class _RedoLog extends _RedoWriter {
             Set<File> files = new LinkedHashSet<>(2);
 
             while (true) {
-                File file = fileFor(mBaseFile, mLogId);
-
-                InputStream in;
-                try {
-                    in = new FileInputStream(file);
-                } catch (FileNotFoundException e) {
+                InputStream in = openReplayFile();
+                if (in == null) {
                     break;
                 }
 
                 boolean finished;
                 try {
-                    if (mCrypto != null) {
-                        try {
-                            in = mCrypto.newDecryptingStream(mLogId, in);
-                        } catch (IOException e) {
-                            throw e;
-                        } catch (Exception e) {
-                            throw new DatabaseException(e);
-                        }
-                    }
-
                     if (listener != null) {
                         listener.notify(type, message, mLogId);
                     }
 
-                    files.add(file);
+                    files.add(replayFile());
 
-                    DataIn din = new DataIn.Stream(mPosition, in);
-                    finished = replay(din, visitor, listener);
-                    mPosition = din.mPos;
+                    finished = replay(in, visitor, listener);
                 } finally {
                     Utils.closeQuietly(null, in);
                 }
 
-                mLogId++;
-
                 if (!finished) {
                     // Last log file was truncated, so chuck the rest.
-                    Utils.deleteNumberedFiles(mBaseFile, _LocalDatabase.REDO_FILE_SUFFIX, mLogId);
+                    deleteReplayFiles();
                     break;
                 }
             }
@@ -194,32 +241,331 @@ final class _RedoLog extends _RedoWriter {
         }
     }
 
+    /**
+     * Returns the identifier of the file to be replayed next.
+     */
+    long replayLogId() {
+        return mLogId;
+    }
+
+    /**
+     * Returns the redo position at the start of the file to be replayed next.
+     */
+    long replayPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Returns the file to be replayed next.
+     */
+    File replayFile() {
+        return fileFor(mBaseFile, mLogId);
+    }
+
+    /**
+     * Opens the file to be replayed next, returning null if it doesn't exist.
+     */
+    InputStream openReplayFile() throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(replayFile());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        return decrypt(in);
+    }
+
+    /**
+     * Wraps the raw contents of the file to be replayed next, if encryption is enabled.
+     */
+    InputStream decrypt(InputStream in) throws IOException {
+        if (mCrypto != null) {
+            try {
+                in = mCrypto.newDecryptingStream(mLogId, in);
+            } catch (IOException e) {
+                Utils.closeQuietly(null, in);
+                throw e;
+            } catch (Exception e) {
+                Utils.closeQuietly(null, in);
+                throw new DatabaseException(e);
+            }
+        }
+
+        return in;
+    }
+
+    /**
+     * Replays the file which was opened by openReplayFile, and then advances to the next one.
+     *
+     * @return false if file was truncated
+     */
+    boolean replay(InputStream in, RedoVisitor visitor, EventListener listener)
+        throws IOException
+    {
+        InputStream body = replayHeader(in);
+        if (body == null) {
+            // Assume file was flushed improperly and discard it.
+            mLogId++;
+            return false;
+        }
+        return replayBody(body, visitor, listener);
+    }
+
+    /**
+     * Reads and verifies the header of the file which was opened by openReplayFile.
+     *
+     * @return stream of log contents which follow the header, decompressed if necessary; null
+     * if the file was flushed improperly
+     */
+    InputStream replayHeader(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+
+        int len = 0;
+        while (len < header.length) {
+            int amt = in.read(header, len, header.length - len);
+            if (amt <= 0) {
+                if (len < 8) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            len += amt;
+        }
+
+        int offset = 0;
+        long magic = Utils.decodeLongLE(header, offset); offset += 8;
+        if (magic != MAGIC_NUMBER) {
+            if (magic == 0) {
+                return null;
+            }
+            throw new DatabaseException("Incorrect magic number in redo log file");
+        }
+
+        int version = Utils.decodeIntLE(header, offset); offset += 4;
+        boolean compressed;
+        switch (version) {
+        case ENCODING_VERSION: case STRIPED_ENCODING_VERSION:
+            compressed = false;
+            break;
+        case COMPRESSED_ENCODING_VERSION: case STRIPED_COMPRESSED_ENCODING_VERSION:
+            compressed = true;
+            break;
+        default:
+            throw new DatabaseException("Unsupported redo log encoding version: " + version);
+        }
+
+        boolean striped = version == STRIPED_ENCODING_VERSION
+            || version == STRIPED_COMPRESSED_ENCODING_VERSION;
+        if (striped != (mSequence != null)) {
+            throw new DatabaseException
+                ("Redo log directories have changed since the log was written");
+        }
+
+        long id = Utils.decodeLongLE(header, offset); offset += 8;
+        if (id != mLogId) {
+            throw new DatabaseException
+                ("Expected redo log identifier of " + mLogId + ", but actual is: " + id);
+        }
+
+        mTermRndSeed = Utils.decodeIntLE(header, offset);
+
+        if (!compressed) {
+            return in;
+        }
+
+        // Only the last block of the last file can have been torn by a crash.
+        return new BlockCodec.Input(in, isLastReplayFile());
+    }
+
+    /**
+     * Replays the log contents which follow the header, and then advances to the next file.
+     *
+     * @param body stream returned by replayHeader, possibly wrapped
+     * @return false if file was truncated
+     */
+    boolean replayBody(InputStream body, RedoVisitor visitor, EventListener listener)
+        throws IOException
+    {
+        // Position doesn't account for the header, matching the positions of the writer.
+        return replayBody(new DataIn.Stream(mPosition, body), visitor, listener);
+    }
+
+    /**
+     * @param din stream returned by replayHeader, wrapped with a starting position
+     * @return false if file was truncated
+     */
+    boolean replayBody(DataIn din, RedoVisitor visitor, EventListener listener)
+        throws IOException
+    {
+        try {
+            return new _RedoLogDecoder(this, din, listener).run(visitor);
+        } catch (EOFException e) {
+            if (listener != null) {
+                listener.notify(EventType.RECOVERY_REDO_LOG_CORRUPTION, "Unexpected end of file");
+            }
+            return false;
+        } finally {
+            mPosition = din.mPos;
+            mLogId++;
+        }
+    }
+
+    /**
+     * Returns true if no file follows the one which is being replayed.
+     */
+    boolean isLastReplayFile() throws IOException {
+        // The next file can be a recycled spare, which has no header.
+        File next = fileFor(mBaseFile, mLogId + 1);
+        return !next.exists() || isCleared(next);
+    }
+
+    /**
+     * Deletes all files which would be replayed next.
+     */
+    void deleteReplayFiles() throws IOException {
+        Utils.deleteNumberedFiles(mBaseFile, _LocalDatabase.REDO_FILE_SUFFIX, mLogId);
+    }
+
     static void deleteOldFile(File baseFile, long logId) {
         fileFor(baseFile, logId).delete();
     }
 
+    /**
+     * Returns the position at which replay stops, as if the log was truncated.
+     */
+    long replayStopPosition() {
+        return mReplayStopPosition;
+    }
+
+    /**
+     * Moves a file which is no longer needed into the archive directory, or deletes it if the
+     * archive directory is null.
+     */
+    static void discardOldFile(File file, File archiveDir) throws IOException {
+        if (archiveDir == null) {
+            file.delete();
+        } else if (file.exists()) {
+            File archived = new File(archiveDir, file.getName());
+            Files.move(file.toPath(), archived.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            FileIO.dirSync(archived);
+        }
+    }
+
+    /**
+     * Moves all files of the given base into the archive directory, or deletes them if the
+     * archive directory is null.
+     */
+    static void discardAllFiles(File baseFile, File archiveDir) throws IOException {
+        if (archiveDir == null) {
+            Utils.deleteNumberedFiles(baseFile, _LocalDatabase.REDO_FILE_SUFFIX);
+            return;
+        }
+        for (long logId : Utils.numberedFiles(baseFile, _LocalDatabase.REDO_FILE_SUFFIX)) {
+            discardOldFile(fileFor(baseFile, logId), archiveDir);
+        }
+    }
+
+    /**
+     * Copies archived files into place for replay, starting with the given log id and
+     * stopping at the first one which doesn't exist. The archive directory is expected to
+     * only contain the files of one database, but the base file name can differ.
+     */
+    static void copyArchivedFiles(File baseFile, File archiveDir, long logId) throws IOException {
+        String suffix = _LocalDatabase.REDO_FILE_SUFFIX;
+        Map<Long, File> archived = new HashMap<>();
+
+        File[] files = archiveDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int ix = name.lastIndexOf(suffix);
+                if (ix > 0) {
+                    try {
+                        archived.put(Long.parseLong(name.substring(ix + suffix.length())), file);
+                    } catch (NumberFormatException e) {
+                        // Not a redo log file.
+                    }
+                }
+            }
+        }
+
+        File file;
+        while ((file = archived.get(logId)) != null) {
+            Files.copy(file.toPath(), fileFor(baseFile, logId).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            logId++;
+        }
+    }
+
+    /**
+     * When archiving, logs the current time if anything has been written since the last time
+     * this method was called. The timestamps allow archived files to be replayed up to a point
+     * in time. Caller must flush the context afterwards.
+     */
+    void archiveTimestamp(_TransactionContext context) throws IOException {
+        if (mArchiveDir == null) {
+            return;
+        }
+        acquireShared();
+        long position = mPosition;
+        releaseShared();
+        if (position != mTimestampPosition) {
+            context.redoTimestamp(this, RedoOps.OP_TIMESTAMP);
+            context.flush();
+            acquireShared();
+            mTimestampPosition = mPosition;
+            releaseShared();
+        }
+    }
+
     private void openNextFile(long logId) throws IOException {
-        byte[] header = new byte[8 + 4 + 8 + 4];
+        byte[] header = new byte[HEADER_SIZE];
 
         final File file = fileFor(mBaseFile, logId);
-        if (file.exists() && file.length() > header.length) {
-            throw new FileNotFoundException("Log file already exists: " + file.getPath());
-        }
 
-        if (mFileFactory != null) {
+        // A recycled file only has its header cleared, and it still contains the stale data
+        // of an old log. Nothing needs to be truncated, but the stale data must be hidden.
+        boolean recycled = false;
+        if (file.exists() && file.length() > header.length) {
+            if (!isCleared(file)) {
+                throw new FileNotFoundException("Log file already exists: " + file.getPath());
+            }
+            recycled = true;
+        } else if (mFileFactory != null) {
             mFileFactory.createFile(file);
         }
 
-        FileOutputStream fout = null;
+        OutputStream fout = null;
         OutputStream nextOut;
-        FileChannel nextChannel;
+        FileChannel nextChannel = null;
+        DirectRedoOutput nextDirectOut = null;
 
         // Zero indicates that Xorshift random numbers aren't used for terminators anymore.
         int nextTermRndSeed = 0;
 
         try {
-            fout = new FileOutputStream(file);
-            nextChannel = fout.getChannel();
+            if (mDirectIO) {
+                if (!recycled && mPreallocateSize > 0) {
+                    preallocate(file);
+                }
+                boolean truncate = !recycled && mPreallocateSize <= 0;
+                fout = nextDirectOut = new DirectRedoOutput(file, truncate, mBuffer.length * 8);
+            } else if (recycled || mPreallocateSize > 0) {
+                if (!recycled) {
+                    preallocate(file);
+                }
+                // Open without truncating, preserving the allocated blocks.
+                nextChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                if (recycled) {
+                    fout = new RecycledRedoOutput(nextChannel);
+                } else {
+                    fout = Channels.newOutputStream(nextChannel);
+                }
+            } else {
+                FileOutputStream fos = new FileOutputStream(file);
+                nextChannel = fos.getChannel();
+                fout = fos;
+            }
 
             if (mCrypto == null) {
                 nextOut = fout;
@@ -233,7 +579,7 @@ final class _RedoLog extends _RedoWriter {
 
             int offset = 0;
             Utils.encodeLongLE(header, offset, MAGIC_NUMBER); offset += 8;
-            Utils.encodeIntLE(header, offset, ENCODING_VERSION); offset += 4;
+            Utils.encodeIntLE(header, offset, encodingVersion()); offset += 4;
             Utils.encodeLongLE(header, offset, logId); offset += 8;
             Utils.encodeIntLE(header, offset, nextTermRndSeed); offset += 4;
             if (offset != header.length) {
@@ -242,6 +588,11 @@ final class _RedoLog extends _RedoWriter {
 
             nextOut.write(header);
 
+            if (mCompress) {
+                // Header isn't compressed, allowing replay to examine the encoding version.
+                nextOut = new BlockCodec.Output(nextOut);
+            }
+
             // Make sure that parent directory durably records the new log file.
             FileIO.dirSync(file);
         } catch (IOException e) {
@@ -253,13 +604,22 @@ final class _RedoLog extends _RedoWriter {
         mNextLogId = logId;
         mNextOut = nextOut;
         mNextChannel = nextChannel;
+        mNextDirectOut = nextDirectOut;
         mNextTermRndSeed = nextTermRndSeed;
     }
 
     private void applyNextFile(_TransactionContext... contexts) throws IOException {
-        final OutputStream oldOut;
-        final FileChannel oldChannel;
+        endFile(contexts);
+        beginNextFile(contexts[0]);
+    }
 
+    /**
+     * Flushes all contexts and then ends the current file, if any. Must be followed by a call
+     * to beginNextFile.
+     *
+     * @param contexts all contexts which flush into this
+     */
+    void endFile(_TransactionContext[] contexts) throws IOException {
         _TransactionContext context = contexts[0];
         for (int i = contexts.length; --i >= 1; ) {
             contexts[i].flush();
@@ -267,24 +627,43 @@ final class _RedoLog extends _RedoWriter {
 
         context.fullAcquireRedoLatch(this);
         try {
-            oldOut = mOut;
-            oldChannel = mChannel;
-
-            if (oldOut != null) {
+            if (mOut != null) {
                 context.doRedoTimestamp(this, RedoOps.OP_END_FILE);
                 context.doFlush();
                 doFlush();
             }
+        } finally {
+            context.releaseRedoLatch();
+        }
+    }
+
+    /**
+     * Switches to the file which was opened by openNextFile.
+     */
+    void beginNextFile(_TransactionContext context) throws IOException {
+        final OutputStream oldOut;
+        final FileChannel oldChannel;
+
+        context.fullAcquireRedoLatch(this);
+        try {
+            oldOut = mOut;
+            oldChannel = mChannel;
 
             mNextPosition = mPosition;
 
             mOut = mNextOut;
             mChannel = mNextChannel;
+            mDirectOut = mNextDirectOut;
             mTermRndSeed = mNextTermRndSeed;
             mLogId = mNextLogId;
 
+            synchronized (mFileStarts) {
+                mFileStarts.put(mLogId, mPosition);
+            }
+
             mNextOut = null;
             mNextChannel = null;
+            mNextDirectOut = null;
 
             // Reset the transaction id early in order for terminators to be encoded correctly.
             // _RedoLogDecoder always starts with an initial transaction id of 0.
@@ -293,6 +672,12 @@ final class _RedoLog extends _RedoWriter {
             context.doRedoTimestamp(this, RedoOps.OP_TIMESTAMP);
             context.doRedoReset(this);
 
+            // Operations which aren't in a transaction are all terminated by the hash of the
+            // last transaction id, which is the same in every file unless it's salted. A
+            // recycled file still has the stale operations of an old log, and they must not
+            // be verified if a torn write exposes them.
+            context.doRedoTxnIdReset(this, ThreadLocalRandom.current().nextLong());
+
             context.doFlush();
         } finally {
             context.releaseRedoLatch();
@@ -305,10 +690,75 @@ final class _RedoLog extends _RedoWriter {
         mOldChannel = oldChannel;
     }
 
+    /**
+     * Extends the length of a new log file, such that writing to it and forcing it doesn't
+     * need to also persist changes to the file length.
+     */
+    private void preallocate(File file) throws IOException {
+        try (FileIO fio = FileIO.open(file, EnumSet.of(OpenOption.CREATE))) {
+            fio.setLength(mPreallocateSize, LengthOption.PREALLOCATE_ALWAYS);
+            fio.sync(true);
+        }
+    }
+
+    /**
+     * Returns true if the log file has no header, which is how recycled files are identified.
+     */
+    private static boolean isCleared(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            for (int i=0; i<8; i++) {
+                if (in.read() > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Clears the header of an old log file and renames it to be used by a future checkpoint.
+     * When the log file is later written to, the file length doesn't change, and the writes
+     * don't allocate any new blocks. The rest of the old log remains, and so the file must be
+     * written using a {@link RecycledRedoOutput}, or using direct I/O, which pads the tail.
+     *
+     * @return false if the old file wasn't recycled
+     */
+    private boolean recycleOldFile(long oldLogId, long newLogId) {
+        File oldFile = fileFor(mBaseFile, oldLogId);
+        File newFile = fileFor(mBaseFile, newLogId);
+
+        if (!oldFile.exists() || newFile.exists()) {
+            return false;
+        }
+
+        try {
+            try (FileChannel channel = FileChannel.open(oldFile.toPath(),
+                                                        StandardOpenOption.WRITE))
+            {
+                // Clearing the entire file would double the amount of redo log I/O.
+                ByteBuffer zeros = ByteBuffer.allocate
+                    ((int) Math.min(channel.size(), DirectRedoOutput.BLOCK_SIZE));
+                while (zeros.hasRemaining()) {
+                    channel.write(zeros, zeros.position());
+                }
+                // Replay must never observe the old header under the new name.
+                channel.force(true);
+            }
+
+            if (oldFile.renameTo(newFile)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Fall back to deleting it.
+        }
+
+        return false;
+    }
+
     /**
      * @return null if non-durable
      */
-    private static File fileFor(File base, long logId) {
+    static File fileFor(File base, long logId) {
         return base == null ? null : new File(base.getPath() + ".redo." + logId);
     }
 
@@ -339,8 +789,13 @@ final class _RedoLog extends _RedoWriter {
     @Override
     boolean shouldCheckpoint(long size) {
         try {
+            DirectRedoOutput directOut = mDirectOut;
+            if (directOut != null) {
+                return directOut.position() >= size;
+            }
+            // Examine the position instead of the size, which is fixed if preallocated.
             FileChannel channel = mChannel;
-            return channel != null && channel.size() >= size;
+            return channel != null && channel.position() >= size;
         } catch (IOException e) {
             return false;
         }
@@ -385,6 +840,11 @@ final class _RedoLog extends _RedoWriter {
         if (mNextOut != null) {
             Utils.closeQuietly(null, mNextOut);
             mNextOut = null;
+            mNextDirectOut = null;
+            if (mPreallocateSize > 0) {
+                // File has a header and cannot be opened again by the next checkpoint.
+                deleteOldFile(mBaseFile, mNextLogId);
+            }
         }
     }
 
@@ -419,12 +879,100 @@ final class _RedoLog extends _RedoWriter {
         mOldChannel = null;
         Utils.closeQuietly(null, mOldOut);
         long id = mDeleteLogId;
-        for (; id < mNextLogId; id++) {
-            // Typically deletes one file, but more will accumulate if checkpoints abort.
-            deleteOldFile(mBaseFile, id);
+        // Archived files cannot be recycled.
+        boolean recycle = mPreallocateSize > 0 && mArchiveDir == null;
+        try {
+            synchronized (mFileStarts) {
+                long endId = mNextLogId;
+                for (_RedoSubscriber s : mSubscribers) {
+                    // Retain the files which haven't been completely read by the subscribers.
+                    endId = Math.min(endId, s.logId());
+                }
+                for (; id < endId; id++) {
+                    // The next checkpoint creates the log file after the current one.
+                    if (recycle && recycleOldFile(id, mNextLogId + 1)) {
+                        recycle = false;
+                    } else {
+                        // Typically deletes one file, but more will accumulate if
+                        // checkpoints abort.
+                        discardOldFile(fileFor(mBaseFile, id), mArchiveDir);
+                    }
+                    mFileStarts.remove(id);
+                }
+            }
+        } finally {
+            // Log will be deleted after next checkpoint finishes.
+            mDeleteLogId = id;
         }
-        // Log will be deleted after next checkpoint finishes.
-        mDeleteLogId = id;
+    }
+
+    /**
+     * @param position start position; pass a negative value to start at the current position
+     * @see Database#subscribe
+     */
+    _RedoSubscriber subscribe(RedoListener listener, long position) throws IOException {
+        if (mSequence != null || mPreallocateSize > 0 || mDirectIO) {
+            // Zeros at the end of the file cannot be distinguished from unwritten data.
+            throw new UnsupportedOperationException
+                ("Redo log subscription isn't supported when the redo log is striped, " +
+                 "preallocated, or written using direct I/O");
+        }
+
+        if (position < 0) {
+            acquireShared();
+            position = mPosition;
+            releaseShared();
+        }
+
+        synchronized (mFileStarts) {
+            if (mFileStarts.isEmpty()) {
+                throw new IllegalStateException("Redo log is closed");
+            }
+
+            Map.Entry<Long, Long> first = mFileStarts.firstEntry();
+            if (position < first.getValue()) {
+                throw new DatabaseException
+                    ("Redo log position is no longer available: " + position);
+            }
+
+            // Decode from the oldest file, to capture transactions which began before the
+            // start position. Only the commits which follow the position are passed along.
+            _RedoSubscriber s = new _RedoSubscriber(this, listener, first.getKey(), position);
+            mSubscribers.add(s);
+            s.start();
+            return s;
+        }
+    }
+
+    void unsubscribe(_RedoSubscriber s) {
+        synchronized (mFileStarts) {
+            mSubscribers.remove(s);
+        }
+    }
+
+    /**
+     * Returns a new replay mode instance for decoding a file which is being written, or
+     * returns null if the file has been deleted.
+     */
+    _RedoLog openSubscriberLog(long logId) throws IOException {
+        Long start;
+        synchronized (mFileStarts) {
+            start = mFileStarts.get(logId);
+        }
+        if (start == null) {
+            return null;
+        }
+        return new _RedoLog(mCrypto, mBaseFile, null, 0, null, false, false, logId, start, null);
+    }
+
+    /**
+     * Returns the id of the file which is currently being written.
+     */
+    long currentLogId() {
+        acquireShared();
+        long logId = mLogId;
+        releaseShared();
+        return logId;
     }
 
     @Override
@@ -441,6 +989,11 @@ final class _RedoLog extends _RedoWriter {
     @Override
     long write(boolean commit, byte[] bytes, int offset, int length) throws IOException {
         try {
+            if (mSequence != null) {
+                writeFrame(bytes, offset, length);
+                return mPosition += length;
+            }
+
             byte[] buf = mBuffer;
             int avail = buf.length - mBufferPos;
 
@@ -477,6 +1030,35 @@ final class _RedoLog extends _RedoWriter {
         }
     }
 
+    /**
+     * Writes a frame without buffering it. If frames were buffered, then a frame with a higher
+     * sequence number in another stripe could be persisted first, and recovery would stop at
+     * the gap. For the same reason, the sequence tracks the frames which are being written,
+     * and forcing the log waits for them to finish.
+     */
+    private void writeFrame(byte[] bytes, int offset, int length) throws IOException {
+        FrameSequence sequence = mSequence;
+        byte[] buf = mBuffer;
+        long ticket = sequence.begin(buf, 0);
+        Throwable failure = null;
+        try {
+            Utils.encodeIntLE(buf, 8, length);
+            int frameLength = FRAME_HEADER_SIZE + length;
+            if (frameLength <= buf.length) {
+                System.arraycopy(bytes, offset, buf, FRAME_HEADER_SIZE, length);
+                mOut.write(buf, 0, frameLength);
+            } else {
+                mOut.write(buf, 0, FRAME_HEADER_SIZE);
+                mOut.write(bytes, offset, length);
+            }
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            sequence.written(ticket, failure);
+        }
+    }
+
     @Override
     void alwaysFlush(boolean enable) throws IOException {
         acquireExclusive();
@@ -526,6 +1108,15 @@ final class _RedoLog extends _RedoWriter {
 
     @Override
     public void close() throws IOException {
+        _RedoSubscriber[] subscribers;
+        synchronized (mFileStarts) {
+            mFileStarts.clear();
+            subscribers = mSubscribers.toArray(new _RedoSubscriber[mSubscribers.size()]);
+        }
+        for (_RedoSubscriber s : subscribers) {
+            s.closeAsync();
+        }
+
         Utils.closeQuietly(null, mOldOut);
 
         FileChannel channel = mChannel;
@@ -540,48 +1131,16 @@ final class _RedoLog extends _RedoWriter {
         Utils.closeQuietly(null, mOut);
     }
 
+    private int encodingVersion() {
+        if (mSequence == null) {
+            return mCompress ? COMPRESSED_ENCODING_VERSION : ENCODING_VERSION;
+        } else {
+            return mCompress ? STRIPED_COMPRESSED_ENCODING_VERSION : STRIPED_ENCODING_VERSION;
+        }
+    }
+
     // Caller must hold exclusive latch (replay is exempt)
     int nextTermRnd() {
         return mTermRndSeed = Utils.nextRandom(mTermRndSeed);
     }
-
-    private boolean replay(DataIn in, RedoVisitor visitor, EventListener listener)
-        throws IOException
-    {
-        try {
-            long magic = in.readLongLE();
-            if (magic != MAGIC_NUMBER) {
-                if (magic == 0) {
-                    // Assume file was flushed improperly and discard it.
-                    return false;
-                }
-                throw new DatabaseException("Incorrect magic number in redo log file");
-            }
-        } catch (EOFException e) {
-            // Assume file was flushed improperly and discard it.
-            return false;
-        }
-
-        int version = in.readIntLE();
-        if (version != ENCODING_VERSION) {
-            throw new DatabaseException("Unsupported redo log encoding version: " + version);
-        }
-
-        long id = in.readLongLE();
-        if (id != mLogId) {
-            throw new DatabaseException
-                ("Expected redo log identifier of " + mLogId + ", but actual is: " + id);
-        }
-
-        mTermRndSeed = in.readIntLE();
-
-        try {
-            return new _RedoLogDecoder(this, in, listener).run(visitor);
-        } catch (EOFException e) {
-            if (listener != null) {
-                listener.notify(EventType.RECOVERY_REDO_LOG_CORRUPTION, "Unexpected end of file");
-            }
-            return false;
-        }
-    }
 }
@@ -19,46 +19,114 @@ package org.cojen.tupl;
 
 import java.io.IOException;
 
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.cojen.tupl.ext.TransactionHandler;
 
+import org.cojen.tupl.util.Worker;
+import org.cojen.tupl.util.WorkerGroup;
+
+import static org.cojen.tupl.Utils.*;
+
 /**
- * 
+ * Applies redo log operations during local recovery. When more than one thread is allowed,
+ * operations are handed off to worker threads, partitioned by transaction. Locks are acquired
+ * by the decoding thread before handing off each operation, ensuring that changes to the same
+ * key are applied in the same order as they were originally made.
  *
  * @author Generated by PageAccessTransformer from RedoLogApplier.java
  * @see RedoLogRecovery
  */
 /*P*/
-final class _RedoLogApplier implements RedoVisitor {
+final class _RedoLogApplier implements RedoVisitor, ThreadFactory {
+    private static final int MAX_QUEUE_SIZE = 100;
+    private static final int MAX_KEEP_ALIVE_MILLIS = 60_000;
+    private static final long INFINITE_TIMEOUT = -1L;
+
     private final _LocalDatabase mDatabase;
     private final LHashTable.Obj<_LocalTransaction> mTransactions;
     private final LHashTable.Obj<Index> mIndexes;
 
+    // Is null if all operations are applied by the decoding thread.
+    private final WorkerGroup mWorkerGroup;
+
+    // Worker assigned to each transaction, when a worker group is used.
+    private final LHashTable.Obj<Worker> mWorkers;
+
+    private volatile Throwable mFailure;
+
     long mHighestTxnId;
 
-    _RedoLogApplier(_LocalDatabase db, LHashTable.Obj<_LocalTransaction> txns) {
+    // Stop applying changes at the first timestamp which is after this one.
+    long mStopTimestamp = Long.MAX_VALUE;
+
+    /**
+     * @param maxThreads maximum number of threads to apply changes with, including the
+     * calling thread
+     * @param txns recovered transactions
+     */
+    _RedoLogApplier(int maxThreads, _LocalDatabase db, LHashTable.Obj<_LocalTransaction> txns) {
         mDatabase = db;
         mTransactions = txns;
         mIndexes = new LHashTable.Obj<>(16);
+
+        if (maxThreads <= 1) {
+            mWorkerGroup = null;
+            mWorkers = null;
+        } else {
+            mWorkerGroup = WorkerGroup.make(maxThreads - 1, // one thread is the decoder
+                                            MAX_QUEUE_SIZE,
+                                            MAX_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                                            this); // ThreadFactory
+            mWorkers = new LHashTable.Obj<>(16);
+
+            // The decoding thread might need to wait for a lock to be released by a worker.
+            txns.traverse(e -> {
+                e.value.lockTimeout(INFINITE_TIMEOUT, TimeUnit.NANOSECONDS);
+                return false;
+            });
+        }
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.setName("RedoRecovery-" + Long.toUnsignedString(t.getId()));
+        return t;
+    }
+
+    /**
+     * Waits for all operations to be applied and stops the worker threads. Must be called
+     * after the redo log has been replayed, even if replay failed. The first exception thrown
+     * by any worker thread is rethrown.
+     */
+    void finish() throws IOException {
+        if (mWorkerGroup != null) {
+            mWorkerGroup.join(true);
+            checkFailure();
+        }
     }
 
     @Override
     public boolean timestamp(long timestamp) {
-        return true;
+        return timestamp <= mStopTimestamp;
     }
 
     @Override
     public boolean shutdown(long timestamp) {
-        return true;
+        return timestamp <= mStopTimestamp;
     }
 
     @Override
     public boolean close(long timestamp) {
-        return true;
+        return timestamp <= mStopTimestamp;
     }
 
     @Override
     public boolean endFile(long timestamp) {
-        return true;
+        return timestamp <= mStopTimestamp;
     }
 
     @Override
@@ -73,14 +141,39 @@ final class _RedoLogApplier implements RedoVisitor {
 
     @Override
     public boolean store(long indexId, byte[] key, byte[] value) throws IOException {
-        // No need to actually acquire a lock for log based recovery.
-        return storeNoLock(indexId, key, value);
+        Index ix = openIndex(indexId);
+        if (ix != null) {
+            if (mWorkerGroup == null) {
+                // No need to actually acquire a lock when applying changes in order.
+                ix.store(Transaction.BOGUS, key, value);
+            } else {
+                // Must acquire the lock before task is enqueued.
+                _Locker locker = new _Locker(mDatabase.mLockManager);
+                locker.tryLockUpgradable(indexId, key, INFINITE_TIMEOUT);
+
+                runTaskAnywhere(new Task() {
+                    void doRun() throws IOException {
+                        try {
+                            // Full exclusive lock is required.
+                            locker.lockExclusive(indexId, key, INFINITE_TIMEOUT);
+                            ix.store(Transaction.BOGUS, key, value);
+                        } finally {
+                            locker.scopeUnlockAll();
+                        }
+                    }
+                });
+            }
+        }
+        return true;
     }
 
     @Override
     public boolean storeNoLock(long indexId, byte[] key, byte[] value) throws IOException {
         Index ix = openIndex(indexId);
         if (ix != null) {
+            // Change was originally made without a lock, and so its order relative to other
+            // changes can only be preserved by waiting for all of them to be applied.
+            join();
             ix.store(Transaction.BOGUS, key, value);
         }
         return true;
@@ -91,6 +184,7 @@ final class _RedoLogApplier implements RedoVisitor {
         checkHighest(txnId);
         Index ix = openIndex(indexId);
         if (ix != null) {
+            join();
             mDatabase.renameIndex(ix, newName, txnId);
         }
         return true;
@@ -100,6 +194,9 @@ final class _RedoLogApplier implements RedoVisitor {
     public boolean deleteIndex(long txnId, long indexId) throws IOException {
         _LocalTransaction txn = txn(txnId);
 
+        // Wait for all changes against the index to be applied before closing it.
+        join();
+
         // Close the index for now. After recovery is complete, trashed indexes are deleted in
         // a separate thread.
 
@@ -124,19 +221,29 @@ final class _RedoLogApplier implements RedoVisitor {
     public boolean txnEnter(long txnId) throws IOException {
         _LocalTransaction txn = txn(txnId);
         if (txn == null) {
-            txn = new _LocalTransaction(mDatabase, txnId, LockMode.UPGRADABLE_READ, 0L);
+            long timeoutNanos = mWorkerGroup == null ? 0L : INFINITE_TIMEOUT;
+            txn = new _LocalTransaction(mDatabase, txnId, LockMode.UPGRADABLE_READ, timeoutNanos);
             mTransactions.insert(txnId).value = txn;
         } else {
-            txn.enter();
+            _LocalTransaction t = txn;
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    t.enter();
+                }
+            });
         }
         return true;
     }
 
     @Override
     public boolean txnRollback(long txnId) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            txn.exit();
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    txn.exit();
+                }
+            });
         }
         return true;
     }
@@ -144,19 +251,27 @@ final class _RedoLogApplier implements RedoVisitor {
     @Override
     public boolean txnRollbackFinal(long txnId) throws IOException {
         checkHighest(txnId);
-        Transaction txn = mTransactions.removeValue(txnId);
+        _LocalTransaction txn = mTransactions.removeValue(txnId);
         if (txn != null) {
-            txn.reset();
+            runFinalTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    txn.reset();
+                }
+            });
         }
         return true;
     }
 
     @Override
     public boolean txnCommit(long txnId) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            txn.commit();
-            txn.exit();
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    txn.commit();
+                    txn.exit();
+                }
+            });
         }
         return true;
     }
@@ -166,7 +281,11 @@ final class _RedoLogApplier implements RedoVisitor {
         checkHighest(txnId);
         _LocalTransaction txn = mTransactions.removeValue(txnId);
         if (txn != null) {
-            txn.commitAll();
+            runFinalTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    txn.commitAll();
+                }
+            });
         }
         return true;
     }
@@ -183,12 +302,9 @@ final class _RedoLogApplier implements RedoVisitor {
     public boolean txnStore(long txnId, long indexId, byte[] key, byte[] value)
         throws IOException
     {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            Index ix = openIndex(indexId);
-            if (ix != null) {
-                ix.store(txn, key, value);
-            }
+            txnStore(txn, txnId, indexId, key, value);
         }
         return true;
     }
@@ -211,41 +327,76 @@ final class _RedoLogApplier implements RedoVisitor {
 
     @Override
     public boolean txnLockShared(long txnId, long indexId, byte[] key) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            txn.lockShared(indexId, key);
+            if (mWorkerGroup == null) {
+                txn.lockShared(indexId, key);
+            } else {
+                // Acquire the lock on behalf of the transaction, but push it using the
+                // correct thread.
+                _Lock lock = txn.lockSharedNoPush(indexId, key);
+                if (lock != null) {
+                    runTask(txnId, new Task() {
+                        void doRun() throws IOException {
+                            txn.push(lock);
+                        }
+                    });
+                }
+            }
         }
         return true;
     }
 
     @Override
     public boolean txnLockUpgradable(long txnId, long indexId, byte[] key) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            txn.lockUpgradable(indexId, key);
+            if (mWorkerGroup == null) {
+                txn.lockUpgradable(indexId, key);
+            } else {
+                // Acquire the lock on behalf of the transaction, but push it using the
+                // correct thread.
+                _Lock lock = txn.lockUpgradableNoPush(indexId, key);
+                if (lock != null) {
+                    runTask(txnId, new Task() {
+                        void doRun() throws IOException {
+                            txn.push(lock);
+                        }
+                    });
+                }
+            }
         }
         return true;
     }
 
     @Override
     public boolean txnLockExclusive(long txnId, long indexId, byte[] key) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
-            txn.lockExclusive(indexId, key);
+            _Lock lock = lockUpgradable(txn, indexId, key);
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    if (lock != null) {
+                        txn.push(lock);
+                    }
+                    txn.lockExclusive(indexId, key);
+                }
+            });
         }
         return true;
     }
 
     @Override
     public boolean txnCustom(long txnId, byte[] message) throws IOException {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
             _LocalDatabase db = mDatabase;
-            TransactionHandler handler = db.mCustomTxnHandler;
-            if (handler == null) {
-                throw new DatabaseException("Custom transaction handler is not installed");
-            }
-            handler.redo(db, txn, message);
+            TransactionHandler handler = customHandler();
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    handler.redo(db, txn, message);
+                }
+            });
         }
         return true;
     }
@@ -254,19 +405,62 @@ final class _RedoLogApplier implements RedoVisitor {
     public boolean txnCustomLock(long txnId, byte[] message, long indexId, byte[] key)
         throws IOException
     {
-        Transaction txn = txn(txnId);
+        _LocalTransaction txn = txn(txnId);
         if (txn != null) {
             _LocalDatabase db = mDatabase;
-            TransactionHandler handler = db.mCustomTxnHandler;
-            if (handler == null) {
-                throw new DatabaseException("Custom transaction handler is not installed");
-            }
-            txn.lockExclusive(indexId, key);
-            handler.redo(db, txn, message, indexId, key);
+            TransactionHandler handler = customHandler();
+            _Lock lock = lockUpgradable(txn, indexId, key);
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    if (lock != null) {
+                        txn.push(lock);
+                    }
+                    txn.lockExclusive(indexId, key);
+                    handler.redo(db, txn, message, indexId, key);
+                }
+            });
         }
         return true;
     }
 
+    private void txnStore(_LocalTransaction txn, long txnId,
+                          long indexId, byte[] key, byte[] value)
+        throws IOException
+    {
+        Index ix = openIndex(indexId);
+        if (ix != null) {
+            _Lock lock = lockUpgradable(txn, indexId, key);
+            runTask(txnId, new Task() {
+                void doRun() throws IOException {
+                    if (lock != null) {
+                        txn.push(lock);
+                    }
+                    ix.store(txn, key, value);
+                }
+            });
+        }
+    }
+
+    /**
+     * When using worker threads, acquires an upgradable lock on behalf of the transaction,
+     * which must then be pushed by the task.
+     *
+     * @return null if not using worker threads or if lock is already owned
+     */
+    private _Lock lockUpgradable(_LocalTransaction txn, long indexId, byte[] key)
+        throws LockFailureException
+    {
+        return mWorkerGroup == null ? null : txn.lockUpgradableNoPush(indexId, key);
+    }
+
+    private TransactionHandler customHandler() throws DatabaseException {
+        TransactionHandler handler = mDatabase.mCustomTxnHandler;
+        if (handler == null) {
+            throw new DatabaseException("Custom transaction handler is not installed");
+        }
+        return handler;
+    }
+
     private _LocalTransaction txn(long txnId) {
         checkHighest(txnId);
         return mTransactions.getValue(txnId);
@@ -290,4 +484,89 @@ final class _RedoLogApplier implements RedoVisitor {
         }
         return ix;
     }
+
+    /**
+     * Runs the task immediately if not using worker threads. Otherwise, selects a worker for
+     * the first task against the given transaction, and then uses the same worker for
+     * subsequent tasks.
+     */
+    private void runTask(long txnId, Task task) throws IOException {
+        if (mWorkerGroup == null) {
+            task.doRun();
+            return;
+        }
+
+        checkFailure();
+
+        LHashTable.ObjEntry<Worker> entry = mWorkers.get(txnId);
+        if (entry == null) {
+            mWorkers.insert(txnId).value = mWorkerGroup.enqueue(task);
+        } else {
+            entry.value.enqueue(task);
+        }
+    }
+
+    /**
+     * Runs the last task against the given transaction.
+     */
+    private void runFinalTask(long txnId, Task task) throws IOException {
+        if (mWorkerGroup == null) {
+            task.doRun();
+            return;
+        }
+
+        checkFailure();
+
+        Worker w = mWorkers.removeValue(txnId);
+        if (w == null) {
+            mWorkerGroup.enqueue(task);
+        } else {
+            w.enqueue(task);
+        }
+    }
+
+    private void runTaskAnywhere(Task task) throws IOException {
+        checkFailure();
+        mWorkerGroup.enqueue(task);
+    }
+
+    /**
+     * Waits for all enqueued tasks to finish, if using worker threads.
+     */
+    private void join() throws IOException {
+        if (mWorkerGroup != null) {
+            mWorkerGroup.join(false);
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = mFailure;
+        if (e != null) {
+            throw rethrow(e);
+        }
+    }
+
+    private void failed(Throwable e) {
+        synchronized (this) {
+            if (mFailure == null) {
+                mFailure = e;
+                return;
+            }
+        }
+        suppress(mFailure, e);
+    }
+
+    private abstract class Task extends Worker.Task {
+        @Override
+        public final void run() {
+            try {
+                doRun();
+            } catch (Throwable e) {
+                failed(e);
+            }
+        }
+
+        abstract void doRun() throws IOException;
+    }
 }
@@ -39,7 +39,7 @@ abstract class _RedoWriter extends Latch implements Closeable {
     _RedoWriter() {
     }
 
-    final void closeCause(Throwable cause) {
+    void closeCause(Throwable cause) {
         if (cause != null) {
             acquireExclusive();
             if (mCloseCause == null) {
@@ -71,6 +71,14 @@ abstract class _RedoWriter extends Latch implements Closeable {
      */
     abstract _RedoWriter txnRedoWriter();
 
+    /**
+     * Returns the _RedoWriter which the given context writes into, which is this one by
+     * default. A striped writer returns one of its stripes.
+     */
+    _RedoWriter stripeFor(_TransactionContext context) {
+        return this;
+    }
+
     /**
      * Writes a fence operation into this _RedoWriter.
      *
@@ -0,0 +1,633 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Redo log which is striped across several directories. Each stripe is an ordinary _RedoLog,
+ * except that every write is framed with a sequence number which is shared by all the
+ * stripes. Recovery decodes each stripe with a separate thread, and the threads take turns
+ * applying the frames in sequence order.
+ *
+ * @author Generated by PageAccessTransformer from StripedRedoLog.java
+ * @see DatabaseConfig#redoLogDirectories
+ */
+/*P*/
+final class _StripedRedoLog extends _RedoWriter {
+    private final _RedoLog[] mStripes;
+    private final FrameSequence mSequence;
+
+    /**
+     * Open for replay.
+     *
+     * @param baseFiles base file for each stripe
+     * @param logId first log id to open
+     */
+    _StripedRedoLog(DatabaseConfig config, File[] baseFiles, long logId, long redoPos)
+        throws IOException
+    {
+        mSequence = new FrameSequence(baseFiles.length);
+        mStripes = new _RedoLog[baseFiles.length];
+        for (int i=0; i<baseFiles.length; i++) {
+            // Only the first stripe tracks the position from the previous checkpoint, but the
+            // sum of all positions always increases.
+            mStripes[i] = new _RedoLog(config.mCrypto, baseFiles[i], config.mFileFactory, 0,
+                                      mSequence, false, false, logId, i == 0 ? redoPos : 0,
+                                      null);
+        }
+    }
+
+    /**
+     * Open after replay.
+     *
+     * @param context used for creating next log files; must not be null
+     */
+    _StripedRedoLog(DatabaseConfig config, _StripedRedoLog replayed, _TransactionContext context)
+        throws IOException
+    {
+        // New log files begin a new sequence, which is shared with the replayed stripes.
+        mSequence = replayed.mSequence;
+        mSequence.reset();
+
+        _RedoLog[] stripes = new _RedoLog[replayed.mStripes.length];
+        try {
+            for (int i=0; i<stripes.length; i++) {
+                stripes[i] = new _RedoLog(config, replayed.mStripes[i], context);
+            }
+        } catch (Throwable e) {
+            for (_RedoLog stripe : stripes) {
+                Utils.closeQuietly(null, stripe);
+            }
+            throw e;
+        }
+
+        mStripes = stripes;
+    }
+
+    /**
+     * @return all the files which were replayed
+     */
+    Set<File> replay(RedoVisitor visitor, EventListener listener, EventType type, String message)
+        throws IOException
+    {
+        _RedoLog[] stripes = mStripes;
+        Set<File> files = new LinkedHashSet<>(stripes.length * 2);
+        InputStream[] ins = new InputStream[stripes.length];
+
+        while (true) {
+            boolean finished;
+            try {
+                int found = 0;
+                for (int i=0; i<stripes.length; i++) {
+                    if ((ins[i] = stripes[i].openReplayFile()) != null) {
+                        found++;
+                    }
+                }
+
+                if (found < stripes.length) {
+                    if (found > 0) {
+                        // Stripes are switched to new files only after all of them have been
+                        // created, and so the files which exist are empty.
+                        for (_RedoLog stripe : stripes) {
+                            stripe.deleteReplayFiles();
+                        }
+                    }
+                    break;
+                }
+
+                if (listener != null) {
+                    listener.notify(type, message, stripes[0].replayLogId());
+                }
+
+                for (_RedoLog stripe : stripes) {
+                    files.add(stripe.replayFile());
+                }
+
+                finished = replay(ins, visitor, listener);
+            } finally {
+                for (int i=0; i<ins.length; i++) {
+                    Utils.closeQuietly(null, ins[i]);
+                    ins[i] = null;
+                }
+            }
+
+            if (!finished) {
+                // Last log files were truncated, so chuck the rest.
+                for (_RedoLog stripe : stripes) {
+                    stripe.deleteReplayFiles();
+                }
+                break;
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Replays one file from each stripe, with a thread per stripe.
+     *
+     * @return false if any file was truncated
+     */
+    private boolean replay(InputStream[] ins, RedoVisitor visitor, EventListener listener)
+        throws IOException
+    {
+        Turns turns = new Turns(ins.length);
+
+        Replayer[] replayers = new Replayer[ins.length];
+        for (int i=0; i<ins.length; i++) {
+            replayers[i] = new Replayer(mStripes[i], ins[i], turns, i, visitor, listener);
+        }
+
+        Thread[] threads = new Thread[replayers.length - 1];
+        for (int i=0; i<threads.length; i++) {
+            Thread t = new Thread(replayers[i + 1]);
+            t.setDaemon(true);
+            t.setName("RedoReplay-" + Long.toUnsignedString(t.getId()));
+            t.start();
+            threads[i] = t;
+        }
+
+        replayers[0].run();
+
+        for (Thread t : threads) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {
+                    // Cannot return until all threads have exited.
+                    turns.end();
+                }
+            }
+        }
+
+        boolean finished = !turns.isEnded();
+
+        Throwable failure = null;
+        for (Replayer r : replayers) {
+            if (r.mFailure != null) {
+                if (failure == null) {
+                    failure = r.mFailure;
+                } else {
+                    Utils.suppress(failure, r.mFailure);
+                }
+            }
+            finished &= r.mFinished;
+        }
+
+        if (failure != null) {
+            throw Utils.rethrow(failure);
+        }
+
+        return finished;
+    }
+
+    @Override
+    void closeCause(Throwable cause) {
+        super.closeCause(cause);
+        for (_RedoLog stripe : mStripes) {
+            stripe.closeCause(cause);
+        }
+    }
+
+    @Override
+    void txnCommitSync(_LocalTransaction txn, long commitPos) throws IOException {
+        try {
+            // Every stripe must be forced, because recovery stops at the first missing frame.
+            // The force method also waits for frames which are still being written.
+            force(false);
+        } catch (IOException e) {
+            throw Utils.rethrow(e, mCloseCause);
+        }
+    }
+
+    @Override
+    void txnCommitPending(_PendingTxn pending) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    final long encoding() {
+        return 0;
+    }
+
+    @Override
+    final _RedoWriter txnRedoWriter() {
+        return this;
+    }
+
+    @Override
+    _RedoWriter stripeFor(_TransactionContext context) {
+        _RedoLog[] stripes = mStripes;
+        return stripes[(System.identityHashCode(context) & 0x7fffffff) % stripes.length];
+    }
+
+    @Override
+    boolean shouldCheckpoint(long size) {
+        // Assume that the stripes grow evenly.
+        _RedoLog[] stripes = mStripes;
+        long stripeSize = size / stripes.length;
+        for (_RedoLog stripe : stripes) {
+            if (stripe.shouldCheckpoint(stripeSize)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    void checkpointPrepare() throws IOException {
+        for (_RedoLog stripe : mStripes) {
+            stripe.checkpointPrepare();
+        }
+    }
+
+    @Override
+    void checkpointSwitch(_TransactionContext[] contexts) throws IOException {
+        // All stripes must end their files before any new file is written to, ensuring that
+        // every frame in the old files precedes every frame in the new files.
+        for (_RedoLog stripe : mStripes) {
+            stripe.endFile(contexts);
+        }
+
+        // Each set of files is replayed independently, and so the sequence starts over.
+        mSequence.reset();
+
+        for (_RedoLog stripe : mStripes) {
+            stripe.beginNextFile(contexts[0]);
+        }
+    }
+
+    @Override
+    long checkpointNumber() {
+        return mStripes[0].checkpointNumber();
+    }
+
+    @Override
+    long checkpointPosition() {
+        long pos = 0;
+        for (_RedoLog stripe : mStripes) {
+            pos += stripe.checkpointPosition();
+        }
+        return pos;
+    }
+
+    @Override
+    long checkpointTransactionId() {
+        // Log files always begin with a reset.
+        return 0;
+    }
+
+    @Override
+    void checkpointAborted() {
+        for (_RedoLog stripe : mStripes) {
+            stripe.checkpointAborted();
+        }
+    }
+
+    @Override
+    void checkpointStarted() throws IOException {
+        for (_RedoLog stripe : mStripes) {
+            stripe.checkpointStarted();
+        }
+    }
+
+    @Override
+    void checkpointFlushed() throws IOException {
+        for (_RedoLog stripe : mStripes) {
+            stripe.checkpointFlushed();
+        }
+    }
+
+    @Override
+    void checkpointFinished() throws IOException {
+        for (_RedoLog stripe : mStripes) {
+            stripe.checkpointFinished();
+        }
+    }
+
+    @Override
+    DurabilityMode opWriteCheck(DurabilityMode mode) throws IOException {
+        // Mode stays the same when not replicated.
+        return mode;
+    }
+
+    @Override
+    boolean shouldWriteTerminators() {
+        return true;
+    }
+
+    @Override
+    long write(boolean commit, byte[] bytes, int offset, int length) throws IOException {
+        // Only called for operations which aren't written by a context.
+        _RedoLog stripe = mStripes[0];
+        stripe.acquireExclusive();
+        try {
+            return stripe.write(commit, bytes, offset, length);
+        } finally {
+            stripe.releaseExclusive();
+        }
+    }
+
+    @Override
+    void alwaysFlush(boolean enable) throws IOException {
+        for (_RedoLog stripe : mStripes) {
+            stripe.alwaysFlush(enable);
+        }
+    }
+
+    @Override
+    void force(boolean metadata) throws IOException {
+        // Frames which were assigned lower sequence numbers might not have been written yet,
+        // and then forcing wouldn't make the higher frames durable.
+        mSequence.awaitWritten();
+        for (_RedoLog stripe : mStripes) {
+            stripe.force(metadata);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException ex = null;
+        for (_RedoLog stripe : mStripes) {
+            try {
+                stripe.close();
+            } catch (IOException e) {
+                if (ex == null) {
+                    ex = e;
+                } else {
+                    Utils.suppress(ex, e);
+                }
+            }
+        }
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    /**
+     * Replays a stripe file.
+     */
+    private static final class Replayer implements Runnable {
+        private final _RedoLog mStripe;
+        private final InputStream mIn;
+        private final Turns mTurns;
+        private final int mStripeIndex;
+        private final RedoVisitor mVisitor;
+        private final EventListener mListener;
+
+        boolean mFinished;
+        Throwable mFailure;
+
+        Replayer(_RedoLog stripe, InputStream in, Turns turns, int stripeIndex,
+                 RedoVisitor visitor, EventListener listener)
+        {
+            mStripe = stripe;
+            mIn = in;
+            mTurns = turns;
+            mStripeIndex = stripeIndex;
+            mVisitor = visitor;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            FrameInput in = null;
+            try {
+                InputStream body = mStripe.replayHeader(mIn);
+                if (body != null) {
+                    in = new FrameInput(body, mTurns, mStripeIndex);
+                    mFinished = mStripe.replayBody(in, mVisitor, mListener);
+                }
+            } catch (Throwable e) {
+                mFailure = e;
+            }
+
+            if (!mFinished) {
+                // Stop the other stripes too.
+                mTurns.end();
+            }
+
+            if (in != null) {
+                in.finish();
+            } else {
+                mTurns.finish(mStripeIndex);
+            }
+        }
+    }
+
+    /**
+     * Coordinates the replay threads, such that only the thread which has the frame with the
+     * next sequence number is running.
+     */
+    static final class Turns {
+        // Next sequence number of each stripe, 0 if unknown, or MAX_VALUE if finished.
+        private final long[] mNext;
+        private long mTurn = 1;
+        private boolean mEnded;
+
+        Turns(int stripes) {
+            mNext = new long[stripes];
+        }
+
+        /**
+         * Waits for the turn to process the frame with the given sequence number.
+         *
+         * @return false if replay has ended
+         */
+        synchronized boolean await(int stripe, long seq) throws InterruptedIOException {
+            mNext[stripe] = seq;
+            notifyAll();
+            try {
+                while (true) {
+                    if (mEnded) {
+                        return false;
+                    }
+                    if (seq == mTurn) {
+                        mNext[stripe] = 0;
+                        return true;
+                    }
+                    if (seq < mTurn || isGap()) {
+                        // Frame is out of order, or no stripe has the next frame because a
+                        // write was lost. Nothing after the gap can be applied.
+                        end();
+                        return false;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                end();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private boolean isGap() {
+            for (long next : mNext) {
+                if (next == 0 || next == mTurn) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Called when the current frame has been fully processed.
+         */
+        synchronized void advance() {
+            mTurn++;
+            notifyAll();
+        }
+
+        /**
+         * Called when a stripe has no more frames.
+         */
+        synchronized void finish(int stripe) {
+            mNext[stripe] = Long.MAX_VALUE;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            mEnded = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEnded() {
+            return mEnded;
+        }
+    }
+
+    /**
+     * Reads the contents of each frame as a continuous stream. The turn to read a frame isn't given up until the next frame is
+     * needed, which ensures that the operations which were decoded from the current frame
+     * have been completely applied.
+     */
+    static final class FrameInput extends InputStream {
+        private final InputStream mIn;
+        final Turns mTurns;
+        private final int mStripe;
+        private final byte[] mFrameHeader;
+
+        private int mFrameRemaining;
+        private boolean mHasTurn;
+        private boolean mFinished;
+
+        FrameInput(InputStream in, Turns turns, int stripe) {
+            mIn = in;
+            mTurns = turns;
+            mStripe = stripe;
+            mFrameHeader = new byte[_RedoLog.FRAME_HEADER_SIZE];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int amt = read(b, 0, 1);
+            return amt <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (mFrameRemaining == 0 && !nextFrame()) {
+                return -1;
+            }
+
+            int amt = mIn.read(b, off, Math.min(len, mFrameRemaining));
+
+            if (amt <= 0) {
+                // Frame is incomplete, and frames which follow it cannot be applied.
+                mTurns.end();
+                finish();
+                return -1;
+            }
+
+            mFrameRemaining -= amt;
+            return amt;
+        }
+
+        private boolean nextFrame() throws IOException {
+            if (mFinished) {
+                return false;
+            }
+
+            if (mHasTurn) {
+                mHasTurn = false;
+                mTurns.advance();
+            }
+
+            byte[] header = mFrameHeader;
+            int len = 0;
+            while (len < header.length) {
+                int amt = mIn.read(header, len, header.length - len);
+                if (amt <= 0) {
+                    if (len > 0) {
+                        // Frame header is incomplete.
+                        mTurns.end();
+                    }
+                    finish();
+                    return false;
+                }
+                len += amt;
+            }
+
+            long seq = Utils.decodeLongLE(header, 0);
+            int length = Utils.decodeIntLE(header, 8);
+
+            if (length <= 0) {
+                // Reached the unwritten portion of a preallocated file.
+                finish();
+                return false;
+            }
+
+            if (!mTurns.await(mStripe, seq)) {
+                finish();
+                return false;
+            }
+
+            mHasTurn = true;
+            mFrameRemaining = length;
+            return true;
+        }
+
+        void finish() {
+            if (!mFinished) {
+                mFinished = true;
+                if (mHasTurn) {
+                    mHasTurn = false;
+                    mTurns.advance();
+                }
+                mTurns.finish(mStripe);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
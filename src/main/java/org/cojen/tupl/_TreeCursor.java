@@ -38,6 +38,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
     // method. Bit 0 is set for inclusive variants and clear for exclusive.
     private static final int LIMIT_LE = 1, LIMIT_LT = 2, LIMIT_GE = -1, LIMIT_GT = -2;
 
+    // Special bounds returned by rangeWiden and rangeJump.
+    private static final byte[] NO_RANGE = new byte[0], NEW_RANGE = new byte[0];
+
     final _Tree mTree;
     _LocalTransaction mTxn;
 
@@ -52,6 +55,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
     // Hashcode is defined by _LockManager.
     private int mKeyHash;
 
+    // Range lock which was most recently acquired in SERIALIZABLE mode.
+    private _RangeLock mRangeLock;
+
     _TreeCursor(_Tree tree, Transaction txn) {
         mTxn = tree.check(txn);
         mTree = tree;
@@ -141,6 +147,125 @@ class _TreeCursor implements CauseCloseable, Cursor {
         return compareUnsigned(lkey, 0, lkey.length, rkey, offset, length);
     }
 
+    /**
+     * In SERIALIZABLE mode, locks the range which the cursor is about to jump into. The
+     * current range lock is widened if it overlaps the range, and otherwise a new range lock
+     * is acquired. Reusing the range lock keeps repeated seeks from acquiring a range lock
+     * each time.
+     *
+     * @param forward true if the range extends to the high end
+     * @param start inclusive start of the range; null if unbounded
+     * @return original bound, to be passed to rangeNarrow; NO_RANGE if not applicable
+     */
+    private byte[] rangeJump(boolean forward, byte[] start) {
+        _LocalTransaction txn = mTxn;
+        if (txn == null || txn.lockMode() != LockMode.SERIALIZABLE) {
+            return NO_RANGE;
+        }
+
+        _RangeLock range = mRangeLock;
+        if (range != null && !range.mReleased && range.mOwner == txn) {
+            if (forward) {
+                byte[] bound = range.mHigh;
+                if (start == null || bound == null || Utils.compareUnsigned(start, bound) <= 0) {
+                    byte[] low = range.mLow;
+                    if (low != null && (start == null || Utils.compareUnsigned(start, low) < 0)) {
+                        low = start;
+                    }
+                    if (low != range.mLow || bound != null) {
+                        mTree.mLockManager.rangeBounds(range, low, null);
+                    }
+                    return bound;
+                }
+            } else {
+                byte[] bound = range.mLow;
+                if (start == null || bound == null || Utils.compareUnsigned(start, bound) >= 0) {
+                    byte[] high = range.mHigh;
+                    if (high != null && (start == null || Utils.compareUnsigned(start, high) > 0)) {
+                        high = start;
+                    }
+                    if (bound != null || high != range.mHigh) {
+                        mTree.mLockManager.rangeBounds(range, null, high);
+                    }
+                    return bound;
+                }
+            }
+        }
+
+        mRangeLock = forward ? txn.lockRange(mTree.mId, start, null)
+            : txn.lockRange(mTree.mId, null, start);
+
+        return NEW_RANGE;
+    }
+
+    /**
+     * In SERIALIZABLE mode, widens the range lock from the current key in the direction of
+     * movement, preventing inserts into the gap which is about to be scanned. A new range
+     * lock is acquired if the current one doesn't contain the current key.
+     *
+     * @param forward direction of movement
+     * @param limit inclusive limit of movement; null if unbounded
+     * @return original bound, to be passed to rangeNarrow; NO_RANGE if not applicable
+     */
+    private byte[] rangeWiden(boolean forward, byte[] limit) {
+        _LocalTransaction txn = mTxn;
+        byte[] key;
+        if (txn == null || txn.lockMode() != LockMode.SERIALIZABLE || (key = mKey) == null) {
+            return NO_RANGE;
+        }
+
+        _RangeLock range = mRangeLock;
+        if (range == null || range.mReleased || range.mOwner != txn || !range.contains(key)) {
+            mRangeLock = range = txn.lockRange(mTree.mId, key, key);
+        }
+
+        byte[] bound;
+        if (forward) {
+            bound = range.mHigh;
+            if (bound != null && (limit == null || Utils.compareUnsigned(limit, bound) > 0)) {
+                mTree.mLockManager.rangeBounds(range, range.mLow, limit);
+            }
+        } else {
+            bound = range.mLow;
+            if (bound != null && (limit == null || Utils.compareUnsigned(limit, bound) < 0)) {
+                mTree.mLockManager.rangeBounds(range, limit, range.mHigh);
+            }
+        }
+
+        return bound;
+    }
+
+    /**
+     * Narrows the range lock after the cursor has moved, ending it at the key which was
+     * found. The range never becomes smaller than it was before it was widened. If nothing
+     * was found, the range lock is left as-is.
+     *
+     * @param bound original bound returned by rangeWiden or rangeJump
+     */
+    private void rangeNarrow(boolean forward, byte[] bound) {
+        byte[] key;
+        if (bound == NO_RANGE || bound == null || (key = mKey) == null) {
+            return;
+        }
+
+        _RangeLock range = mRangeLock;
+        if (forward) {
+            if (bound == NEW_RANGE || Utils.compareUnsigned(key, bound) > 0) {
+                bound = key;
+            }
+            if (bound != range.mHigh) {
+                mTree.mLockManager.rangeBounds(range, range.mLow, bound);
+            }
+        } else {
+            if (bound == NEW_RANGE || Utils.compareUnsigned(key, bound) < 0) {
+                bound = key;
+            }
+            if (bound != range.mLow) {
+                mTree.mLockManager.rangeBounds(range, bound, range.mHigh);
+            }
+        }
+    }
+
     protected final int keyHash() {
         int hash = mKeyHash;
         if (hash == 0) {
@@ -151,6 +276,13 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult first() throws IOException {
+        byte[] bound = rangeJump(true, null);
+        LockResult result = doFirst();
+        rangeNarrow(true, bound);
+        return result;
+    }
+
+    private LockResult doFirst() throws IOException {
         reset();
 
         if (!toFirst(new _CursorFrame(), latchRootNode())) {
@@ -231,6 +363,13 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult last() throws IOException {
+        byte[] bound = rangeJump(false, null);
+        LockResult result = doLast();
+        rangeNarrow(false, bound);
+        return result;
+    }
+
+    private LockResult doLast() throws IOException {
         reset();
 
         if (!toLast(new _CursorFrame(), latchRootNode())) {
@@ -311,6 +450,14 @@ class _TreeCursor implements CauseCloseable, Cursor {
             return LockResult.UNOWNED;
         }
 
+        boolean forward = amount > 0;
+        byte[] bound = rangeWiden(forward, null);
+        LockResult result = doSkip(amount);
+        rangeNarrow(forward, bound);
+        return result;
+    }
+
+    private LockResult doSkip(long amount) throws IOException {
         try {
             _CursorFrame frame = leafSharedNotSplit();
             if (amount > 0) {
@@ -337,6 +484,16 @@ class _TreeCursor implements CauseCloseable, Cursor {
             return skip(amount);
         }
 
+        boolean forward = amount > 0;
+        byte[] bound = rangeWiden(forward, limitKey);
+        LockResult result = doSkip(amount, limitKey, inclusive);
+        rangeNarrow(forward, bound);
+        return result;
+    }
+
+    private LockResult doSkip(long amount, byte[] limitKey, boolean inclusive)
+        throws IOException
+    {
         try {
             _CursorFrame frame = leafSharedNotSplit();
             if (amount > 0) {
@@ -359,7 +516,10 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult next() throws IOException {
-        return next(mTxn, leafSharedNotSplit());
+        byte[] bound = rangeWiden(true, null);
+        LockResult result = next(mTxn, leafSharedNotSplit());
+        rangeNarrow(true, bound);
+        return result;
     }
 
     @Override
@@ -374,7 +534,10 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     private LockResult nextCmp(byte[] limitKey, int limitMode) throws IOException {
         keyCheck(limitKey);
-        return nextCmp(limitKey, limitMode, leafSharedNotSplit());
+        byte[] bound = rangeWiden(true, limitKey);
+        LockResult result = nextCmp(limitKey, limitMode, leafSharedNotSplit());
+        rangeNarrow(true, bound);
+        return result;
     }
 
     private LockResult nextCmp(byte[] limitKey, int limitMode, _CursorFrame frame)
@@ -1074,7 +1237,10 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult previous() throws IOException {
-        return previous(mTxn, leafSharedNotSplit());
+        byte[] bound = rangeWiden(false, null);
+        LockResult result = previous(mTxn, leafSharedNotSplit());
+        rangeNarrow(false, bound);
+        return result;
     }
 
     @Override
@@ -1089,7 +1255,10 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     private LockResult previousCmp(byte[] limitKey, int limitMode) throws IOException {
         keyCheck(limitKey);
-        return previousCmp(limitKey, limitMode, leafSharedNotSplit());
+        byte[] bound = rangeWiden(false, limitKey);
+        LockResult result = previousCmp(limitKey, limitMode, leafSharedNotSplit());
+        rangeNarrow(false, bound);
+        return result;
     }
 
     private LockResult previousCmp(byte[] limitKey, int limitMode, _CursorFrame frame)
@@ -1531,6 +1700,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
                 LockMode mode = txn.lockMode();
                 if (mode.noReadLock) {
                     node.retrieveLeafEntry(pos, this);
+                    if (mode == LockMode.OPTIMISTIC_READ) {
+                        txn.optimisticRead(mTree.mId, mKey, keyHash());
+                    }
                     return LockResult.UNOWNED;
                 } else {
                     lockType = mode.repeatable;
@@ -1634,6 +1806,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
             } else {
                 LockMode mode = txn.lockMode();
                 if (mode.noReadLock) {
+                    if (mode == LockMode.OPTIMISTIC_READ) {
+                        txn.optimisticRead(mTree.mId, mKey, keyHash());
+                    }
                     mValue = mKeyOnly ? node.hasLeafValue(pos) : node.retrieveLeafValue(pos);
                     result = LockResult.UNOWNED;
                     break obtainResult;
@@ -1780,6 +1955,13 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult findGe(byte[] key) throws IOException {
+        byte[] bound = rangeJump(true, key);
+        LockResult result = doFindGe(key);
+        rangeNarrow(true, bound);
+        return result;
+    }
+
+    private LockResult doFindGe(byte[] key) throws IOException {
         // If isolation level is read committed, then key must be
         // locked. Otherwise, an uncommitted delete could be observed.
         reset();
@@ -1798,6 +1980,13 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult findLe(byte[] key) throws IOException {
+        byte[] bound = rangeJump(false, key);
+        LockResult result = doFindLe(key);
+        rangeNarrow(false, bound);
+        return result;
+    }
+
+    private LockResult doFindLe(byte[] key) throws IOException {
         // If isolation level is read committed, then key must be
         // locked. Otherwise, an uncommitted delete could be observed.
         reset();
@@ -1816,12 +2005,26 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
     @Override
     public final LockResult findGt(byte[] key) throws IOException {
+        byte[] bound = rangeJump(true, key);
+        LockResult result = doFindGt(key);
+        rangeNarrow(true, bound);
+        return result;
+    }
+
+    private LockResult doFindGt(byte[] key) throws IOException {
         findNoLock(key);
         return next(mTxn, mLeaf);
     }
 
     @Override
     public final LockResult findLt(byte[] key) throws IOException {
+        byte[] bound = rangeJump(false, key);
+        LockResult result = doFindLt(key);
+        rangeNarrow(false, bound);
+        return result;
+    }
+
+    private LockResult doFindLt(byte[] key) throws IOException {
         findNoLock(key);
         return previous(mTxn, mLeaf);
     }
@@ -2108,6 +2311,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
 
         try {
             if (mode.noReadLock) {
+                if (mode == LockMode.OPTIMISTIC_READ) {
+                    txn.optimisticRead(mTree.mId, mKey, keyHash());
+                }
                 return LockResult.UNOWNED;
             }
 
@@ -2451,6 +2657,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
         } else {
             LockMode mode = txn.lockMode();
             if (mode.noReadLock) {
+                if (mode == LockMode.OPTIMISTIC_READ) {
+                    txn.optimisticRead(mTree.mId, key, keyHash());
+                }
                 result = LockResult.UNOWNED;
                 locker = null;
             } else {
@@ -2656,6 +2865,9 @@ class _TreeCursor implements CauseCloseable, Cursor {
             } else {
                 LockMode mode = txn.lockMode();
                 if (mode.noReadLock) {
+                    if (mode == LockMode.OPTIMISTIC_READ) {
+                        txn.optimisticRead(mTree.mId, key, keyHash());
+                    }
                     result = LockResult.UNOWNED;
                     locker = null;
                 } else {
@@ -3121,7 +3333,15 @@ class _TreeCursor implements CauseCloseable, Cursor {
                 _Node node = notSplitDirty(leaf);
                 final int pos = leaf.mNodePos;
 
-                if (pos >= 0) {
+                if ((pos < 0 || node.hasLeafValue(pos) == null)
+                    && mTree.mLockManager.isRangeLocked(txn, mTree.mId, key)
+                    && (txn == null || txn.lockMode() != LockMode.UNSAFE))
+                {
+                    // Inserting into a range which is locked by another transaction.
+                    node.releaseExclusive();
+                    shared.release();
+                    shared = null;
+                } else if (pos >= 0) {
                     // Update entry...
 
                     try {
@@ -3169,6 +3389,14 @@ class _TreeCursor implements CauseCloseable, Cursor {
                 }
                 throw e;
             }
+
+            if (shared == null) {
+                _LockManager manager = mTree.mLockManager;
+                manager.waitForRange(txn, mTree.mId, key, txn == null
+                                     ? manager.mDefaultTimeoutNanos : txn.mLockTimeoutNanos);
+                store(txn, leafExclusive(), value);
+                return;
+            }
         }
 
         long commitPos;
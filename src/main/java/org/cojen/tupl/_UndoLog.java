@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.List;
 
 import static java.lang.System.arraycopy;
 
@@ -136,7 +138,7 @@ final class _UndoLog implements _DatabaseAccess {
     private long mLength;
 
     // Except for mLength, all field modifications during normal usage must be
-    // performed while holding shared db commit lock. See writeToMaster method.
+    // performed while holding shared db commit lock. See captureForMaster method.
 
     private byte[] mBuffer;
     private int mBufferPos;
@@ -147,6 +149,13 @@ final class _UndoLog implements _DatabaseAccess {
 
     private long mActiveIndexId;
 
+    // Nodes allocated in advance, which are only used by the master undo log.
+    private _Node[] mReserve;
+    private int mReserveSize;
+
+    // True while the master undo log is written after the commit state has switched.
+    private boolean mWritingMaster;
+
     _UndoLog(_LocalDatabase db, long txnId) {
         mDatabase = db;
         mTxnId = txnId;
@@ -169,7 +178,7 @@ final class _UndoLog implements _DatabaseAccess {
         if (node != null) {
             node.acquireExclusive();
             try {
-                mDatabase.markUnmappedDirty(node);
+                markUnmappedDirty(node);
             } catch (Throwable e) {
                 node.releaseExclusive();
                 throw e;
@@ -202,6 +211,66 @@ final class _UndoLog implements _DatabaseAccess {
         return mNode.mId;
     }
 
+    /**
+     * Allocates nodes in advance, which are used before allocating any new nodes. The master
+     * undo log is written after the commit state has switched, and so all the nodes it needs
+     * must be allocated beforehand. Caller must hold db commit lock.
+     *
+     * @param count total amount of nodes to have in reserve
+     */
+    void reserveNodes(int count) throws IOException {
+        _Node[] reserve = mReserve;
+        if (reserve == null) {
+            mReserve = reserve = new _Node[count];
+        } else if (reserve.length < count) {
+            mReserve = reserve = Arrays.copyOf(reserve, count);
+        }
+
+        while (mReserveSize < count) {
+            _Node node = mDatabase.allocDirtyNode(_NodeContext.MODE_UNEVICTABLE);
+            node.releaseExclusive();
+            reserve[mReserveSize++] = node;
+        }
+    }
+
+    /**
+     * Caller must hold db commit lock.
+     */
+    int reservedNodes() {
+        return mReserveSize;
+    }
+
+    /**
+     * Deletes all nodes which are still in reserve. Caller must hold db commit lock.
+     */
+    void deleteReserve() throws IOException {
+        _Node[] reserve = mReserve;
+        if (reserve != null) {
+            mReserve = null;
+            while (mReserveSize > 0) {
+                _Node node = reserve[--mReserveSize];
+                reserve[mReserveSize] = null;
+                node.acquireExclusive();
+                // Like undo log nodes, don't recycle. The page becomes available after the
+                // next checkpoint.
+                mDatabase.deleteNode(node, false);
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum amount of nodes needed by a master undo log which has the given
+     * amount of bytes written to it.
+     */
+    static int masterNodesRequired(long size, int pageSize) {
+        if (size <= 0) {
+            return 0;
+        }
+        // Entries which span nodes waste a few bytes at the boundaries.
+        long count = size / (pageSize - HEADER_SIZE - 8) + 2;
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
     /**
      * Returns the top node id as returned by the last call to persistReady. Caller must hold
      * db commit lock.
@@ -347,7 +416,7 @@ final class _UndoLog implements _DatabaseAccess {
             // Push into allocated node, which must be marked dirty.
             node.acquireExclusive();
             try {
-                mDatabase.markUnmappedDirty(node);
+                markUnmappedDirty(node);
             } catch (Throwable e) {
                 node.releaseExclusive();
                 throw e;
@@ -1058,56 +1127,104 @@ final class _UndoLog implements _DatabaseAccess {
      * Caller must hold db commit lock.
      */
     private _Node allocUnevictableNode(long lowerNodeId) throws IOException {
-        _Node node = mDatabase.allocDirtyNode(_NodeContext.MODE_UNEVICTABLE);
+        _Node node;
+        int size = mReserveSize;
+        if (size > 0) {
+            mReserveSize = --size;
+            node = mReserve[size];
+            mReserve[size] = null;
+            node.acquireExclusive();
+        } else if (mWritingMaster) {
+            // A new node wouldn't be written by the checkpoint.
+            throw new AssertionError("Master undo log reserve is exhausted");
+        } else {
+            node = mDatabase.allocDirtyNode(_NodeContext.MODE_UNEVICTABLE);
+        }
         node.type(_Node.TYPE_UNDO_LOG);
         p_longPutLE(node.mPage, I_LOWER_NODE_ID, lowerNodeId);
         return node;
     }
 
     /**
+     * Captures what the master undo log must record for this log, as an operation followed by
+     * its payload. The master undo log is written from it later, by the writeMaster method.
      * Caller must hold exclusive db commit lock.
      *
-     * @param workspace temporary buffer, allocated on demand
-     * @return new or original workspace instance
+     * @return null if nothing needs to be recorded
      */
-    final byte[] writeToMaster(_UndoLog master, byte[] workspace) throws IOException {
+    final byte[] captureForMaster() {
+        byte[] entry;
         _Node node = mNode;
         if (node == null) {
             byte[] buffer = mBuffer;
             if (buffer == null) {
-                return workspace;
+                return null;
             }
             int pos = mBufferPos;
             int bsize = buffer.length - pos;
             if (bsize == 0) {
-                return workspace;
+                return null;
             }
             // TODO: Consider calling persistReady if _UndoLog is still in a buffer next time.
-            final int psize = (8 + 8 + 2) + bsize;
-            if (workspace == null || workspace.length < psize) {
-                workspace = new byte[Math.max(INITIAL_BUFFER_SIZE, roundUpPower2(psize))];
-            }
-            writeHeaderToMaster(workspace);
-            encodeShortLE(workspace, (8 + 8), bsize);
-            arraycopy(buffer, pos, workspace, (8 + 8 + 2), bsize);
-            master.doPush(OP_LOG_COPY, workspace, 0, psize,
-                          calcUnsignedVarIntLength(psize));
+            entry = new byte[1 + (8 + 8 + 2) + bsize];
+            entry[0] = OP_LOG_COPY;
+            writeHeaderToMaster(entry);
+            encodeShortLE(entry, 1 + (8 + 8), bsize);
+            arraycopy(buffer, pos, entry, 1 + (8 + 8 + 2), bsize);
         } else {
-            if (workspace == null) {
-                workspace = new byte[INITIAL_BUFFER_SIZE];
+            entry = new byte[1 + (8 + 8 + 8 + 8 + 2)];
+            entry[0] = OP_LOG_REF;
+            writeHeaderToMaster(entry);
+            encodeLongLE(entry, 1 + (8 + 8), mLength);
+            encodeLongLE(entry, 1 + (8 + 8 + 8), node.mId);
+            encodeShortLE(entry, 1 + (8 + 8 + 8 + 8), mNodeTopPos);
+        }
+        return entry;
+    }
+
+    private void writeHeaderToMaster(byte[] entry) {
+        encodeLongLE(entry, 1, mTxnId);
+        encodeLongLE(entry, 1 + 8, mActiveIndexId);
+    }
+
+    /**
+     * Returns the amount of bytes which an entry returned by captureForMaster occupies in
+     * the master undo log.
+     */
+    static int masterEntrySize(byte[] entry) {
+        int psize = entry.length - 1;
+        return 1 + calcUnsignedVarIntLength(psize) + psize;
+    }
+
+    /**
+     * Writes the entries returned by captureForMaster into this master undo log, which must
+     * be empty. It's called after the commit state has switched, and so only the reserved
+     * nodes are used, which were dirtied for the checkpoint in progress. Caller must hold db
+     * commit lock.
+     *
+     * @return top node id or 0 if log is empty
+     */
+    long writeMaster(List<byte[]> entries) throws IOException {
+        mWritingMaster = true;
+        try {
+            for (byte[] entry : entries) {
+                int psize = entry.length - 1;
+                doPush(entry[0], entry, 1, psize, calcUnsignedVarIntLength(psize));
             }
-            writeHeaderToMaster(workspace);
-            encodeLongLE(workspace, (8 + 8), mLength);
-            encodeLongLE(workspace, (8 + 8 + 8), node.mId);
-            encodeShortLE(workspace, (8 + 8 + 8 + 8), mNodeTopPos);
-            master.doPush(OP_LOG_REF, workspace, 0, (8 + 8 + 8 + 8 + 2), 1);
+            return persistReady();
+        } finally {
+            mWritingMaster = false;
         }
-        return workspace;
     }
 
-    private void writeHeaderToMaster(byte[] workspace) {
-        encodeLongLE(workspace, 0, mTxnId);
-        encodeLongLE(workspace, 8, mActiveIndexId);
+    /**
+     * Caller must hold commit lock and exclusive latch on node.
+     */
+    private void markUnmappedDirty(_Node node) throws IOException {
+        // The reserved nodes of a master undo log are already dirty.
+        if (!mWritingMaster) {
+            mDatabase.markUnmappedDirty(node);
+        }
     }
 
     static _UndoLog recoverMasterUndoLog(_LocalDatabase db, long nodeId) throws IOException {
@@ -17,10 +17,15 @@
 
 package org.cojen.tupl.io;
 
+import java.io.EOFException;
 import java.io.InterruptedIOException;
 import java.io.IOException;
 
 import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 import java.util.EnumSet;
 
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
@@ -179,6 +184,24 @@ abstract class AbstractFileIO extends FileIO {
         access(false, pos, ptr + offset, length);
     }
 
+    @Override
+    public final boolean transferTo(long pos, long length, WritableByteChannel target)
+        throws IOException
+    {
+        syncWait();
+
+        try {
+            mAccessLock.acquireShared();
+            try {
+                return doTransferTo(pos, length, target);
+            } finally {
+                mAccessLock.releaseShared();
+            }
+        } catch (IOException e) {
+            throw rethrow(e, mCause);
+        }
+    }
+
     private void access(boolean read, long pos, byte[] buf, int offset, int length)
         throws IOException
     {
@@ -607,4 +630,35 @@ abstract class AbstractFileIO extends FileIO {
     protected abstract void reopen() throws IOException;
 
     protected abstract void doSync(boolean metadata) throws IOException;
+
+    /**
+     * @return false if not supported
+     */
+    protected boolean doTransferTo(long pos, long length, WritableByteChannel target)
+        throws IOException
+    {
+        return false;
+    }
+
+    /**
+     * Transfers all of the requested data from the given file channel.
+     */
+    static void transferFully(FileChannel channel, long pos, long length,
+                              WritableByteChannel target)
+        throws IOException
+    {
+        while (length > 0) {
+            long amt = channel.transferTo(pos, length, target);
+            if (amt <= 0) {
+                if (pos >= channel.size()) {
+                    throw new EOFException("Attempt to read past end of file: " + pos);
+                }
+                // Target isn't accepting any more data, as can happen with a non-blocking
+                // channel.
+                Thread.yield();
+            }
+            pos += amt;
+            length -= amt;
+        }
+    }
 }
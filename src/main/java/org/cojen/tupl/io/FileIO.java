@@ -24,6 +24,7 @@ import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.StandardOpenOption;
 
 import com.sun.jna.Native;
@@ -136,6 +137,21 @@ public abstract class FileIO implements CauseCloseable {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Transfers data directly into the given channel, avoiding a copy through a Java buffer
+     * when possible. Default implementation does nothing and returns false.
+     *
+     * @param pos zero-based position in file
+     * @param length amount of data to transfer
+     * @param target data destination
+     * @return false if not supported, in which case nothing was transferred
+     */
+    public boolean transferTo(long pos, long length, WritableByteChannel target)
+        throws IOException
+    {
+        return false;
+    }
+
     /**
      * Maps or remaps the file into main memory, up to the current file length.
      */
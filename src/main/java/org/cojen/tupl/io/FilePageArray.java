@@ -20,6 +20,8 @@ package org.cojen.tupl.io;
 import java.io.File;
 import java.io.IOException;
 
+import java.nio.channels.WritableByteChannel;
+
 import java.util.EnumSet;
 
 /**
@@ -106,6 +108,17 @@ public class FilePageArray extends PageArray {
         mFio.write(index * pageSize, srcPtr, offset, pageSize);
     }
 
+    @Override
+    public boolean transferPages(long index, long count, WritableByteChannel target)
+        throws IOException
+    {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int pageSize = mPageSize;
+        return mFio.transferTo(index * pageSize, count * pageSize, target);
+    }
+
     @Override
     public void sync(boolean metadata) throws IOException {
         mFio.sync(metadata);
@@ -27,6 +27,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import java.util.EnumSet;
 
@@ -188,6 +189,19 @@ final class JavaFileIO extends AbstractFileIO {
         doWrite(pos, DirectAccess.ref(ptr, length));
     }
 
+    @Override
+    protected boolean doTransferTo(long pos, long length, WritableByteChannel target)
+        throws IOException
+    {
+        RandomAccessFile file = accessFile();
+        try {
+            transferFully(file.getChannel(), pos, length, target);
+            return true;
+        } finally {
+            yieldFile(file);
+        }
+    }
+
     @Override
     protected Mapping openMapping(boolean readOnly, long pos, int size) throws IOException {
         return Mapping.open(mFile, readOnly, pos, size);
@@ -19,6 +19,8 @@ package org.cojen.tupl.io;
 
 import java.io.IOException;
 
+import java.nio.channels.WritableByteChannel;
+
 /**
  * Defines a persistent, array of fixed sized pages. Each page is uniquely
  * identified by a 64-bit index, starting at zero.
@@ -244,6 +246,22 @@ public abstract class PageArray implements CauseCloseable {
     public void uncachePage(long index) throws IOException {
     }
 
+    /**
+     * If supported, transfers a range of pages directly into the given channel, without
+     * copying them through a Java buffer. Default implementation does nothing and returns
+     * false.
+     *
+     * @param index zero-based index of the first page to transfer
+     * @param count amount of pages to transfer
+     * @param target page destination
+     * @return false if not supported, in which case nothing was transferred
+     */
+    public boolean transferPages(long index, long count, WritableByteChannel target)
+        throws IOException
+    {
+        return false;
+    }
+
     public long directPagePointer(long index) throws IOException {
         throw new UnsupportedOperationException();
     }
@@ -24,6 +24,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.file.StandardOpenOption;
+
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
@@ -157,6 +162,17 @@ final class PosixFileIO extends AbstractFileIO {
         pwriteFd(fd(), ptr, length, pos);
     }
 
+    @Override
+    protected boolean doTransferTo(long pos, long length, WritableByteChannel target)
+        throws IOException
+    {
+        // Open a separate channel, which can use sendfile or copy_file_range.
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+            transferFully(channel, pos, length, target);
+        }
+        return true;
+    }
+
     @Override
     protected Mapping openMapping(boolean readOnly, long pos, int size) throws IOException {
         if (mReadahead) {
@@ -98,6 +98,10 @@ public class LatchCondition {
                 latch.releaseExclusive();
                 LockSupport.park(this);
                 latch.acquireExclusive();
+                if (node.mWaitState == Node.CANCELED) {
+                    node.remove(this);
+                    return 0;
+                }
                 int result = node.resumed(this);
                 if (result != 0) {
                     return result;
@@ -108,6 +112,10 @@ public class LatchCondition {
                 latch.releaseExclusive();
                 LockSupport.parkNanos(this, nanosTimeout);
                 latch.acquireExclusive();
+                if (node.mWaitState == Node.CANCELED) {
+                    node.remove(this);
+                    return 0;
+                }
                 int result = node.resumed(this);
                 if (result != 0) {
                     return result;
@@ -246,6 +254,26 @@ public class LatchCondition {
         return true;
     }
 
+    /**
+     * Cancels the wait of the given thread, which resumes as if it timed out. Caller must
+     * hold exclusive latch.
+     *
+     * @return false if thread isn't waiting, or if it has already been signaled
+     */
+    public final boolean cancel(Thread waiter) {
+        for (Node node = mHead; node != null; node = node.mNext) {
+            if (node.mWaiter == waiter) {
+                if (node.mWaitState < Node.WAITING) {
+                    return false;
+                }
+                node.mWaitState = Node.CANCELED;
+                LockSupport.unpark(waiter);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Clears out all waiting threads and interrupts them. Caller must hold exclusive latch.
      */
@@ -269,7 +297,8 @@ public class LatchCondition {
     static class Node {
         final Thread mWaiter;
 
-        static final int REMOVED = 0, SIGNALED = 1, WAITING = 2, WAITING_SHARED = 3;
+        static final int CANCELED = -1, REMOVED = 0, SIGNALED = 1,
+            WAITING = 2, WAITING_SHARED = 3;
         int mWaitState;
 
         Node mPrev;
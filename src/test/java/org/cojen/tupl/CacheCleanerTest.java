@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class CacheCleanerTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CacheCleanerTest.class.getName());
+    }
+
+    protected void decorate(DatabaseConfig config) throws Exception {
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .maxCacheSize(10_000_000)
+            .cacheCleanerThreads(2)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+        decorate(mConfig);
+        mDb = newTempDatabase(getClass(), mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mConfig = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void cleanAhead() throws Exception {
+        Index ix = mDb.openIndex("test");
+        // Nothing is cleaned until after the first checkpoint.
+        mDb.checkpoint();
+        fill(ix, 0, 50_000);
+
+        // Least recently used nodes are written in the background, and so the amount of
+        // dirty pages should go down without a checkpoint.
+
+        long dirty = mDb.stats().dirtyPages();
+        assertTrue(dirty > 0);
+
+        for (int i=0; i<100; i++) {
+            if (mDb.stats().dirtyPages() < dirty) {
+                break;
+            }
+            sleep(100);
+        }
+
+        assertTrue(mDb.stats().dirtyPages() < dirty);
+
+        verify(ix, 0, 50_000);
+        assertTrue(mDb.verify(null));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        Index ix = mDb.openIndex("test");
+        mDb.checkpoint();
+        // Exceed the cache size, forcing evictions.
+        fill(ix, 0, 200_000);
+        verify(ix, 0, 200_000);
+        mDb.checkpoint();
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        verify(ix, 0, 200_000);
+        assertTrue(mDb.verify(null));
+    }
+
+    @Test
+    public void dirtyRatio() throws Exception {
+        mConfig.cacheCleanerThreads(0).cacheDirtyRatio(0.0);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+        mDb.checkpoint();
+        fill(ix, 0, 50_000);
+
+        // All dirty nodes should be written out in the background, without a checkpoint.
+
+        for (int i=0; i<100; i++) {
+            if (mDb.stats().dirtyPages() < 10) {
+                break;
+            }
+            sleep(100);
+        }
+
+        assertTrue(mDb.stats().dirtyPages() < 10);
+
+        verify(ix, 0, 50_000);
+        fill(ix, 0, 50_000);
+        mDb.checkpoint();
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        verify(ix, 0, 50_000);
+        assertTrue(mDb.verify(null));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        mConfig.cacheCleanerThreads(0);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+        mDb.checkpoint();
+        fill(ix, 0, 50_000);
+
+        long dirty = mDb.stats().dirtyPages();
+        sleep(500);
+        assertEquals(dirty, mDb.stats().dirtyPages());
+    }
+
+    private static byte[] key(int i) {
+        return ("key-" + (1_000_000 + i)).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[100];
+        Utils.encodeIntBE(value, 0, i);
+        return value;
+    }
+
+    private static void fill(Index ix, int start, int end) throws Exception {
+        for (int i=start; i<end; i++) {
+            ix.store(null, key(i), value(i));
+        }
+    }
+
+    private static void verify(Index ix, int start, int end) throws Exception {
+        for (int i=start; i<end; i++) {
+            fastAssertArrayEquals(value(i), ix.load(null, key(i)));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class CacheSizeTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CacheSizeTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), 10_000_000);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    protected Database mDb;
+
+    @Test
+    public void shrinkAndGrow() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 0, 100_000);
+
+        long cached = mDb.stats().cachedPages();
+
+        long size = mDb.cacheSize(1_000_000);
+        assertTrue(size <= 1_100_000);
+
+        Database.Stats stats = mDb.stats();
+        assertTrue(stats.cachedPages() < cached);
+        assertTrue(stats.cachedPages() * stats.pageSize() <= 1_000_000);
+
+        // Everything written before shrinking must still be readable.
+        verify(ix, 0, 100_000);
+        assertTrue(mDb.stats().cachedPages() * stats.pageSize() <= 1_100_000);
+
+        size = mDb.cacheSize(20_000_000);
+        assertTrue(size < 20_000_000);
+
+        fill(ix, 100_000, 200_000);
+        verify(ix, 0, 200_000);
+
+        assertTrue(mDb.stats().cachedPages() * stats.pageSize() <= 20_000_000);
+
+        assertTrue(mDb.verify(null));
+    }
+
+    @Test
+    public void shrinkWithCursors() throws Exception {
+        Index ix = mDb.openIndex("test");
+        fill(ix, 0, 100_000);
+
+        // Bound nodes cannot be evicted.
+        Cursor c1 = ix.newCursor(null);
+        c1.first();
+        Cursor c2 = ix.newCursor(null);
+        c2.last();
+
+        mDb.cacheSize(0);
+
+        fastAssertArrayEquals(key(0), c1.key());
+        fastAssertArrayEquals(key(99_999), c2.key());
+
+        c1.next();
+        fastAssertArrayEquals(key(1), c1.key());
+
+        c1.reset();
+        c2.reset();
+
+        verify(ix, 0, 100_000);
+    }
+
+    @Test
+    public void closed() throws Exception {
+        mDb.close();
+        try {
+            mDb.cacheSize(1_000_000);
+            fail();
+        } catch (DatabaseException e) {
+        }
+    }
+
+    private static byte[] key(int i) {
+        return ("key-" + (1_000_000 + i)).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        byte[] value = new byte[100];
+        Utils.encodeIntBE(value, 0, i);
+        return value;
+    }
+
+    private static void fill(Index ix, int start, int end) throws Exception {
+        for (int i=start; i<end; i++) {
+            ix.store(null, key(i), value(i));
+        }
+    }
+
+    private static void verify(Index ix, int start, int end) throws Exception {
+        for (int i=start; i<end; i++) {
+            fastAssertArrayEquals(value(i), ix.load(null, key(i)));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class CheckpointTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CheckpointTest.class.getName());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+    }
+
+    @Test
+    public void dirtyThreshold() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        Database db = newTempDatabase(getClass(), newConfig(count).checkpointDirtyThreshold(0.1));
+        Index ix = db.openIndex("test");
+        db.checkpoint();
+        count.set(0);
+
+        // Non-transactional changes don't reach the redo log size threshold, but they do
+        // reach the dirty threshold.
+        fill(ix, 0, 50_000);
+
+        for (int i=0; i<100; i++) {
+            if (count.get() > 0) {
+                break;
+            }
+            sleep(100);
+        }
+
+        assertTrue(count.get() > 0);
+
+        for (int i=0; i<50_000; i++) {
+            assertNotNull(ix.load(null, key(i)));
+        }
+    }
+
+    @Test
+    public void noDirtyThreshold() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        Database db = newTempDatabase(getClass(), newConfig(count));
+        Index ix = db.openIndex("test");
+        db.checkpoint();
+        count.set(0);
+
+        fill(ix, 0, 50_000);
+        sleep(500);
+
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    public void illegalThreshold() throws Exception {
+        try {
+            new DatabaseConfig().checkpointDirtyThreshold(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+
+        try {
+            new DatabaseConfig().checkpointDirtyThreshold(Double.NaN);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void masterUndoLogReserve() throws Exception {
+        DatabaseConfig config = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+
+        Database db = newTempDatabase(getClass(), config);
+        Index ix = db.openIndex("test");
+
+        final int count = 20_000;
+        for (int i=0; i<count; i++) {
+            ix.store(null, key(i), value(i, 0));
+        }
+        db.checkpoint();
+
+        // A few small transactions in-flight, and so few master undo log nodes are needed.
+        Transaction[] txns = new Transaction[10];
+        for (int i=0; i<txns.length; i++) {
+            txns[i] = db.newTransaction();
+            ix.store(txns[i], key(i), value(i, 1));
+        }
+        db.checkpoint();
+
+        // Many more transactions, and so the nodes reserved based on the previous checkpoint
+        // aren't sufficient. The checkpoint must reserve more and try again.
+        txns = java.util.Arrays.copyOf(txns, 2000);
+        for (int i=10; i<txns.length; i++) {
+            txns[i] = db.newTransaction();
+            for (int j=i; j<count; j+=txns.length) {
+                ix.store(txns[i], key(j), value(j, 1));
+            }
+        }
+
+        // Some transactions are large enough to have their own undo log nodes.
+        Index other = db.openIndex("other");
+        for (int i=0; i<10; i++) {
+            for (int j=0; j<1000; j++) {
+                int k = i * 1000 + j;
+                other.store(txns[i], key(k), value(k, 1));
+            }
+        }
+
+        // Committed changes must not be rolled back.
+        for (int i=0; i<txns.length; i+=100) {
+            txns[i].commit();
+        }
+
+        db.checkpoint();
+
+        db = reopenTempDatabase(getClass(), db, config, true);
+        ix = db.openIndex("test");
+        other = db.openIndex("other");
+
+        for (int i=0; i<count; i++) {
+            int owner = i % txns.length;
+            int expect = (i < 10 || owner >= 10) && (owner % 100) == 0 ? 1 : 0;
+            fastAssertArrayEquals(value(i, expect), ix.load(null, key(i)));
+        }
+
+        assertEquals(1000, other.count(null, null));
+        for (int k=0; k<1000; k++) {
+            fastAssertArrayEquals(value(k, 1), other.load(null, key(k)));
+        }
+
+        // Checkpoint again, with nothing in-flight.
+        db.checkpoint();
+        db = reopenTempDatabase(getClass(), db, config, true);
+        ix = db.openIndex("test");
+        assertEquals(count, ix.count(null, null));
+    }
+
+    private static byte[] value(int i, int version) {
+        return ("value-" + i + "-" + version).getBytes();
+    }
+
+    private static DatabaseConfig newConfig(AtomicInteger count) {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .maxCacheSize(10_000_000)
+            .checkpointRate(50, TimeUnit.MILLISECONDS)
+            .checkpointSizeThreshold(Long.MAX_VALUE)
+            .checkpointDelayThreshold(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .eventListener((type, message, args) -> {
+                if (type == EventType.CHECKPOINT_BEGIN) {
+                    count.incrementAndGet();
+                }
+            });
+    }
+
+    private static byte[] key(int i) {
+        return ("key-" + (1_000_000 + i)).getBytes();
+    }
+
+    private static void fill(Index ix, int start, int end) throws Exception {
+        byte[] value = new byte[100];
+        for (int i=start; i<end; i++) {
+            ix.store(Transaction.BOGUS, key(i), value);
+        }
+    }
+}
@@ -438,6 +438,155 @@ public class DeadlockTest {
         }
     }
 
+    @Test
+    public void detectDeadlocks() throws Throwable {
+        // Deadlock caused by two threads which wait forever, broken by a separate scan.
+
+        final byte[][] keys = {"k0".getBytes(), "k1".getBytes()};
+        final List<DeadlockException> failures = Collections.synchronizedList(new ArrayList<>());
+
+        Locker locker = new Locker(mManager);
+        locker.lockExclusive(1, keys[0], -1);
+
+        mTasks.add(new Task() {
+                void doRun() throws Throwable {
+                    Locker locker = new Locker(mManager);
+                    try {
+                        locker.lockExclusive(1, keys[1], -1);
+                        sleep(500);
+                        locker.lockExclusive(1, keys[0], -1);
+                    } catch (DeadlockException e) {
+                        failures.add(e);
+                    } finally {
+                        locker.scopeUnlockAll();
+                    }
+                }
+            });
+
+        // Nothing to detect yet.
+        assertEquals(0, mManager.detectDeadlocks());
+
+        int[] found = new int[1];
+        mTasks.add(new Task() {
+                void doRun() throws Throwable {
+                    sleep(1000);
+                    while ((found[0] = mManager.detectDeadlocks()) == 0) {
+                        sleep(10);
+                    }
+                }
+            });
+
+        startTasks();
+
+        sleep(250);
+
+        try {
+            locker.lockExclusive(1, keys[1], -1);
+        } catch (DeadlockException e) {
+            failures.add(e);
+        } finally {
+            locker.scopeUnlockAll();
+        }
+
+        joinTasks();
+
+        assertEquals(1, found[0]);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).isGuilty());
+        assertEquals(0, mManager.numLocksHeld());
+    }
+
+    @Test
+    public void detectDeadlocksNoCycle() throws Throwable {
+        // A locker which is only waiting, and isn't in a deadlock, must never be canceled.
+
+        final byte[] key = "k0".getBytes();
+        final List<LockResult> results = Collections.synchronizedList(new ArrayList<>());
+
+        Locker locker = new Locker(mManager);
+        locker.lockExclusive(1, key, -1);
+
+        mTasks.add(new Task() {
+                void doRun() throws Throwable {
+                    Locker locker = new Locker(mManager);
+                    try {
+                        results.add(locker.lockExclusive(1, key, -1));
+                    } finally {
+                        locker.scopeUnlockAll();
+                    }
+                }
+            });
+
+        startTasks();
+
+        for (int i=0; i<50; i++) {
+            sleep(10);
+            assertEquals(0, mManager.detectDeadlocks());
+        }
+
+        locker.scopeUnlockAll();
+
+        joinTasks();
+
+        assertEquals(1, results.size());
+        assertEquals(LockResult.ACQUIRED, results.get(0));
+        assertEquals(0, mManager.numLocksHeld());
+    }
+
+    @Test
+    public void backgroundDetection() throws Throwable {
+        Database db = Database.open(new DatabaseConfig()
+                                    .directPageAccess(false)
+                                    .lockTimeout(1, TimeUnit.MINUTES)
+                                    .deadlockDetectionRate(10, TimeUnit.MILLISECONDS));
+        Index ix = db.openIndex("test");
+
+        final byte[][] keys = {"k0".getBytes(), "k1".getBytes()};
+        final List<DeadlockException> failures = Collections.synchronizedList(new ArrayList<>());
+
+        long start = System.nanoTime();
+
+        Transaction txn1 = db.newTransaction();
+        ix.store(txn1, keys[0], keys[0]);
+
+        mTasks.add(new Task() {
+                void doRun() throws Throwable {
+                    Transaction txn2 = db.newTransaction();
+                    try {
+                        ix.store(txn2, keys[1], keys[1]);
+                        sleep(500);
+                        ix.store(txn2, keys[0], keys[1]);
+                        txn2.commit();
+                    } catch (DeadlockException e) {
+                        failures.add(e);
+                    } finally {
+                        txn2.reset();
+                    }
+                }
+            });
+
+        startTasks();
+
+        sleep(250);
+
+        try {
+            ix.store(txn1, keys[1], keys[0]);
+            txn1.commit();
+        } catch (DeadlockException e) {
+            failures.add(e);
+        } finally {
+            txn1.reset();
+        }
+
+        joinTasks();
+
+        // Deadlock was broken long before the lock timeout expired.
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+        assertEquals(1, failures.size());
+
+        db.close();
+    }
+
     private void startTasks() {
         for (Task t : mTasks) {
             t.start();
@@ -0,0 +1,246 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class LockEscalationTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(LockEscalationTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), new DatabaseConfig()
+                              .directPageAccess(false)
+                              .durabilityMode(DurabilityMode.NO_FLUSH)
+                              .lockTimeout(100, TimeUnit.MILLISECONDS)
+                              .lockEscalationThreshold(100));
+        mIx = mDb.openIndex("test");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mIx = null;
+    }
+
+    private Database mDb;
+    private Index mIx;
+
+    @Test
+    public void escalate() throws Exception {
+        Index other = mDb.openIndex("other");
+
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<10000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+        other.store(txn, key(0), value(0));
+
+        // Row locks acquired before escalating, the escalated lock, and the other index.
+        assertEquals(100 + 1, mDb.stats().lockCount);
+
+        // Uncommitted changes aren't visible.
+        try {
+            mIx.load(null, key(5000));
+            fail();
+        } catch (LockTimeoutException e) {
+            // Expected.
+        }
+
+        Transaction txn2 = mDb.newTransaction();
+        try {
+            mIx.store(txn2, key(20000), value(20000));
+            fail();
+        } catch (LockTimeoutException e) {
+            // Expected.
+        }
+
+        txn2.lockMode(LockMode.READ_COMMITTED);
+        try {
+            mIx.load(txn2, key(5000));
+            fail();
+        } catch (LockTimeoutException e) {
+            // Expected.
+        }
+        txn2.reset();
+
+        // Other indexes aren't affected.
+        other.store(null, key(1), value(1));
+
+        // Locks appear to be held.
+        assertEquals(LockResult.OWNED_EXCLUSIVE, mIx.lockCheck(txn, key(5000)));
+        assertEquals(LockResult.UNOWNED, other.lockCheck(txn, key(5000)));
+        assertEquals(LockResult.OWNED_EXCLUSIVE, mIx.lockShared(txn, key(5000)));
+
+        txn.commit();
+        assertEquals(0, mDb.stats().lockCount);
+
+        verify(0, 10000);
+        mIx.store(null, key(20000), value(20000));
+    }
+
+    @Test
+    public void waitForRelease() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<1000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                txn.commit();
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        });
+        t.start();
+
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockTimeout(10, TimeUnit.SECONDS);
+        fastAssertArrayEquals(value(500), mIx.load(txn2, key(500)));
+        txn2.commit();
+
+        t.join();
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        for (int i=0; i<1000; i += 2) {
+            mIx.store(null, key(i), value(i));
+        }
+
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<1000; i++) {
+            mIx.store(txn, key(i), "x".getBytes());
+        }
+        assertTrue(mDb.stats().lockCount < 1000);
+        txn.exit();
+        assertEquals(0, mDb.stats().lockCount);
+
+        for (int i=0; i<1000; i++) {
+            if ((i & 1) == 0) {
+                fastAssertArrayEquals(value(i), mIx.load(null, key(i)));
+            } else {
+                assertNull(mIx.load(null, key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void nestedRollback() throws Exception {
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<50; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+
+        txn.enter();
+        for (int i=50; i<1000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+        txn.exit();
+
+        // Escalated lock was released by the scope exit.
+        assertEquals(50, mDb.stats().lockCount);
+
+        txn.commit();
+        verify(0, 50);
+        assertNull(mIx.load(null, key(50)));
+    }
+
+    @Test
+    public void delete() throws Exception {
+        for (int i=0; i<1000; i++) {
+            mIx.store(null, key(i), value(i));
+        }
+
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<1000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+        for (int i=0; i<1000; i += 2) {
+            mIx.delete(txn, key(i));
+        }
+        txn.commit();
+
+        assertEquals(0, mDb.stats().lockCount);
+        assertEquals(500, mIx.count(null, null));
+
+        for (int i=0; i<1000; i++) {
+            if ((i & 1) == 0) {
+                assertNull(mIx.load(null, key(i)));
+            } else {
+                fastAssertArrayEquals(value(i), mIx.load(null, key(i)));
+            }
+        }
+    }
+
+    @Test
+    public void blocked() throws Exception {
+        mIx.store(null, key(5000), value(5000));
+
+        Transaction txn2 = mDb.newTransaction();
+        mIx.load(txn2, key(5000));
+        mIx.lockShared(txn2, key(5000));
+
+        // Cannot escalate, because another transaction holds a lock within the index.
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<1000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+        assertEquals(1000 + 1, mDb.stats().lockCount);
+
+        txn2.exit();
+
+        // Escalates after another threshold of requests.
+        for (int i=1000; i<2000; i++) {
+            mIx.store(txn, key(i), value(i));
+        }
+        assertTrue(mDb.stats().lockCount < 2000);
+
+        txn.commit();
+        verify(0, 2000);
+    }
+
+    private void verify(int start, int end) throws Exception {
+        for (int i=start; i<end; i++) {
+            fastAssertArrayEquals(value(i), mIx.load(null, key(i)));
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
@@ -2002,6 +2002,62 @@ public class LockTest {
         }
     }
 
+    @Test
+    public void isAvailableChurn() throws Exception {
+        final byte[] key = key("k0");
+        final int hash = LockManager.hash(0, key);
+        final LockManager.LockHT ht = mManager.getLockHT(hash);
+
+        // Select keys which share the same hashtable.
+        final List<byte[]> keys = new ArrayList<>();
+        for (int i=1; keys.size() < 1000; i++) {
+            byte[] k = key("k" + i);
+            if (mManager.getLockHT(LockManager.hash(0, k)) == ht) {
+                keys.add(k);
+            }
+        }
+
+        Locker locker = new Locker(mManager);
+        Locker other = new Locker(mManager);
+
+        for (byte[] k : keys) {
+            assertEquals(ACQUIRED, locker.lockExclusive(0, k, -1));
+            locker.unlock();
+        }
+        assertEquals(0, mManager.numLocksHeld());
+
+        assertEquals(ACQUIRED, locker.lockExclusive(0, key, -1));
+        assertEquals(1, mManager.numLocksHeld());
+        assertFalse(mManager.isAvailable(other, 0, key, hash));
+        assertTrue(mManager.isAvailable(locker, 0, key, hash));
+
+        // Locks added and removed in the same hashtable must not hide the held lock.
+        final Locker churner = new Locker(mManager);
+        final long end = System.nanoTime() + 500L * ONE_MILLIS_IN_NANOS;
+        Thread t = new Thread(() -> {
+            try {
+                while (System.nanoTime() < end) {
+                    for (byte[] k : keys) {
+                        churner.lockExclusive(0, k, -1);
+                    }
+                    churner.scopeExitAll();
+                }
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        });
+        t.start();
+
+        while (t.isAlive()) {
+            assertFalse(mManager.isAvailable(other, 0, key, hash));
+        }
+        t.join();
+
+        locker.scopeExitAll();
+        assertEquals(0, mManager.numLocksHeld());
+        assertTrue(mManager.isAvailable(other, 0, key, hash));
+    }
+
     private long scheduleUnlock(final Locker locker, final long delayMillis) {
         return schedule(locker, delayMillis, 0);
     }
@@ -0,0 +1,222 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class OptimisticTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(OptimisticTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass());
+        mIx = mDb.openIndex("test");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mIx = null;
+    }
+
+    private Database mDb;
+    private Index mIx;
+
+    private Transaction newTxn() {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.OPTIMISTIC_READ);
+        return txn;
+    }
+
+    @Test
+    public void noConflict() throws Exception {
+        mIx.store(null, "a".getBytes(), "1".getBytes());
+        mIx.store(null, "b".getBytes(), "2".getBytes());
+
+        Transaction txn = newTxn();
+        fastAssertArrayEquals("1".getBytes(), mIx.load(txn, "a".getBytes()));
+        mIx.store(txn, "c".getBytes(), "3".getBytes());
+
+        // Unrelated modification.
+        mIx.store(null, "b".getBytes(), "x".getBytes());
+
+        txn.commit();
+        fastAssertArrayEquals("3".getBytes(), mIx.load(null, "c".getBytes()));
+    }
+
+    @Test
+    public void conflict() throws Exception {
+        mIx.store(null, "a".getBytes(), "1".getBytes());
+
+        Transaction txn = newTxn();
+        fastAssertArrayEquals("1".getBytes(), mIx.load(txn, "a".getBytes()));
+        mIx.store(txn, "b".getBytes(), "2".getBytes());
+
+        mIx.store(null, "a".getBytes(), "x".getBytes());
+
+        try {
+            txn.commit();
+            fail();
+        } catch (OptimisticConflictException e) {
+            // Expected.
+        }
+
+        // Rolled back, and locks are released.
+        assertNull(mIx.load(null, "b".getBytes()));
+        mIx.store(null, "b".getBytes(), "3".getBytes());
+
+        // Can try again.
+        fastAssertArrayEquals("x".getBytes(), mIx.load(txn, "a".getBytes()));
+        mIx.store(txn, "b".getBytes(), "2".getBytes());
+        txn.commit();
+        fastAssertArrayEquals("2".getBytes(), mIx.load(null, "b".getBytes()));
+    }
+
+    @Test
+    public void cursorConflict() throws Exception {
+        for (int i=0; i<10; i++) {
+            mIx.store(null, key(i), key(i));
+        }
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        int count = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            count++;
+        }
+        assertEquals(10, count);
+
+        mIx.store(null, key(5), "x".getBytes());
+
+        try {
+            txn.commit();
+            fail();
+        } catch (OptimisticConflictException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void missingEntry() throws Exception {
+        Transaction txn = newTxn();
+        assertNull(mIx.load(txn, "a".getBytes()));
+        assertFalse(mIx.exists(txn, "b".getBytes()));
+
+        // Inserting an entry which was observed to not exist is a conflict.
+        mIx.store(null, "b".getBytes(), "1".getBytes());
+
+        try {
+            txn.commit();
+            fail();
+        } catch (OptimisticConflictException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void uncommitted() throws Exception {
+        mIx.store(null, "a".getBytes(), "1".getBytes());
+
+        Transaction writer = mDb.newTransaction();
+        mIx.store(writer, "a".getBytes(), "2".getBytes());
+
+        // Reading doesn't wait for the exclusive lock.
+        Transaction txn = newTxn();
+        txn.lockTimeout(10, TimeUnit.SECONDS);
+        fastAssertArrayEquals("2".getBytes(), mIx.load(txn, "a".getBytes()));
+
+        writer.exit();
+
+        // Value which was read has been rolled back.
+        try {
+            txn.commit();
+            fail();
+        } catch (OptimisticConflictException e) {
+            // Expected.
+        }
+
+        fastAssertArrayEquals("1".getBytes(), mIx.load(txn, "a".getBytes()));
+        txn.commit();
+    }
+
+    @Test
+    public void validationLocks() throws Exception {
+        mIx.store(null, "a".getBytes(), "1".getBytes());
+
+        Transaction txn = newTxn();
+        mIx.load(txn, "a".getBytes());
+
+        Transaction writer = mDb.newTransaction();
+        mIx.store(writer, "a".getBytes(), "2".getBytes());
+
+        // Validation must wait for the writer.
+        txn.lockTimeout(1, TimeUnit.MILLISECONDS);
+        try {
+            txn.commit();
+            fail();
+        } catch (LockTimeoutException e) {
+            // Expected.
+        }
+
+        writer.commit();
+    }
+
+    @Test
+    public void scoped() throws Exception {
+        mIx.store(null, "a".getBytes(), "1".getBytes());
+
+        Transaction txn = newTxn();
+        txn.enter();
+        mIx.load(txn, "a".getBytes());
+        txn.commit();
+        txn.exit();
+
+        mIx.store(null, "a".getBytes(), "2".getBytes());
+
+        // Reads made in a nested scope are validated by the top-level commit.
+        try {
+            txn.commit();
+            fail();
+        } catch (OptimisticConflictException e) {
+            // Expected.
+        }
+
+        // Reads are discarded by exit.
+        mIx.load(txn, "a".getBytes());
+        txn.exit();
+        mIx.store(null, "a".getBytes(), "3".getBytes());
+        txn.commit();
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%04d", i).getBytes();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class RangeLockTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RangeLockTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), new DatabaseConfig()
+                              .directPageAccess(false)
+                              .durabilityMode(DurabilityMode.NO_FLUSH)
+                              .lockTimeout(100, TimeUnit.MILLISECONDS));
+        mIx = mDb.openIndex("test");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mIx = null;
+    }
+
+    private Database mDb;
+    private Index mIx;
+
+    private Transaction newTxn() {
+        Transaction txn = mDb.newTransaction();
+        txn.lockMode(LockMode.SERIALIZABLE);
+        return txn;
+    }
+
+    @Test
+    public void scan() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        int count = 0;
+        for (c.first(); c.key() != null; c.next()) {
+            count++;
+        }
+        assertEquals(10, count);
+
+        // Inserts anywhere are blocked, including past the end.
+        assertInsertBlocked(-1);
+        assertInsertBlocked(35);
+        assertInsertBlocked(1000);
+
+        // Transaction can insert into its own range.
+        mIx.store(txn, key(45), value(45));
+
+        txn.commit();
+
+        mIx.store(null, key(35), value(35));
+        mIx.store(null, key(1000), value(1000));
+    }
+
+    @Test
+    public void partialScan() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.findGe(key(15));
+        fastAssertArrayEquals(key(20), c.key());
+        c.next();
+        c.next();
+        fastAssertArrayEquals(key(40), c.key());
+
+        // Range is [15, 40].
+        assertInsertBlocked(15);
+        assertInsertBlocked(25);
+        assertInsertBlocked(35);
+        mIx.store(null, key(14), value(14));
+        mIx.store(null, key(41), value(41));
+        mIx.store(null, key(75), value(75));
+
+        // Inserting into the locked range is still blocked after moving back.
+        c.previous();
+        fastAssertArrayEquals(key(30), c.key());
+        assertInsertBlocked(35);
+
+        txn.exit();
+
+        mIx.store(null, key(35), value(35));
+    }
+
+    @Test
+    public void reverse() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.last();
+        fastAssertArrayEquals(key(90), c.key());
+        c.previous();
+        fastAssertArrayEquals(key(80), c.key());
+
+        assertInsertBlocked(85);
+        assertInsertBlocked(1000);
+        mIx.store(null, key(75), value(75));
+
+        c.findLe(key(55));
+        fastAssertArrayEquals(key(50), c.key());
+        assertInsertBlocked(51);
+        mIx.store(null, key(49), value(49));
+        mIx.store(null, key(56), value(56));
+
+        txn.reset();
+
+        mIx.store(null, key(85), value(85));
+    }
+
+    @Test
+    public void limit() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.findGe(key(70));
+        c.nextLe(key(85));
+        fastAssertArrayEquals(key(80), c.key());
+        c.nextLe(key(85));
+        assertNull(c.key());
+
+        // Range is [70, 85].
+        assertInsertBlocked(85);
+        mIx.store(null, key(86), value(86));
+        mIx.store(null, key(69), value(69));
+
+        txn.commit();
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.findGe(key(50));
+        assertNull(c.key());
+
+        // Observed to be empty, and so nothing can be inserted.
+        assertInsertBlocked(50);
+        assertInsertBlocked(1000);
+        mIx.store(null, key(49), value(49));
+
+        txn.commit();
+
+        mIx.store(null, key(50), value(50));
+    }
+
+    @Test
+    public void upgradable() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.first();
+        assertEquals(LockResult.OWNED_UPGRADABLE, c.skip(0));
+        c.store(value(-1));
+        assertEquals(LockResult.OWNED_EXCLUSIVE, c.skip(0));
+        c.reset();
+        txn.commit();
+
+        fastAssertArrayEquals(value(-1), mIx.load(null, key(0)));
+    }
+
+    @Test
+    public void otherIndex() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.first();
+        c.next();
+
+        mDb.openIndex("other").store(null, key(5), value(5));
+        assertInsertBlocked(5);
+
+        txn.commit();
+    }
+
+    @Test
+    public void waitForRelease() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+        c.first();
+        c.next();
+
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                txn.commit();
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        });
+        t.start();
+
+        Transaction txn2 = mDb.newTransaction();
+        txn2.lockTimeout(10, TimeUnit.SECONDS);
+        mIx.store(txn2, key(5), value(5));
+        txn2.commit();
+
+        t.join();
+
+        fastAssertArrayEquals(value(5), mIx.load(null, key(5)));
+    }
+
+    @Test
+    public void nonSerializable() throws Exception {
+        fill();
+
+        Transaction txn = mDb.newTransaction();
+        Cursor c = mIx.newCursor(txn);
+        for (c.first(); c.key() != null; c.next());
+
+        // Default mode doesn't lock ranges.
+        mIx.store(null, key(5), value(5));
+
+        txn.commit();
+    }
+
+    @Test
+    public void seekOverlap() throws Exception {
+        fill();
+
+        Transaction txn = newTxn();
+        Cursor c = mIx.newCursor(txn);
+
+        // Range is [15, 20].
+        c.findGe(key(15));
+        fastAssertArrayEquals(key(20), c.key());
+
+        // Disjoint range is [25, 30].
+        c.findGe(key(25));
+        fastAssertArrayEquals(key(30), c.key());
+
+        // Overlapping range widens the current one to [20, 30].
+        c.findLe(key(28));
+        fastAssertArrayEquals(key(20), c.key());
+
+        // Overlapping range widens the current one to [20, 40].
+        c.findGt(key(30));
+        fastAssertArrayEquals(key(40), c.key());
+
+        // Disjoint range is [42, 50].
+        c.findGe(key(42));
+        fastAssertArrayEquals(key(50), c.key());
+
+        assertInsertBlocked(15);
+        assertInsertBlocked(17);
+        assertInsertBlocked(22);
+        assertInsertBlocked(35);
+        assertInsertBlocked(45);
+        mIx.store(null, key(12), value(12));
+        mIx.store(null, key(41), value(41));
+        mIx.store(null, key(51), value(51));
+
+        txn.exit();
+
+        mIx.store(null, key(35), value(35));
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        // Compare range lock lookups against a brute force search.
+
+        LockManager manager = new LockManager(null, null, -1);
+        Locker[] owners = {new Locker(manager), new Locker(manager), new Locker(manager)};
+        List<RangeLock> ranges = new ArrayList<>();
+        Random rnd = new Random(8675309);
+
+        for (int i=0; i<10_000; i++) {
+            int op = rnd.nextInt(10);
+            if (op < 4 || ranges.isEmpty()) {
+                byte[][] bounds = randomBounds(rnd);
+                Locker owner = owners[rnd.nextInt(owners.length)];
+                ranges.add(manager.lockRange(owner, rnd.nextInt(2), bounds[0], bounds[1]));
+            } else if (op < 7) {
+                RangeLock range = ranges.get(rnd.nextInt(ranges.size()));
+                byte[][] bounds = randomBounds(rnd);
+                manager.rangeBounds(range, rnd.nextBoolean() ? range.mLow : bounds[0], bounds[1]);
+            } else {
+                RangeLock range = ranges.remove(rnd.nextInt(ranges.size()));
+                manager.releaseRangeLocks(range);
+                assertTrue(range.mReleased);
+            }
+
+            for (int j=0; j<10; j++) {
+                Locker locker = rnd.nextInt(4) == 0 ? null : owners[rnd.nextInt(owners.length)];
+                long indexId = rnd.nextInt(2);
+                byte[] key = key(rnd.nextInt(130));
+                boolean expect = false;
+                for (RangeLock range : ranges) {
+                    if (range.mIndexId == indexId && range.mOwner != locker
+                        && range.contains(key))
+                    {
+                        expect = true;
+                        break;
+                    }
+                }
+                assertEquals(expect, manager.isRangeLocked(locker, indexId, key));
+            }
+        }
+    }
+
+    private static byte[][] randomBounds(Random rnd) {
+        int low = rnd.nextInt(100);
+        int high = low + rnd.nextInt(20);
+        return new byte[][] {
+            rnd.nextInt(8) == 0 ? null : key(low), rnd.nextInt(8) == 0 ? null : key(high)
+        };
+    }
+
+    private void assertInsertBlocked(int i) throws Exception {
+        try {
+            mIx.store(null, key(i), value(i));
+            fail();
+        } catch (LockTimeoutException e) {
+            // Expected.
+        }
+        assertNull(mIx.load(null, key(i)));
+    }
+
+    private void fill() throws Exception {
+        for (int i=0; i<100; i += 10) {
+            mIx.store(null, key(i), value(i));
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
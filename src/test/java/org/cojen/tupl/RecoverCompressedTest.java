@@ -0,0 +1,257 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.InputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class RecoverCompressedTest extends RecoverTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RecoverCompressedTest.class.getName());
+    }
+
+    @Override
+    protected void decorate(DatabaseConfig config) throws Exception {
+        config.compressRedoLog(true);
+    }
+
+    @Test
+    public void codec() throws Exception {
+        Random rnd = new Random(2398457);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        BlockCodec.Output out = new BlockCodec.Output(bout);
+        ByteArrayOutputStream expect = new ByteArrayOutputStream();
+
+        for (int i=0; i<1000; i++) {
+            byte[] block = new byte[rnd.nextInt(20000)];
+            switch (rnd.nextInt(3)) {
+            case 0:
+                // Incompressible.
+                rnd.nextBytes(block);
+                break;
+            case 1:
+                // Runs of repeated bytes.
+                for (int j=0; j<block.length; ) {
+                    int run = Math.min(block.length - j, rnd.nextInt(100) + 1);
+                    Arrays.fill(block, j, j + run, (byte) rnd.nextInt(4));
+                    j += run;
+                }
+                break;
+            default:
+                // Repeated phrases.
+                byte[] phrase = ("value-" + rnd.nextInt(10)).getBytes();
+                for (int j=0; j<block.length; j++) {
+                    block[j] = phrase[j % phrase.length];
+                }
+                break;
+            }
+            out.write(block, 0, block.length);
+            expect.write(block);
+        }
+
+        byte[] encoded = bout.toByteArray();
+        assertTrue(encoded.length < expect.size());
+
+        InputStream in = new BlockCodec.Input(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int amt;
+        while ((amt = in.read(buf)) > 0) {
+            actual.write(buf, 0, amt);
+        }
+
+        fastAssertArrayEquals(expect.toByteArray(), actual.toByteArray());
+
+        // Truncated block.
+        in = new BlockCodec.Input
+            (new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length - 1)));
+        try {
+            while (in.read(buf) > 0);
+            fail();
+        } catch (EOFException e) {
+        }
+
+        // Zeros indicate the end, as in a preallocated file.
+        in = new BlockCodec.Input
+            (new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length + 100)));
+        actual.reset();
+        while ((amt = in.read(buf)) > 0) {
+            actual.write(buf, 0, amt);
+        }
+        fastAssertArrayEquals(expect.toByteArray(), actual.toByteArray());
+
+        // Large writes are split into several blocks.
+        byte[] large = new byte[3_000_000];
+        rnd.nextBytes(large);
+        bout.reset();
+        out.write(large, 0, large.length);
+        in = new BlockCodec.Input(new ByteArrayInputStream(bout.toByteArray()));
+        actual.reset();
+        while ((amt = in.read(buf)) > 0) {
+            actual.write(buf, 0, amt);
+        }
+        fastAssertArrayEquals(large, actual.toByteArray());
+    }
+
+    @Test
+    public void smaller() throws Exception {
+        File baseFile = baseFileForTempDatabase(getClass(), mDb);
+        File dir = baseFile.getParentFile();
+        String prefix = baseFile.getName() + LocalDatabase.REDO_FILE_SUFFIX;
+
+        Index ix = mDb.openIndex("test");
+
+        long rawSize = 0;
+        for (int i=0; i<1000; i++) {
+            byte[] key = ("key-" + i).getBytes();
+            byte[] value = new byte[1000];
+            Arrays.fill(value, (byte) 'x');
+            ix.store(null, key, value);
+            rawSize += key.length + value.length;
+        }
+
+        mDb.flush();
+
+        long redoSize = 0;
+        for (File f : dir.listFiles((d, name) -> name.startsWith(prefix))) {
+            redoSize += f.length();
+        }
+
+        assertTrue(redoSize < rawSize / 10);
+    }
+
+    @Test
+    public void toggle() throws Exception {
+        Index ix = mDb.openIndex("test");
+        ix.store(null, "k1".getBytes(), "v1".getBytes());
+
+        // Recovery examines each file, and so compression can be disabled.
+        mConfig.compressRedoLog(false);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        fastAssertArrayEquals("v1".getBytes(), ix.load(null, "k1".getBytes()));
+        ix.store(null, "k2".getBytes(), "v2".getBytes());
+
+        mConfig.compressRedoLog(true);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        fastAssertArrayEquals("v1".getBytes(), ix.load(null, "k1".getBytes()));
+        fastAssertArrayEquals("v2".getBytes(), ix.load(null, "k2".getBytes()));
+    }
+
+    @Test
+    public void tornBlock() throws Exception {
+        // Length is written, but the rest of the block is zeros.
+        byte[] zeros = new byte[8 + 100];
+        Utils.encodeIntLE(zeros, 0, 100);
+        Utils.encodeIntLE(zeros, 4, 1000);
+        tornBlock(zeros);
+
+        // Uncompressed block with a torn length.
+        byte[] raw = new byte[4 + 100];
+        Utils.encodeIntLE(raw, 0, -0x7ffffff0);
+        tornBlock(raw);
+
+        // Torn lengths must not allocate huge buffers.
+        byte[] huge = new byte[8 + 100];
+        Utils.encodeIntLE(huge, 0, 0x7ffffff0);
+        Utils.encodeIntLE(huge, 4, 0x7ffffff0);
+        tornBlock(huge);
+
+        byte[] minimum = new byte[4];
+        Utils.encodeIntLE(minimum, 0, Integer.MIN_VALUE);
+        tornBlock(minimum);
+    }
+
+    @Test
+    public void malformedBlockNotLast() throws Exception {
+        // Only the last file can have a torn block.
+        byte[] zeros = new byte[8 + 100];
+        Utils.encodeIntLE(zeros, 0, 100);
+        Utils.encodeIntLE(zeros, 4, 1000);
+        try {
+            tornBlock(zeros, true);
+            fail();
+        } catch (CorruptDatabaseException e) {
+            assertTrue(e.getMessage().contains("Malformed compressed block"));
+        }
+    }
+
+    private void tornBlock(byte[] garbage) throws Exception {
+        tornBlock(garbage, false);
+    }
+
+    private void tornBlock(byte[] garbage, boolean notLast) throws Exception {
+        File baseFile = baseFileForTempDatabase(getClass(), mDb);
+        Index ix = mDb.openIndex("test");
+
+        byte[] key = ("key-" + garbage.length + "-" + garbage[3]).getBytes();
+        ix.store(null, key, key);
+        mDb.close();
+
+        // Append the garbage to the last redo log file.
+        File last = null;
+        long lastId = -1;
+        String prefix = baseFile.getName() + LocalDatabase.REDO_FILE_SUFFIX;
+        for (File f : baseFile.getParentFile().listFiles((d, name) -> name.startsWith(prefix))) {
+            long id = Long.parseLong(f.getName().substring(prefix.length()));
+            if (id > lastId) {
+                lastId = id;
+                last = f;
+            }
+        }
+
+        assertNotNull(last);
+
+        try (java.io.FileOutputStream out = new java.io.FileOutputStream(last, true)) {
+            out.write(garbage);
+        }
+
+        if (notLast) {
+            // Follow with a file which only has a header.
+            byte[] header = new byte[8 + 4 + 8 + 4];
+            try (java.io.FileInputStream in = new java.io.FileInputStream(last)) {
+                assertEquals(8 + 4, in.read(header, 0, 8 + 4));
+            }
+            Utils.encodeLongLE(header, 8 + 4, lastId + 1);
+            java.nio.file.Files.write(new File(last.getParentFile(), prefix + (lastId + 1))
+                                      .toPath(), header);
+        }
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        fastAssertArrayEquals(key, ix.load(null, key));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class RecoverDirectRedoTest extends RecoverTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RecoverDirectRedoTest.class.getName());
+    }
+
+    @Override
+    protected void decorate(DatabaseConfig config) throws Exception {
+        config.directRedoLog(true);
+    }
+
+    @Test
+    public void tailRewrite() throws Exception {
+        File file = new File(newTempBaseFile(getClass()).getPath() + ".out");
+
+        try {
+            Random rnd = new Random(8675309);
+            ByteArrayOutputStream expect = new ByteArrayOutputStream();
+
+            try (DirectRedoOutput out = new DirectRedoOutput(file, true, 10000)) {
+                for (int i=0; i<1000; i++) {
+                    byte[] b = new byte[rnd.nextInt(i % 10 == 0 ? 30000 : 1000) + 1];
+                    rnd.nextBytes(b);
+                    out.write(b, 0, b.length);
+                    expect.write(b);
+
+                    assertEquals(expect.size(), out.position());
+                    // Tail block is padded.
+                    assertEquals(0, file.length() % DirectRedoOutput.BLOCK_SIZE);
+                    assertTrue(file.length() >= expect.size());
+                }
+            }
+
+            byte[] actual = new byte[(int) file.length()];
+            try (FileInputStream in = new FileInputStream(file)) {
+                int len = 0;
+                while (len < actual.length) {
+                    len += in.read(actual, len, actual.length - len);
+                }
+            }
+
+            byte[] expectBytes = expect.toByteArray();
+            fastAssertArrayEquals(expectBytes, Arrays.copyOf(actual, expectBytes.length));
+            for (int i=expectBytes.length; i<actual.length; i++) {
+                assertEquals(0, actual[i]);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void preallocated() throws Exception {
+        mConfig.preallocateRedoLogs(100_000);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<10; i++) {
+            for (int j=0; j<100; j++) {
+                ix.store(null, ("key-" + i + "-" + j).getBytes(), ("value-" + j).getBytes());
+            }
+            mDb.checkpoint();
+        }
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, "hello".getBytes(), "world".getBytes());
+        txn.commit();
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        fastAssertArrayEquals("world".getBytes(), ix.load(null, "hello".getBytes()));
+        for (int i=0; i<10; i++) {
+            for (int j=0; j<100; j++) {
+                fastAssertArrayEquals(("value-" + j).getBytes(),
+                                      ix.load(null, ("key-" + i + "-" + j).getBytes()));
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cojen.tupl;
+
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class RecoverParallelTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RecoverParallelTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH)
+            .maxRecoveryThreads(4);
+        mDb = newTempDatabase(getClass(), mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mConfig = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void applyRedo() throws Exception {
+        Index ix = mDb.openIndex("test");
+        mDb.checkpoint();
+
+        Map<String, String> expect = new HashMap<>();
+        Random rnd = new Random(8675309);
+
+        for (int i=0; i<1000; i++) {
+            Transaction txn = mDb.newTransaction();
+            for (int j=0; j<10; j++) {
+                String key = "key-" + rnd.nextInt(500);
+                String value = "value-" + i + "-" + j;
+                ix.store(txn, key.getBytes(), value.getBytes());
+                if ((i % 5) != 0) {
+                    expect.put(key, value);
+                }
+            }
+            if ((i % 5) == 0) {
+                txn.exit();
+            } else {
+                txn.commit();
+            }
+            if ((i % 3) == 0) {
+                String key = "auto-" + rnd.nextInt(100);
+                String value = "value-" + i;
+                ix.store(null, key.getBytes(), value.getBytes());
+                expect.put(key, value);
+            }
+        }
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        assertEquals(expect.size(), ix.count(null, null));
+
+        for (Map.Entry<String, String> e : expect.entrySet()) {
+            fastAssertArrayEquals(e.getValue().getBytes(), ix.load(null, e.getKey().getBytes()));
+        }
+    }
+
+    @Test
+    public void rollbackInBackground() throws Exception {
+        Index ix = mDb.openIndex("test");
+
+        for (int i=0; i<1000; i++) {
+            ix.store(null, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+        }
+
+        mDb.checkpoint();
+
+        Transaction[] txns = new Transaction[100];
+
+        for (int i=0; i<txns.length; i++) {
+            Transaction txn = mDb.newTransaction();
+            for (int j=i*10; j<i*10+10; j++) {
+                ix.store(txn, ("key-" + j).getBytes(), ("new-" + j).getBytes());
+                ix.store(txn, ("extra-" + j).getBytes(), ("new-" + j).getBytes());
+            }
+            txns[i] = txn;
+            if (i == txns.length / 2) {
+                // Half of the transactions are recovered from the undo log, and the rest are
+                // recovered from the redo log.
+                mDb.checkpoint();
+            }
+        }
+
+        for (int round=0; round<2; round++) {
+            mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+
+            // Unaffected indexes can be modified while rollback is in progress.
+            Index other = mDb.openIndex("other");
+            other.store(null, "hello".getBytes(), "world".getBytes());
+
+            ix = mDb.openIndex("test");
+
+            // Loads wait for the rows to be unlocked by the rollback.
+            for (int i=0; i<1000; i++) {
+                fastAssertArrayEquals(("value-" + i).getBytes(),
+                                      ix.load(null, ("key-" + i).getBytes()));
+                assertNull(ix.load(null, ("extra-" + i).getBytes()));
+            }
+
+            // Reopen again, performing the rollback again if it wasn't checkpointed.
+        }
+    }
+
+    @Test
+    public void rollbackThenCommit() throws Exception {
+        Index ix = mDb.openIndex("test");
+        byte[] key = "key".getBytes();
+
+        ix.store(null, key, "orig".getBytes());
+        mDb.checkpoint();
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key, "uncommitted".getBytes());
+        mDb.checkpoint();
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        // Waits for the background rollback to release the lock.
+        fastAssertArrayEquals("orig".getBytes(), ix.load(null, key));
+
+        ix.store(null, key, "committed-after".getBytes());
+        mDb.sync();
+
+        // The master undo log of the recovery checkpoint still has the rolled back
+        // transaction. Recovery must not roll it back again over the newer change, and it
+        // must not block waiting for the locks of the rolled back transaction.
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        fastAssertArrayEquals("committed-after".getBytes(), ix.load(null, key));
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        fastAssertArrayEquals("committed-after".getBytes(), ix.load(null, key));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.File;
+
+import java.nio.file.Files;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class RecoverPreallocateTest extends RecoverTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RecoverPreallocateTest.class.getName());
+    }
+
+    @Override
+    protected void decorate(DatabaseConfig config) throws Exception {
+        config.preallocateRedoLogs(100_000);
+    }
+
+    @Test
+    public void recycle() throws Exception {
+        File baseFile = baseFileForTempDatabase(getClass(), mDb);
+        File dir = baseFile.getParentFile();
+        String prefix = baseFile.getName() + LocalDatabase.REDO_FILE_SUFFIX;
+
+        Index ix = mDb.openIndex("test");
+
+        for (int i=0; i<20; i++) {
+            for (int j=0; j<1000; j++) {
+                byte[] key = ("key-" + i + "-" + j).getBytes();
+                ix.store(Transaction.BOGUS, key, key);
+            }
+            Transaction txn = mDb.newTransaction();
+            ix.store(txn, ("txn-" + i).getBytes(), ("value-" + i).getBytes());
+            txn.commit();
+            mDb.checkpoint();
+
+            // Current log file and the recycled spare.
+            File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+            assertTrue(files.length <= 2);
+            for (File f : files) {
+                assertTrue(f.length() >= 100_000);
+            }
+        }
+
+        // Redo log written after the last checkpoint goes into a recycled file.
+        for (int i=0; i<10; i++) {
+            Transaction txn = mDb.newTransaction();
+            ix.store(txn, ("last-" + i).getBytes(), ("value-" + i).getBytes());
+            txn.commit();
+        }
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, "uncommitted".getBytes(), "value".getBytes());
+        mDb.flush();
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        for (int i=0; i<20; i++) {
+            fastAssertArrayEquals(("value-" + i).getBytes(),
+                                  ix.load(null, ("txn-" + i).getBytes()));
+        }
+        for (int i=0; i<10; i++) {
+            fastAssertArrayEquals(("value-" + i).getBytes(),
+                                  ix.load(null, ("last-" + i).getBytes()));
+        }
+        assertNull(ix.load(null, "uncommitted".getBytes()));
+
+        // Recycle some more after recovery.
+        for (int i=0; i<5; i++) {
+            ix.store(null, ("again-" + i).getBytes(), ("value-" + i).getBytes());
+            mDb.checkpoint();
+        }
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        for (int i=0; i<5; i++) {
+            fastAssertArrayEquals(("value-" + i).getBytes(),
+                                  ix.load(null, ("again-" + i).getBytes()));
+        }
+    }
+
+    @Test
+    public void recycleStale() throws Exception {
+        recycleStale(PAD_INTACT);
+    }
+
+    @Test
+    public void recycleStaleTorn() throws Exception {
+        recycleStale(PAD_GARBAGE);
+    }
+
+    @Test
+    public void recycleStaleTornNotLast() throws Exception {
+        // Garbage is only a torn write when at the tail of the last file.
+        try {
+            recycleStale(PAD_GARBAGE_NOT_LAST);
+            fail();
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("Unknown redo log operation"));
+        }
+    }
+
+    @Test
+    public void recycleStaleExposed() throws Exception {
+        // The terminators of the stale operations must not verify.
+        recycleStale(PAD_REMOVED);
+    }
+
+    private static final int PAD_INTACT = 0, PAD_GARBAGE = 1, PAD_GARBAGE_NOT_LAST = 2,
+        PAD_REMOVED = 3;
+
+    private void recycleStale(int mode) throws Exception {
+        // Operations of the same size are written at the same positions in each file. The
+        // stale data after the end of a recycled file would look valid if it were read.
+
+        // Write each operation to the file, without buffering.
+        mConfig.durabilityMode(DurabilityMode.NO_SYNC);
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+
+        Index ix = mDb.openIndex("test");
+
+        final int count = 1000;
+
+        for (int round=0; round<6; round++) {
+            for (int i=0; i<count; i++) {
+                ix.store(null, key(i), value(round, i));
+            }
+            mDb.checkpoint();
+        }
+
+        for (int i=0; i<count / 2; i++) {
+            ix.store(null, key(i), value(9, i));
+        }
+
+        // Closing writes to the redo log, and so restore the files as if the process crashed.
+        File baseFile = baseFileForTempDatabase(getClass(), mDb);
+        String prefix = baseFile.getName() + LocalDatabase.REDO_FILE_SUFFIX;
+        Map<File, byte[]> files = new HashMap<>();
+        for (File f : baseFile.getParentFile().listFiles((d, name) -> name.startsWith(prefix))) {
+            files.put(f, Files.readAllBytes(f.toPath()));
+        }
+        mDb.close();
+        File nextFile = null;
+        byte[] nextBytes = null;
+        for (Map.Entry<File, byte[]> e : files.entrySet()) {
+            byte[] bytes = e.getValue();
+            if (mode != PAD_INTACT && bytes[0] != 0) {
+                // Find the zeros which follow the last write.
+                int pos = 8 + 4 + 8 + 4; // skip the header
+                while (!isZeros(bytes, pos, 16)) {
+                    pos++;
+                }
+
+                if (mode == PAD_REMOVED) {
+                    // Restore the start of the stale operation, which is the same as the
+                    // start of the last one written, exposing the rest of the stale log.
+                    int opLength = 1 + 8 + 1 + key(0).length + 1 + value(0, 0).length + 4;
+                    System.arraycopy(bytes, pos - opLength, bytes, pos, 16);
+                } else {
+                    Arrays.fill(bytes, pos, pos + 16, (byte) 0xff);
+                }
+
+                if (mode == PAD_GARBAGE_NOT_LAST) {
+                    // Follow with a file which only has a header, replacing the spare.
+                    String name = e.getKey().getName();
+                    long logId = Long.parseLong(name.substring(prefix.length())) + 1;
+                    byte[] next = new byte[100];
+                    System.arraycopy(bytes, 0, next, 0, 8 + 4);
+                    Utils.encodeLongLE(next, 8 + 4, logId);
+                    nextFile = new File(e.getKey().getParentFile(), prefix + logId);
+                    nextBytes = next;
+                }
+            }
+            Files.write(e.getKey().toPath(), bytes);
+        }
+        if (nextFile != null) {
+            Files.write(nextFile.toPath(), nextBytes);
+        }
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        for (int i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i < count / 2 ? 9 : 5, i), ix.load(null, key(i)));
+        }
+    }
+
+    private static boolean isZeros(byte[] bytes, int pos, int len) {
+        for (int i=0; i<len; i++) {
+            if (bytes[pos + i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%05d", i).getBytes();
+    }
+
+    private static byte[] value(int round, int i) {
+        return String.format("value-%d-%05d", round, i).getBytes();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * Tests recovery of a redo log striped across multiple directories.
+ *
+ * @author Brian S O'Neill
+ */
+public class RecoverStripedTest extends RecoverTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RecoverStripedTest.class.getName());
+    }
+
+    private final List<File> mStripeDirs = new ArrayList<>();
+
+    @Override
+    protected void decorate(DatabaseConfig config) throws Exception {
+        // First stripe is in the same directory as the base file, which allows the lostRedo
+        // test to delete some of the stripes.
+        File baseDir = new File(System.getProperty("java.io.tmpdir"), "tupl");
+        File stripeDir = new File(baseDir, getClass().getSimpleName() + "-"
+                                  + System.nanoTime() + "-" + ThreadLocalRandom.current().nextInt());
+        mStripeDirs.add(stripeDir);
+        config.redoLogDirectories(baseDir, stripeDir);
+    }
+
+    @After
+    @Override
+    public void teardown() throws Exception {
+        super.teardown();
+        for (File dir : mStripeDirs) {
+            deleteRecursively(dir);
+        }
+        mStripeDirs.clear();
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final int threadCount = 8;
+        final int count = 1000;
+
+        final Index fix = mDb.openIndex("test");
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t=0; t<threadCount; t++) {
+            final int tid = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i=0; i<count; i++) {
+                        // Every thread updates the same keys, and so the stripes must be
+                        // applied in the correct order to recover the final values.
+                        Transaction txn = mDb.newTransaction();
+                        byte[] key = ("key-" + (i % 100)).getBytes();
+                        fix.store(txn, key, ("value-" + tid + "-" + i).getBytes());
+                        fix.store(txn, ("key-" + tid + "-" + i).getBytes(), key);
+                        txn.commit();
+                    }
+                } catch (Exception e) {
+                    throw Utils.rethrow(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Index ix = fix;
+
+        byte[][] expect = new byte[100][];
+        for (int i=0; i<100; i++) {
+            expect[i] = ix.load(null, ("key-" + i).getBytes());
+            assertNotNull(expect[i]);
+        }
+
+        File[] stripeFiles = mStripeDirs.get(0).listFiles();
+        assertTrue(stripeFiles != null && stripeFiles.length > 0);
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+
+        for (int i=0; i<100; i++) {
+            fastAssertArrayEquals(expect[i], ix.load(null, ("key-" + i).getBytes()));
+        }
+
+        for (int t=0; t<threadCount; t++) {
+            for (int i=0; i<count; i++) {
+                assertNotNull(ix.load(null, ("key-" + t + "-" + i).getBytes()));
+            }
+        }
+
+        // Verify that recovery works again after a checkpoint.
+        ix.store(null, "hello".getBytes(), "world".getBytes());
+        mDb.checkpoint();
+        ix.store(null, "hello".getBytes(), "world!".getBytes());
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        ix = mDb.openIndex("test");
+        fastAssertArrayEquals("world!".getBytes(), ix.load(null, "hello".getBytes()));
+    }
+
+    @Test
+    public void concurrentSync() throws Exception {
+        final int threadCount = 8;
+        final int count = 200;
+
+        final Index ix = mDb.openIndex("test");
+
+        // Keys whose commits have been acknowledged.
+        final List<byte[]> committed = new ArrayList<>();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t=0; t<threadCount; t++) {
+            final int tid = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i=0; i<count; i++) {
+                        byte[] key = ("key-" + tid + "-" + i).getBytes();
+                        Transaction txn = mDb.newTransaction(DurabilityMode.SYNC);
+                        ix.store(txn, key, key);
+                        txn.commit();
+                        synchronized (committed) {
+                            committed.add(key);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw Utils.rethrow(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        mDb = reopenTempDatabase(getClass(), mDb, mConfig);
+        Index ix2 = mDb.openIndex("test");
+
+        assertEquals(threadCount * count, committed.size());
+        for (byte[] key : committed) {
+            fastAssertArrayEquals(key, ix2.load(null, key));
+        }
+    }
+
+    @Test
+    public void writtenThrough() throws Exception {
+        FrameSequence seq = new FrameSequence(2);
+        byte[] header = new byte[8];
+
+        long t1 = seq.begin(header, 0);
+        assertEquals(1, Utils.decodeLongLE(header, 0));
+        long t2 = seq.begin(header, 0);
+        assertEquals(2, Utils.decodeLongLE(header, 0));
+        seq.written(t2, null);
+
+        // Frame 1 is still being written, and so forcing wouldn't make frame 2 durable.
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+            }
+            seq.written(t1, null);
+        });
+
+        long start = System.nanoTime();
+        t.start();
+        seq.awaitWritten();
+        assertTrue(System.nanoTime() - start >= 400_000_000L);
+        t.join();
+
+        // Sequence starts over, but frames which were assigned a number before still count.
+        long t3 = seq.begin(header, 0);
+        seq.reset();
+        long t4 = seq.begin(header, 0);
+        assertEquals(1, Utils.decodeLongLE(header, 0));
+        seq.written(t4, null);
+
+        t = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+            }
+            seq.written(t3, new java.io.IOException("failed"));
+        });
+
+        t.start();
+        try {
+            seq.awaitWritten();
+            fail();
+        } catch (WriteFailureException e) {
+            assertEquals("failed", e.getCause().getMessage());
+        }
+        t.join();
+    }
+}
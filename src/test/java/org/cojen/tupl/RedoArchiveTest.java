@@ -0,0 +1,250 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class RedoArchiveTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RedoArchiveTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        File base = newTempBaseFile(getClass());
+        mArchiveDir = new File(base.getPath() + "-archive");
+        mConfig = newConfig().baseFile(base);
+        mDb = Database.open(mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (mDb != null) {
+            mDb.close();
+            mDb = null;
+        }
+        deleteTempDatabases(getClass());
+        deleteRecursively(mArchiveDir);
+    }
+
+    private File mArchiveDir;
+    private DatabaseConfig mConfig;
+    private Database mDb;
+
+    private DatabaseConfig newConfig() {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.SYNC)
+            .archiveRedoLogs(mArchiveDir);
+    }
+
+    @Test
+    public void archive() throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<5; i++) {
+            ix.store(null, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+            mDb.checkpoint();
+        }
+
+        String prefix = mConfig.mBaseFile.getName() + ".redo.";
+        String[] names = mArchiveDir.list();
+        assertTrue(names.length >= 4);
+        for (String name : names) {
+            assertTrue(name, name.startsWith(prefix));
+        }
+    }
+
+    @Test
+    public void restoreAll() throws Exception {
+        byte[] snapshot = prepare(10);
+
+        Database db = restore(snapshot, newConfig());
+        Index ix = db.openIndex("test");
+        for (int i=0; i<10; i++) {
+            verifyBatch(ix, i, true);
+        }
+        db.close();
+    }
+
+    @Test
+    public void restoreToPosition() throws Exception {
+        Index ix = mDb.openIndex("test");
+
+        class Listener implements RedoListener {
+            volatile int mCount;
+            volatile long mPosition;
+
+            @Override
+            public void store(long indexId, byte[] key, byte[] value) {
+            }
+
+            @Override
+            public void commit(long position) {
+                mPosition = position;
+                mCount++;
+            }
+        }
+
+        byte[] snapshot = snapshot();
+
+        Listener listener = new Listener();
+        long position;
+        try (Closeable sub = mDb.subscribe(listener, -1)) {
+            for (int i=0; i<6; i++) {
+                writeBatch(ix, i);
+                mDb.checkpoint();
+            }
+            long end = System.currentTimeMillis() + 10_000;
+            while (listener.mCount < 6) {
+                assertTrue(System.currentTimeMillis() < end);
+                sleep(1);
+            }
+            position = listener.mPosition;
+        }
+
+        // Capture the position of the last commit, and then write more.
+        for (int i=6; i<10; i++) {
+            writeBatch(ix, i);
+            mDb.checkpoint();
+        }
+        finishArchive();
+
+        Database db = restore(snapshot, newConfig().restoreToPosition(position));
+        ix = db.openIndex("test");
+        for (int i=0; i<10; i++) {
+            verifyBatch(ix, i, i < 6);
+        }
+        db.close();
+    }
+
+    @Test
+    public void restoreToTime() throws Exception {
+        Index ix = mDb.openIndex("test");
+        byte[] snapshot = snapshot();
+
+        for (int i=0; i<4; i++) {
+            writeBatch(ix, i);
+            mDb.checkpoint();
+        }
+
+        long time = System.currentTimeMillis();
+        sleep(10);
+
+        // Root is clean, and so the checkpoint only logs the time.
+        mDb.checkpoint();
+
+        for (int i=4; i<8; i++) {
+            writeBatch(ix, i);
+            mDb.checkpoint();
+        }
+        finishArchive();
+
+        Database db = restore(snapshot, newConfig().restoreToTime(time));
+        ix = db.openIndex("test");
+        for (int i=0; i<8; i++) {
+            verifyBatch(ix, i, i < 4);
+        }
+        db.close();
+    }
+
+    @Test
+    public void stripedUnsupported() throws Exception {
+        File base = newTempBaseFile(getClass());
+        DatabaseConfig config = newConfig().baseFile(base).redoLogDirectories
+            (new File(base.getPath() + "-a"), new File(base.getPath() + "-b"));
+        try {
+            Database.open(config);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Writes batches with checkpoints in between, and returns a snapshot taken before the
+     * first batch.
+     */
+    private byte[] prepare(int batches) throws Exception {
+        Index ix = mDb.openIndex("test");
+        byte[] snapshot = snapshot();
+        for (int i=0; i<batches; i++) {
+            writeBatch(ix, i);
+            mDb.checkpoint();
+        }
+        finishArchive();
+        return snapshot;
+    }
+
+    private byte[] snapshot() throws Exception {
+        mDb.checkpoint();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Snapshot s = mDb.beginSnapshot()) {
+            s.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Checkpoint enough times for all of the batches to be archived.
+     */
+    private void finishArchive() throws Exception {
+        Index ix = mDb.openIndex("other");
+        for (int i=0; i<2; i++) {
+            ix.store(null, "x".getBytes(), ("" + i).getBytes());
+            mDb.checkpoint();
+        }
+    }
+
+    private Database restore(byte[] snapshot, DatabaseConfig config) throws Exception {
+        config.baseFile(newTempBaseFile(getClass()));
+        return Database.restoreFromSnapshot(config, new ByteArrayInputStream(snapshot));
+    }
+
+    private static void writeBatch(Index ix, int batch) throws Exception {
+        Transaction txn = ix.newTransaction(DurabilityMode.SYNC);
+        for (int j=0; j<10; j++) {
+            ix.store(txn, ("key-" + batch + "-" + j).getBytes(), ("value-" + j).getBytes());
+        }
+        txn.commit();
+    }
+
+    private static void verifyBatch(Index ix, int batch, boolean exists) throws Exception {
+        for (int j=0; j<10; j++) {
+            byte[] value = ix.load(null, ("key-" + batch + "-" + j).getBytes());
+            if (exists) {
+                fastAssertArrayEquals(("value-" + j).getBytes(), value);
+            } else {
+                assertNull(value);
+            }
+        }
+    }
+}
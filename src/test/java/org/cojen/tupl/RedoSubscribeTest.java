@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class RedoSubscribeTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(RedoSubscribeTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mConfig = new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.SYNC);
+        mDb = newTempDatabase(getClass(), mConfig);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    protected DatabaseConfig mConfig;
+    protected Database mDb;
+
+    @Test
+    public void committed() throws Exception {
+        Index ix = mDb.openIndex("test");
+        Listener listener = new Listener();
+
+        try (Closeable sub = mDb.subscribe(listener, -1)) {
+            Transaction txn = mDb.newTransaction();
+            ix.store(txn, "k1".getBytes(), "v1".getBytes());
+            ix.store(txn, "k2".getBytes(), "v2".getBytes());
+
+            // Nested scope which rolls back.
+            txn.enter();
+            ix.store(txn, "k3".getBytes(), "v3".getBytes());
+            txn.exit();
+
+            // Nested scope which commits into the parent.
+            txn.enter();
+            ix.delete(txn, "k1".getBytes());
+            txn.commit();
+            txn.exit();
+
+            // Interleaved transaction which rolls back.
+            Transaction txn2 = mDb.newTransaction();
+            ix.store(txn2, "x".getBytes(), "y".getBytes());
+            txn2.exit();
+
+            txn.commit();
+
+            ix.store(null, "k4".getBytes(), "v4".getBytes());
+
+            long id = ix.getId();
+            listener.expect(id + ":k1=v1", id + ":k2=v2", id + ":k1=null", "commit");
+            listener.expect(id + ":k4=v4", "commit");
+        }
+
+        assertEquals("closed:null", listener.take());
+    }
+
+    @Test
+    public void resume() throws Exception {
+        Index ix = mDb.openIndex("test");
+        long id = ix.getId();
+
+        Listener listener = new Listener();
+        Closeable sub = mDb.subscribe(listener, -1);
+
+        ix.store(null, "a".getBytes(), "1".getBytes());
+        listener.expect(id + ":a=1");
+        long position = listener.commitPosition();
+        sub.close();
+
+        ix.store(null, "b".getBytes(), "2".getBytes());
+        ix.store(null, "c".getBytes(), "3".getBytes());
+
+        listener = new Listener();
+        try (Closeable sub2 = mDb.subscribe(listener, position)) {
+            listener.expect(id + ":b=2", "commit", id + ":c=3", "commit");
+        }
+    }
+
+    @Test
+    public void backPressure() throws Exception {
+        Index ix = mDb.openIndex("test");
+        long id = ix.getId();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        Listener listener = new Listener() {
+            @Override
+            public void store(long indexId, byte[] key, byte[] value) throws IOException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.store(indexId, key, value);
+            }
+        };
+
+        try (Closeable sub = mDb.subscribe(listener, -1)) {
+            // Writers aren't blocked by the listener, and checkpoints retain the files which
+            // haven't been read yet.
+            for (int i=0; i<10; i++) {
+                ix.store(null, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+                mDb.checkpoint();
+            }
+
+            latch.countDown();
+
+            for (int i=0; i<10; i++) {
+                listener.expect(id + ":key-" + i + "=value-" + i, "commit");
+            }
+        }
+    }
+
+    @Test
+    public void unavailable() throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<3; i++) {
+            ix.store(null, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+            mDb.checkpoint();
+        }
+
+        try {
+            mDb.subscribe(new Listener(), 0);
+            fail();
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("no longer available"));
+        }
+    }
+
+    @Test
+    public void unsupported() throws Exception {
+        Database db = newTempDatabase(getClass(), new DatabaseConfig()
+                                      .directPageAccess(false)
+                                      .preallocateRedoLogs(100_000));
+        try {
+            db.subscribe(new Listener(), -1);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    static class Listener implements RedoListener {
+        final BlockingQueue<String> mQueue = new LinkedBlockingQueue<>();
+        volatile long mPosition;
+
+        @Override
+        public void store(long indexId, byte[] key, byte[] value) throws IOException {
+            mQueue.add(indexId + ":" + new String(key) + '='
+                       + (value == null ? null : new String(value)));
+        }
+
+        @Override
+        public void commit(long position) throws IOException {
+            assertTrue(position > mPosition);
+            mPosition = position;
+            mQueue.add("commit");
+        }
+
+        @Override
+        public void closed(Throwable cause) {
+            mQueue.add("closed:" + cause);
+        }
+
+        String take() throws InterruptedException {
+            String event = mQueue.poll(10, TimeUnit.SECONDS);
+            assertNotNull("timed out", event);
+            return event;
+        }
+
+        void expect(String... events) throws InterruptedException {
+            for (String event : events) {
+                assertEquals(event, take());
+            }
+        }
+
+        long commitPosition() throws InterruptedException {
+            expect("commit");
+            return mPosition;
+        }
+    }
+}
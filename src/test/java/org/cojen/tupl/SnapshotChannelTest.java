@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.StandardOpenOption;
+
+import java.util.EnumSet;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotChannelTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotChannelTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    private Database mDb;
+
+    private static DatabaseConfig newConfig() {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+    }
+
+    @Test
+    public void fileChannel() throws Exception {
+        Index ix = fill(20000);
+        mDb.checkpoint();
+
+        Snapshot s = mDb.beginSnapshot();
+        long length = s.length();
+
+        // Modifications made while the snapshot is being written aren't included.
+        Thread t = new Thread(() -> {
+            try {
+                for (int i=0; i<20000; i += 2) {
+                    ix.store(null, key(i), "modified".getBytes());
+                }
+                mDb.checkpoint();
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        });
+        t.start();
+
+        File file = new File(newTempBaseFile(getClass()).getPath() + ".snapshot");
+        try {
+            try (FileChannel fc = FileChannel.open
+                 (file.toPath(), EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE)))
+            {
+                s.writeTo(fc);
+            }
+
+            t.join();
+
+            assertEquals(length, file.length());
+
+            DatabaseConfig config = newConfig().baseFile(newTempBaseFile(getClass()));
+            Database db = Database.restoreFromSnapshot(config, new FileInputStream(file));
+            verify(db.openIndex("test"), 20000);
+            db.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void streamChannel() throws Exception {
+        fill(5000);
+        mDb.checkpoint();
+
+        ByteArrayOutputStream expect = new ByteArrayOutputStream();
+        mDb.beginSnapshot().writeTo(expect);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        mDb.beginSnapshot().writeTo(Channels.newChannel(actual));
+
+        // Nothing changed in between, and so the snapshots are identical.
+        fastAssertArrayEquals(expect.toByteArray(), actual.toByteArray());
+    }
+
+    private Index fill(int count) throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<count; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        return ix;
+    }
+
+    private static void verify(Index ix, int count) throws Exception {
+        for (int i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i), ix.load(null, key(i)));
+        }
+        assertNull(ix.load(null, key(count)));
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotIncrementalTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotIncrementalTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    private Database mDb;
+
+    private static DatabaseConfig newConfig() {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+    }
+
+    @Test
+    public void chain() throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            ix.store(null, key(i), value(i, 0));
+        }
+
+        mDb.checkpoint();
+        byte[] base = snapshot(false);
+
+        // Update a small range.
+        for (int i=100; i<200; i++) {
+            ix.store(null, key(i), value(i, 1));
+        }
+        mDb.checkpoint();
+        byte[] inc1 = snapshot(true);
+        assertTrue(inc1.length < base.length / 2);
+
+        // Changes made while the snapshot is being written aren't included.
+        mDb.checkpoint();
+        Snapshot s = mDb.beginIncrementalSnapshot();
+        for (int i=0; i<50; i++) {
+            ix.delete(null, key(i));
+        }
+        for (int i=10000; i<11000; i++) {
+            ix.store(null, key(i), value(i, 2));
+        }
+        mDb.checkpoint();
+        byte[] inc2 = write(s);
+
+        // Captures the changes made during the prior snapshot.
+        byte[] inc3 = snapshot(true);
+
+        Database db = restore(base);
+        verify(db.openIndex("test"), 0, 0, 10000, 0);
+        db.close();
+
+        db = restore(base, inc1);
+        ix = db.openIndex("test");
+        verify(ix, 0, 100, 10000, 0);
+        verify(ix, 100, 200, 10000, 1);
+        db.close();
+
+        db = restore(base, inc1, inc2);
+        ix = db.openIndex("test");
+        verify(ix, 0, 100, 10000, 0);
+        verify(ix, 100, 200, 10000, 1);
+        assertEquals(10000, ix.count(null, null));
+        db.close();
+
+        db = restore(base, inc1, inc2, inc3);
+        ix = db.openIndex("test");
+        for (int i=0; i<50; i++) {
+            assertNull(ix.load(null, key(i)));
+        }
+        verify(ix, 50, 100, 11000, 0);
+        verify(ix, 100, 200, 11000, 1);
+        verify(ix, 10000, 11000, 11000, 2);
+        assertEquals(10950, ix.count(null, null));
+        db.close();
+    }
+
+    @Test
+    public void noPriorSnapshot() throws Exception {
+        try {
+            mDb.beginIncrementalSnapshot();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void brokenChain() throws Exception {
+        Index ix = mDb.openIndex("test");
+        ix.store(null, key(0), value(0, 0));
+        mDb.checkpoint();
+        byte[] base = snapshot(false);
+
+        ix.store(null, key(1), value(1, 0));
+        mDb.checkpoint();
+        byte[] inc1 = snapshot(true);
+
+        ix.store(null, key(2), value(2, 0));
+        mDb.checkpoint();
+        byte[] inc2 = snapshot(true);
+
+        try {
+            restore(base, inc2, inc1);
+            fail();
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("doesn't follow"));
+        }
+
+        try {
+            restore(base, base);
+            fail();
+        } catch (CorruptDatabaseException e) {
+            // Expected.
+        }
+    }
+
+    private byte[] snapshot(boolean incremental) throws Exception {
+        return write(incremental ? mDb.beginIncrementalSnapshot() : mDb.beginSnapshot());
+    }
+
+    private static byte[] write(Snapshot s) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            long length = s.length();
+            s.writeTo(out);
+            assertEquals(length, out.size());
+        } finally {
+            s.close();
+        }
+        return out.toByteArray();
+    }
+
+    private Database restore(byte[] base, byte[]... increments) throws Exception {
+        InputStream[] in = new InputStream[increments.length];
+        for (int i=0; i<in.length; i++) {
+            in[i] = new ByteArrayInputStream(increments[i]);
+        }
+        DatabaseConfig config = newConfig().baseFile(newTempBaseFile(getClass()));
+        return Database.restoreFromSnapshot(config, new ByteArrayInputStream(base), in);
+    }
+
+    private static void verify(Index ix, int start, int end, int max, int version)
+        throws Exception
+    {
+        for (int i=start; i<end; i++) {
+            fastAssertArrayEquals(value(i, version), ix.load(null, key(i)));
+        }
+        assertNull(ix.load(null, key(max)));
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i, int version) {
+        return ("value-" + i + "-" + version).getBytes();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotOpenTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotOpenTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig());
+        mSnapshotFile = new File(newTempBaseFile(getClass()).getPath() + ".snapshot");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+        mSnapshotFile.delete();
+    }
+
+    private Database mDb;
+    private File mSnapshotFile;
+
+    private static DatabaseConfig newConfig() {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+    }
+
+    @Test
+    public void query() throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<10000; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        mDb.checkpoint();
+        writeSnapshot();
+
+        // Changes after the snapshot aren't visible.
+        for (int i=0; i<10000; i += 2) {
+            ix.delete(null, key(i));
+        }
+        mDb.checkpoint();
+
+        Database db = Database.openSnapshot(newConfig().minCacheSize(1_000_000), mSnapshotFile);
+        try {
+            Index snapIx = db.openIndex("test");
+            assertEquals(10000, snapIx.count(null, null));
+            for (int i=0; i<10000; i++) {
+                fastAssertArrayEquals(value(i), snapIx.load(null, key(i)));
+            }
+
+            try {
+                snapIx.store(null, key(0), "x".getBytes());
+                fail();
+            } catch (UnmodifiableDatabaseException e) {
+                // Expected.
+            }
+
+            try {
+                db.openIndex("other");
+                fail();
+            } catch (UnmodifiableDatabaseException e) {
+                // Expected.
+            }
+
+            // Still usable after the failed modifications.
+            fastAssertArrayEquals(value(1), snapIx.load(null, key(1)));
+            assertNull(db.findIndex("other"));
+        } finally {
+            db.close();
+        }
+
+        // Snapshot file is unchanged and can be opened again.
+        db = Database.openSnapshot(newConfig(), mSnapshotFile);
+        assertEquals(10000, db.openIndex("test").count(null, null));
+        db.close();
+    }
+
+    @Test
+    public void notSnapshot() throws Exception {
+        try (OutputStream out = new FileOutputStream(mSnapshotFile)) {
+            out.write(new byte[4096]);
+        }
+
+        try {
+            Database.openSnapshot(newConfig(), mSnapshotFile);
+            fail();
+        } catch (CorruptDatabaseException e) {
+            // Expected.
+        }
+    }
+
+    private void writeSnapshot() throws Exception {
+        try (OutputStream out = new FileOutputStream(mSnapshotFile)) {
+            mDb.beginSnapshot().writeTo(out);
+        }
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
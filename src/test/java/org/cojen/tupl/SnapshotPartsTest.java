@@ -0,0 +1,224 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotPartsTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotPartsTest.class.getName());
+    }
+
+    @Before
+    public void createTempDb() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    private Database mDb;
+
+    private static DatabaseConfig newConfig() {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+    }
+
+    @Test
+    public void parts() throws Exception {
+        parts(false);
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        parts(true);
+    }
+
+    private void parts(boolean compress) throws Exception {
+        Index ix = fill(20000);
+        mDb.checkpoint();
+
+        Snapshot s = mDb.beginSnapshot();
+        long length = s.length();
+
+        // Modifications made while the snapshot is being written aren't included.
+        Thread t = new Thread(() -> {
+            try {
+                for (int i=0; i<20000; i += 2) {
+                    ix.store(null, key(i), "modified".getBytes());
+                }
+                mDb.checkpoint();
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        });
+        t.start();
+
+        byte[][] parts = write(s, 4, compress);
+        t.join();
+
+        long total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+
+        if (compress) {
+            assertTrue(total < length);
+        } else {
+            assertTrue(total > length);
+        }
+
+        // Parts can be given in any order.
+        Database db = restore(new byte[][] {parts[2], parts[0], parts[3], parts[1]});
+        verify(db.openIndex("test"), 20000);
+        db.close();
+    }
+
+    @Test
+    public void withIncrement() throws Exception {
+        Index ix = fill(5000);
+        mDb.checkpoint();
+        byte[][] parts = write(mDb.beginSnapshot(), 3, true);
+
+        for (int i=5000; i<6000; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        mDb.checkpoint();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mDb.beginIncrementalSnapshot().writeTo(out);
+
+        Database db = restore(parts, out.toByteArray());
+        verify(db.openIndex("test"), 6000);
+        db.close();
+    }
+
+    @Test
+    public void moreParts() throws Exception {
+        // More parts than pages.
+        mDb.checkpoint();
+        Snapshot s = mDb.beginSnapshot();
+        long pageCount = s.length() / 4096;
+        byte[][] parts = write(s, (int) pageCount + 3, false);
+        restore(parts).close();
+    }
+
+    @Test
+    public void missingPart() throws Exception {
+        fill(1000);
+        mDb.checkpoint();
+        byte[][] parts = write(mDb.beginSnapshot(), 4, false);
+
+        try {
+            restore(new byte[][] {parts[0], parts[1], parts[2]});
+            fail();
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("parts"));
+        }
+
+        try {
+            restore(new byte[][] {parts[0], parts[1], parts[2], parts[2]});
+            fail();
+        } catch (DatabaseException e) {
+            assertTrue(e.getMessage().contains("Duplicate"));
+        }
+    }
+
+    @Test
+    public void incrementalUnsupported() throws Exception {
+        mDb.checkpoint();
+        mDb.beginSnapshot().writeTo(new ByteArrayOutputStream());
+
+        Snapshot s = mDb.beginIncrementalSnapshot();
+        try {
+            s.writeTo(new OutputStream[] {new ByteArrayOutputStream()}, false);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        } finally {
+            s.close();
+        }
+    }
+
+    private Index fill(int count) throws Exception {
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<count; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        return ix;
+    }
+
+    private static byte[][] write(Snapshot s, int count, boolean compress) throws Exception {
+        ByteArrayOutputStream[] out = new ByteArrayOutputStream[count];
+        for (int i=0; i<count; i++) {
+            out[i] = new ByteArrayOutputStream();
+        }
+        s.writeTo(out, compress);
+        byte[][] parts = new byte[count][];
+        for (int i=0; i<count; i++) {
+            parts[i] = out[i].toByteArray();
+        }
+        return parts;
+    }
+
+    private Database restore(byte[][] parts, byte[]... increments) throws Exception {
+        InputStream[] in = new InputStream[parts.length];
+        for (int i=0; i<in.length; i++) {
+            in[i] = new ByteArrayInputStream(parts[i]);
+        }
+        InputStream[] inc = new InputStream[increments.length];
+        for (int i=0; i<inc.length; i++) {
+            inc[i] = new ByteArrayInputStream(increments[i]);
+        }
+        DatabaseConfig config = newConfig().baseFile(newTempBaseFile(getClass()));
+        return Database.restoreFromSnapshot(config, in, inc);
+    }
+
+    private static void verify(Index ix, int count) throws Exception {
+        for (int i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i), ix.load(null, key(i)));
+        }
+        assertNull(ix.load(null, key(count)));
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ *
+ *
+ * @author Brian S O'Neill
+ */
+public class SnapshotViewTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SnapshotViewTest.class.getName());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+        mDb = null;
+    }
+
+    private Database mDb;
+
+    private static DatabaseConfig newConfig(boolean direct) {
+        return new DatabaseConfig()
+            .directPageAccess(direct)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_FLUSH);
+    }
+
+    @Test
+    public void view() throws Exception {
+        view(false);
+    }
+
+    @Test
+    public void viewDirect() throws Exception {
+        view(true);
+    }
+
+    private void view(boolean direct) throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig(direct).minCacheSize(1_000_000));
+
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<20000; i++) {
+            ix.store(null, key(i), value(i));
+        }
+        mDb.checkpoint();
+
+        // Not checkpointed, and so not visible.
+        ix.store(null, key(20000), value(20000));
+
+        Database view = mDb.openReadOnlyView();
+        try {
+            Index viewIx = view.openIndex("test");
+
+            // Modifications after the view is opened aren't visible.
+            Thread t = new Thread(() -> {
+                try {
+                    for (int i=0; i<20000; i += 2) {
+                        ix.store(null, key(i), "modified".getBytes());
+                    }
+                    for (int i=1; i<20000; i += 4) {
+                        ix.delete(null, key(i));
+                    }
+                    mDb.checkpoint();
+                } catch (Exception e) {
+                    throw Utils.rethrow(e);
+                }
+            });
+            t.start();
+
+            verify(viewIx, 20000);
+            t.join();
+            verify(viewIx, 20000);
+            assertEquals(20000, viewIx.count(null, null));
+
+            fastAssertArrayEquals("modified".getBytes(), ix.load(null, key(0)));
+            assertNull(ix.load(null, key(1)));
+
+            try {
+                viewIx.store(null, key(0), "x".getBytes());
+                fail();
+            } catch (UnmodifiableDatabaseException e) {
+                // Expected.
+            }
+
+            try {
+                view.openIndex("other");
+                fail();
+            } catch (UnmodifiableDatabaseException e) {
+                // Expected.
+            }
+        } finally {
+            view.close();
+        }
+
+        // A new view observes the latest checkpoint.
+        view = mDb.openReadOnlyView();
+        try {
+            Index viewIx = view.openIndex("test");
+            fastAssertArrayEquals("modified".getBytes(), viewIx.load(null, key(0)));
+            assertNull(viewIx.load(null, key(1)));
+            fastAssertArrayEquals(value(20000), viewIx.load(null, key(20000)));
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void noLocks() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig(false));
+
+        Index ix = mDb.openIndex("test");
+        ix.store(null, key(0), value(0));
+        mDb.checkpoint();
+
+        Transaction txn = mDb.newTransaction();
+        ix.store(txn, key(0), "uncommitted".getBytes());
+
+        Database view = mDb.openReadOnlyView();
+        try {
+            // Reading doesn't wait for the exclusive lock held by the writer.
+            Index viewIx = view.openIndex("test");
+            Transaction viewTxn = view.newTransaction();
+            viewTxn.lockTimeout(1, java.util.concurrent.TimeUnit.SECONDS);
+            fastAssertArrayEquals(value(0), viewIx.load(viewTxn, key(0)));
+            viewTxn.reset();
+
+            txn.commit();
+            mDb.checkpoint();
+
+            fastAssertArrayEquals(value(0), viewIx.load(null, key(0)));
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void inFlight() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig(false));
+
+        Index ix = mDb.openIndex("test");
+        for (int i=0; i<5000; i++) {
+            ix.store(null, key(i), value(i));
+        }
+
+        // Transaction is in progress at the checkpoint.
+        Transaction txn = mDb.newTransaction();
+        for (int i=0; i<5000; i += 2) {
+            ix.store(txn, key(i), "uncommitted".getBytes());
+        }
+        for (int i=1; i<5000; i += 4) {
+            ix.delete(txn, key(i));
+        }
+        for (int i=5000; i<6000; i++) {
+            ix.store(txn, key(i), value(i));
+        }
+        mDb.checkpoint();
+
+        Database view = mDb.openReadOnlyView();
+        try {
+            Index viewIx = view.openIndex("test");
+            verify(viewIx, 5000);
+            assertEquals(5000, viewIx.count(null, null));
+
+            txn.commit();
+            mDb.checkpoint();
+
+            verify(viewIx, 5000);
+        } finally {
+            view.close();
+        }
+
+        view = mDb.openReadOnlyView();
+        try {
+            Index viewIx = view.openIndex("test");
+            fastAssertArrayEquals("uncommitted".getBytes(), viewIx.load(null, key(0)));
+            assertNull(viewIx.load(null, key(1)));
+            assertEquals(6000 - 1250, viewIx.count(null, null));
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void closed() throws Exception {
+        mDb = newTempDatabase(getClass(), newConfig(false));
+        mDb.close();
+
+        try {
+            mDb.openReadOnlyView();
+            fail();
+        } catch (DatabaseException e) {
+            // Expected.
+        }
+    }
+
+    private static void verify(Index ix, int count) throws Exception {
+        for (int i=0; i<count; i++) {
+            fastAssertArrayEquals(value(i), ix.load(null, key(i)));
+        }
+        assertNull(ix.load(null, key(count)));
+    }
+
+    private static byte[] key(int i) {
+        return String.format("key-%08d", i).getBytes();
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes();
+    }
+}
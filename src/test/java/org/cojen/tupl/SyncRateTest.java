@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2011-2017 Cojen.org
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as
+ *  published by the Free Software Foundation, either version 3 of the
+ *  License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cojen.tupl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.tupl.TestUtils.*;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class SyncRateTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SyncRateTest.class.getName());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        deleteTempDatabases(getClass());
+    }
+
+    private static DatabaseConfig newConfig(long rateMillis) {
+        return new DatabaseConfig()
+            .directPageAccess(false)
+            .checkpointRate(-1, null)
+            .durabilityMode(DurabilityMode.NO_SYNC)
+            .syncRate(rateMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void awaitSync() throws Exception {
+        DatabaseConfig config = newConfig(10);
+        Database db = newTempDatabase(getClass(), config);
+        Index ix = db.openIndex("test");
+
+        for (int i=0; i<10; i++) {
+            ix.store(null, key(i), key(i));
+            db.awaitSync();
+        }
+
+        Database fdb = db;
+        Index fix = ix;
+
+        // Concurrent callers share syncs.
+        Thread[] threads = new Thread[4];
+        for (int t=0; t<threads.length; t++) {
+            int base = (t + 1) * 1000;
+            threads[t] = startAndWaitUntilBlocked(new Thread(() -> {
+                try {
+                    for (int i=0; i<10; i++) {
+                        fix.store(null, key(base + i), key(base + i));
+                        fdb.awaitSync();
+                    }
+                } catch (Exception e) {
+                    throw Utils.rethrow(e);
+                }
+            }));
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        db = reopenTempDatabase(getClass(), db, config);
+        ix = db.openIndex("test");
+
+        for (int i=0; i<10; i++) {
+            fastAssertArrayEquals(key(i), ix.load(null, key(i)));
+        }
+
+        for (int t=0; t<threads.length; t++) {
+            int base = (t + 1) * 1000;
+            for (int i=0; i<10; i++) {
+                fastAssertArrayEquals(key(base + i), ix.load(null, key(base + i)));
+            }
+        }
+    }
+
+    @Test
+    public void awaitClosed() throws Exception {
+        // Rate is so long that waiting only ends when the database is closed.
+        Database db = newTempDatabase(getClass(), newConfig(1_000_000));
+        Index ix = db.openIndex("test");
+        ix.store(null, key(1), key(1));
+
+        Thread waiter = startAndWaitUntilBlocked(new Thread(() -> {
+            try {
+                db.awaitSync();
+            } catch (Exception e) {
+                throw Utils.rethrow(e);
+            }
+        }));
+
+        db.close();
+        waiter.join();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Database db = newTempDatabase(getClass(), newConfig(-1));
+        Index ix = db.openIndex("test");
+        ix.store(null, key(1), key(1));
+
+        // Performs a sync immediately.
+        db.awaitSync();
+
+        fastAssertArrayEquals(key(1), ix.load(null, key(1)));
+    }
+
+    private static byte[] key(int i) {
+        return ("key-" + i).getBytes();
+    }
+}
@@ -102,6 +102,11 @@ public class TestAll {
             AnalyzeDirectTest.class,
             EvictionTest.class,
             EvictionDirectTest.class,
+            CacheSizeTest.class,
+            CacheSizeDirectTest.class,
+            CacheCleanerTest.class,
+            CacheCleanerDirectTest.class,
+            CheckpointTest.class,
             EnduranceTest.class,
             EnduranceDirectTest.class,
             ContentionTest.class,